@@ -53,10 +53,10 @@ import android.text.ClipboardManager;
 import android.support.v4.app.Fragment;
 
 import java.lang.StringBuilder;
-import java.util.Arrays;
 import java.util.Set;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.List;
 import java.util.Collections;
 import java.util.Comparator;
@@ -76,15 +76,23 @@ public class AppFragment extends Fragment {
   private Comparator<GroupItem> preSortMethod = null;
   private Comparator<GroupItem> sortMethod = null;
   private Comparator<GroupItem> sortMethodPreSort = null;
+  // sortMethod, then sortMethodPreSort, then preSortMethod
+  private Comparator<GroupItem> groupSortMethod = null;
   private ChildrenSort childrenSortMethod = null;
   public boolean roundValues;
-  public GroupItem cachedSearchItem;
   private ListViewUpdater updater;
-  // remember last index return by getItemByAppUid to optimize-out call to binarySearch
-  int lastGetItemByAppUidIndex = -1;
+  // index in groupDataBuffer of the first group of each uid, rebuilt by
+  // getItemByAppUid when groupDataBuffer has changed
+  private IntIntTable uidIndex = new IntIntTable();
+  private boolean uidIndexIsDirty = true;
   private NetworkLog parent = null;
   private boolean gotInstalledApps = false;
   private boolean doNotRefresh = false;
+  // whether groupData and the groups' childrenDataFiltered hold filter
+  // results; new entries are then filtered as they arrive
+  private volatile boolean filtered = false;
+  // groups shown while filtering, rebuilt by the updater
+  private ArrayList<GroupItem> shownGroups = new ArrayList<GroupItem>();
 
   public class GroupItem {
     protected ApplicationsTracker.AppEntry app;
@@ -101,11 +109,18 @@ public class AppFragment extends Fragment {
     protected long lastTimestamp;
     // childrenData bound to adapter, holds original list of children
     protected HashMap<String, ChildItem> childrenData;
+    // the same children by address, port, protocol and interface
+    protected HostTable<ChildItem> childrenByHost;
     // holds filtered list of children
     // used in place of childrenData in getView, if non-empty
     protected HashMap<String, ChildItem> childrenDataFiltered;
-    // holds sorted keys into childrenData
-    protected String[] childrenDataSorted;
+    // childrenData and childrenDataFiltered in sort order; children whose
+    // counts changed are queued in childrenToSort and re-ranked when the
+    // adapter next reads the group
+    protected RankedTree<ChildItem> childrenSorted = new RankedTree<ChildItem>();
+    protected RankedTree<ChildItem> childrenFilteredSorted = new RankedTree<ChildItem>();
+    protected ArrayList<ChildItem> childrenToSort = new ArrayList<ChildItem>();
+    // re-rank all children, e.g. after the sort method changed
     protected boolean childrenNeedSort = false;
     protected boolean childrenAreFiltered = false;
     protected boolean childrenAreDirty = false;
@@ -118,6 +133,11 @@ public class AppFragment extends Fragment {
   }
 
   public class ChildItem {
+    // key in childrenData
+    protected String key;
+    protected RankedTree.Node<ChildItem> sortNode;
+    protected RankedTree.Node<ChildItem> filteredSortNode;
+    protected boolean sortIsDirty = false;
     protected String proto; // protocol (udp, tcp, igmp, icmp, etc)
     protected int sentPackets;
     protected int sentBytes;
@@ -153,8 +173,9 @@ public class AppFragment extends Fragment {
             }
 
             item.childrenData.clear();
+            item.childrenByHost.clear();
             item.childrenDataFiltered.clear();
-            item.childrenDataSorted = null;
+            item.childrenNeedSort = true;
             item.childrenAreFiltered = false;
           }
         }
@@ -166,7 +187,7 @@ public class AppFragment extends Fragment {
     }
 
     getInstalledApps(false);
-    lastGetItemByAppUidIndex = -1;
+    uidIndexIsDirty = true;
   }
 
   protected static class SortAppsByBytes implements Comparator<GroupItem> {
@@ -206,113 +227,51 @@ public class AppFragment extends Fragment {
   }
 
   protected interface ChildrenSort {
-    public void setGroupItem(GroupItem item);
+    // children are shown in descending order of key
+    public long key(ChildItem child);
   }
 
-  protected static class SortChildrenByBytes implements Comparator<String>, ChildrenSort {
-    GroupItem item;
-
-    public SortChildrenByBytes() {
-    }
-
-    public SortChildrenByBytes(GroupItem item) {
-      this.item = item;
-    }
-
-    public void setGroupItem(GroupItem item) {
-      this.item = item;
-    }
-
-    public int compare(String o1, String o2) {
-      ChildItem c1;
-      ChildItem c2;
-
-      if(item.childrenAreFiltered) {
-        c1 = item.childrenDataFiltered.get(o1);
-        c2 = item.childrenDataFiltered.get(o2);
-      } else {
-        c1 = item.childrenData.get(o1);
-        c2 = item.childrenData.get(o2);
-      }
-
-      long totalBytes1 = c1.sentBytes + c1.receivedBytes;
-      long totalBytes2 = c2.sentBytes + c2.receivedBytes;
-
-      return totalBytes1 > totalBytes2 ? -1 : (totalBytes1 == totalBytes2) ? 0 : 1;
+  protected static class SortChildrenByBytes implements ChildrenSort {
+    public long key(ChildItem child) {
+      return (long) child.sentBytes + child.receivedBytes;
     }
   }
 
-  protected static class SortChildrenByPackets implements Comparator<String>, ChildrenSort {
-    GroupItem item;
-
-    public SortChildrenByPackets() {
-    }
-
-    public SortChildrenByPackets(GroupItem item) {
-      this.item = item;
-    }
-
-    public void setGroupItem(GroupItem item) {
-      this.item = item;
-    }
-
-    public int compare(String o1, String o2) {
-      ChildItem c1;
-      ChildItem c2;
-
-      if(item.childrenAreFiltered) {
-        c1 = item.childrenDataFiltered.get(o1);
-        c2 = item.childrenDataFiltered.get(o2);
-      } else {
-        c1 = item.childrenData.get(o1);
-        c2 = item.childrenData.get(o2);
-      }
-
-      long totalPackets1 = c1.sentPackets + c1.receivedPackets;
-      long totalPackets2 = c2.sentPackets + c2.receivedPackets;
-
-      return totalPackets1 > totalPackets2 ? -1 : (totalPackets1 == totalPackets2) ? 0 : 1;
+  protected static class SortChildrenByPackets implements ChildrenSort {
+    public long key(ChildItem child) {
+      return (long) child.sentPackets + child.receivedPackets;
     }
   }
 
-  protected static class SortChildrenByTimestamp implements Comparator<String>, ChildrenSort {
-    GroupItem item;
-
-    public SortChildrenByTimestamp() {
+  protected static class SortChildrenByTimestamp implements ChildrenSort {
+    public long key(ChildItem child) {
+      return Math.max(child.sentTimestamp, child.receivedTimestamp);
     }
+  }
 
-    public SortChildrenByTimestamp(GroupItem item) {
-      this.item = item;
-    }
+  // sorts by first, breaking ties by second, then third (either may be
+  // null); the same order as stable sorts by third, second, then first
+  protected static class SortAppsInOrder implements Comparator<GroupItem> {
+    final Comparator<GroupItem> first, second, third;
 
-    public void setGroupItem(GroupItem item) {
-      this.item = item;
+    public SortAppsInOrder(Comparator<GroupItem> first, Comparator<GroupItem> second, Comparator<GroupItem> third) {
+      this.first = first;
+      this.second = second;
+      this.third = third;
     }
 
-    public int compare(String o1, String o2) {
-      ChildItem c1;
-      ChildItem c2;
-
-      if(item.childrenAreFiltered) {
-        c1 = item.childrenDataFiltered.get(o1);
-        c2 = item.childrenDataFiltered.get(o2);
-      } else {
-        c1 = item.childrenData.get(o1);
-        c2 = item.childrenData.get(o2);
-      }
-
-      long timestamp1 = c1.sentTimestamp;
-      long timestamp2 = c2.sentTimestamp;
+    public int compare(GroupItem o1, GroupItem o2) {
+      int result = first.compare(o1, o2);
 
-      if(c1.receivedTimestamp > timestamp1) {
-        timestamp1 = c1.receivedTimestamp;
+      if(result == 0 && second != null) {
+        result = second.compare(o1, o2);
       }
 
-      if(c2.receivedTimestamp > timestamp2) {
-        timestamp2 = c2.receivedTimestamp;
+      if(result == 0 && third != null) {
+        result = third.compare(o1, o2);
       }
 
-      return timestamp1 > timestamp2 ? -1 : (timestamp1 == timestamp2) ? 0 : 1;
+      return result;
     }
   }
 
@@ -329,6 +288,10 @@ public class AppFragment extends Fragment {
         preSortMethod = new SortAppsByName();
         NetworkLog.settings.setPreSortBy(Sort.NAME);
     }
+
+    if(sortMethod != null) {
+      groupSortMethod = new SortAppsInOrder(sortMethod, sortMethodPreSort, preSortMethod);
+    }
   }
 
   protected void preSortData() {
@@ -376,26 +339,81 @@ public class AppFragment extends Fragment {
         childrenSortMethod = new SortChildrenByBytes();
         NetworkLog.settings.setSortBy(Sort.BYTES);
     }
+
+    groupSortMethod = new SortAppsInOrder(sortMethod, sortMethodPreSort, preSortMethod);
+    // children are ranked by the new method when next shown
+    sortChildren();
   }
 
+  // includes the pre-sort order
   protected void sortData() {
     synchronized(groupData) {
-      if(sortMethodPreSort != null) {
-        Collections.sort(groupData, sortMethodPreSort);
+      // the ingest thread updates the sorted-on totals under groupDataBuffer
+      synchronized(groupDataBuffer) {
+        Collections.sort(groupData, groupSortMethod);
       }
-
-      Collections.sort(groupData, sortMethod);
     }
   }
 
   public void sortChildren() {
-    synchronized(groupData) {
-      for(GroupItem item : groupData) {
+    if(groupDataBuffer == null) {
+      return;
+    }
+
+    synchronized(groupDataBuffer) {
+      for(GroupItem item : groupDataBuffer) {
         item.childrenNeedSort = true;
       }
     }
   }
 
+  // queues a child whose counts changed to be re-ranked (caller holds
+  // childrenData)
+  static void markChildForSort(GroupItem item, ChildItem child) {
+    if(!child.sortIsDirty) {
+      child.sortIsDirty = true;
+      item.childrenToSort.add(child);
+    }
+  }
+
+  // brings a group's sorted children up to date (caller holds
+  // childrenData)
+  void updateChildrenOrder(GroupItem item) {
+    if(item.childrenNeedSort) {
+      item.childrenNeedSort = false;
+      item.childrenSorted.clear();
+      item.childrenFilteredSorted.clear();
+
+      for(ChildItem child : item.childrenData.values()) {
+        child.sortIsDirty = false;
+        item.childrenSorted.insert(child.sortNode, childrenSortMethod.key(child));
+      }
+
+      for(ChildItem child : item.childrenDataFiltered.values()) {
+        item.childrenFilteredSorted.insert(child.filteredSortNode, childrenSortMethod.key(child));
+      }
+
+      item.childrenToSort.clear();
+      return;
+    }
+
+    for(ChildItem child : item.childrenToSort) {
+      long key = childrenSortMethod.key(child);
+      child.sortIsDirty = false;
+
+      item.childrenSorted.remove(child.sortNode);
+      item.childrenSorted.insert(child.sortNode, key);
+
+      item.childrenFilteredSorted.remove(child.filteredSortNode);
+
+      if(item.childrenDataFiltered.get(child.key) == child) {
+        item.childrenFilteredSorted.insert(child.filteredSortNode, key);
+      }
+    }
+
+    item.childrenToSort.clear();
+  }
+
   public void setDoNotRefresh(boolean value) {
     doNotRefresh = value;
   }
@@ -451,6 +469,7 @@ public class AppFragment extends Fragment {
         item.app = app;
         item.lastTimestamp = 0;
         item.childrenData = new HashMap<String, ChildItem>();
+        item.childrenByHost = new HostTable<ChildItem>();
         item.childrenDataFiltered = new HashMap<String, ChildItem>();
 
         if(NetworkLogService.throughputBps) {
@@ -459,22 +478,28 @@ public class AppFragment extends Fragment {
           item.throughputString = "0B/0B";
         }
 
-        groupData.add(item);
+        if(!filtered) {
+          groupData.add(item);
+        }
+
         groupDataBuffer.add(item);
       } else {
         item.app = app;
       }
 
-      // groupDataBuffer must always be sorted by UID for binary search
+      if(filtered) {
+        // the updater adds it to groupData if shown
+        refilterGroup(item);
+        groupDataBufferIsDirty = true;
+      }
+
+      // groupDataBuffer must always be sorted by UID so groups sharing a
+      // uid are adjacent
       Collections.sort(groupDataBuffer, new SortAppsByUid());
-      lastGetItemByAppUidIndex = -1;
+      uidIndexIsDirty = true;
     }
 
-    if(NetworkLog.filterTextInclude.length() > 0 || NetworkLog.filterTextExclude.length() > 0) {
-      setFilter("");
-    } else {
-      refreshAdapter();
-    }
+    refreshAdapter();
   }
 
   public void removeApp(String packageName) {
@@ -489,6 +514,7 @@ public class AppFragment extends Fragment {
         item = iterator.next();
         if(item.app.packageName.equals(packageName)) {
           item.childrenData.clear();
+          item.childrenByHost.clear();
           item.childrenDataFiltered.clear();
           iterator.remove();
         }
@@ -502,19 +528,15 @@ public class AppFragment extends Fragment {
         item = iterator.next();
         if(item.app.packageName.equals(packageName)) {
           item.childrenData.clear();
+          item.childrenByHost.clear();
           item.childrenDataFiltered.clear();
           iterator.remove();
         }
       }
     }
 
-    lastGetItemByAppUidIndex = -1;
-
-    if(NetworkLog.filterTextInclude.length() > 0 || NetworkLog.filterTextExclude.length() > 0) {
-      setFilter("");
-    } else {
-      refreshAdapter();
-    }
+    uidIndexIsDirty = true;
+    refreshAdapter();
   }
 
   protected void getInstalledApps(final boolean refresh) {
@@ -522,6 +544,7 @@ public class AppFragment extends Fragment {
       synchronized(groupData) {
         groupData.clear();
         groupDataBuffer.clear();
+        uidIndexIsDirty = true;
 
         synchronized(ApplicationsTracker.installedAppsLock) {
           for(ApplicationsTracker.AppEntry app : ApplicationsTracker.installedApps) {
@@ -534,13 +557,22 @@ public class AppFragment extends Fragment {
             item.app = app;
             item.lastTimestamp = 0;
             item.childrenData = new HashMap<String, ChildItem>();
+            item.childrenByHost = new HostTable<ChildItem>();
             item.childrenDataFiltered = new HashMap<String, ChildItem>();
             if(NetworkLogService.throughputBps) {
               item.throughputString = "0bps/0bps";
             } else {
               item.throughputString = "0B/0B";
             }
-            groupData.add(item);
+
+            if(filtered) {
+              // the updater adds it to groupData if shown
+              refilterGroup(item);
+              groupDataBufferIsDirty = true;
+            } else {
+              groupData.add(item);
+            }
+
             groupDataBuffer.add(item);
           }
         }
@@ -562,8 +594,10 @@ public class AppFragment extends Fragment {
           }
         }
 
-        // groupDataBuffer must always be sorted by UID for binary search
+        // groupDataBuffer must always be sorted by UID so groups sharing a
+        // uid are adjacent
         Collections.sort(groupDataBuffer, new SortAppsByUid());
+        uidIndexIsDirty = true;
       }
     }
   }
@@ -607,8 +641,6 @@ public class AppFragment extends Fragment {
 
       groupData = new ArrayList<GroupItem>();
       groupDataBuffer = new ArrayList<GroupItem>();
-      cachedSearchItem = new GroupItem();
-      cachedSearchItem.app = new ApplicationsTracker.AppEntry();
 
       adapter = new CustomAdapter();
     }
@@ -868,37 +900,25 @@ public class AppFragment extends Fragment {
         .putExtra("app_uid", appuid));
   }
 
-  Comparator comparator = new Comparator<GroupItem>() {
-    public int compare(GroupItem o1, GroupItem o2) {
-      return o1.app.uid < o2.app.uid ? -1 : (o1.app.uid == o2.app.uid) ? 0 : 1;
-    }
-  };
-
   public int getItemByAppUid(int uid) {
     if(groupDataBuffer == null) {
       return -1;
     }
 
     synchronized(groupDataBuffer) {
-      // check to see if we need to search for index
-      // (more often than not, the last index is still the active index being requested)
-      if(lastGetItemByAppUidIndex < 0 || groupDataBuffer.get(lastGetItemByAppUidIndex).app.uid != uid) {
-        cachedSearchItem.app.uid = uid;
-        lastGetItemByAppUidIndex = Collections.binarySearch(groupDataBuffer, cachedSearchItem, comparator);
-      }
-
-      // binarySearch isn't guaranteed to return the first item of items with the same uid
-      // so find the first item
-      while(lastGetItemByAppUidIndex > 0) {
-        if(groupDataBuffer.get(lastGetItemByAppUidIndex - 1).app.uid == uid) {
-          lastGetItemByAppUidIndex--;
-        } else {
-          break;
+      if(uidIndexIsDirty) {
+        uidIndex.clear();
+
+        for(int i = groupDataBuffer.size() - 1; i >= 0; i--) {
+          // going backwards leaves the first group of each uid
+          uidIndex.put(groupDataBuffer.get(i).app.uid, i);
         }
+
+        uidIndexIsDirty = false;
       }
-    }
 
-    return lastGetItemByAppUidIndex;
+      return uidIndex.get(uid, -1);
+    }
   }
 
   public void updateAppThroughputBps() {
@@ -977,11 +997,15 @@ public class AppFragment extends Fragment {
     synchronized(groupDataBuffer) {
       clear();
 
-      synchronized(NetworkLog.logFragment.listDataUnfiltered) {
-        Iterator<LogFragment.ListItem> iterator = NetworkLog.logFragment.listDataUnfiltered.iterator();
+      LogFragment logFragment = NetworkLog.logFragment;
+      PacketStore items = logFragment.listItems;
+      LogFragment.ListItem item = new LogFragment.ListItem();
+
+      synchronized(items) {
         LogEntry entry = new LogEntry();
-        while(iterator.hasNext()) {
-          LogFragment.ListItem item = iterator.next();
+        int end = logFragment.published - items.getStart() < 0 ? items.getStart() : logFragment.published;
+        for(int seq = items.getStart(); seq != end; seq++) {
+          items.read(seq, item);
 
           entry.uid = item.app.uid;
           entry.in = item.in;
@@ -1006,11 +1030,39 @@ public class AppFragment extends Fragment {
 
   // cache objects to prevent unnecessary allocations
   private CharArray charBuffer = new CharArray(256);
-  private String srcKey;
-  private String dstKey;
   private GroupItem newLogItem;
   private ChildItem newLogChild;
 
+  // creates the child for a host not seen before; its childrenData key is
+  // only built here, not for every packet
+  private ChildItem addChild(GroupItem group, String address, int port, String proto, String iface) {
+    String key;
+
+    try {
+      charBuffer.reset();
+      charBuffer.append(address).append(':').append(port).append(':').append(proto).append(':').append(iface);
+      key = charBuffer.toString();
+    } catch (ArrayIndexOutOfBoundsException e) {
+      Log.e("NetworkLog", "[AppFragment.onNewEntry] charBuffer too long, skipping entry", e);
+      return null;
+    }
+
+    // hosts with the same key, e.g. a null and an empty interface, share
+    // a child
+    ChildItem child = group.childrenData.get(key);
+
+    if(child == null) {
+      child = new ChildItem();
+      child.key = key;
+      child.sortNode = group.childrenSorted.newNode(child);
+      child.filteredSortNode = group.childrenFilteredSorted.newNode(child);
+      group.childrenData.put(key, child);
+    }
+
+    group.childrenByHost.put(address, port, proto, iface, child);
+    return child;
+  }
+
   public void onNewLogEntry(final LogEntry entry) {
     if(MyLog.enabled && MyLog.level >= 6) {
       MyLog.d(6, "AppFragment: NewLogEntry: [" + entry.uid + "] in=" + entry.in + " out=" + entry.out + " " + entry.src + ":" + entry.spt + " --> " + entry.dst + ":" + entry.dpt + " [" + entry.len + "]");
@@ -1024,38 +1076,13 @@ public class AppFragment extends Fragment {
       return;
     }
 
-    int index = getItemByAppUid(entry.uid);
-
-    if(index < 0) {
-      MyLog.d("No app entry for uid " + entry.uid);
-      return;
-    }
+    String iface = entry.in != null && entry.in.length() > 0 ? entry.in : entry.out;
 
     synchronized(groupDataBuffer) {
-      try {
-        charBuffer.reset();
-        charBuffer.append(entry.src).append(':').append(entry.spt).append(':').append(entry.proto).append(':');
-
-        if(entry.in != null && entry.in.length() > 0) {
-          charBuffer.append(entry.in);
-        } else {
-          charBuffer.append(entry.out);
-        }
+      int index = getItemByAppUid(entry.uid);
 
-        srcKey = StringPool.get(charBuffer);
-
-        charBuffer.reset();
-        charBuffer.append(entry.dst).append(':').append(entry.dpt).append(':').append(entry.proto).append(':');
-
-        if(entry.in != null && entry.in.length() > 0) {
-          charBuffer.append(entry.in);
-        } else {
-          charBuffer.append(entry.out);
-        }
-
-        dstKey = StringPool.get(charBuffer);
-      } catch (ArrayIndexOutOfBoundsException e) {
-        Log.e("NetworkLog", "[AppFragment.onNewEntry] charBuffer too long, skipping entry", e);
+      if(index < 0) {
+        MyLog.d("No app entry for uid " + entry.uid);
         return;
       }
 
@@ -1078,11 +1105,14 @@ public class AppFragment extends Fragment {
           newLogItem.receivedBytes += entry.len;
 
           synchronized(newLogItem.childrenData) {
-            newLogChild = newLogItem.childrenData.get(srcKey);
+            newLogChild = newLogItem.childrenByHost.get(entry.src, entry.spt, entry.proto, iface);
 
             if(newLogChild == null) {
-              newLogChild = new ChildItem();
-              newLogItem.childrenData.put(srcKey, newLogChild);
+              newLogChild = addChild(newLogItem, entry.src, entry.spt, entry.proto, iface);
+
+              if(newLogChild == null) {
+                return;
+              }
             }
 
             newLogChild.in = entry.in;
@@ -1101,7 +1131,11 @@ public class AppFragment extends Fragment {
             newLogChild.sentPort = entry.dpt;
             newLogChild.sentAddress = entry.dst;
 
-            newLogItem.childrenNeedSort = true;
+            markChildForSort(newLogItem, newLogChild);
+
+            if(filtered) {
+              updateChildFilter(newLogItem, newLogChild.key, newLogChild);
+            }
           }
         }
 
@@ -1110,11 +1144,14 @@ public class AppFragment extends Fragment {
           newLogItem.sentBytes += entry.len;
 
           synchronized(newLogItem.childrenData) {
-            newLogChild = newLogItem.childrenData.get(dstKey);
+            newLogChild = newLogItem.childrenByHost.get(entry.dst, entry.dpt, entry.proto, iface);
 
             if(newLogChild == null) {
-              newLogChild = new ChildItem();
-              newLogItem.childrenData.put(dstKey, newLogChild);
+              newLogChild = addChild(newLogItem, entry.dst, entry.dpt, entry.proto, iface);
+
+              if(newLogChild == null) {
+                return;
+              }
             }
 
             newLogChild.in = null;
@@ -1133,7 +1170,11 @@ public class AppFragment extends Fragment {
             newLogChild.sentPort = entry.dpt;
             newLogChild.sentAddress = entry.dst;
 
-            newLogItem.childrenNeedSort = true;
+            markChildForSort(newLogItem, newLogChild);
+
+            if(filtered) {
+              updateChildFilter(newLogItem, newLogChild.key, newLogChild);
+            }
           }
         }
 
@@ -1167,21 +1208,37 @@ public class AppFragment extends Fragment {
         return;
       }
 
+      if(MyLog.enabled && MyLog.level >= 4) {
+        MyLog.d(4, "AppFragmentListUpdater enter");
+      }
+
+      // new entries have already been filtered; only the set of groups
+      // shown may have changed
+      boolean updateShownGroups = groupDataBufferIsDirty && filtered;
+
+      if(updateShownGroups) {
+        synchronized(groupDataBuffer) {
+          shownGroups.clear();
+
+          for(GroupItem item : groupDataBuffer) {
+            if(isShownFiltered(item)) {
+              shownGroups.add(item);
+            }
+          }
+        }
+      }
+
       synchronized(groupData) {
-        if(MyLog.enabled && MyLog.level >= 4) {
-          MyLog.d(4, "AppFragmentListUpdater enter");
+        if(updateShownGroups) {
+          groupData.clear();
+          groupData.addAll(shownGroups);
         }
 
         if(groupDataBufferIsDirty) {
-          preSortData();
           sortData();
         }
 
-        if(groupDataBufferIsDirty && (NetworkLog.filterTextInclude.length() > 0 || NetworkLog.filterTextExclude.length() > 0)) {
-          setFilter("");
-        } else {
-          refreshAdapter();
-        }
+        refreshAdapter();
       }
 
       groupDataBufferIsDirty = false;
@@ -1225,6 +1282,88 @@ public class AppFragment extends Fragment {
     }
   }
 
+  static boolean isFilterActive() {
+    return NetworkLog.filterTextInclude.length() > 0 || NetworkLog.filterTextExclude.length() > 0;
+  }
+
+  static boolean includesHosts() {
+    return NetworkLog.filterTextInclude.length() > 0 && NetworkLog.filterInclude.hasHostTests();
+  }
+
+  static boolean matchesGroupFilter(ApplicationsTracker.AppEntry app) {
+    if(NetworkLog.filterTextInclude.length() > 0 && NetworkLog.filterInclude.hasAppTests()
+        && !NetworkLog.filterInclude.matchesApp(app)) {
+      return false;
+    }
+
+    if(NetworkLog.filterTextExclude.length() > 0 && NetworkLog.filterExclude.hasAppTests()
+        && NetworkLog.filterExclude.matchesApp(app)) {
+      return false;
+    }
+
+    return true;
+  }
+
+  static boolean matchesChildFilter(ChildItem childData) {
+    if(includesHosts() && !matchesHost(NetworkLog.filterInclude, childData)) {
+      return false;
+    }
+
+    if(NetworkLog.filterTextExclude.length() > 0 && NetworkLog.filterExclude.hasHostTests()
+        && matchesHost(NetworkLog.filterExclude, childData)) {
+      return false;
+    }
+
+    return true;
+  }
+
+  // whether a group is shown while filtering: groups without traffic are
+  // shown unless the include filter tests hosts
+  static boolean isShownFiltered(GroupItem item) {
+    return matchesGroupFilter(item.app)
+      && (item.childrenDataFiltered.size() > 0 || (!includesHosts() && item.childrenData.size() == 0));
+  }
+
+  // rebuilds a group's filtered children; returns whether it is shown
+  static boolean refilterGroup(GroupItem item) {
+    synchronized(item.childrenData) {
+      item.childrenDataFiltered.clear();
+      item.childrenAreFiltered = true;
+      item.childrenNeedSort = true;
+
+      if(!matchesGroupFilter(item.app)) {
+        return false;
+      }
+
+      for(Map.Entry<String, ChildItem> entry : item.childrenData.entrySet()) {
+        if(matchesChildFilter(entry.getValue())) {
+          item.childrenDataFiltered.put(entry.getKey(), entry.getValue());
+        }
+      }
+
+      return isShownFiltered(item);
+    }
+  }
+
+  // refilters a child whose counts just changed (caller holds childrenData)
+  void updateChildFilter(GroupItem item, String key, ChildItem childData) {
+    if(matchesGroupFilter(item.app) && matchesChildFilter(childData)) {
+      if(item.childrenDataFiltered.put(key, childData) == null) {
+        markChildForSort(item, childData);
+      }
+    } else if(item.childrenDataFiltered.remove(key) != null) {
+      markChildForSort(item, childData);
+    }
+  }
+
+  // tests a host's addresses, ports, interface and protocol
+  static boolean matchesHost(CompiledFilter filter, ChildItem childData) {
+    return (childData.sentPackets > 0 && (filter.matchesAddress(childData.sentAddress) || filter.matchesPort(childData.sentPort)))
+      || (childData.receivedPackets > 0 && (filter.matchesAddress(childData.receivedAddress) || filter.matchesPort(childData.receivedPort)))
+      || filter.matchesInterface(childData.in != null && childData.in.length() > 0 ? childData.in : childData.out)
+      || filter.matchesProtocol(childData.proto);
+  }
+
   public void setFilter(CharSequence s) {
     if(MyLog.enabled) {
       MyLog.d("[AppFragment] setFilter(" + s + ")");
@@ -1246,14 +1385,6 @@ public class AppFragment extends Fragment {
         protected FilterResults performFiltering(CharSequence constraint) {
           ArrayList<GroupItem> originalItems = new ArrayList<GroupItem>(groupDataBuffer.size());
           ArrayList<GroupItem> filteredItems = new ArrayList<GroupItem>(groupDataBuffer.size());
-          String host;
-          String iface;
-          ChildItem childData;
-          boolean matched;
-          String sentAddressResolved;
-          String sentPortResolved;
-          String receivedAddressResolved;
-          String receivedPortResolved;
 
           doNotRefresh = true;
 
@@ -1267,7 +1398,10 @@ public class AppFragment extends Fragment {
             originalItems.addAll(groupDataBuffer);
           }
 
-          if(NetworkLog.filterTextInclude.length() == 0 && NetworkLog.filterTextExclude.length() == 0) {
+          // entries arriving from here on are filtered as they are added
+          filtered = isFilterActive();
+
+          if(!filtered) {
             if(MyLog.enabled) {
               MyLog.d("[AppFragment] no constraint item count: " + originalItems.size());
             }
@@ -1275,261 +1409,25 @@ public class AppFragment extends Fragment {
             // undo uniqueHosts filtering
             // fixme: perhaps an array of indices into which items are filtered?
             for(GroupItem item : originalItems) {
-              if(item.childrenAreFiltered) {
-                item.childrenAreFiltered = false;
-                item.childrenDataFiltered.clear();
-                item.childrenNeedSort = true;
+              synchronized(item.childrenData) {
+                if(item.childrenAreFiltered) {
+                  item.childrenAreFiltered = false;
+                  item.childrenDataFiltered.clear();
+                  item.childrenNeedSort = true;
+                }
               }
             }
 
             results.values = originalItems;
             results.count = originalItems.size();
           } else {
-            int count = originalItems.size();
-
             if(MyLog.enabled) {
-              MyLog.d("[AppFragment] item count: " + count);
+              MyLog.d("[AppFragment] item count: " + originalItems.size());
             }
 
-            if(NetworkLog.filterTextIncludeList.size() == 0) {
-              if(MyLog.enabled) {
-                MyLog.d("[AppFragment] no include filter, adding all items");
-              }
-
-              for(GroupItem item : originalItems) {
+            for(GroupItem item : originalItems) {
+              if(refilterGroup(item)) {
                 filteredItems.add(item);
-
-                synchronized(item.childrenData) {
-                  item.childrenDataFiltered.clear();
-                  List<String> list = new ArrayList<String>(item.childrenData.keySet());
-                  Iterator<String> itr = list.iterator();
-                  while(itr.hasNext()) {
-                    host = itr.next();
-                    childData = item.childrenData.get(host);
-                    if(MyLog.enabled) {
-                      MyLog.d("[AppFragment] adding filtered host " + childData);
-                    }
-                    item.childrenDataFiltered.put(host, childData);
-                    item.childrenAreFiltered = true;
-                  }
-                }
-              }
-            } else {
-              GroupItem item;
-              for(int i = 0; i < count; i++) {
-                item = originalItems.get(i);
-                // MyLog.d("[AppFragment] testing filtered item " + item + "; includes: [" + NetworkLog.filterTextInclude + "]");
-
-                boolean item_added = false;
-                matched = false;
-
-                if(NetworkLog.filterNameInclude || NetworkLog.filterUidInclude) {
-                  for(String c : NetworkLog.filterTextIncludeList) {
-                    if((NetworkLog.filterNameInclude && item.app.nameLowerCase.contains(c))
-                        || (NetworkLog.filterUidInclude && item.app.uidString.equals(c))) {
-                      matched = true;
-                        }
-                  }
-                } else {
-                  matched = true;
-                }
-
-                if(matched) {
-                  // test filter against address/port/iface/proto
-                  if(NetworkLog.filterAddressInclude || NetworkLog.filterPortInclude 
-                      || NetworkLog.filterInterfaceInclude || NetworkLog.filterProtocolInclude) {
-                    synchronized(item.childrenData) {
-                      item.childrenDataFiltered.clear();
-                      List<String> list = new ArrayList<String>(item.childrenData.keySet());
-                      // todo: sort by user preference (bytes, timestamp, address, ports)
-                      Collections.sort(list);
-                      Iterator<String> itr = list.iterator();
-                      while(itr.hasNext()) {
-                        host = itr.next();
-                        // MyLog.d("[AppFragment] testing " + host);
-
-                        childData = item.childrenData.get(host);
-
-                        matched = false;
-
-                        if(NetworkLog.resolveHosts) {
-                          sentAddressResolved = NetworkLog.resolver.resolveAddress(childData.sentAddress);
-
-                          if(sentAddressResolved == null) {
-                            sentAddressResolved = "";
-                          }
-
-                          receivedAddressResolved = NetworkLog.resolver.resolveAddress(childData.receivedAddress);
-
-                          if(receivedAddressResolved == null) {
-                            receivedAddressResolved = "";
-                          }
-                        } else {
-                          sentAddressResolved = "";
-                          receivedAddressResolved = "";
-                        }
-
-                        if(NetworkLog.resolvePorts) {
-                          sentPortResolved = NetworkLog.resolver.resolveService(String.valueOf(childData.sentPort));
-                          receivedPortResolved = NetworkLog.resolver.resolveService(String.valueOf(childData.receivedPort));
-                        } else {
-                          sentPortResolved = "";
-                          receivedPortResolved = "";
-                        }
-
-                        if(childData.in != null && childData.in.length() > 0) {
-                          iface = childData.in;
-                        } else {
-                          iface = childData.out;
-                        }
-
-                        for(String c : NetworkLog.filterTextIncludeList) {
-                          if((NetworkLog.filterAddressInclude && 
-                                ((childData.sentPackets > 0 && (childData.sentAddress.contains(c) || StringPool.getLowerCase(sentAddressResolved).contains(c)))
-                                  || (childData.receivedPackets > 0 && (childData.receivedAddress.contains(c) || StringPool.getLowerCase(receivedAddressResolved).contains(c)))))
-                              || (NetworkLog.filterPortInclude && 
-                                ((childData.sentPackets > 0 && (String.valueOf(childData.sentPort).equals(c) || StringPool.getLowerCase(sentPortResolved).equals(c)))
-                                  || (childData.receivedPackets > 0 && (String.valueOf(childData.receivedPort).equals(c) || StringPool.getLowerCase(receivedPortResolved).equals(c)))))
-                              || (NetworkLog.filterInterfaceInclude && iface.contains(c))
-                              || (NetworkLog.filterProtocolInclude && StringPool.getLowerCase(NetworkLog.resolver.resolveProtocol(childData.proto)).equals(c))) {
-                            matched = true;
-                            break;
-                                  }
-                        }
-
-                        if(matched) {
-                          if(!item_added) {
-                            // MyLog.d("[AppFragment] adding filtered item " + item);
-                            filteredItems.add(item);
-                            item_added = true;
-                          }
-
-                          // MyLog.d("[AppFragment] adding filtered host " + childData);
-                          item.childrenDataFiltered.put(host, childData);
-                          item.childrenAreFiltered = true;
-                          item.childrenNeedSort = true;
-                        }
-                      }
-                    }
-                  } else {
-                    // no filtering for host/port, matches everything
-                    // MyLog.d("[AppFragment] no filter for host/port; adding filtered item " + item);
-                    filteredItems.add(item);
-
-                    synchronized(item.childrenData) {
-                      List<String> list = new ArrayList<String>(item.childrenData.keySet());
-                      // todo: sort by user preference
-                      Collections.sort(list);
-                      item.childrenDataFiltered.clear();
-                      Iterator<String> itr = list.iterator();
-                      while(itr.hasNext()) {
-                        host = itr.next();
-                        childData = item.childrenData.get(host);
-                        // MyLog.d("[AppFragment] adding filtered host " + childData);
-                        item.childrenDataFiltered.put(host, childData);
-                        item.childrenAreFiltered = true;
-                        item.childrenNeedSort = true;
-                      }
-                    }
-                  }
-                }
-              }
-            }
-
-            if(NetworkLog.filterTextExcludeList.size() > 0) {
-              count = filteredItems.size();
-
-              GroupItem item;
-              for(int i = count - 1; i >= 0; i--) {
-                item = filteredItems.get(i);
-                // MyLog.d("[AppFragment] testing filtered item: " + i + " " + item + "; excludes: [" + NetworkLog.filterTextExclude + "]");
-
-                matched = false;
-
-                if(NetworkLog.filterNameExclude || NetworkLog.filterUidExclude) {
-                  for(String c : NetworkLog.filterTextExcludeList) {
-                    if((NetworkLog.filterNameExclude && item.app.nameLowerCase.contains(c))
-                        || NetworkLog.filterUidExclude && item.app.uidString.equals(c)) 
-                    {
-                      matched = true;
-                    }
-                  }
-                } else {
-                  matched = false;
-                }
-
-                if(matched) {
-                  // MyLog.d("[AppFragment] removing filtered item: " + item);
-                  filteredItems.remove(i);
-                  continue;
-                }
-
-                if(NetworkLog.filterAddressExclude || NetworkLog.filterPortExclude
-                    || NetworkLog.filterInterfaceExclude || NetworkLog.filterProtocolExclude) {
-                  List<String> list = new ArrayList<String>(item.childrenDataFiltered.keySet());
-                  Iterator<String> itr = list.iterator();
-                  while(itr.hasNext()) {
-                    host = itr.next();
-                    childData = item.childrenDataFiltered.get(host);
-
-                    matched = false;
-
-                    if(NetworkLog.resolveHosts) {
-                      sentAddressResolved = NetworkLog.resolver.resolveAddress(childData.sentAddress);
-
-                      if(sentAddressResolved == null) {
-                        sentAddressResolved = "";
-                      }
-
-                      receivedAddressResolved = NetworkLog.resolver.resolveAddress(childData.receivedAddress);
-
-                      if(receivedAddressResolved == null) {
-                        receivedAddressResolved = "";
-                      }
-                    } else {
-                      sentAddressResolved = "";
-                      receivedAddressResolved = "";
-                    }
-
-                    if(NetworkLog.resolvePorts) {
-                      sentPortResolved = NetworkLog.resolver.resolveService(String.valueOf(childData.sentPort));
-                      receivedPortResolved = NetworkLog.resolver.resolveService(String.valueOf(childData.receivedPort));
-                    } else {
-                      sentPortResolved = "";
-                      receivedPortResolved = "";
-                    }
-
-                    if(childData.in != null && childData.in.length() > 0) {
-                      iface = childData.in;
-                    } else {
-                      iface = childData.out;
-                    }
-
-                    for(String c : NetworkLog.filterTextExcludeList) {
-                      if((NetworkLog.filterAddressExclude && 
-                            ((childData.sentPackets > 0 && (childData.sentAddress.contains(c) || StringPool.getLowerCase(sentAddressResolved).contains(c)))
-                             || (childData.receivedPackets > 0 && (childData.receivedAddress.contains(c) || StringPool.getLowerCase(receivedAddressResolved).contains(c)))))
-                          || (NetworkLog.filterPortExclude && 
-                            ((childData.sentPackets > 0 && (String.valueOf(childData.sentPort).equals(c) || StringPool.getLowerCase(sentPortResolved).equals(c)))
-                             || (childData.receivedPackets > 0 && (String.valueOf(childData.receivedPort).equals(c) || StringPool.getLowerCase(receivedPortResolved).equals(c)))))
-                          || (NetworkLog.filterInterfaceExclude && iface.contains(c))
-                          || (NetworkLog.filterProtocolExclude && StringPool.getLowerCase(NetworkLog.resolver.resolveProtocol(childData.proto)).equals(c))) {
-                        matched = true;
-                        break;
-                          }
-                    }
-
-                    if(matched) {
-                      // MyLog.d("[AppFragment] removing filtered host [" + host + "] " + childData);
-                      item.childrenDataFiltered.remove(host);
-                    }
-                  }
-
-                  if(item.childrenDataFiltered.size() == 0 && matched) {
-                    // MyLog.d("[AppFragment] removed all hosts, removing item from filter results");
-                    filteredItems.remove(i);
-                  }
-                }
               }
             }
 
@@ -1556,7 +1454,6 @@ public class AppFragment extends Fragment {
             groupData.clear();
             groupData.addAll((ArrayList<GroupItem>) results.values);
 
-            preSortData();
             sortData();
           }
           doNotRefresh = false;
@@ -1577,27 +1474,16 @@ public class AppFragment extends Fragment {
     @Override
       public Object getChild(int groupPosition, int childPosition) {
         GroupItem groupItem = groupData.get(groupPosition);
-        HashMap<String, ChildItem> children;
-
-        if(groupItem.childrenAreFiltered == false) {
-          children = groupItem.childrenData;
-        } else {
-          children = groupItem.childrenDataFiltered;
-        }
 
-        if(groupItem.childrenNeedSort == true || groupItem.childrenDataSorted == null) {
-          groupItem.childrenNeedSort = false;
+        synchronized(groupItem.childrenData) {
+          updateChildrenOrder(groupItem);
 
-          if(groupItem.childrenDataSorted == null || groupItem.childrenDataSorted.length < children.size()) {
-            groupItem.childrenDataSorted = new String[children.size()];
+          if(groupItem.childrenAreFiltered == false) {
+            return groupItem.childrenSorted.get(childPosition);
+          } else {
+            return groupItem.childrenFilteredSorted.get(childPosition);
           }
-
-          children.keySet().toArray(groupItem.childrenDataSorted);
-          childrenSortMethod.setGroupItem(groupItem);
-          Arrays.sort(groupItem.childrenDataSorted, (Comparator<String>) childrenSortMethod);
         }
-
-        return children.get(groupItem.childrenDataSorted[childPosition]);
       }
 
     @Override
@@ -13,7 +13,6 @@ import android.graphics.drawable.shapes.RectShape;
 import android.graphics.drawable.ShapeDrawable;
 import android.util.Log;
 
-import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -56,165 +55,156 @@ public class AppTimelineGraph extends GraphActivity
       buildSeries(interval, viewsize);
     }
 
-  private class HostPort {
+  private static class HostPort {
     String host;
     int port;
   }
 
-  public void buildSeries(double timeFrameSize, double viewSize) {
-    if(instanceData != null) {
-      graphView.graphSeries = instanceData.graphSeries;
-    } else {
-      HashMap<String, ArrayList<PacketGraphItem>> hostMap = new HashMap<String, ArrayList<PacketGraphItem>>();
-      HashMap<String, HostPort> addressMap = new HashMap<String, HostPort>();
-      ArrayList<PacketGraphItem> packetList;
-      CharArray charBuffer = new CharArray(256);
-      String hostKey;
+  // series of the app's shown log entries by host and port, kept between
+  // graphs of the same app
+  private static class HostPyramids extends SeriesPyramid.Cache<String> {
+    int uid;
+    final HashMap<String, HostPort> addressMap = new HashMap<String, HostPort>();
+    private final CharArray charBuffer = new CharArray(256);
+
+    void setUid(int uid) {
+      if(uid != this.uid) {
+        this.uid = uid;
+        release();
+      }
+    }
+
+    protected String key(LogFragment.ListItem item) {
+      if(item.app.uid != uid) {
+        return null;
+      }
+
       String address;
       int port;
-      HostPort hostPort;
 
-      graphView.graphSeries.clear();
+      try {
+        charBuffer.reset();
+        if(item.in != null && item.in.length() != 0) {
+          charBuffer.append(item.srcAddr).append(':').append(item.srcPort);
+          address = item.srcAddr;
+          port = item.srcPort;
+        } else {
+          charBuffer.append(item.dstAddr).append(':').append(item.dstPort);
+          address = item.dstAddr;
+          port = item.dstPort;
+        }
+      } catch (ArrayIndexOutOfBoundsException e) {
+        Log.e("NetworkLog", "[AppTimelimeGraph] charBuffer too long, skipping entry " + item, e);
+        return null;
+      }
 
-      if(NetworkLog.logFragment == null || NetworkLog.logFragment.listData == null || NetworkLog.logFragment.listData.size() == 0) {
-        SysUtils.showError(this, getString(R.string.graph_error_nodata_title), getString(R.string.graph_error_nodata_text));
-        finish();
-        return;
+      String hostKey = StringPool.get(charBuffer);
+
+      if(!addressMap.containsKey(hostKey)) {
+        HostPort hostPort = new HostPort();
+        hostPort.host = address;
+        hostPort.port = port;
+        addressMap.put(hostKey, hostPort);
       }
 
-      synchronized(NetworkLog.logFragment.listData) {
-        for(LogFragment.ListItem item : NetworkLog.logFragment.listData) {
-          if(item.app.uid == app_uid) {
-            //Log.d("NetworkLog", "Testing packet [" + (item.in == null ? "null" : item.in) + "] " + item.srcAddr + ":" + item.srcPort + " -> [" + (item.out == null ? "null" : item.out) + "] " + item.dstAddr + ":" + item.dstPort);
-            try {
-              charBuffer.reset();
-              if(item.in != null && item.in.length() != 0) {
-                charBuffer.append(item.srcAddr).append(':').append(item.srcPort);
-                address = item.srcAddr;
-                port = item.srcPort;
-              } else {
-                charBuffer.append(item.dstAddr).append(':').append(item.dstPort);
-                address = item.dstAddr;
-                port = item.dstPort;
-              }
-            } catch (ArrayIndexOutOfBoundsException e) {
-              Log.e("NetworkLog", "[AppTimelimeGraph] charBuffer too long, skipping entry " + item, e);
-              continue;
-            }
+      return hostKey;
+    }
 
-            hostKey = StringPool.get(charBuffer);
+    protected void reset() {
+      super.reset();
+      addressMap.clear();
+    }
+  }
 
-            hostPort = addressMap.get(hostKey);
-            if(hostPort == null) {
-              hostPort = new HostPort();
-              hostPort.host = address;
-              hostPort.port = port;
-              addressMap.put(hostKey, hostPort);
-              //Log.d("NetworkLog", "Adding new hostPort: " + hostKey + " == " + address + ":" + port);
-            }
+  private static final HostPyramids pyramids = new HostPyramids();
 
-            packetList = hostMap.get(hostKey);
-            if(packetList == null) {
-              packetList = new ArrayList<PacketGraphItem>();
-              hostMap.put(hostKey, packetList);
-            }
+  public void buildSeries(final double timeFrameSize, final double viewSize) {
+    newBuild();
 
-            packetList.add(new PacketGraphItem(item.timestamp, item.len));
-          }
-        }
-      }
+    if(instanceData != null) {
+      graphView.graphSeries = instanceData.graphSeries;
+      showViewport(viewSize);
+      return;
+    }
 
-      if(hostMap.size() == 0) {
-        SysUtils.showError(this, getString(R.string.graph_error_nodata_title), getString(R.string.graph_error_nodata_text));
-        finish();
-        return;
-      }
+    final HashMap<String, GraphViewData[]> hostMap = new HashMap<String, GraphViewData[]>();
+    HashMap<String, HostPort> addressMap = null;
 
-      int color = 0;
-      float density = getResources().getDisplayMetrics().density;
-      Shape rect = new RectShape();
-      int intrinsicLength = (int)(18 * (density + 0.5));
-      for(Map.Entry<String, ArrayList<PacketGraphItem>> entry : hostMap.entrySet()) {
-        hostKey = entry.getKey();
-        packetList = entry.getValue();
+    graphView.graphSeries.clear();
 
-        if(MyLog.enabled) {
-          MyLog.d("number of packets for " + hostKey + ": " + packetList.size());
-        }
-        ArrayList<PacketGraphItem> graphData = new ArrayList<PacketGraphItem>();
+    LogFragment logFragment = NetworkLog.logFragment;
 
-        double nextTimeFrame = 0;
-        double frameLen = 1; // len for this time frame
+    if(logFragment != null && logFragment.getShownCount() > 0) {
+      pyramids.setUid(app_uid);
+      hostMap.putAll(pyramids.frames(logFragment, timeFrameSize));
+      addressMap = pyramids.addressMap;
+    }
+
+    final int level = RollupStore.levelFor((long) timeFrameSize);
 
-        for(PacketGraphItem data : packetList) {
-          if(nextTimeFrame == 0) {
-            // first  plot
-            graphData.add(new PacketGraphItem(data.timestamp - 1, 1));
-            graphData.add(new PacketGraphItem(data.timestamp, data.len));
+    if(hostMap.size() == 0 && level >= 0) {
+      // no entries loaded for the app; the rollups have its traffic by
+      // interface and direction
+      final String logfile = NetworkLog.settings.getLogFile();
+      final String inLabel = getString(R.string.graph_rollup_in);
+      final String outLabel = getString(R.string.graph_rollup_out);
 
-            // set up first time frame
-            nextTimeFrame = data.timestamp + timeFrameSize;
-            frameLen = data.len;
+      runQuery(new Runnable() {
+        public void run() {
+          RollupStore rollups = RollupStore.open(logfile);
+          // the rollups may still hold traffic cleared from the logfile
+          long oldest = new LogfileStore(logfile).getOldestTimestamp();
 
-            // get next data
-            continue;
+          for(RollupStore.Series series : rollups.query(level, app_uid, oldest, Long.MAX_VALUE, true)) {
+            String hostKey = String.format(series.direction == RollupStore.IN ? inLabel : outLabel, series.iface);
+            hostMap.put(hostKey, SeriesPyramid.frames(series.timestamps, series.bytes, series.count, timeFrameSize));
           }
+        }
+      }, new Runnable() {
+        public void run() {
+          addSeries(hostMap, null, viewSize);
+        }
+      });
+      return;
+    }
 
-          if(data.timestamp <= nextTimeFrame) {
-            // data within current time frame, add to frame len
-            frameLen += data.len;
-            // get next data
-            continue;
-          } else {
-            // data outside current time frame
-            // signifies end of frame
-            // plot frame len
-            graphData.add(new PacketGraphItem(nextTimeFrame, frameLen));
-
-            // set up next time frame
-            nextTimeFrame += timeFrameSize;
-            frameLen = 1;
-
-            // test for gap
-            if(data.timestamp > nextTimeFrame) {
-              // data is past this time frame, plot zero here
-              graphData.add(new PacketGraphItem(nextTimeFrame, frameLen));
-
-              if((data.timestamp - timeFrameSize) > nextTimeFrame) {
-                graphData.add(new PacketGraphItem(data.timestamp - timeFrameSize, 1));
-              }
+    addSeries(hostMap, addressMap, viewSize);
+  }
 
-              nextTimeFrame = data.timestamp;
-              frameLen = data.len;
+  // addressMap has the hosts and ports of the keys of hostMap, or is null
+  // if the keys are labels
+  private void addSeries(HashMap<String, GraphViewData[]> hostMap, HashMap<String, HostPort> addressMap, double viewSize) {
+    String hostKey;
+    HostPort hostPort;
 
-              graphData.add(new PacketGraphItem(nextTimeFrame, frameLen));
+    if(hostMap.size() == 0) {
+      SysUtils.showError(this, getString(R.string.graph_error_nodata_title), getString(R.string.graph_error_nodata_text));
+      finish();
+      return;
+    }
 
-              nextTimeFrame += timeFrameSize;
-              frameLen = 1;
-              continue;
-            } else {
-              // data is within this frame, add len
-              frameLen = data.len;
-            }
-          }
-        }
+    int color = 0;
+    float density = getResources().getDisplayMetrics().density;
+    Shape rect = new RectShape();
+    int intrinsicLength = (int)(18 * (density + 0.5));
+    for(Map.Entry<String, GraphViewData[]> entry : hostMap.entrySet()) {
+      hostKey = entry.getKey();
+      GraphViewData[] seriesData = entry.getValue();
 
-        // post plot
-        graphData.add(new PacketGraphItem(nextTimeFrame, frameLen));
-        // post zero plot
-        graphData.add(new PacketGraphItem(nextTimeFrame + timeFrameSize, 1));
-        GraphViewData[] seriesData = new GraphViewData[graphData.size()];
+      if(MyLog.enabled) {
+        MyLog.d("number of points for " + hostKey + ": " + seriesData.length);
+      }
 
-        int i = 0;
-        for(PacketGraphItem graphItem : graphData) {
-          seriesData[i] = new GraphViewData(graphItem.timestamp, graphItem.len);
-          i++;
-        }
+      hostPort = addressMap == null ? null : addressMap.get(hostKey);
 
-        hostPort = addressMap.get(hostKey);
+      //Log.d("NetworkLog", "Got from hostMap: " + hostKey + " == " + hostPort.host + ":" + hostPort.port);
 
-        //Log.d("NetworkLog", "Got from hostMap: " + hostKey + " == " + hostPort.host + ":" + hostPort.port);
+      String label;
 
+      if(hostPort == null) {
+        // rollup series are already labelled
+        label = hostKey;
+      } else {
         final String portString;
         if(NetworkLog.resolvePorts) {
           portString = NetworkLog.resolver.resolveService(String.valueOf(hostPort.port));
@@ -226,8 +216,7 @@ public class AppTimelineGraph extends GraphActivity
         if(NetworkLog.resolveHosts) {
           addressString = NetworkLog.resolver.getResolvedAddress(hostPort.host);
           if(addressString == null) {
-            String label = hostPort.host + ":" + portString;
-            final int hashCode = label.hashCode();
+            final int hashCode = (hostPort.host + ":" + portString).hashCode();
             NetworkResolverUpdater updater = new NetworkResolverUpdater() {
               public void run() {
                 for(LegendItem legend : legendData) {
@@ -248,68 +237,49 @@ public class AppTimelineGraph extends GraphActivity
           addressString = hostPort.host;
         }
 
-        String label = addressString + ":" + portString;
-        int hashCode = label.hashCode();
-
-        graphView.addSeries(new GraphViewSeries(hashCode, label, Color.parseColor(getResources().getString(Colors.distinctColor[color])), seriesData));
-
-        boolean enabled = true;
-        boolean exists = false;
-        for(LegendItem legend : legendData) {
-          if(legend.mHashCode == hashCode) {
-            enabled = legend.mEnabled;
-            exists = true;
-            break;
-          }
-        }
-
-        if(exists == false) {
-          ShapeDrawable shape = new ShapeDrawable(rect);
-          shape.getPaint().setColor(Color.parseColor(getResources().getString(Colors.distinctColor[color])));
-          shape.setIntrinsicWidth(intrinsicLength);
-          shape.setIntrinsicHeight(intrinsicLength);
+        label = addressString + ":" + portString;
+      }
 
-          LegendItem legend = new LegendItem();
+      int hashCode = label.hashCode();
 
-          legend.mIcon = shape;
-          legend.mHashCode = hashCode;
-          legend.mName = label;
-          legend.mEnabled = true;
+      graphView.addSeries(new GraphViewSeries(hashCode, label, Color.parseColor(getResources().getString(Colors.distinctColor[color])), seriesData));
 
-          legendData.add(legend);
-          //Log.d("NetworkLog", "Adding new legend: " + label);
+      boolean enabled = true;
+      boolean exists = false;
+      for(LegendItem legend : legendData) {
+        if(legend.mHashCode == hashCode) {
+          enabled = legend.mEnabled;
+          exists = true;
+          break;
         }
+      }
 
-        graphView.setSeriesEnabled(hashCode, enabled);
-
-        color++;
+      if(exists == false) {
+        ShapeDrawable shape = new ShapeDrawable(rect);
+        shape.getPaint().setColor(Color.parseColor(getResources().getString(Colors.distinctColor[color])));
+        shape.setIntrinsicWidth(intrinsicLength);
+        shape.setIntrinsicHeight(intrinsicLength);
 
-        if(color >= Colors.distinctColor.length) {
-          color = 0;
-        }
-      }
-    }
+        LegendItem legend = new LegendItem();
 
-    double minX = graphView.getMinX(true);
-    double maxX = graphView.getMaxX(true);
+        legend.mIcon = shape;
+        legend.mHashCode = hashCode;
+        legend.mName = label;
+        legend.mEnabled = true;
 
-    double viewStart = maxX - viewSize;
+        legendData.add(legend);
+        //Log.d("NetworkLog", "Adding new legend: " + label);
+      }
 
-    if(instanceData != null) {
-      viewStart = instanceData.viewportStart;
-      viewSize = instanceData.viewsize;
-    }
+      graphView.setSeriesEnabled(hashCode, enabled);
 
-    if(viewStart < minX) {
-      viewStart = minX;
-    }
+      color++;
 
-    if(viewStart + viewSize > maxX) {
-      viewSize = maxX - viewStart;
+      if(color >= Colors.distinctColor.length) {
+        color = 0;
+      }
     }
 
-    graphView.setViewPort(viewStart, viewSize);
-    graphView.invalidateLabels();
-    graphView.invalidate();
+    showViewport(viewSize);
   }
 }
@@ -0,0 +1,233 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reads a binary logfile (see BinaryLogfile) one block at a time.  Positions
+// are file offsets of individual records, so they can be used the same way
+// as the line offsets of the text logfile.
+public class BinaryLogReader {
+  private final FileChannel channel;
+  private BinaryLogfile.Index index;
+
+  // current block
+  private int block = -1;
+  private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+  private String[] strings = new String[256];
+  private int count = 0;
+  private int recordsStart = 0;
+  private long minTimestamp = 0;
+  private int record = 0;
+  private char[] chars = new char[256];
+
+  private long startPosition = BinaryLogfile.FILE_HEADER_SIZE;
+
+  public BinaryLogReader(FileChannel channel) throws IOException {
+    this.channel = channel;
+    index = BinaryLogfile.readIndex(channel);
+  }
+
+  public BinaryLogfile.Index getIndex() {
+    return index;
+  }
+
+  public long getDataEnd() {
+    return index.dataEnd;
+  }
+
+  public long getLatestTimestamp() {
+    if(index.blockCount == 0) {
+      return -1;
+    }
+
+    return index.maxTimestamps[index.blockCount - 1];
+  }
+
+  // Positions the reader at the first record with a timestamp >= target, or
+  // with seekAhead just past the last record with a timestamp <= target.
+  // Returns the record's file offset, or -1 if there is no such record.
+  public long seekToTimestamp(long target, boolean seekAhead) throws IOException {
+    if(index.blockCount == 0) {
+      return -1;
+    }
+
+    if(seekAhead) {
+      // last block starting at or before target
+      int b = index.blockCount - 1;
+
+      while(b >= 0 && index.minTimestamps[b] > target) {
+        b--;
+      }
+
+      if(b < 0) {
+        return seek(0, 0);
+      }
+
+      loadBlock(b);
+      int last = -1;
+
+      for(int i = 0; i < count; i++) {
+        if(getTimestamp(i) <= target) {
+          last = i;
+        }
+      }
+
+      if(last + 1 == count && b + 1 < index.blockCount) {
+        return seek(b + 1, 0);
+      }
+
+      if(last + 1 == count) {
+        // past the last record
+        startPosition = index.dataEnd;
+        block = index.blockCount;
+        return index.dataEnd;
+      }
+
+      return seek(b, last + 1);
+    }
+
+    // first block that may contain target; blocks are in append order and
+    // their ranges only overlap by small clock adjustments
+    int low = 0, high = index.blockCount - 1, found = -1;
+
+    while(low <= high) {
+      int mid = (low + high) >>> 1;
+
+      if(index.maxTimestamps[mid] >= target) {
+        found = mid;
+        high = mid - 1;
+      } else {
+        low = mid + 1;
+      }
+    }
+
+    if(found == -1) {
+      MyLog.d("[BinaryLogReader] No packets found within time range");
+      return -1;
+    }
+
+    loadBlock(found);
+
+    for(int i = 0; i < count; i++) {
+      if(getTimestamp(i) >= target) {
+        return seek(found, i);
+      }
+    }
+
+    return seek(found, 0);
+  }
+
+  private long seek(int b, int r) throws IOException {
+    loadBlock(b);
+    record = r;
+    startPosition = getRecordPosition();
+    return startPosition;
+  }
+
+  private long getRecordPosition() {
+    if(block < 0) {
+      return startPosition;
+    }
+
+    if(block >= index.blockCount) {
+      return index.dataEnd;
+    }
+
+    return index.offsets[block] + recordsStart + (long) record * BinaryLogfile.RECORD_SIZE;
+  }
+
+  // bytes of records read since the last seek
+  public long getProcessedSoFar() {
+    return getRecordPosition() - startPosition;
+  }
+
+  public boolean readEntry(LogEntry entry) throws IOException {
+    if(block >= index.blockCount) {
+      return false;
+    }
+
+    while(block < 0 || record >= count) {
+      if(block + 1 >= index.blockCount) {
+        return false;
+      }
+
+      loadBlock(block + 1);
+      record = 0;
+    }
+
+    int base = recordsStart + record * BinaryLogfile.RECORD_SIZE;
+
+    entry.timestamp = minTimestamp + (buffer.getInt(base) & 0xffffffffL);
+    entry.uid = buffer.getInt(base + 4);
+    entry.uidString = StringPool.get(entry.uid);
+    entry.len = buffer.getInt(base + 8);
+    entry.in = strings[buffer.getShort(base + 12) & 0xffff];
+    entry.out = strings[buffer.getShort(base + 14) & 0xffff];
+    entry.src = strings[buffer.getShort(base + 16) & 0xffff];
+    entry.dst = strings[buffer.getShort(base + 18) & 0xffff];
+    entry.proto = strings[buffer.getShort(base + 20) & 0xffff];
+    entry.spt = buffer.getShort(base + 22) & 0xffff;
+    entry.dpt = buffer.getShort(base + 24) & 0xffff;
+    entry.validated = false;
+
+    record++;
+    return true;
+  }
+
+  private long getTimestamp(int r) {
+    return minTimestamp + (buffer.getInt(recordsStart + r * BinaryLogfile.RECORD_SIZE) & 0xffffffffL);
+  }
+
+  private void loadBlock(int b) throws IOException {
+    if(b == block) {
+      return;
+    }
+
+    long offset = index.offsets[b];
+    long end = b + 1 < index.blockCount ? index.offsets[b + 1] : index.dataEnd;
+    int length = (int) (end - offset);
+
+    if(buffer.capacity() < length) {
+      buffer = ByteBuffer.allocate(length);
+    }
+
+    buffer.clear();
+    buffer.limit(length);
+    BinaryLogfile.readFully(channel, buffer, offset);
+
+    if(buffer.getInt(0) != BinaryLogfile.BLOCK_MAGIC) {
+      throw new IOException("Bad block header at " + offset);
+    }
+
+    count = buffer.getInt(4);
+    minTimestamp = buffer.getLong(8);
+    int stringCount = buffer.getInt(24);
+
+    if(strings.length < stringCount) {
+      strings = new String[stringCount];
+    }
+
+    int pos = BinaryLogfile.BLOCK_HEADER_SIZE;
+
+    for(int i = 0; i < stringCount; i++) {
+      int stringLength = buffer.get(pos++) & 0xff;
+
+      for(int j = 0; j < stringLength; j++) {
+        chars[j] = (char) (buffer.get(pos++) & 0xff);
+      }
+
+      strings[i] = stringLength == 0 ? "" : StringPool.get(chars, 0, stringLength);
+    }
+
+    recordsStart = pos;
+    block = b;
+    record = 0;
+  }
+}
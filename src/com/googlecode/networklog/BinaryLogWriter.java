@@ -0,0 +1,178 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Appends blocks to a binary logfile (see BinaryLogfile for the layout).
+// Entries are buffered until writeBlock() is called or the block is full;
+// close() writes the trailing index but leaves the channel open.
+public class BinaryLogWriter {
+  private final FileChannel channel;
+  private BinaryLogfile.Index index;
+  private long position;
+
+  // pending block
+  private int count = 0;
+  private long[] timestamps = new long[BinaryLogfile.MAX_BLOCK_RECORDS];
+  private int[] uids = new int[BinaryLogfile.MAX_BLOCK_RECORDS];
+  private int[] lens = new int[BinaryLogfile.MAX_BLOCK_RECORDS];
+  // in, out, src, dst, proto, spt, dpt
+  private short[] fields = new short[BinaryLogfile.MAX_BLOCK_RECORDS * 7];
+  private long minTimestamp, maxTimestamp;
+  private HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+  private ArrayList<String> strings = new ArrayList<String>();
+  private int dictionarySize = 0;
+  private ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+
+  public BinaryLogWriter(FileChannel channel) {
+    this.channel = channel;
+  }
+
+  // Prepares the channel for appending: writes the file header to an empty
+  // file, otherwise loads the index and strips it (and any torn block).
+  public void open() throws IOException {
+    if(channel.size() == 0) {
+      BinaryLogfile.writeHeader(channel);
+      index = new BinaryLogfile.Index();
+    } else {
+      if(!BinaryLogfile.isBinary(channel)) {
+        throw new IOException("Not a binary logfile");
+      }
+
+      index = BinaryLogfile.readIndex(channel);
+      channel.truncate(index.dataEnd);
+    }
+
+    position = index.dataEnd;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public boolean isFull() {
+    return count == BinaryLogfile.MAX_BLOCK_RECORDS;
+  }
+
+  // returns the number of bytes the pending block would take
+  public int getPendingLength() {
+    return BinaryLogfile.BLOCK_HEADER_SIZE + dictionarySize + count * BinaryLogfile.RECORD_SIZE;
+  }
+
+  public void add(LogEntry entry) throws IOException {
+    if(count > 0 && (entry.timestamp - minTimestamp > BinaryLogfile.MAX_BLOCK_TIMESPAN
+          || maxTimestamp - entry.timestamp > BinaryLogfile.MAX_BLOCK_TIMESPAN)) {
+      writeBlock();
+    }
+
+    if(count == 0) {
+      minTimestamp = maxTimestamp = entry.timestamp;
+    } else if(entry.timestamp < minTimestamp) {
+      minTimestamp = entry.timestamp;
+    } else if(entry.timestamp > maxTimestamp) {
+      maxTimestamp = entry.timestamp;
+    }
+
+    timestamps[count] = entry.timestamp;
+    uids[count] = entry.uid;
+    lens[count] = entry.len;
+
+    int base = count * 7;
+    fields[base] = lookup(entry.in);
+    fields[base + 1] = lookup(entry.out);
+    fields[base + 2] = lookup(entry.src);
+    fields[base + 3] = lookup(entry.dst);
+    fields[base + 4] = lookup(entry.proto);
+    fields[base + 5] = (short) entry.spt;
+    fields[base + 6] = (short) entry.dpt;
+    count++;
+
+    if(count == BinaryLogfile.MAX_BLOCK_RECORDS) {
+      writeBlock();
+    }
+  }
+
+  private short lookup(String string) {
+    if(string == null) {
+      string = "";
+    }
+
+    Integer value = dictionary.get(string);
+
+    if(value == null) {
+      value = strings.size();
+      dictionary.put(string, value);
+      strings.add(string);
+      dictionarySize += 1 + Math.min(string.length(), 255);
+    }
+
+    return (short) value.intValue();
+  }
+
+  public void writeBlock() throws IOException {
+    if(count == 0) {
+      return;
+    }
+
+    int length = getPendingLength();
+
+    if(block.capacity() < length) {
+      block = ByteBuffer.allocate(length);
+    }
+
+    block.clear();
+    block.putInt(BinaryLogfile.BLOCK_MAGIC);
+    block.putInt(count);
+    block.putLong(minTimestamp);
+    block.putLong(maxTimestamp);
+    block.putInt(strings.size());
+    block.putInt(length);
+
+    for(int i = 0, n = strings.size(); i < n; i++) {
+      String string = strings.get(i);
+      int stringLength = Math.min(string.length(), 255);
+      block.put((byte) stringLength);
+
+      for(int j = 0; j < stringLength; j++) {
+        char c = string.charAt(j);
+        block.put(c < 0x80 ? (byte) c : (byte) '?');
+      }
+    }
+
+    for(int i = 0; i < count; i++) {
+      int base = i * 7;
+      block.putInt((int) (timestamps[i] - minTimestamp));
+      block.putInt(uids[i]);
+      block.putInt(lens[i]);
+
+      for(int j = 0; j < 7; j++) {
+        block.putShort(fields[base + j]);
+      }
+    }
+
+    block.flip();
+    BinaryLogfile.writeFully(channel, block, position);
+    index.add(position, minTimestamp, maxTimestamp, count);
+    position += length;
+
+    count = 0;
+    dictionary.clear();
+    strings.clear();
+    dictionarySize = 0;
+  }
+
+  // writes any pending block and the trailing index
+  public void close() throws IOException {
+    writeBlock();
+    BinaryLogfile.writeIndex(channel, index, position);
+  }
+}
@@ -0,0 +1,190 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Layout of the binary logfile (all values big-endian):
+//
+//   file header   16 bytes: magic "NLBLOG" + u16 version, 8 reserved bytes
+//   block *       32 byte header, dictionary, records
+//   index         optional; one 28 byte entry per block
+//   footer        optional; 16 bytes
+//
+// block header:  i32 magic "NLBK", i32 record count, i64 min timestamp,
+//                i64 max timestamp, i32 dictionary size, i32 block length
+// dictionary:    per block, so every block decodes on its own; each string
+//                is a u8 length followed by its ASCII bytes
+// record:        u32 timestamp - min timestamp, i32 uid, i32 len,
+//                u16 in, out, src, dst, proto (dictionary indices), u16 spt, dpt
+// index entry:   i64 block offset, i64 min timestamp, i64 max timestamp, i32 count
+// footer:        i64 index offset, i32 block count, i32 magic "NLIX"
+//
+// The index and footer are only present while no writer has the file open;
+// readers rebuild the index from the block headers when they are missing.
+public class BinaryLogfile {
+  static final long FILE_MAGIC = 0x4E4C424C4F470001L; // "NLBLOG", version 1
+  static final int FILE_HEADER_SIZE = 16;
+  static final int BLOCK_MAGIC = 0x4E4C424B; // "NLBK"
+  static final int BLOCK_HEADER_SIZE = 32;
+  static final int RECORD_SIZE = 26;
+  static final int INDEX_MAGIC = 0x4E4C4958; // "NLIX"
+  static final int INDEX_ENTRY_SIZE = 28;
+  static final int FOOTER_SIZE = 16;
+  static final int MAX_BLOCK_RECORDS = 4096;
+  // timestamps are stored as unsigned 32-bit offsets from the block minimum
+  static final long MAX_BLOCK_TIMESPAN = 0xffffffffL;
+
+  public static class Index {
+    int blockCount = 0;
+    long[] offsets = new long[64];
+    long[] minTimestamps = new long[64];
+    long[] maxTimestamps = new long[64];
+    int[] counts = new int[64];
+    // end of the last complete block
+    long dataEnd = FILE_HEADER_SIZE;
+
+    public void add(long offset, long minTimestamp, long maxTimestamp, int count) {
+      if(blockCount == offsets.length) {
+        int capacity = blockCount * 2;
+        offsets = copyOf(offsets, capacity);
+        minTimestamps = copyOf(minTimestamps, capacity);
+        maxTimestamps = copyOf(maxTimestamps, capacity);
+        int[] newCounts = new int[capacity];
+        System.arraycopy(counts, 0, newCounts, 0, blockCount);
+        counts = newCounts;
+      }
+
+      offsets[blockCount] = offset;
+      minTimestamps[blockCount] = minTimestamp;
+      maxTimestamps[blockCount] = maxTimestamp;
+      counts[blockCount] = count;
+      blockCount++;
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+      long[] copy = new long[length];
+      System.arraycopy(array, 0, copy, 0, array.length);
+      return copy;
+    }
+  }
+
+  public static boolean isBinary(FileChannel channel) throws IOException {
+    if(channel.size() < FILE_HEADER_SIZE) {
+      return false;
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(8);
+    readFully(channel, header, 0);
+    return header.getLong(0) == FILE_MAGIC;
+  }
+
+  public static void writeHeader(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+    header.putLong(0, FILE_MAGIC);
+    writeFully(channel, header, 0);
+  }
+
+  public static Index readIndex(FileChannel channel) throws IOException {
+    return readIndex(channel, BLOCK_MAGIC);
+  }
+
+  // Loads the trailing index, or rebuilds it from the block headers if the
+  // file was not closed cleanly or is still being written.  A partially
+  // written last block is ignored.  Also used for compressed logfiles,
+  // whose blocks start with the same header fields (see CompressedLogfile).
+  public static Index readIndex(FileChannel channel, int blockMagic) throws IOException {
+    long size = channel.size();
+    Index index = new Index();
+
+    if(size >= FILE_HEADER_SIZE + FOOTER_SIZE) {
+      ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+      readFully(channel, footer, size - FOOTER_SIZE);
+
+      long indexOffset = footer.getLong(0);
+      int blockCount = footer.getInt(8);
+
+      if(footer.getInt(12) == INDEX_MAGIC && blockCount >= 0
+          && indexOffset + (long) blockCount * INDEX_ENTRY_SIZE == size - FOOTER_SIZE) {
+        ByteBuffer entries = ByteBuffer.allocate(blockCount * INDEX_ENTRY_SIZE);
+        readFully(channel, entries, indexOffset);
+
+        for(int i = 0; i < blockCount; i++) {
+          int base = i * INDEX_ENTRY_SIZE;
+          index.add(entries.getLong(base), entries.getLong(base + 8), entries.getLong(base + 16), entries.getInt(base + 24));
+        }
+
+        index.dataEnd = indexOffset;
+        return index;
+      }
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+    long position = FILE_HEADER_SIZE;
+
+    while(position + BLOCK_HEADER_SIZE <= size) {
+      header.clear();
+      readFully(channel, header, position);
+
+      int blockLength = header.getInt(28);
+
+      if(header.getInt(0) != blockMagic || blockLength < BLOCK_HEADER_SIZE || position + blockLength > size) {
+        break;
+      }
+
+      index.add(position, header.getLong(8), header.getLong(16), header.getInt(4));
+      position += blockLength;
+    }
+
+    index.dataEnd = position;
+
+    if(MyLog.enabled && MyLog.level >= 3) {
+      MyLog.d(3, "[BinaryLogfile] rebuilt index: " + index.blockCount + " blocks, data end " + position + " of " + size);
+    }
+
+    return index;
+  }
+
+  public static void writeIndex(FileChannel channel, Index index, long position) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(index.blockCount * INDEX_ENTRY_SIZE + FOOTER_SIZE);
+
+    for(int i = 0; i < index.blockCount; i++) {
+      buffer.putLong(index.offsets[i]);
+      buffer.putLong(index.minTimestamps[i]);
+      buffer.putLong(index.maxTimestamps[i]);
+      buffer.putInt(index.counts[i]);
+    }
+
+    buffer.putLong(position);
+    buffer.putInt(index.blockCount);
+    buffer.putInt(INDEX_MAGIC);
+    buffer.flip();
+    writeFully(channel, buffer, position);
+  }
+
+  static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while(buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+
+      if(read == -1) {
+        throw new IOException("Unexpected end of binary logfile at " + position);
+      }
+
+      position += read;
+    }
+
+    buffer.flip();
+  }
+
+  static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while(buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+}
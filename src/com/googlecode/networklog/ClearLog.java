@@ -25,9 +25,6 @@ import android.widget.TextView;
 
 import java.lang.Thread;
 import java.lang.Runnable;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.util.concurrent.FutureTask;
 
 public class ClearLog
@@ -63,71 +60,31 @@ public class ClearLog
     return futureTask;
   }
 
+  // Logging continues while clearing: the writer moves on to a new segment,
+  // and only the segments before it are deleted or trimmed.
   public void clearLogFileEntriesOlderThan(final Context context, final long timerange) {
-    LogfileLoader loader = new LogfileLoader();
     long start = System.currentTimeMillis();
+    String logfile = NetworkLog.settings.getLogFile();
+    LogfileStore store = new LogfileStore(logfile);
 
     try {
-      loader.openLogfile(NetworkLog.settings.getLogFile());
-      long length = loader.getLength();
-      long starting_pos = loader.seekToTimestampPosition(System.currentTimeMillis() - timerange);
+      NetworkLogService service = NetworkLogService.instance;
 
-      File logfile = new File(NetworkLog.settings.getLogFile());
-      File file = new File(logfile.getParent(), logfile.getName() + ".clear");
-
-      Log.d("NetworkLog", "Opened " + logfile + " and " + file + " for clearing");
-      Log.d("NetworkLog", "starting pos: " + starting_pos);
-
-      BufferedOutputStream fileWriter = new BufferedOutputStream(new FileOutputStream(file));
-
-      if(starting_pos != -1) {
-        progress_max = (int)(length - starting_pos);
-        progress = 0;
-        progressDialog.setIndeterminate(false);
-        progressDialog.setMax(progress_max);
-
-        long processed_so_far = 0;
-        long progress_increment_size = (long)((length - starting_pos) * 0.01);
-        long next_progress_increment = progress_increment_size;
-
-        while(true) {
-          if(loader.readChunk() == false) {
-            // end of file
-            MyLog.d("[clearlogfile] Reached end of file");
-            break;
-          }
-
-          processed_so_far = loader.getReadSoFar();
-
-          if(processed_so_far >= next_progress_increment) {
-            next_progress_increment += progress_increment_size;
-            progress = (int)processed_so_far;
-            if(progressDialog != null && progressDialog.isShowing()) {
-              progressDialog.setProgress(progress);
-            }
-          }
-
-          fileWriter.write(loader.getBuffer(), 0, loader.getBufferLength());
-        }
-
-        loader.closeLogfile();
+      if(service != null) {
+        service.rotateLogfile();
       }
 
-      fileWriter.close();
-
-      if(logfile.delete()) {
-        if(!file.renameTo(logfile)) {
-          Log.w("NetworkLog", "Failed to rename " + file + " to " + logfile);
-        }
-      } else {
-        Log.w("NetworkLog", "Failed to delete " + logfile);
-      }
+      store.migrate();
+      store.clearOlderThan(start - timerange);
+      RollupStore.open(logfile).clearOlderThan(start - timerange);
     } catch (Exception e) {
       Log.w("NetworkLog", "clearLogFileEntriesOlderThan", e);
     } finally {
       long elapsed = System.currentTimeMillis() - start;
       Log.d("NetworkLog", "Clear logfile history elapsed: " + elapsed);
 
+      NetworkLogService.updateLogfileString();
+
       NetworkLog.handler.post(new Runnable() {
         public void run() {
           NetworkLog.updateStatusText();
@@ -154,20 +111,8 @@ public class ClearLog
         NetworkLog.appFragment.rebuildLogEntries();
 
         if(clearLogfile) {
-          boolean serviceRunning = false;
-          if(NetworkLog.isServiceRunning(context, NetworkLogService.class.getName())) {
-            serviceRunning = true;
-            Log.d("NetworkLog", "Stopping logging to clear log");
-            NetworkLogService.instance.stopLogging();
-          }
-
           Log.d("NetworkLog", "Clearing logfile...");
           clearLogFileEntriesOlderThan(context, timerange);
-
-          if(serviceRunning) {
-            Log.d("NetworkLog", "Resuming logging");
-            NetworkLogService.instance.startLogging();
-          }
         }
 
         NetworkLog.handler.post(new Runnable() {
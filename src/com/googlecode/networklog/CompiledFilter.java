@@ -0,0 +1,252 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// An include or exclude filter compiled from its keyword list and the
+// FilterDialog checkboxes.  An entry matches if any keyword matches any of
+// the checked fields.  Keywords are parsed once, and the result for each
+// app, address, port, interface and protocol seen is remembered, so testing
+// an entry allocates nothing once its values have been seen.  Addresses
+// without a resolved name are retested when one arrives, and the results
+// are dropped when resolveHosts or resolvePorts change.
+public class CompiledFilter {
+  private static final byte UNKNOWN = 0;
+  private static final byte NO = 1;
+  private static final byte YES = 2;
+
+  final boolean uid, name, address, port, iface, protocol;
+  private final String[] keywords;
+  // numeric keywords, -1 for the others
+  private final int[] ports;
+
+  private final ConcurrentHashMap<ApplicationsTracker.AppEntry, Boolean> appMatches = new ConcurrentHashMap<ApplicationsTracker.AppEntry, Boolean>();
+  private final ConcurrentHashMap<String, AddressMatch> addressMatches = new ConcurrentHashMap<String, AddressMatch>();
+  private final ConcurrentHashMap<String, Boolean> ifaceMatches = new ConcurrentHashMap<String, Boolean>();
+  private final ConcurrentHashMap<String, Boolean> protocolMatches = new ConcurrentHashMap<String, Boolean>();
+  private final byte[] portMatches = new byte[65536];
+  private boolean resolveHosts, resolvePorts;
+
+  private static class AddressMatch {
+    final boolean resolved;
+    final boolean result;
+
+    AddressMatch(boolean resolved, boolean result) {
+      this.resolved = resolved;
+      this.result = result;
+    }
+  }
+
+  public CompiledFilter(ArrayList<String> keywords, boolean uid, boolean name, boolean address,
+      boolean port, boolean iface, boolean protocol)
+  {
+    this.keywords = keywords.toArray(new String[keywords.size()]);
+    this.uid = uid;
+    this.name = name;
+    this.address = address;
+    this.port = port;
+    this.iface = iface;
+    this.protocol = protocol;
+
+    ports = new int[this.keywords.length];
+
+    for(int i = 0; i < ports.length; i++) {
+      ports[i] = parsePort(this.keywords[i]);
+    }
+  }
+
+  private static int parsePort(String keyword) {
+    if(keyword.length() == 0 || keyword.length() > 5) {
+      return -1;
+    }
+
+    int value = 0;
+
+    for(int i = 0; i < keyword.length(); i++) {
+      char c = keyword.charAt(i);
+
+      if(c < '0' || c > '9') {
+        return -1;
+      }
+
+      value = value * 10 + (c - '0');
+    }
+
+    // "080" is not String.valueOf(80)
+    if(keyword.length() > 1 && keyword.charAt(0) == '0') {
+      return -1;
+    }
+
+    return value;
+  }
+
+  public boolean hasAppTests() {
+    return uid || name;
+  }
+
+  public boolean hasHostTests() {
+    return address || port || iface || protocol;
+  }
+
+  public boolean matches(LogFragment.ListItem item) {
+    return matchesApp(item.app)
+      || matchesAddress(item.srcAddr) || matchesAddress(item.dstAddr)
+      || matchesPort(item.srcPort) || matchesPort(item.dstPort)
+      || matchesInterface(item.in != null && item.in.length() > 0 ? item.in : item.out)
+      || matchesProtocol(item.proto);
+  }
+
+  private void checkSettings() {
+    if(resolveHosts != NetworkLog.resolveHosts || resolvePorts != NetworkLog.resolvePorts) {
+      synchronized(this) {
+        resolveHosts = NetworkLog.resolveHosts;
+        resolvePorts = NetworkLog.resolvePorts;
+        addressMatches.clear();
+        Arrays.fill(portMatches, UNKNOWN);
+      }
+    }
+  }
+
+  public boolean matchesApp(ApplicationsTracker.AppEntry app) {
+    if(!(uid || name) || app == null) {
+      return false;
+    }
+
+    Boolean result = appMatches.get(app);
+
+    if(result == null) {
+      result = Boolean.FALSE;
+
+      for(String c : keywords) {
+        if((name && app.nameLowerCase.contains(c)) || (uid && app.uidString.equals(c))) {
+          result = Boolean.TRUE;
+          break;
+        }
+      }
+
+      appMatches.put(app, result);
+    }
+
+    return result;
+  }
+
+  public boolean matchesAddress(String addr) {
+    if(!address || addr == null) {
+      return false;
+    }
+
+    checkSettings();
+
+    AddressMatch match = addressMatches.get(addr);
+
+    if(match != null && (match.resolved || !resolveHosts)) {
+      return match.result;
+    }
+
+    String resolved = resolveHosts ? NetworkLog.resolver.resolveAddress(addr) : null;
+
+    if(match != null && resolved == null) {
+      return match.result;
+    }
+
+    String resolvedLowerCase = resolved == null ? "" : StringPool.getLowerCase(resolved);
+    boolean result = false;
+
+    for(String c : keywords) {
+      if(addr.contains(c) || resolvedLowerCase.contains(c)) {
+        result = true;
+        break;
+      }
+    }
+
+    addressMatches.put(addr, new AddressMatch(resolved != null, result));
+    return result;
+  }
+
+  public boolean matchesPort(int value) {
+    if(!port) {
+      return false;
+    }
+
+    if(value < 0 || value >= portMatches.length) {
+      return matchesPortKeywords(value);
+    }
+
+    checkSettings();
+
+    byte result = portMatches[value];
+
+    if(result == UNKNOWN) {
+      result = matchesPortKeywords(value) ? YES : NO;
+      portMatches[value] = result;
+    }
+
+    return result == YES;
+  }
+
+  private boolean matchesPortKeywords(int value) {
+    String resolved = resolvePorts ? StringPool.getLowerCase(NetworkLog.resolver.resolveService(String.valueOf(value))) : "";
+
+    for(int i = 0; i < keywords.length; i++) {
+      if(ports[i] == value || resolved.equals(keywords[i])) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  public boolean matchesInterface(String value) {
+    if(!iface || value == null) {
+      return false;
+    }
+
+    Boolean result = ifaceMatches.get(value);
+
+    if(result == null) {
+      result = Boolean.FALSE;
+
+      for(String c : keywords) {
+        if(value.contains(c)) {
+          result = Boolean.TRUE;
+          break;
+        }
+      }
+
+      ifaceMatches.put(value, result);
+    }
+
+    return result;
+  }
+
+  public boolean matchesProtocol(String value) {
+    if(!protocol || value == null) {
+      return false;
+    }
+
+    Boolean result = protocolMatches.get(value);
+
+    if(result == null) {
+      String resolved = StringPool.getLowerCase(NetworkLog.resolver.resolveProtocol(value));
+      result = Boolean.FALSE;
+
+      for(String c : keywords) {
+        if(value.equals(c) || resolved.equals(c)) {
+          result = Boolean.TRUE;
+          break;
+        }
+      }
+
+      protocolMatches.put(value, result);
+    }
+
+    return result;
+  }
+}
@@ -0,0 +1,262 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Reads a compressed logfile (see CompressedLogfile), inflating one block at
+// a time.  Positions are file offsets: the block offset plus the compressed
+// share of the lines before the current one, which keeps them increasing
+// and within the file for progress reporting.
+public class CompressedLogReader {
+  private final FileChannel channel;
+  private final BinaryLogfile.Index index;
+  private final Inflater inflater = new Inflater();
+  private final LineParser parser = new LineParser();
+
+  // current block
+  private int block = -1;
+  private ByteBuffer compressed = ByteBuffer.allocate(32 * 1024);
+  private byte[] raw = new byte[CompressedLogfile.RAW_BLOCK_SIZE];
+  private ByteBuffer rawBuffer = ByteBuffer.wrap(raw);
+  private int rawLength = 0;
+  private int pos = 0;
+
+  private long startPosition = BinaryLogfile.FILE_HEADER_SIZE;
+
+  public CompressedLogReader(FileChannel channel) throws IOException {
+    this.channel = channel;
+    index = CompressedLogfile.readIndex(channel);
+  }
+
+  public long getDataEnd() {
+    return index.dataEnd;
+  }
+
+  public long getLatestTimestamp() {
+    if(index.blockCount == 0) {
+      return -1;
+    }
+
+    return index.maxTimestamps[index.blockCount - 1];
+  }
+
+  public void close() {
+    inflater.end();
+  }
+
+  // Positions the reader at the first line with a timestamp >= target, or
+  // with seekAhead just past the last line with a timestamp <= target.
+  // Returns the position, or -1 if there is no such line.
+  public long seekToTimestamp(long target, boolean seekAhead) throws IOException {
+    if(index.blockCount == 0) {
+      return -1;
+    }
+
+    if(seekAhead) {
+      // last block starting at or before target
+      int b = index.blockCount - 1;
+
+      while(b >= 0 && index.minTimestamps[b] > target) {
+        b--;
+      }
+
+      if(b < 0) {
+        return seek(0, 0);
+      }
+
+      loadBlock(b);
+      int result = 0;
+
+      for(int line = 0; line < rawLength; line = nextLine(line)) {
+        if(getTimestamp(line) > target) {
+          break;
+        }
+
+        result = nextLine(line);
+      }
+
+      if(result < rawLength) {
+        return seek(b, result);
+      }
+
+      if(b + 1 < index.blockCount) {
+        return seek(b + 1, 0);
+      }
+
+      // past the last line
+      block = index.blockCount;
+      startPosition = index.dataEnd;
+      return index.dataEnd;
+    }
+
+    // first block that may contain target
+    int low = 0, high = index.blockCount - 1, found = -1;
+
+    while(low <= high) {
+      int mid = (low + high) >>> 1;
+
+      if(index.maxTimestamps[mid] >= target) {
+        found = mid;
+        high = mid - 1;
+      } else {
+        low = mid + 1;
+      }
+    }
+
+    if(found == -1) {
+      MyLog.d("[CompressedLogReader] No packets found within time range");
+      return -1;
+    }
+
+    loadBlock(found);
+
+    for(int line = 0; line < rawLength; line = nextLine(line)) {
+      if(getTimestamp(line) >= target) {
+        return seek(found, line);
+      }
+    }
+
+    return seek(found, 0);
+  }
+
+  private long seek(int b, int line) throws IOException {
+    loadBlock(b);
+    pos = line;
+    startPosition = getPosition();
+    return startPosition;
+  }
+
+  private long getPosition() {
+    if(block < 0) {
+      return startPosition;
+    }
+
+    if(block >= index.blockCount) {
+      return index.dataEnd;
+    }
+
+    long blockEnd = block + 1 < index.blockCount ? index.offsets[block + 1] : index.dataEnd;
+    return index.offsets[block] + (blockEnd - index.offsets[block]) * pos / Math.max(rawLength, 1);
+  }
+
+  public long getProcessedSoFar() {
+    return getPosition() - startPosition;
+  }
+
+  public boolean readEntry(LogEntry entry) throws IOException {
+    while(block < index.blockCount) {
+      if(block < 0 || pos >= rawLength) {
+        if(block + 1 >= index.blockCount) {
+          return false;
+        }
+
+        loadBlock(block + 1);
+        pos = 0;
+      }
+
+      int start = pos;
+      int newline = start;
+
+      while(newline < rawLength && raw[newline] != '\n') {
+        newline++;
+      }
+
+      pos = newline + 1;
+
+      if(newline > start && parser.parse(rawBuffer, start, newline, entry)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private int nextLine(int line) {
+    while(line < rawLength && raw[line] != '\n') {
+      line++;
+    }
+
+    return line + 1;
+  }
+
+  // lines without a timestamp read as 0
+  private long getTimestamp(int line) {
+    long value = 0;
+    boolean neg = false;
+
+    if(line < rawLength && raw[line] == '-') {
+      neg = true;
+      line++;
+    }
+
+    while(line < rawLength && raw[line] >= '0' && raw[line] <= '9') {
+      value = value * 10 + (raw[line++] - '0');
+    }
+
+    return neg ? -value : value;
+  }
+
+  private void loadBlock(int b) throws IOException {
+    if(b == block) {
+      return;
+    }
+
+    long offset = index.offsets[b];
+    long end = b + 1 < index.blockCount ? index.offsets[b + 1] : index.dataEnd;
+    int length = (int) (end - offset);
+
+    if(compressed.capacity() < length) {
+      compressed = ByteBuffer.allocate(length);
+    }
+
+    compressed.clear();
+    compressed.limit(length);
+    BinaryLogfile.readFully(channel, compressed, offset);
+
+    if(compressed.getInt(0) != CompressedLogfile.BLOCK_MAGIC) {
+      throw new IOException("Bad compressed block header at " + offset);
+    }
+
+    rawLength = compressed.getInt(24);
+
+    if(raw.length < rawLength) {
+      raw = new byte[rawLength];
+      rawBuffer = ByteBuffer.wrap(raw);
+    }
+
+    inflater.reset();
+    inflater.setInput(compressed.array(), BinaryLogfile.BLOCK_HEADER_SIZE, length - BinaryLogfile.BLOCK_HEADER_SIZE);
+
+    try {
+      int inflated = 0;
+
+      while(inflated < rawLength && !inflater.finished()) {
+        int n = inflater.inflate(raw, inflated, rawLength - inflated);
+
+        if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+
+        inflated += n;
+      }
+
+      if(inflated != rawLength) {
+        throw new IOException("Truncated compressed block at " + offset);
+      }
+    } catch(DataFormatException e) {
+      throw new IOException("Corrupt compressed block at " + offset + ": " + e.getMessage());
+    }
+
+    block = b;
+    pos = 0;
+  }
+}
@@ -0,0 +1,109 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+// Writes a compressed logfile (see CompressedLogfile) to an empty channel.
+// Entries are formatted as text lines and deflated once RAW_BLOCK_SIZE bytes
+// are pending; close() writes the last block and the index.
+public class CompressedLogWriter {
+  private final FileChannel channel;
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+  private BinaryLogfile.Index index = new BinaryLogfile.Index();
+  private long position = BinaryLogfile.FILE_HEADER_SIZE;
+
+  // pending block
+  private byte[] raw = new byte[CompressedLogfile.RAW_BLOCK_SIZE + 4096];
+  private int length = 0;
+  private int count = 0;
+  private long minTimestamp, maxTimestamp;
+  private byte[] compressed = new byte[CompressedLogfile.RAW_BLOCK_SIZE];
+
+  public CompressedLogWriter(FileChannel channel) {
+    this.channel = channel;
+  }
+
+  public void open() throws IOException {
+    channel.truncate(0);
+    CompressedLogfile.writeHeader(channel);
+  }
+
+  public void add(LogEntry entry) throws IOException {
+    int needed = LogfileWriter.getMaxLineLength(entry);
+
+    if(length + needed > raw.length) {
+      writeBlock();
+
+      if(needed > raw.length) {
+        raw = new byte[needed * 2];
+      }
+    }
+
+    if(count == 0) {
+      minTimestamp = maxTimestamp = entry.timestamp;
+    } else if(entry.timestamp < minTimestamp) {
+      minTimestamp = entry.timestamp;
+    } else if(entry.timestamp > maxTimestamp) {
+      maxTimestamp = entry.timestamp;
+    }
+
+    length = LogfileWriter.formatLine(entry, raw, length);
+    count++;
+
+    if(length >= CompressedLogfile.RAW_BLOCK_SIZE) {
+      writeBlock();
+    }
+  }
+
+  public void writeBlock() throws IOException {
+    if(count == 0) {
+      return;
+    }
+
+    deflater.reset();
+    deflater.setInput(raw, 0, length);
+    deflater.finish();
+
+    int blockLength = BinaryLogfile.BLOCK_HEADER_SIZE;
+
+    while(!deflater.finished()) {
+      if(blockLength == compressed.length) {
+        byte[] larger = new byte[compressed.length * 2];
+        System.arraycopy(compressed, 0, larger, 0, blockLength);
+        compressed = larger;
+      }
+
+      blockLength += deflater.deflate(compressed, blockLength, compressed.length - blockLength);
+    }
+
+    ByteBuffer block = ByteBuffer.wrap(compressed, 0, blockLength);
+    block.putInt(0, CompressedLogfile.BLOCK_MAGIC);
+    block.putInt(4, count);
+    block.putLong(8, minTimestamp);
+    block.putLong(16, maxTimestamp);
+    block.putInt(24, length);
+    block.putInt(28, blockLength);
+
+    BinaryLogfile.writeFully(channel, block, position);
+    index.add(position, minTimestamp, maxTimestamp, count);
+    position += blockLength;
+
+    length = 0;
+    count = 0;
+  }
+
+  // writes any pending block and the trailing index
+  public void close() throws IOException {
+    writeBlock();
+    BinaryLogfile.writeIndex(channel, index, position);
+    deflater.end();
+  }
+}
@@ -0,0 +1,50 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Layout of a compressed logfile segment (all values big-endian):
+//
+//   file header   16 bytes: magic "NLZLOG" + u16 version, 8 reserved bytes
+//   block *       32 byte header, zlib-compressed text logfile lines
+//   index         one 28 byte entry per block (as in BinaryLogfile)
+//   footer        16 bytes (as in BinaryLogfile)
+//
+// block header:  i32 magic "NLZB", i32 line count, i64 min timestamp,
+//                i64 max timestamp, i32 uncompressed length, i32 block length
+//
+// Every block holds whole lines and inflates on its own, so a seek only
+// decompresses the block containing the target.  Sealed segments are
+// compressed once and never appended to.
+public class CompressedLogfile {
+  static final long FILE_MAGIC = 0x4E4C5A4C4F470001L; // "NLZLOG", version 1
+  static final int BLOCK_MAGIC = 0x4E4C5A42; // "NLZB"
+  static final int RAW_BLOCK_SIZE = 64 * 1024;
+
+  public static boolean isCompressed(FileChannel channel) throws IOException {
+    if(channel.size() < BinaryLogfile.FILE_HEADER_SIZE) {
+      return false;
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(8);
+    BinaryLogfile.readFully(channel, header, 0);
+    return header.getLong(0) == FILE_MAGIC;
+  }
+
+  public static void writeHeader(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(BinaryLogfile.FILE_HEADER_SIZE);
+    header.putLong(0, FILE_MAGIC);
+    BinaryLogfile.writeFully(channel, header, 0);
+  }
+
+  public static BinaryLogfile.Index readIndex(FileChannel channel) throws IOException {
+    return BinaryLogfile.readIndex(channel, BLOCK_MAGIC);
+  }
+}
@@ -0,0 +1,426 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.util.Arrays;
+
+// Open-addressing connection -> uid table.  Keys are the two endpoints
+// (128-bit address + port) plus protocol, stored in canonical order so that
+// both directions of a flow share one slot.  IPv4 addresses are stored as
+// IPv4-mapped IPv6 so they match the tcp6/udp6 netstat entries.  The table
+// never grows past maxEntries; idle entries are evicted first, then the
+// least recently seen ones.
+//
+// Not thread-safe; used from the service's logger thread only.
+public class ConnectionTable {
+  public static final int NOT_FOUND = Integer.MIN_VALUE;
+
+  public static final int PROTO_OTHER = 0;
+  public static final int PROTO_TCP   = 6;
+  public static final int PROTO_UDP   = 17;
+
+  private final int maxEntries;
+  private final long maxIdle;
+  private int capacity;
+  private int mask;
+  private int size = 0;
+  private long evictions = 0;
+
+  private long[] aHi, aLo, bHi, bLo, lastSeen;
+  private int[] ports, uids;
+  private byte[] protos;
+  private boolean[] used;
+
+  // scratch output of parseAddress()
+  private long parsedHi, parsedLo;
+  private final int[] groupBuffer = new int[8];
+
+  // canonical key of the last locate()
+  private long keyAHi, keyALo, keyBHi, keyBLo;
+  private int keyPorts, keyProto;
+
+  public ConnectionTable(int maxEntries, long maxIdle) {
+    this.maxEntries = maxEntries;
+    this.maxIdle = maxIdle;
+    allocate(64);
+  }
+
+  private void allocate(int newCapacity) {
+    capacity = newCapacity;
+    mask = capacity - 1;
+    aHi = new long[capacity];
+    aLo = new long[capacity];
+    bHi = new long[capacity];
+    bLo = new long[capacity];
+    lastSeen = new long[capacity];
+    ports = new int[capacity];
+    uids = new int[capacity];
+    protos = new byte[capacity];
+    used = new boolean[capacity];
+  }
+
+  public static int getProtocolCode(String proto) {
+    if(proto == null || proto.length() != 3) {
+      return PROTO_OTHER;
+    }
+
+    char c = proto.charAt(0);
+
+    if((c == 'T' || c == 't') && (proto.charAt(1) == 'C' || proto.charAt(1) == 'c')) {
+      return PROTO_TCP;
+    }
+
+    if((c == 'U' || c == 'u') && (proto.charAt(1) == 'D' || proto.charAt(1) == 'd')) {
+      return PROTO_UDP;
+    }
+
+    return PROTO_OTHER;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+
+  public void clear() {
+    allocate(64);
+    size = 0;
+  }
+
+  // returns the uid for the flow in either direction, or NOT_FOUND
+  public int get(String src, int spt, String dst, int dpt, int proto, long now) {
+    if(!setKey(src, spt, dst, dpt, proto)) {
+      return NOT_FOUND;
+    }
+
+    int slot = locate();
+
+    if(!used[slot]) {
+      return NOT_FOUND;
+    }
+
+    lastSeen[slot] = now;
+    return uids[slot];
+  }
+
+  public void put(String src, int spt, String dst, int dpt, int proto, int uid, long now) {
+    if(!setKey(src, spt, dst, dpt, proto)) {
+      return;
+    }
+
+    insert(uid, now);
+  }
+
+  public void put(long srcHi, long srcLo, int spt, long dstHi, long dstLo, int dpt, int proto, int uid, long now) {
+    setKey(srcHi, srcLo, spt, dstHi, dstLo, dpt, proto);
+    insert(uid, now);
+  }
+
+  private void insert(int uid, long now) {
+    int slot = locate();
+
+    if(!used[slot]) {
+      if(size >= maxEntries || (size + 1) * 2 > capacity) {
+        makeRoom(now);
+        slot = locate();
+      }
+
+      used[slot] = true;
+      aHi[slot] = keyAHi;
+      aLo[slot] = keyALo;
+      bHi[slot] = keyBHi;
+      bLo[slot] = keyBLo;
+      ports[slot] = keyPorts;
+      protos[slot] = (byte) keyProto;
+      size++;
+    }
+
+    uids[slot] = uid;
+    lastSeen[slot] = now;
+  }
+
+  private boolean setKey(String src, int spt, String dst, int dpt, int proto) {
+    if(!parseAddress(src)) {
+      return false;
+    }
+
+    long srcHi = parsedHi, srcLo = parsedLo;
+
+    if(!parseAddress(dst)) {
+      return false;
+    }
+
+    setKey(srcHi, srcLo, spt, parsedHi, parsedLo, dpt, proto);
+    return true;
+  }
+
+  private void setKey(long srcHi, long srcLo, int spt, long dstHi, long dstLo, int dpt, int proto) {
+    // canonical endpoint order makes lookups direction-independent
+    if(compare(srcHi, srcLo, spt, dstHi, dstLo, dpt) <= 0) {
+      keyAHi = srcHi; keyALo = srcLo; keyBHi = dstHi; keyBLo = dstLo;
+      keyPorts = (spt << 16) | (dpt & 0xffff);
+    } else {
+      keyAHi = dstHi; keyALo = dstLo; keyBHi = srcHi; keyBLo = srcLo;
+      keyPorts = (dpt << 16) | (spt & 0xffff);
+    }
+
+    keyProto = proto;
+  }
+
+  private static int compare(long hi1, long lo1, int port1, long hi2, long lo2, int port2) {
+    if(hi1 != hi2) {
+      return hi1 < hi2 ? -1 : 1;
+    }
+
+    if(lo1 != lo2) {
+      return lo1 < lo2 ? -1 : 1;
+    }
+
+    return port1 - port2;
+  }
+
+  // returns the slot holding the current key, or the empty slot where it belongs
+  private int locate() {
+    long h = keyAHi * 0x9E3779B97F4A7C15L;
+    h = (h ^ keyALo) * 0x9E3779B97F4A7C15L;
+    h = (h ^ keyBHi) * 0x9E3779B97F4A7C15L;
+    h = (h ^ keyBLo) * 0x9E3779B97F4A7C15L;
+    h = (h ^ keyPorts ^ ((long) keyProto << 32)) * 0x9E3779B97F4A7C15L;
+
+    int slot = (int) (h >>> 32) & mask;
+
+    while(used[slot]) {
+      if(ports[slot] == keyPorts && aLo[slot] == keyALo && bLo[slot] == keyBLo
+          && aHi[slot] == keyAHi && bHi[slot] == keyBHi && protos[slot] == (byte) keyProto) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  // evicts idle entries (or the least recently seen half) and/or grows the
+  // table, then rehashes the survivors
+  private void makeRoom(long now) {
+    long cutoff = now - maxIdle;
+
+    if(size >= maxEntries) {
+      int idle = 0;
+
+      for(int i = 0; i < capacity; i++) {
+        if(used[i] && lastSeen[i] < cutoff) {
+          idle++;
+        }
+      }
+
+      if(idle < maxEntries / 4) {
+        // not enough idle entries; drop everything older than the median
+        cutoff = medianLastSeen();
+      }
+    } else {
+      cutoff = Long.MIN_VALUE;
+    }
+
+    int newCapacity = capacity;
+
+    while(newCapacity < maxEntries * 2 && (size + 1) * 2 > newCapacity) {
+      newCapacity *= 2;
+    }
+
+    long[] oldAHi = aHi, oldALo = aLo, oldBHi = bHi, oldBLo = bLo, oldLastSeen = lastSeen;
+    int[] oldPorts = ports, oldUids = uids;
+    byte[] oldProtos = protos;
+    boolean[] oldUsed = used;
+    int oldCapacity = capacity;
+    int evicted = 0;
+
+    // save the pending key, locate() below reuses it
+    long pendingAHi = keyAHi, pendingALo = keyALo, pendingBHi = keyBHi, pendingBLo = keyBLo;
+    int pendingPorts = keyPorts, pendingProto = keyProto;
+
+    allocate(newCapacity);
+    size = 0;
+
+    for(int i = 0; i < oldCapacity; i++) {
+      if(!oldUsed[i]) {
+        continue;
+      }
+
+      if(oldLastSeen[i] < cutoff) {
+        evicted++;
+        continue;
+      }
+
+      keyAHi = oldAHi[i]; keyALo = oldALo[i]; keyBHi = oldBHi[i]; keyBLo = oldBLo[i];
+      keyPorts = oldPorts[i]; keyProto = oldProtos[i];
+
+      int slot = locate();
+      used[slot] = true;
+      aHi[slot] = keyAHi;
+      aLo[slot] = keyALo;
+      bHi[slot] = keyBHi;
+      bLo[slot] = keyBLo;
+      ports[slot] = keyPorts;
+      protos[slot] = oldProtos[i];
+      uids[slot] = oldUids[i];
+      lastSeen[slot] = oldLastSeen[i];
+      size++;
+    }
+
+    evictions += evicted;
+    keyAHi = pendingAHi; keyALo = pendingALo; keyBHi = pendingBHi; keyBLo = pendingBLo;
+    keyPorts = pendingPorts; keyProto = pendingProto;
+
+    if(MyLog.enabled && MyLog.level >= 3) {
+      MyLog.d(3, "[ConnectionTable] evicted " + evicted + " entries; size " + size + " capacity " + capacity);
+    }
+  }
+
+  private long medianLastSeen() {
+    long[] times = new long[size];
+    int n = 0;
+
+    for(int i = 0; i < capacity; i++) {
+      if(used[i]) {
+        times[n++] = lastSeen[i];
+      }
+    }
+
+    Arrays.sort(times, 0, n);
+    // strictly greater than the median so at least half is evicted
+    return n == 0 ? Long.MIN_VALUE : times[n / 2] + 1;
+  }
+
+  // parses a dotted-quad or IPv6 address into parsedHi/parsedLo without allocating
+  private boolean parseAddress(String address) {
+    if(address == null) {
+      return false;
+    }
+
+    int length = address.length();
+
+    if(address.indexOf(':') == -1) {
+      long ip = 0;
+      int octet = 0, digits = 0, dots = 0;
+
+      for(int i = 0; i < length; i++) {
+        char c = address.charAt(i);
+
+        if(c >= '0' && c <= '9') {
+          octet = octet * 10 + (c - '0');
+          if(++digits > 3 || octet > 255) {
+            return false;
+          }
+        } else if(c == '.' && digits > 0 && dots < 3) {
+          ip = (ip << 8) | octet;
+          octet = 0;
+          digits = 0;
+          dots++;
+        } else {
+          return false;
+        }
+      }
+
+      if(dots != 3 || digits == 0) {
+        return false;
+      }
+
+      parsedHi = 0;
+      parsedLo = 0x0000ffff00000000L | (ip << 8) | octet;
+      return true;
+    }
+
+    // IPv6: up to eight 16-bit groups, optionally with one "::"
+    int[] groups = groupBuffer;
+    int count = 0, gap = -1, value = 0, digits = 0;
+
+    for(int i = 0; i < length; i++) {
+      char c = address.charAt(i);
+      int nibble;
+
+      if(c >= '0' && c <= '9') {
+        nibble = c - '0';
+      } else if(c >= 'a' && c <= 'f') {
+        nibble = c - 'a' + 10;
+      } else if(c >= 'A' && c <= 'F') {
+        nibble = c - 'A' + 10;
+      } else if(c == ':') {
+        if(i + 1 < length && address.charAt(i + 1) == ':') {
+          if(gap != -1) {
+            return false;
+          }
+          if(digits > 0) {
+            if(count >= 8) {
+              return false;
+            }
+            groups[count++] = value;
+          }
+          gap = count;
+          value = 0;
+          digits = 0;
+          i++;
+          continue;
+        }
+
+        if(digits == 0 || count >= 8) {
+          return false;
+        }
+
+        groups[count++] = value;
+        value = 0;
+        digits = 0;
+        continue;
+      } else {
+        // embedded IPv4 tails are not produced by the kernel log; reject
+        return false;
+      }
+
+      if(++digits > 4) {
+        return false;
+      }
+      value = (value << 4) | nibble;
+    }
+
+    if(digits > 0) {
+      if(count >= 8) {
+        return false;
+      }
+      groups[count++] = value;
+    }
+
+    if(gap == -1 ? count != 8 : count > 7) {
+      return false;
+    }
+
+    long hi = 0, lo = 0;
+    int fill = gap == -1 ? 0 : 8 - count;
+
+    for(int g = 0, src = 0; g < 8; g++) {
+      int group;
+
+      if(gap != -1 && g >= gap && g < gap + fill) {
+        group = 0;
+      } else {
+        group = groups[src++];
+      }
+
+      if(g < 4) {
+        hi = (hi << 16) | group;
+      } else {
+        lo = (lo << 16) | group;
+      }
+    }
+
+    parsedHi = hi;
+    parsedLo = lo;
+    return true;
+  }
+}
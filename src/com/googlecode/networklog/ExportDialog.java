@@ -251,7 +251,7 @@ public class ExportDialog
     final LogfileLoader loader = new LogfileLoader();
 
     try {
-      loader.openLogfile(NetworkLog.settings.getLogFile());
+      loader.openLogfile(NetworkLog.settings.getLogFile(), true);
     } catch (FileNotFoundException fnfe) {
       SysUtils.showError(context, context.getResources().getString(R.string.export_error_title), "No logfile found at " + NetworkLog.settings.getLogFile());
       return;
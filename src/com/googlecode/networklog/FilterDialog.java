@@ -216,6 +216,7 @@ public class FilterDialog implements DialogInterface.OnDismissListener
 
       FilterUtils.buildList(NetworkLog.filterTextInclude, NetworkLog.filterTextIncludeList);
       FilterUtils.buildList(NetworkLog.filterTextExclude, NetworkLog.filterTextExcludeList);
+      FilterUtils.compileFilters();
 
       NetworkLog.appFragment.setFilter("");
       NetworkLog.logFragment.setFilter("");
@@ -25,4 +25,15 @@ public class FilterUtils
       }
     }
   }
+
+  public static void compileFilters()
+  {
+    NetworkLog.filterInclude = new CompiledFilter(NetworkLog.filterTextIncludeList,
+        NetworkLog.filterUidInclude, NetworkLog.filterNameInclude, NetworkLog.filterAddressInclude,
+        NetworkLog.filterPortInclude, NetworkLog.filterInterfaceInclude, NetworkLog.filterProtocolInclude);
+
+    NetworkLog.filterExclude = new CompiledFilter(NetworkLog.filterTextExcludeList,
+        NetworkLog.filterUidExclude, NetworkLog.filterNameExclude, NetworkLog.filterAddressExclude,
+        NetworkLog.filterPortExclude, NetworkLog.filterInterfaceExclude, NetworkLog.filterProtocolExclude);
+  }
 }
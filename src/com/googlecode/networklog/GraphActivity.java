@@ -277,6 +277,60 @@ public abstract class GraphActivity extends Activity
     adapter.notifyDataSetChanged();
   }
 
+  // builds started, so a query finishing after a newer build is dropped
+  private int builds = 0;
+
+  // call at the start of buildSeries()
+  protected void newBuild() {
+    builds++;
+  }
+
+  // Runs query on a background thread, then done on the UI thread unless a
+  // newer build has started or the activity is finishing.
+  protected void runQuery(final Runnable query, final Runnable done) {
+    final int build = builds;
+
+    new Thread(new Runnable() {
+      public void run() {
+        query.run();
+
+        runOnUiThread(new Runnable() {
+          public void run() {
+            if(build == builds && !isFinishing()) {
+              done.run();
+              graphView.invalidateContent();
+            }
+          }
+        });
+      }
+    }, "GraphQuery").start();
+  }
+
+  // shows the newest viewSize ms of the series, or the saved viewport
+  protected void showViewport(double viewSize) {
+    double minX = graphView.getMinX(true);
+    double maxX = graphView.getMaxX(true);
+
+    double viewStart = maxX - viewSize;
+
+    if(instanceData != null) {
+      viewStart = instanceData.viewportStart;
+      viewSize = instanceData.viewsize;
+    }
+
+    if(viewStart < minX) {
+      viewStart = minX;
+    }
+
+    if(viewStart + viewSize > maxX) {
+      viewSize = maxX - viewStart;
+    }
+
+    graphView.setViewPort(viewStart, viewSize);
+    graphView.invalidateLabels();
+    graphView.invalidate();
+  }
+
   private class CustomAdapter extends ArrayAdapter<LegendItem> {
     LayoutInflater mInflater = (LayoutInflater) getSystemService(Activity.LAYOUT_INFLATER_SERVICE);
 
@@ -60,7 +60,7 @@ public class HistoryLoader {
         return;
       }
 
-      loader.openLogfile(NetworkLog.settings.getLogFile());
+      loader.openLogfile(NetworkLog.settings.getLogFile(), true);
       final long length = loader.getLength();
 
       if(length == 0) {
@@ -154,7 +154,7 @@ public class HistoryLoader {
                 NetworkLog.logFragment.setDoNotRefresh(false);
                 NetworkLog.appFragment.setDoNotRefresh(false);
 
-                StringPool.clearCharPool();
+                StringPool.logStats();
                 NetworkLog.logFragment.appFragmentNeedsRebuild = true;
                 NetworkLog.logFragment.updaterRunOnce();
 
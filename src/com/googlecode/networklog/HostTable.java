@@ -0,0 +1,113 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+// Open-addressing table keyed by (address, port, protocol, interface),
+// used by AppFragment to find a host's ChildItem without building a key
+// string per packet.  The strings are compared by reference first; log
+// entries share their strings through StringPool and PacketStore, so
+// equals() is rarely reached.  Not synchronized.
+public class HostTable<V> {
+  private String[] addresses;
+  private int[] ports;
+  private String[] protocols;
+  private String[] ifaces;
+  private Object[] values;
+  private int mask;
+  private int size = 0;
+
+  public HostTable() {
+    allocate(16);
+  }
+
+  private void allocate(int capacity) {
+    addresses = new String[capacity];
+    ports = new int[capacity];
+    protocols = new String[capacity];
+    ifaces = new String[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private static int hash(String address, int port, String protocol, String iface) {
+    int h = address == null ? 0 : address.hashCode();
+    h = h * 31 + port;
+    h = h * 31 + (protocol == null ? 0 : protocol.hashCode());
+    h = h * 31 + (iface == null ? 0 : iface.hashCode());
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean same(String a, String b) {
+    return a == b || (a != null && a.equals(b));
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(String address, int port, String protocol, String iface) {
+    int i = hash(address, port, protocol, iface) & mask;
+
+    while(values[i] != null) {
+      if(ports[i] == port && same(addresses[i], address) && same(protocols[i], protocol) && same(ifaces[i], iface)) {
+        return (V) values[i];
+      }
+
+      i = (i + 1) & mask;
+    }
+
+    return null;
+  }
+
+  // the key must not be present
+  public void put(String address, int port, String protocol, String iface, V value) {
+    if((size + 1) * 4 > values.length * 3) {
+      grow();
+    }
+
+    insert(address, port, protocol, iface, value);
+    size++;
+  }
+
+  private void insert(String address, int port, String protocol, String iface, Object value) {
+    int i = hash(address, port, protocol, iface) & mask;
+
+    while(values[i] != null) {
+      i = (i + 1) & mask;
+    }
+
+    addresses[i] = address;
+    ports[i] = port;
+    protocols[i] = protocol;
+    ifaces[i] = iface;
+    values[i] = value;
+  }
+
+  private void grow() {
+    String[] oldAddresses = addresses;
+    int[] oldPorts = ports;
+    String[] oldProtocols = protocols;
+    String[] oldIfaces = ifaces;
+    Object[] oldValues = values;
+
+    allocate(values.length * 2);
+
+    for(int i = 0; i < oldValues.length; i++) {
+      if(oldValues[i] != null) {
+        insert(oldAddresses[i], oldPorts[i], oldProtocols[i], oldIfaces[i], oldValues[i]);
+      }
+    }
+  }
+
+  public void clear() {
+    if(size > 0) {
+      allocate(16);
+      size = 0;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.util.Arrays;
+
+// Open-addressing map from int to int without boxing.  Not synchronized.
+public class IntIntTable {
+  private int[] keys;
+  private int[] values;
+  private boolean[] used;
+  private int mask;
+  private int size = 0;
+
+  public IntIntTable() {
+    allocate(64);
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    values = new int[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private int slot(int key) {
+    int h = key * 0x9e3779b9;
+    int i = (h ^ (h >>> 16)) & mask;
+
+    while(used[i] && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+
+    return i;
+  }
+
+  public int get(int key, int defaultValue) {
+    int i = slot(key);
+    return used[i] ? values[i] : defaultValue;
+  }
+
+  public void put(int key, int value) {
+    int i = slot(key);
+
+    if(!used[i]) {
+      if((size + 1) * 2 > keys.length) {
+        grow();
+        i = slot(key);
+      }
+
+      used[i] = true;
+      keys[i] = key;
+      size++;
+    }
+
+    values[i] = value;
+  }
+
+  private void grow() {
+    int[] oldKeys = keys;
+    int[] oldValues = values;
+    boolean[] oldUsed = used;
+
+    allocate(keys.length * 2);
+
+    for(int i = 0; i < oldKeys.length; i++) {
+      if(oldUsed[i]) {
+        int j = slot(oldKeys[i]);
+        used[j] = true;
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+      }
+    }
+  }
+
+  public void clear() {
+    Arrays.fill(used, false);
+    size = 0;
+  }
+}
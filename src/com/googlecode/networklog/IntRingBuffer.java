@@ -0,0 +1,70 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+// Growable FIFO of ints with O(1) removal from the front and indexed
+// access.  Not synchronized.
+public class IntRingBuffer {
+  private int[] values;
+  private int mask;
+  private int head = 0;
+  private int size = 0;
+
+  public IntRingBuffer(int minCapacity) {
+    values = new int[PowerOfTwo.ceil(minCapacity)];
+    mask = values.length - 1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int get(int index) {
+    return values[(head + index) & mask];
+  }
+
+  public void set(int index, int value) {
+    values[(head + index) & mask] = value;
+  }
+
+  public int getFirst() {
+    return values[head];
+  }
+
+  public void add(int value) {
+    if(size == values.length) {
+      int[] newValues = new int[values.length * 2];
+
+      for(int i = 0; i < size; i++) {
+        newValues[i] = get(i);
+      }
+
+      values = newValues;
+      mask = values.length - 1;
+      head = 0;
+    }
+
+    values[(head + size) & mask] = value;
+    size++;
+  }
+
+  public int removeFirst() {
+    int value = values[head];
+    head = (head + 1) & mask;
+    size--;
+    return value;
+  }
+
+  public void truncate(int newSize) {
+    size = newSize;
+  }
+
+  public void clear() {
+    head = 0;
+    size = 0;
+  }
+}
@@ -7,7 +7,6 @@
 package com.googlecode.networklog;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import android.util.Log;
@@ -17,10 +16,15 @@ public class InteractiveShell {
   String shell;
   String tag;
   int exitval;
+  int bufferCapacity = 64;
+  int bufferPolicy = LineRingBuffer.GROW;
 
   public static final int IGNORE_OUTPUT = (1 << 0);
   public static final int BACKGROUND    = (1 << 1);
 
+  public static final int READ_TIMEOUT  = -1;
+  public static final int READ_EOF      = -2;
+
   public InteractiveShell() {
     this("sh", "InteractiveShell");
   }
@@ -39,9 +43,20 @@ public class InteractiveShell {
     return command;
   }
 
+  // sets the capacity and overflow policy of the stdout line buffer
+  public void setOutputBuffer(int capacity, int policy) {
+    bufferCapacity = capacity;
+    bufferPolicy = policy;
+  }
+
+  public LineRingBuffer getOutputBuffer() {
+    return command == null ? null : command.stdout.buffer;
+  }
+
   public void start() {
     MyLog.d("Starting InteractiveShell [" + tag + "]");
     command = new ShellCommand(new String[] { shell }, tag);
+    command.setOutputBuffer(bufferCapacity, bufferPolicy);
     command.start(false);
   }
 
@@ -138,11 +153,11 @@ public class InteractiveShell {
   }
 
   public Integer peekAtCommandExitValue(int maxLines) {
-    Iterator<String> iterator = command.stdout.buffer.iterator();
+    LineRingBuffer buffer = command.stdout.buffer;
+    String line;
     int lines = 0;
 
-    while(iterator.hasNext() && lines < maxLines) {
-      String line = iterator.next();
+    while(lines < maxLines && (line = buffer.peek(lines)) != null) {
       lines++;
 
       if(line.startsWith("..EOF..")) {
@@ -175,4 +190,28 @@ public class InteractiveShell {
       return line;
     }
   }
+
+  // reads the next line into dest without creating a String; returns the line
+  // length, READ_TIMEOUT if nothing arrived within timeout ms, or READ_EOF at
+  // the end of a command's output
+  public int readLine(CharArray dest, long timeout) {
+    int length = command.stdout.readLine(dest, timeout);
+
+    if(length < 0) {
+      return READ_TIMEOUT;
+    }
+
+    char[] chars = dest.value;
+
+    if(length >= 7 && chars[0] == '.' && chars[1] == '.' && chars[2] == 'E' && chars[3] == 'O'
+        && chars[4] == 'F' && chars[5] == '.' && chars[6] == '.') {
+      exitval = Integer.parseInt(new String(chars, 7, length - 7));
+      if(MyLog.enabled) {
+        MyLog.d("InteractiveShell [" + tag + "] command exited " + exitval);
+      }
+      return READ_EOF;
+    }
+
+    return length;
+  }
 }
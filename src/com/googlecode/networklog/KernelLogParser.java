@@ -0,0 +1,246 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.util.Log;
+
+// Single-pass tokenizer for "{NL}IN=... OUT=... SRC=... UID=..." logger lines.
+// Walks each line once, dispatching on the key of every KEY=value token, and
+// fills a caller-supplied LogEntry.  Only pooled strings are allocated.
+public class KernelLogParser {
+  private static final char[] MARKER = { '{', 'N', 'L', '}' };
+
+  private static final int HAVE_IN    = 1 << 0;
+  private static final int HAVE_OUT   = 1 << 1;
+  private static final int HAVE_SRC   = 1 << 2;
+  private static final int HAVE_DST   = 1 << 3;
+  private static final int HAVE_LEN   = 1 << 4;
+  private static final int HAVE_PROTO = 1 << 5;
+  private static final int HAVE_SPT   = 1 << 6;
+  private static final int HAVE_DPT   = 1 << 7;
+  private static final int HAVE_UID   = 1 << 8;
+  private static final int REQUIRED   = HAVE_IN | HAVE_OUT | HAVE_SRC | HAVE_DST | HAVE_LEN | HAVE_PROTO;
+
+  char[] line = new char[512];
+  int len;
+  int pos;
+
+  public void setLine(String result) {
+    len = result.length();
+
+    if(line.length < len) {
+      line = new char[len * 2];
+    }
+
+    result.getChars(0, len, line, 0);
+    pos = 0;
+  }
+
+  public void setLine(char[] chars, int length) {
+    line = chars;
+    len = length;
+    pos = 0;
+  }
+
+  // Parses the next {NL} entry into entry; returns false when the line is exhausted.
+  // Corrupted entries are skipped.
+  public boolean next(LogEntry entry) {
+    int start, end;
+
+    while((start = indexOfMarker(pos)) != -1) {
+      start += MARKER.length;
+      end = indexOf('\n', start);
+
+      if(end == -1) {
+        end = len;
+      }
+
+      pos = end;
+
+      int nextMarker = indexOfMarker(start);
+
+      if(nextMarker != -1 && nextMarker < end) {
+        // truncated entry followed by another one on the same line
+        continue;
+      }
+
+      try {
+        if(parseFields(entry, start, end)) {
+          return true;
+        }
+      } catch(Exception e) {
+        Log.e("NetworkLog", "Bad data for: [" + new String(line, start, end - start) + "]", e);
+      }
+    }
+
+    pos = len;
+    return false;
+  }
+
+  private boolean parseFields(LogEntry entry, int start, int end) {
+    int have = 0;
+    int i = start;
+
+    while(i < end) {
+      while(i < end && line[i] == ' ') {
+        i++;
+      }
+
+      int keyStart = i;
+
+      while(i < end && line[i] != '=' && line[i] != ' ') {
+        i++;
+      }
+
+      if(i >= end || line[i] != '=') {
+        // flag token without value (e.g. DF, SYN)
+        continue;
+      }
+
+      int keyLen = i - keyStart;
+      int valueStart = ++i;
+
+      while(i < end && line[i] != ' ') {
+        i++;
+      }
+
+      int valueLen = i - valueStart;
+
+      // first occurrence wins, later ones belong to encapsulated headers
+      switch(keyLen) {
+        case 2:
+          if(line[keyStart] == 'I' && line[keyStart + 1] == 'N' && (have & HAVE_IN) == 0) {
+            entry.in = getString(valueStart, valueLen);
+            have |= HAVE_IN;
+          }
+          break;
+
+        case 3:
+          char c0 = line[keyStart], c1 = line[keyStart + 1], c2 = line[keyStart + 2];
+
+          if(c0 == 'O' && c1 == 'U' && c2 == 'T') {
+            if((have & HAVE_OUT) == 0) {
+              entry.out = getString(valueStart, valueLen);
+              have |= HAVE_OUT;
+            }
+          } else if(c0 == 'S' && c1 == 'R' && c2 == 'C') {
+            if((have & HAVE_SRC) == 0) {
+              entry.src = getString(valueStart, valueLen);
+              have |= HAVE_SRC;
+            }
+          } else if(c0 == 'D' && c1 == 'S' && c2 == 'T') {
+            if((have & HAVE_DST) == 0) {
+              entry.dst = getString(valueStart, valueLen);
+              have |= HAVE_DST;
+            }
+          } else if(c0 == 'L' && c1 == 'E' && c2 == 'N') {
+            if((have & HAVE_LEN) == 0) {
+              entry.len = getInt(valueStart, valueLen);
+              have |= HAVE_LEN;
+            }
+          } else if(c0 == 'S' && c1 == 'P' && c2 == 'T') {
+            if((have & HAVE_SPT) == 0 && (have & HAVE_PROTO) != 0) {
+              entry.spt = getInt(valueStart, valueLen);
+              have |= HAVE_SPT;
+            }
+          } else if(c0 == 'D' && c1 == 'P' && c2 == 'T') {
+            if((have & HAVE_DPT) == 0 && (have & HAVE_PROTO) != 0) {
+              entry.dpt = getInt(valueStart, valueLen);
+              have |= HAVE_DPT;
+            }
+          } else if(c0 == 'U' && c1 == 'I' && c2 == 'D') {
+            if((have & HAVE_UID) == 0) {
+              entry.uid = getInt(valueStart, valueLen);
+              entry.uidString = getString(valueStart, valueLen);
+              have |= HAVE_UID;
+            }
+          }
+          break;
+
+        case 5:
+          if(line[keyStart] == 'P' && line[keyStart + 1] == 'R' && line[keyStart + 2] == 'O'
+              && line[keyStart + 3] == 'T' && line[keyStart + 4] == 'O' && (have & HAVE_PROTO) == 0) {
+            entry.proto = getString(valueStart, valueLen);
+            have |= HAVE_PROTO;
+          }
+          break;
+      }
+    }
+
+    if((have & REQUIRED) != REQUIRED) {
+      return false;
+    }
+
+    if((have & HAVE_SPT) == 0) {
+      // no SPT field, probably a broadcast packet
+      entry.spt = 0;
+    }
+
+    if((have & HAVE_DPT) == 0) {
+      entry.dpt = 0;
+    }
+
+    if((have & HAVE_UID) == 0) {
+      entry.uid = -1;
+      entry.uidString = "-1";
+    }
+
+    entry.validated = false;
+    return true;
+  }
+
+  private String getString(int offset, int length) {
+    if(length == 0) {
+      return "";
+    }
+    return StringPool.get(line, offset, length);
+  }
+
+  private int getInt(int offset, int length) {
+    int end = offset + length;
+    int value = 0;
+    boolean neg = false;
+
+    if(offset < end && line[offset] == '-') {
+      neg = true;
+      offset++;
+    }
+
+    if(offset >= end || line[offset] < '0' || line[offset] > '9') {
+      throw new RuntimeException("expected int but found [" + new String(line, offset, end - offset) + "]");
+    }
+
+    char thischar;
+
+    while(offset < end && (thischar = line[offset]) >= '0' && thischar <= '9') {
+      value = value * 10 + (thischar - '0');
+      offset++;
+    }
+
+    return neg ? -value : value;
+  }
+
+  private int indexOf(char target, int from) {
+    for(int i = from; i < len; i++) {
+      if(line[i] == target) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int indexOfMarker(int from) {
+    int last = len - MARKER.length;
+
+    for(int i = from; i <= last; i++) {
+      if(line[i] == '{' && line[i + 1] == 'N' && line[i + 2] == 'L' && line[i + 3] == '}') {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
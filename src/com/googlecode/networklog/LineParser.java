@@ -0,0 +1,115 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+// Parses text logfile lines straight out of a byte buffer.  Only string
+// fields are copied, into a small scratch array for the string pool.
+public class LineParser {
+  private ByteBuffer buffer;
+  private int pos;
+  private int end;
+  private char[] chars = new char[128];
+
+  // Parses the line in buffer[start, end) into entry; returns false if it
+  // is malformed.
+  public boolean parse(ByteBuffer buffer, int start, int end, LogEntry entry) {
+    this.buffer = buffer;
+    pos = start;
+    this.end = end;
+
+    try {
+      entry.timestamp = getLong();
+      entry.in = getString();
+      entry.out = getString();
+      int uidStart = pos;
+      entry.uid = (int) getLong();
+      entry.uidString = getString(uidStart, pos - 1 - uidStart);
+      entry.src = getString();
+      entry.spt = (int) getLong();
+      entry.dst = getString();
+      entry.dpt = (int) getLong();
+      entry.len = (int) getLong();
+
+      // legacy logfile entries did not include a protocol field
+      entry.proto = pos < end ? getString() : "";
+    } catch(Exception e) {
+      Log.w("NetworkLog", "Skipping malformed entry", e);
+      return false;
+    }
+
+    entry.validated = false;
+    return true;
+  }
+
+  // parses a decimal field and consumes the following comma
+  private long getLong() {
+    long value = 0;
+    boolean neg = false;
+    int digits = 0;
+
+    if(pos < end && buffer.get(pos) == '-') {
+      neg = true;
+      pos++;
+    }
+
+    byte b;
+
+    while(pos < end && (b = buffer.get(pos)) >= '0' && b <= '9') {
+      value = value * 10 + (b - '0');
+      pos++;
+      digits++;
+    }
+
+    if(digits == 0) {
+      throw new RuntimeException("expected number at offset " + pos);
+    }
+
+    skipDelimiter();
+    return neg ? -value : value;
+  }
+
+  private String getString() {
+    int start = pos;
+
+    while(pos < end && buffer.get(pos) != ',') {
+      pos++;
+    }
+
+    String value = getString(start, pos - start);
+    skipDelimiter();
+    return value;
+  }
+
+  private String getString(int start, int length) {
+    if(length <= 0) {
+      return "";
+    }
+
+    if(chars.length < length) {
+      chars = new char[length * 2];
+    }
+
+    for(int i = 0; i < length; i++) {
+      chars[i] = (char) (buffer.get(start + i) & 0xff);
+    }
+
+    return StringPool.get(chars, 0, length);
+  }
+
+  private void skipDelimiter() {
+    if(pos < end) {
+      if(buffer.get(pos) != ',') {
+        throw new RuntimeException("expected [,] at offset " + pos);
+      }
+      pos++;
+    }
+  }
+}
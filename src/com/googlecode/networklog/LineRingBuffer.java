@@ -0,0 +1,211 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+// Bounded single-producer/single-consumer queue of text lines.  Each slot
+// owns a reusable char[] so queued lines do not allocate once the slots have
+// grown to the typical line length.
+public class LineRingBuffer {
+  // overflow policies
+  public static final int GROW        = 0; // double capacity (unbounded, legacy behaviour)
+  public static final int BLOCK       = 1; // producer waits for the consumer
+  public static final int DROP_OLDEST = 2; // discard oldest queued line
+
+  private static final int INITIAL_SLOT_SIZE = 256;
+
+  private char[][] slots;
+  private int[] lengths;
+  private int head = 0; // next slot to read
+  private int count = 0;
+  private final int policy;
+  private boolean closed = false;
+  private boolean consumerWaiting = false;
+  private boolean producerWaiting = false;
+
+  private long dropped = 0;
+  private int maxDepth = 0;
+  private long total = 0;
+
+  public LineRingBuffer(int capacity, int policy) {
+    slots = new char[capacity][];
+    lengths = new int[capacity];
+    this.policy = policy;
+  }
+
+  public synchronized void put(char[] chars, int offset, int length) throws InterruptedException {
+    if(count == slots.length) {
+      switch(policy) {
+        case GROW:
+          grow();
+          break;
+
+        case BLOCK:
+          while(count == slots.length && !closed) {
+            producerWaiting = true;
+            wait();
+          }
+          producerWaiting = false;
+
+          if(count == slots.length) {
+            // closed with nobody left to read
+            dropOldest();
+          }
+          break;
+
+        default:
+          dropOldest();
+      }
+    }
+
+    int tail = (head + count) % slots.length;
+    char[] slot = slots[tail];
+
+    if(slot == null || slot.length < length) {
+      slot = new char[Math.max(INITIAL_SLOT_SIZE, length + (length >> 1))];
+      slots[tail] = slot;
+    }
+
+    System.arraycopy(chars, offset, slot, 0, length);
+    lengths[tail] = length;
+    count++;
+    total++;
+
+    if(count > maxDepth) {
+      maxDepth = count;
+    }
+
+    if(consumerWaiting) {
+      notifyAll();
+    }
+  }
+
+  private void dropOldest() {
+    head = (head + 1) % slots.length;
+    count--;
+    dropped++;
+  }
+
+  private void grow() {
+    int capacity = slots.length;
+    char[][] newSlots = new char[capacity * 2][];
+    int[] newLengths = new int[capacity * 2];
+
+    for(int i = 0; i < count; i++) {
+      int index = (head + i) % capacity;
+      newSlots[i] = slots[index];
+      newLengths[i] = lengths[index];
+    }
+
+    slots = newSlots;
+    lengths = newLengths;
+    head = 0;
+  }
+
+  // waits up to timeout ms for a line; returns false if none is available
+  private boolean await(long timeout) throws InterruptedException {
+    if(count == 0 && timeout > 0 && !closed) {
+      long deadline = System.currentTimeMillis() + timeout;
+      long remaining = timeout;
+
+      consumerWaiting = true;
+      while(count == 0 && !closed && remaining > 0) {
+        wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+      consumerWaiting = false;
+    }
+
+    return count != 0;
+  }
+
+  private void release() {
+    head = (head + 1) % slots.length;
+    count--;
+
+    if(producerWaiting) {
+      notifyAll();
+    }
+  }
+
+  // copies the oldest line into dest, growing it if needed; returns the line
+  // length or -1 on timeout
+  public synchronized int take(CharArray dest, long timeout) throws InterruptedException {
+    if(!await(timeout)) {
+      return -1;
+    }
+
+    int length = lengths[head];
+
+    if(dest.value == null || dest.value.length < length) {
+      dest.value = new char[Math.max(INITIAL_SLOT_SIZE, length + (length >> 1))];
+    }
+
+    System.arraycopy(slots[head], 0, dest.value, 0, length);
+    dest.offset = 0;
+    dest.length = length;
+    release();
+    return length;
+  }
+
+  public synchronized String poll(long timeout) throws InterruptedException {
+    if(!await(timeout)) {
+      return null;
+    }
+
+    String line = new String(slots[head], 0, lengths[head]);
+    release();
+    return line;
+  }
+
+  // returns the queued line at index without removing it, or null
+  public synchronized String peek(int index) {
+    if(index >= count) {
+      return null;
+    }
+
+    int slot = (head + index) % slots.length;
+    return new String(slots[slot], 0, lengths[slot]);
+  }
+
+  public synchronized String[] toArray() {
+    String[] lines = new String[count];
+
+    for(int i = 0; i < count; i++) {
+      int slot = (head + i) % slots.length;
+      lines[i] = new String(slots[slot], 0, lengths[slot]);
+    }
+
+    return lines;
+  }
+
+  // wakes up any waiting producer or consumer; a blocked producer then drops
+  // the oldest line instead of waiting
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  public synchronized int size() {
+    return count;
+  }
+
+  public synchronized int getCapacity() {
+    return slots.length;
+  }
+
+  public synchronized int getMaxDepth() {
+    return maxDepth;
+  }
+
+  public synchronized long getDropped() {
+    return dropped;
+  }
+
+  public synchronized long getTotal() {
+    return total;
+  }
+}
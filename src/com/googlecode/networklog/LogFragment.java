@@ -13,7 +13,7 @@ import android.os.Bundle;
 import android.widget.TextView;
 import android.widget.LinearLayout;
 import android.widget.ListView;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.Filter;
 import android.widget.Filterable;
@@ -44,20 +44,23 @@ import android.text.ClipboardManager;
 
 import android.support.v4.app.Fragment;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
 
 public class LogFragment extends Fragment {
-  // bound to adapter
-  protected LinkedList<ListItem> listData;
-  // buffers incoming log entries
-  protected LinkedList<ListItem> listDataBuffer;
-  // holds all entries, used for filtering
-  protected LinkedList<ListItem> listDataUnfiltered;
+  // All entries in arrival order: the published ones, followed by those the
+  // updater has not picked up yet.  Also guards published.
+  protected PacketStore listItems;
+  // sequence number after the last published entry
+  protected int published;
+  // sequence numbers of the entries shown while a filter is active (UI thread)
+  private IntRingBuffer filteredItems;
+  private boolean filtered = false;
+  // published entries as of the last adapter refresh (UI thread)
+  private int shownEnd = 0;
+  private int shownCount = 0;
+  // bumped when the shown entries are refiltered or renumbered (UI thread)
+  private int shownGeneration = 0;
   private CustomAdapter adapter;
   private ListViewUpdater updater;
   private NetworkLog parent = null;
@@ -65,7 +68,8 @@ public class LogFragment extends Fragment {
   private boolean doNotRefresh = false;
   public boolean needsRefresh = false;
 
-  protected class ListItem {
+  // filled from listItems; scans reuse one
+  protected static class ListItem {
     protected ApplicationsTracker.AppEntry app;
     protected String in;
     protected String out;
@@ -77,6 +81,9 @@ public class LogFragment extends Fragment {
     protected int len;
     protected long timestamp;
 
+    ListItem() {
+    }
+
     ListItem(ApplicationsTracker.AppEntry app) {
       this.app = app;
     }
@@ -88,16 +95,17 @@ public class LogFragment extends Fragment {
   }
 
   public void clear() {
-    synchronized(listData) {
-      synchronized(listDataBuffer) {
-        synchronized(listDataUnfiltered) {
-          listData.clear();
-          listDataBuffer.clear();
-          listDataUnfiltered.clear();
-          refreshAdapter();
-        }
-      }
+    synchronized(listItems) {
+      listItems.clear();
+      published = listItems.getEnd();
     }
+
+    filteredItems.clear();
+    shownEnd = published;
+    shownCount = 0;
+    shownGeneration++;
+    SeriesPyramid.Cache.releaseAll();
+    refreshAdapter();
   }
 
   public void setDoNotRefresh(boolean value) {
@@ -109,6 +117,11 @@ public class LogFragment extends Fragment {
       return;
     }
 
+    synchronized(listItems) {
+      shownEnd = published;
+      shownCount = Math.max(0, published - listItems.getStart());
+    }
+
     adapter.notifyDataSetChanged();
 
     if(MyLog.enabled && MyLog.level >= 5) {
@@ -144,11 +157,7 @@ public class LogFragment extends Fragment {
       super.onCreate(savedInstanceState);
       setRetainInstance(true);
 
-      listData = new LinkedList<ListItem>();
-      listDataBuffer = new LinkedList<ListItem>();
-      listDataUnfiltered = new LinkedList<ListItem>();
-
-      adapter = new CustomAdapter(getActivity().getApplicationContext(), R.layout.logitem, listData);
+      adapter = new CustomAdapter();
 
       if(NetworkLog.settings == null) {
         NetworkLog activity = (NetworkLog) getActivity();
@@ -165,6 +174,11 @@ public class LogFragment extends Fragment {
         maxLogEntries = 75000;
       }
 
+      listItems = new PacketStore(getStoreCapacity());
+      listItems.setIndexed(NetworkLog.settings.getIndexLogEntries());
+      published = listItems.getEnd();
+      filteredItems = new IntRingBuffer(1024);
+
       MyLog.d("LogFragment onCreate");
     }
 
@@ -207,7 +221,11 @@ public class LogFragment extends Fragment {
       inflater.inflate(R.layout.log_context_menu, menu);
 
       AdapterContextMenuInfo info = (AdapterContextMenuInfo) menuInfo;
-      ListItem listItem = listData.get(info.position);
+      ListItem listItem = getShownItem(info.position);
+
+      if(listItem == null) {
+        return;
+      }
 
       if(NetworkLogService.toastBlockedApps.get(listItem.app.packageName) != null) {
         menu.findItem(R.id.log_toggle_app_notifications).setTitle(R.string.enable_notifications);
@@ -228,7 +246,11 @@ public class LogFragment extends Fragment {
         return super.onContextItemSelected(item);
 
       AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
-      ListItem listItem = listData.get(info.position);
+      ListItem listItem = getShownItem(info.position);
+
+      if(listItem == null) {
+        return true;
+      }
 
       switch(item.getItemId()) {
         case R.id.log_copy_src_ip:
@@ -387,7 +409,11 @@ public class LogFragment extends Fragment {
   private class CustomOnItemClickListener implements OnItemClickListener {
     @Override
       public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-        showGraph(listData.get(position));
+        ListItem item = getShownItem(position);
+
+        if(item != null) {
+          showGraph(item);
+        }
       }
   }
 
@@ -400,8 +426,71 @@ public class LogFragment extends Fragment {
     new Thread(updater, "LogFragmentUpdater").start();
   }
 
+  // room for maxLogEntries published entries plus those arriving between
+  // updater runs
+  int getStoreCapacity() {
+    return (int) Math.min(maxLogEntries + maxLogEntries / 4 + 1024, 1 << 30);
+  }
+
+  // number of entries shown by the adapter (UI thread)
+  public int getShownCount() {
+    return filtered ? filteredItems.size() : shownCount;
+  }
+
+  // entry at an adapter position, or null if it was evicted (UI thread)
+  public ListItem getShownItem(int position) {
+    ListItem item = new ListItem();
+    return readShownItem(position, item) ? item : null;
+  }
+
+  // sequence number of the entry at an adapter position; they ascend with
+  // the position (UI thread)
+  public int getShownSeq(int position) {
+    return filtered ? filteredItems.get(position) : shownEnd - shownCount + position;
+  }
+
+  // changes whenever anything built from the shown entries by sequence
+  // number has to start over (UI thread)
+  public int getShownGeneration() {
+    return shownGeneration;
+  }
+
+  // reads the entry at an adapter position into item; false if it was
+  // evicted by entries arriving while the updater was not running, in which
+  // case a refresh is queued to drop it (UI thread)
+  public boolean readShownItem(int position, ListItem item) {
+    int seq = getShownSeq(position);
+
+    synchronized(listItems) {
+      if(listItems.contains(seq)) {
+        listItems.read(seq, item);
+        return true;
+      }
+    }
+
+    if(!evictedRefreshQueued) {
+      evictedRefreshQueued = true;
+
+      NetworkLog.handler.post(new Runnable() {
+        public void run() {
+          evictedRefreshQueued = false;
+          dropEvictedItems();
+          refreshAdapter();
+        }
+      });
+    }
+
+    return false;
+  }
+
+  // UI thread
+  private boolean evictedRefreshQueued = false;
+
+  // for scans on the UI thread
+  private ListItem scanItem = new ListItem();
+
   public void onNewLogEntry(final LogEntry entry) {
-    if(listDataBuffer == null) {
+    if(listItems == null) {
       return;
     }
 
@@ -418,33 +507,28 @@ public class LogFragment extends Fragment {
       return;
     }
 
-    final ListItem item = new ListItem(appEntry);
-
-    item.in = entry.in;
-    item.out = entry.out;
-
-    item.srcAddr = entry.src;
-    item.srcPort = entry.spt;
-
-    item.dstAddr = entry.dst;
-    item.dstPort = entry.dpt;
+    if(MyLog.enabled && MyLog.level >= 6) {
+      MyLog.d(6, "LogFragment: NewLogEntry: [" + appEntry.uidString + "] in=" + entry.in + " out=" + entry.out + " " + entry.src + ":" + entry.spt + " --> " + entry.dst + ":" + entry.dpt + " proto=" + entry.proto + " len=" + entry.len);
+    }
 
-    item.proto = entry.proto;
-    item.len = entry.len;
-    item.timestamp = entry.timestamp;
+    synchronized(listItems) {
+      if(listItems.size() == listItems.capacity() && MyLog.enabled) {
+        MyLog.d("Log buffer size reached capacity; truncating");
+      }
 
-    if(MyLog.enabled && MyLog.level >= 6) {
-      MyLog.d(6, "LogFragment: NewLogEntry: [" + item.app.uidString + "] in=" + item.in + " out=" + item.out + " " + item.srcAddr + ":" + item.srcPort + " --> " + item.dstAddr + ":" + item.dstPort + " proto=" + item.proto + " len=" + item.len);
+      listItems.add(appEntry, entry);
     }
+  }
 
-    synchronized(listDataBuffer) {
-      listDataBuffer.add(item);
+  // drops filtered entries that are no longer in listItems (UI thread)
+  private void dropEvictedItems() {
+    synchronized(listItems) {
+      if(published - listItems.getStart() < 0) {
+        published = listItems.getStart();
+      }
 
-      while(listDataBuffer.size() > maxLogEntries) {
-        if(MyLog.enabled) {
-          MyLog.d("Log buffer size reached maxLogEntries limit; truncating");
-        }
-        listDataBuffer.removeFirst();
+      while(filteredItems.size() > 0 && !listItems.contains(filteredItems.getFirst())) {
+        filteredItems.removeFirst();
       }
     }
   }
@@ -452,131 +536,111 @@ public class LogFragment extends Fragment {
   public void clearLogEntriesOlderThan(long timerange) {
     MyLog.d("Clearing logFragment entries older than " + timerange);
 
-    // Add any items in listDataBuffer to listDataUnfiltered
-    synchronized(listDataBuffer) {
-      synchronized(listDataUnfiltered) {
-        for(ListItem item : listDataBuffer) {
-          if(MyLog.enabled) {
-            MyLog.d("Adding buffer item " + item);
-          }
-          listDataUnfiltered.add(item);
-        }
-
-        listDataBuffer.clear();
-      }
-    }
-
     long timestamp = System.currentTimeMillis() - timerange;
 
     MyLog.d("Setting timestamp " + timestamp);
 
-    // Remove items older than timerange
-    synchronized(listDataUnfiltered) {
-      Iterator<ListItem> iterator = listDataUnfiltered.iterator();
-      while(iterator.hasNext()) {
-        ListItem item = iterator.next();
-
-        if(MyLog.enabled) {
-          MyLog.d("Checking item " + item.app.uid + " " + item.app.name + " " + item.timestamp);
-        }
-
-        if(item.timestamp < timestamp) {
-          if(MyLog.enabled) {
-            MyLog.d("Removing item");
-          }
-          iterator.remove();
-        } else {
-          // remaining entries should be >= timestamp
-          break;
-        }
+    // Remove items older than timerange; entries are in arrival order
+    synchronized(listItems) {
+      while(listItems.size() > 0 && listItems.getTimestamp(listItems.getStart()) < timestamp) {
+        listItems.removeFirst();
       }
 
-      synchronized(listData) {
-        listData.clear();
-        listData.addAll(listDataUnfiltered);
+      if(published - listItems.getStart() < 0) {
+        published = listItems.getStart();
       }
     }
 
     NetworkLog.handler.post(new Runnable() {
       public void run() {
-        if(NetworkLog.filterTextInclude.length() > 0 || NetworkLog.filterTextExclude.length() > 0) {
-          setFilter("");
-        } else {
-          refreshAdapter();
-        }
+        dropEvictedItems();
+        refreshAdapter();
       }
     });
   }
 
+  // UI thread
   public void removeApp(String packageName) {
-    if(listData == null || listDataBuffer == null || listDataUnfiltered == null) {
+    if(listItems == null) {
       return;
     }
 
-    synchronized(listDataBuffer) {
-      synchronized(listDataUnfiltered) {
-        synchronized(listData) {
-          ListItem item;
-          Iterator<ListItem> iterator;
-
-          iterator = listDataBuffer.iterator();
-          while(iterator.hasNext()) {
-            item = iterator.next();
-            if(item.app.packageName.equals(packageName)) {
-              iterator.remove();
-            }
-          }
+    // compact listItems and renumber the filtered entries in one pass
+    synchronized(listItems) {
+      dropEvictedItems();
 
-          iterator = listDataUnfiltered.iterator();
-          while(iterator.hasNext()) {
-            item = iterator.next();
-            if(item.app.packageName.equals(packageName)) {
-              iterator.remove();
-            }
-          }
+      int end = listItems.getEnd();
+      int write = listItems.getStart();
+      int newPublished = end;
+      int filteredRead = 0;
+      int filteredWrite = 0;
 
-          iterator = listData.iterator();
-          while(iterator.hasNext()) {
-            item = iterator.next();
-            if(item.app.packageName.equals(packageName)) {
-              iterator.remove();
-            }
-          }
+      for(int seq = listItems.getStart(); seq != end; seq++) {
+        if(seq == published) {
+          newPublished = write;
+        }
+
+        boolean shown = filteredRead < filteredItems.size() && filteredItems.get(filteredRead) == seq;
+
+        if(shown) {
+          filteredRead++;
+        }
+
+        if(listItems.getApp(seq).packageName.equals(packageName)) {
+          continue;
         }
+
+        if(shown) {
+          filteredItems.set(filteredWrite++, write);
+        }
+
+        if(write != seq) {
+          listItems.move(seq, write);
+        }
+
+        write++;
       }
-    }
 
-    if(NetworkLog.filterTextInclude.length() > 0 || NetworkLog.filterTextExclude.length() > 0) {
-      setFilter("");
-    } else {
-      refreshAdapter();
+      if(published == end) {
+        newPublished = write;
+      }
+
+      listItems.truncate(write);
+      filteredItems.truncate(filteredWrite);
+      published = newPublished;
     }
+
+    shownGeneration++;
+
+    refreshAdapter();
   }
 
+  // UI thread
   public void pruneLogEntries() {
-    if(listData == null || listDataBuffer == null || listDataUnfiltered == null) {
+    if(listItems == null) {
       return;
     }
 
-    synchronized(listDataBuffer) {
-      while(listDataBuffer.size() > maxLogEntries) {
-        listDataBuffer.removeFirst();
-      }
-    }
+    synchronized(listItems) {
+      listItems.setCapacity(getStoreCapacity());
 
-    synchronized(listDataUnfiltered) {
-      while(listDataUnfiltered.size() > maxLogEntries) {
-        listDataUnfiltered.removeFirst();
+      while(published - listItems.getStart() > maxLogEntries) {
+        listItems.removeFirst();
       }
     }
 
-    synchronized(listData) {
-      while(listData.size() > maxLogEntries) {
-        listData.removeFirst();
-      }
+    dropEvictedItems();
+    refreshAdapter();
+  }
+
+  public void setIndexed(boolean value) {
+    if(listItems == null) {
+      return;
     }
 
-    refreshAdapter();
+    synchronized(listItems) {
+      listItems.setIndexed(value);
+    }
   }
 
   public void stopUpdater() {
@@ -587,58 +651,58 @@ public class LogFragment extends Fragment {
 
   public boolean appFragmentNeedsRebuild = false;
 
+  boolean matchesFilter(ListItem item) {
+    if(NetworkLog.filterTextInclude.length() > 0 && !NetworkLog.filterInclude.matches(item)) {
+      return false;
+    }
+
+    if(NetworkLog.filterTextExclude.length() > 0 && NetworkLog.filterExclude.matches(item)) {
+      return false;
+    }
+
+    return true;
+  }
+
   Runnable updaterRunner = new Runnable() {
     public void run() {
       if(MyLog.enabled && MyLog.level >= 4) {
         MyLog.d(4, "LogFragmentUpdater enter");
       }
 
-      if(listDataBuffer == null || listData == null || listDataUnfiltered == null) {
+      if(listItems == null) {
         return;
       }
 
       int i = 0;
-      boolean included = true;
-      boolean excluded = false;
-
       long start = System.currentTimeMillis();
 
-      synchronized(listDataBuffer) {
-        synchronized(listData) {
-          synchronized(listDataUnfiltered) {
-            for(ListItem item : listDataBuffer) {
-              if(NetworkLog.filterTextInclude.length() > 0) {
-                included = testIncludeFilter(item);
-              }
+      synchronized(listItems) {
+        int end = listItems.getEnd();
 
-              if(NetworkLog.filterTextExclude.length() > 0) {
-                excluded = testExcludeFilter(item);
-              }
+        if(published - listItems.getStart() < 0) {
+          // evicted before being published
+          published = listItems.getStart();
+        }
 
-              if(included == true && excluded == false) {
-                listData.add(item);
-              }
-              listDataUnfiltered.add(item);
-              i++;
-            }
+        for(int seq = published; seq != end; seq++) {
+          if(filtered) {
+            listItems.read(seq, scanItem);
 
-            listDataBuffer.clear();
+            if(matchesFilter(scanItem)) {
+              filteredItems.add(seq);
+            }
           }
+          i++;
         }
-      }
 
-      synchronized(listDataUnfiltered) {
-        while(listDataUnfiltered.size() > maxLogEntries) {
-          listDataUnfiltered.removeFirst();
-        }
-      }
+        published = end;
 
-      synchronized(listData) {
-        while(listData.size() > maxLogEntries) {
-          listData.removeFirst();
+        while(published - listItems.getStart() > maxLogEntries) {
+          listItems.removeFirst();
         }
       }
 
+      dropEvictedItems();
       refreshAdapter();
       long elapsed = System.currentTimeMillis() - start;
 
@@ -658,6 +722,16 @@ public class LogFragment extends Fragment {
     NetworkLog.handler.post(updaterRunner);
   }
 
+  boolean hasUnpublishedItems() {
+    if(listItems == null) {
+      return false;
+    }
+
+    synchronized(listItems) {
+      return listItems.getEnd() != published;
+    }
+  }
+
   // todo: this is largely duplicated in AppFragment -- move to its own file
   private class ListViewUpdater implements Runnable {
     boolean running = false;
@@ -671,7 +745,7 @@ public class LogFragment extends Fragment {
       MyLog.d("Starting LogFragmentUpdater " + this);
 
       while(running) {
-        if(needsRefresh == true || (listDataBuffer != null && listDataBuffer.size() > 0)) {
+        if(needsRefresh == true || hasUnpublishedItems()) {
           updaterRunOnce();
           needsRefresh = false;
         }
@@ -697,228 +771,140 @@ public class LogFragment extends Fragment {
     }
   }
 
-  String srcAddrResolved;
-  String srcPortResolved;
-  String dstAddrResolved;
-  String dstPortResolved;
-  String iface;
-  boolean matched;
-
-  public boolean testIncludeFilter(ListItem item) {
-    matched = false;
-    if(NetworkLog.resolveHosts) {
-      srcAddrResolved = NetworkLog.resolver.resolveAddress(item.srcAddr);
-
-      if(srcAddrResolved == null) {
-        srcAddrResolved = "";
-      }
-
-      dstAddrResolved = NetworkLog.resolver.resolveAddress(item.dstAddr);
-
-      if(dstAddrResolved == null) {
-        dstAddrResolved = "";
-      }
-    } else {
-      srcAddrResolved = "";
-      dstAddrResolved = "";
-    }
-
-    if(NetworkLog.resolvePorts) {
-      srcPortResolved = NetworkLog.resolver.resolveService(String.valueOf(item.srcPort));
-      dstPortResolved = NetworkLog.resolver.resolveService(String.valueOf(item.dstPort));
-    } else {
-      srcPortResolved = "";
-      dstPortResolved = "";
-    }
-
-    if(item.in != null && item.in.length() > 0) {
-      iface = item.in;
-    } else {
-      iface = item.out;
-    }
-
-    for(String c : NetworkLog.filterTextIncludeList) {
-      if((NetworkLog.filterNameInclude && item.app.nameLowerCase.contains(c))
-          || (NetworkLog.filterUidInclude && item.app.uidString.equals(c))
-          || (NetworkLog.filterAddressInclude &&
-            ((item.srcAddr.contains(c) || StringPool.getLowerCase(srcAddrResolved).contains(c))
-             || (item.dstAddr.contains(c) || StringPool.getLowerCase(dstAddrResolved).contains(c))))
-          || (NetworkLog.filterPortInclude &&
-            ((String.valueOf(item.srcPort).equals(c) || StringPool.getLowerCase(srcPortResolved).equals(c))
-             || (String.valueOf(item.dstPort).equals(c) || StringPool.getLowerCase(dstPortResolved).equals(c))))
-          || (NetworkLog.filterInterfaceInclude && iface.contains(c))
-          || (NetworkLog.filterProtocolInclude &&
-            (item.proto.equals(c) || StringPool.getLowerCase(NetworkLog.resolver.resolveProtocol(item.proto)).equals(c))))
-      {
-        matched = true;
-        break;
-      }
-    }
-    return matched;
-  }
-
-  boolean testExcludeFilter(ListItem item) {
-    matched = false;
-
-    if(NetworkLog.resolveHosts) {
-      srcAddrResolved = NetworkLog.resolver.resolveAddress(item.srcAddr);
-
-      if(srcAddrResolved == null) {
-        srcAddrResolved = "";
-      }
-
-      dstAddrResolved = NetworkLog.resolver.resolveAddress(item.dstAddr);
-
-      if(dstAddrResolved == null) {
-        dstAddrResolved = "";
-      }
-    } else {
-      srcAddrResolved = "";
-      dstAddrResolved = "";
-    }
-
-    if(NetworkLog.resolvePorts) {
-      srcPortResolved = NetworkLog.resolver.resolveService(String.valueOf(item.srcPort)); // fixme: get from stringpool
-      dstPortResolved = NetworkLog.resolver.resolveService(String.valueOf(item.dstPort)); // fixme: get from stringpool
-    } else {
-      srcPortResolved = "";
-      dstPortResolved = "";
-    }
-
-    if(item.in != null && item.in.length() > 0) {
-      iface = item.in;
-    } else {
-      iface = item.out;
-    }
+  // sequence numbers of the entries matching a filter, and the published
+  // boundary the filter ran up to
+  private static final int FILTER_SLICE = 4096;
 
-    for(String c : NetworkLog.filterTextExcludeList) {
-      if((NetworkLog.filterNameExclude && item.app.nameLowerCase.contains(c))
-          || (NetworkLog.filterUidExclude && item.app.uidString.equals(c))
-          || (NetworkLog.filterAddressExclude && ((item.srcAddr.contains(c) || StringPool.getLowerCase(srcAddrResolved).contains(c)) || (item.dstAddr.contains(c) || StringPool.getLowerCase(dstAddrResolved).contains(c))))
-          || (NetworkLog.filterPortExclude && ((String.valueOf(item.srcPort).equals(c) || StringPool.getLowerCase(srcPortResolved).equals(c)) || (String.valueOf(item.dstPort).equals(c) || StringPool.getLowerCase(dstPortResolved).equals(c))))
-          || (NetworkLog.filterInterfaceExclude && iface.contains(c))
-          || (NetworkLog.filterProtocolExclude &&
-            (item.proto.equals(c) || StringPool.getLowerCase(NetworkLog.resolver.resolveProtocol(item.proto)).equals(c))))
-      {
-        matched = true;
-        break;
-      }
-    }
-    return matched;
+  private static class FilteredView {
+    int[] items;
+    int count;
+    int upTo;
   }
 
-  private class CustomAdapter extends ArrayAdapter<ListItem> implements Filterable {
+  private class CustomAdapter extends BaseAdapter implements Filterable {
     LayoutInflater mInflater = (LayoutInflater) getActivity().getSystemService(Activity.LAYOUT_INFLATER_SERVICE);
     CustomFilter filter;
 
-    public CustomAdapter(Context context, int resource, List<ListItem> objects) {
-      super(context, resource, objects);
-    }
-
     private class CustomFilter extends Filter {
       FilterResults results = new FilterResults();
 
       @Override
         protected FilterResults performFiltering(CharSequence constraint) {
-          ArrayList<ListItem> originalItems = new ArrayList<ListItem>(listDataUnfiltered.size());
-          ArrayList<ListItem> filteredItems = new ArrayList<ListItem>(listDataUnfiltered.size());
-          int[] includedItemsIndex = new int[listDataUnfiltered.size()];
-          int includedItemsPos = 0;
-          int iteratorPos = -1;
-          ListItem item;
-
           doNotRefresh = true;
 
           if(MyLog.enabled) {
             MyLog.d("[LogFragment] performFiltering");
           }
 
-          synchronized(listDataUnfiltered) {
-            originalItems.addAll(listDataUnfiltered);
+          if(NetworkLog.filterTextInclude.length() == 0 && NetworkLog.filterTextExclude.length() == 0) {
+            MyLog.d("[LogFragment] no constraint");
+            results.values = null;
+            results.count = 0;
+            return results;
           }
 
-          if(NetworkLog.filterTextInclude.length() == 0 && NetworkLog.filterTextExclude.length() == 0) {
-            MyLog.d("[LogFragment] no constraint item count: " + originalItems.size());
-            results.values = originalItems;
-            results.count = originalItems.size();
-          } else {
+          FilteredView view = new FilteredView();
+          ListItem item = new ListItem();
+          int seq;
+
+          synchronized(listItems) {
+            seq = listItems.getStart();
+            view.upTo = published;
+
+            if(listItems.isIndexed()) {
+              view.items = listItems.filter(
+                  NetworkLog.filterTextInclude.length() > 0 ? NetworkLog.filterInclude : null,
+                  NetworkLog.filterTextExclude.length() > 0 ? NetworkLog.filterExclude : null,
+                  seq, view.upTo);
+              view.count = view.items.length;
+            }
+          }
+
+          if(view.items != null) {
+            results.values = view;
+            results.count = view.count;
+
             if(MyLog.enabled) {
-              MyLog.d("[LogFragment] item count: " + originalItems.size());
+              MyLog.d("[LogFragment] index filter returning " + results.count + " items");
             }
+            return results;
+          }
 
-            if(NetworkLog.filterTextIncludeList.size() > 0) {
-              Iterator<ListItem> iterator = originalItems.iterator();
-              while(iterator.hasNext()) {
-                item = iterator.next();
-                iteratorPos++;
+          int count = Math.max(0, view.upTo - seq);
 
-                if(MyLog.enabled) {
-                  MyLog.d("[LogFragment] testing filtered item " + item + "; includes: [" + NetworkLog.filterTextInclude + "]");
-                }
+          if(MyLog.enabled) {
+            MyLog.d("[LogFragment] item count: " + count);
+          }
 
-                matched = testIncludeFilter(item);
+          view.items = new int[count];
 
-                if(matched) {
-                  if(MyLog.enabled) {
-                    MyLog.d("[LogFragment] adding filtered item " + item);
-                  }
-                  includedItemsIndex[includedItemsPos++] = iteratorPos;
-                }
-              }
-            } else {
-              int count = originalItems.size();
-              for(int i = 0; i < count; i++) {
-                includedItemsIndex[includedItemsPos++] = i;
+          // take the lock a slice at a time so new entries are not held up
+          while(seq - view.upTo < 0) {
+            synchronized(listItems) {
+              if(seq - listItems.getStart() < 0) {
+                // evicted meanwhile
+                seq = listItems.getStart();
               }
-            }
 
-            if(NetworkLog.filterTextExcludeList.size() > 0) {
-              for(int i = 0; i < includedItemsPos; i++) {
-                item = originalItems.get(includedItemsIndex[i]);
+              int sliceEnd = view.upTo - seq > FILTER_SLICE ? seq + FILTER_SLICE : view.upTo;
 
-                if(MyLog.enabled) {
-                  MyLog.d("[LogFragment] testing filtered item " + item + "; excludes: [" + NetworkLog.filterTextExclude + "]");
-                }
+              if(sliceEnd - listItems.getEnd() > 0) {
+                // entries removed meanwhile
+                sliceEnd = view.upTo = listItems.getEnd();
+              }
 
-                matched = testExcludeFilter(item);
+              for(; seq - sliceEnd < 0; seq++) {
+                listItems.read(seq, item);
 
-                if(matched) {
-                  if(MyLog.enabled) {
-                    MyLog.d("[LogFragment] excluding filtered item " + item);
-                  }
-                } else {
-                  filteredItems.add(item);
+                if(matchesFilter(item)) {
+                  view.items[view.count++] = seq;
                 }
               }
-            } else {
-              // no exclusion filter, add all included items to filteredItems
-              for(int i = 0; i < includedItemsPos; i++) {
-                filteredItems.add(originalItems.get(includedItemsIndex[i]));
-              }
             }
-
-            results.values = filteredItems;
-            results.count = filteredItems.size();
           }
 
+          results.values = view;
+          results.count = view.count;
+
           if(MyLog.enabled) {
             MyLog.d("[LogFragment] filter returning " + results.count + " items");
           }
           return results;
         }
 
-      @SuppressWarnings("unchecked")
-        @Override
+      @Override
         protected void publishResults(CharSequence constraint, FilterResults results) {
           if(MyLog.enabled) {
             MyLog.d("[LogFragment] Publishing filter results");
           }
 
-          synchronized(listData) {
-            listData.clear();
-            listData.addAll((ArrayList<ListItem>) results.values);
+          FilteredView view = (FilteredView) results.values;
+          filteredItems.clear();
+          filtered = view != null;
+          shownGeneration++;
+
+          if(filtered) {
+            synchronized(listItems) {
+              for(int i = 0; i < view.count; i++) {
+                if(listItems.contains(view.items[i])) {
+                  filteredItems.add(view.items[i]);
+                }
+              }
+
+              // entries published while the filter ran
+              int seq = view.upTo - listItems.getStart() < 0 ? listItems.getStart() : view.upTo;
+
+              for(; seq - published < 0; seq++) {
+                listItems.read(seq, scanItem);
+
+                if(matchesFilter(scanItem)) {
+                  filteredItems.add(seq);
+                }
+              }
+            }
+
             if(MyLog.enabled) {
-              MyLog.d("[LogFilter] listdata size after filter: " + listData.size());
+              MyLog.d("[LogFilter] listdata size after filter: " + filteredItems.size());
             }
           }
 
@@ -927,6 +913,18 @@ public class LogFragment extends Fragment {
         }
     }
 
+    public int getCount() {
+      return getShownCount();
+    }
+
+    public ListItem getItem(int position) {
+      return getShownItem(position);
+    }
+
+    public long getItemId(int position) {
+      return position;
+    }
+
     @Override
       public CustomFilter getFilter() {
         if(filter == null) {
@@ -960,6 +958,23 @@ public class LogFragment extends Fragment {
 
         holder = (ViewHolder) convertView.getTag();
 
+        if(item == null) {
+          // evicted; blank until the queued refresh drops the row
+          holder.getIcon().setTag(null);
+          holder.getIcon().setImageDrawable(null);
+          holder.getName().setText("");
+          holder.getInterface().setText("");
+          holder.getSrcAddr().setText("");
+          holder.getSrcAddr().setTag(null);
+          holder.getSrcPort().setText("");
+          holder.getDstAddr().setText("");
+          holder.getDstAddr().setTag(null);
+          holder.getDstPort().setText("");
+          holder.getLen().setText("");
+          holder.getTimestamp().setText("");
+          return convertView;
+        }
+
         icon = holder.getIcon();
         icon.setTag(item.app.packageName);
         icon.setImageDrawable(ApplicationsTracker.loadIcon(getActivity().getApplicationContext(), icon, item.app.packageName));
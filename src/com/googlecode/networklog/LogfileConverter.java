@@ -0,0 +1,152 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.content.Context;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// Converts the logfile between the text and binary formats
+public class LogfileConverter {
+  // Rewrites each segment of the logfile at path in the requested format.
+  // Returns the number of entries converted.
+  public static long convert(String path, boolean toBinary) throws IOException {
+    LogfileStore store = new LogfileStore(path);
+    long count = 0;
+
+    store.migrate();
+
+    for(LogfileStore.Segment segment : store.getSegments()) {
+      count += convertFile(segment.file.getPath(), toBinary);
+    }
+
+    return count;
+  }
+
+  // Rewrites a single logfile in the requested format; does nothing if it
+  // is already in that format.  Returns the number of entries converted.
+  static long convertFile(String path, boolean toBinary) throws IOException {
+    File file = new File(path);
+
+    if(!file.exists() || file.length() == 0) {
+      return 0;
+    }
+
+    LogfileLoader loader = new LogfileLoader();
+    File temp = new File(file.getParent(), file.getName() + ".convert");
+    long count = 0;
+
+    try {
+      loader.openLogfile(path);
+
+      // compressed segments are smaller than either format
+      if(loader.isCompressed() || loader.isBinary() == toBinary) {
+        return 0;
+      }
+
+      LogEntry entry;
+
+      if(toBinary) {
+        RandomAccessFile output = new RandomAccessFile(temp, "rw");
+
+        try {
+          output.setLength(0);
+          BinaryLogWriter writer = new BinaryLogWriter(output.getChannel());
+          writer.open();
+
+          while((entry = loader.readEntry()) != null) {
+            writer.add(entry);
+            count++;
+          }
+
+          writer.close();
+        } finally {
+          output.close();
+        }
+      } else {
+        BufferedWriter output = new BufferedWriter(new FileWriter(temp), 64 * 1024);
+
+        try {
+          while((entry = loader.readEntry()) != null) {
+            output.write(entry.timestamp + "," + entry.in + "," + entry.out + "," + entry.uid + "," + entry.src + "," + entry.spt + "," + entry.dst + "," + entry.dpt + "," + entry.len + "," + entry.proto);
+            output.write('\n');
+            count++;
+          }
+        } finally {
+          output.close();
+        }
+      }
+    } catch(IOException e) {
+      temp.delete();
+      throw e;
+    } finally {
+      loader.closeLogfile();
+    }
+
+    if(!file.delete() || !temp.renameTo(file)) {
+      throw new IOException("Failed to replace " + path + " with " + temp);
+    }
+
+    LogfileIndex.delete(path);
+
+    return count;
+  }
+
+  // converts with logging paused, then restarts it
+  public static void convertInBackground(final Context context, final String path, final boolean toBinary) {
+    new Thread(new Runnable() {
+      public void run() {
+        boolean serviceRunning = NetworkLogService.instance != null;
+
+        if(serviceRunning) {
+          Log.d("NetworkLog", "Stopping logging to convert log");
+          NetworkLogService.instance.stopLogging();
+        }
+
+        showToast(context, context.getResources().getString(R.string.logfile_converting));
+
+        try {
+          long start = System.currentTimeMillis();
+          long count = convert(path, toBinary);
+          Log.d("NetworkLog", "Converted " + count + " entries in " + path + " to " + (toBinary ? "binary" : "text")
+              + " in " + (System.currentTimeMillis() - start) + " ms");
+
+          if(count > 0) {
+            showToast(context, context.getResources().getString(R.string.logfile_converted));
+          }
+        } catch(Exception e) {
+          Log.e("NetworkLog", "Error converting logfile [" + path + "]", e);
+          SysUtils.showError(context, context.getResources().getString(R.string.error_default_title),
+              context.getResources().getString(R.string.error_convertlogfile) + e.getMessage());
+        }
+
+        if(serviceRunning && NetworkLogService.instance != null) {
+          Log.d("NetworkLog", "Resuming logging");
+          NetworkLogService.instance.startLogging();
+        }
+      }
+    }, "LogfileConverter").start();
+  }
+
+  static void showToast(final Context context, final String message) {
+    if(NetworkLog.handler == null) {
+      return;
+    }
+
+    NetworkLog.handler.post(new Runnable() {
+      public void run() {
+        Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+      }
+    });
+  }
+}
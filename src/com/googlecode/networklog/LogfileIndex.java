@@ -0,0 +1,359 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+// Sparse timestamp -> offset index for text logfiles, kept in a sidecar file
+// next to the logfile (<logfile>.idx).  One entry is recorded for the first
+// line starting at least INTERVAL bytes after the previous entry, so a seek
+// only has to scan a few KB of the logfile.
+//
+// Sidecar layout (big-endian): i64 magic, i64 covered length, then
+// (i64 timestamp, i64 offset) entries.  "Covered" is the length of the
+// logfile prefix the entries describe; anything after it is scanned.
+public class LogfileIndex {
+  static final long MAGIC = 0x4E4C49445830310AL; // "NLIDX01\n"
+  static final int HEADER_SIZE = 16;
+  static final int ENTRY_SIZE = 16;
+  static final int INTERVAL = 64 * 1024;
+  static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+  int count = 0;
+  long[] timestamps = new long[256];
+  long[] offsets = new long[256];
+  long covered = 0;
+  long nextOffset = 0; // offset from which the next entry is due
+  int savedCount = 0;  // entries already written to an open sidecar
+
+  public static String getPath(String logfile) {
+    return logfile + ".idx";
+  }
+
+  public static void delete(String logfile) {
+    new File(getPath(logfile)).delete();
+  }
+
+  public void add(long timestamp, long offset) {
+    if(count == timestamps.length) {
+      long[] newTimestamps = new long[count * 2];
+      long[] newOffsets = new long[count * 2];
+      System.arraycopy(timestamps, 0, newTimestamps, 0, count);
+      System.arraycopy(offsets, 0, newOffsets, 0, count);
+      timestamps = newTimestamps;
+      offsets = newOffsets;
+    }
+
+    timestamps[count] = timestamp;
+    offsets[count] = offset;
+    count++;
+    nextOffset = offset + INTERVAL;
+  }
+
+  // Returns the index for logfile: the sidecar if it matches the logfile,
+  // otherwise one rebuilt by scanning it (and saved).  Lines appended after
+  // the covered prefix are scanned but not saved.
+  public static LogfileIndex open(String logfile, RandomAccessFile file) throws IOException {
+    long length = file.length();
+    LogfileIndex index = load(logfile, file, length);
+
+    if(index == null) {
+      long start = System.currentTimeMillis();
+      index = new LogfileIndex();
+      index.scan(file, length);
+
+      try {
+        index.save(logfile);
+      } catch(IOException e) {
+        Log.w("NetworkLog", "Unable to save logfile index " + getPath(logfile), e);
+      }
+
+      Log.d("NetworkLog", "Rebuilt logfile index for " + logfile + ": " + index.count + " entries in "
+          + (System.currentTimeMillis() - start) + " ms");
+    } else if(index.covered < length) {
+      index.scan(file, length);
+    }
+
+    return index;
+  }
+
+  // loads the sidecar, or returns null if it is missing or stale
+  static LogfileIndex load(String logfile, RandomAccessFile file, long length) {
+    File path = new File(getPath(logfile));
+
+    if(!path.exists()) {
+      return null;
+    }
+
+    RandomAccessFile sidecar = null;
+
+    try {
+      sidecar = new RandomAccessFile(path, "r");
+      long size = sidecar.length();
+
+      if(size < HEADER_SIZE || (size - HEADER_SIZE) % ENTRY_SIZE != 0 || sidecar.readLong() != MAGIC) {
+        return null;
+      }
+
+      LogfileIndex index = new LogfileIndex();
+      index.covered = sidecar.readLong();
+
+      if(index.covered > length) {
+        // logfile was truncated or replaced
+        return null;
+      }
+
+      byte[] bytes = new byte[(int) (size - HEADER_SIZE)];
+      sidecar.readFully(bytes);
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+      while(buffer.hasRemaining()) {
+        index.add(buffer.getLong(), buffer.getLong());
+      }
+
+      // spot-check the last entry against the logfile
+      if(index.count > 0) {
+        int last = index.count - 1;
+
+        if(index.offsets[last] >= index.covered || readTimestamp(file, index.offsets[last]) != index.timestamps[last]) {
+          return null;
+        }
+      }
+
+      index.savedCount = index.count;
+      index.nextOffset = index.count > 0 ? index.offsets[index.count - 1] + INTERVAL : 0;
+      return index;
+    } catch(Exception e) {
+      Log.w("NetworkLog", "Ignoring bad logfile index " + path, e);
+      return null;
+    } finally {
+      if(sidecar != null) {
+        try {
+          sidecar.close();
+        } catch(IOException e) {
+          // ignored
+        }
+      }
+    }
+  }
+
+  // writes the whole index to a temporary file and renames it over the sidecar
+  public void save(String logfile) throws IOException {
+    File path = new File(getPath(logfile));
+    File temp = new File(path.getPath() + ".tmp");
+    RandomAccessFile sidecar = new RandomAccessFile(temp, "rw");
+
+    try {
+      sidecar.setLength(0);
+      ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * ENTRY_SIZE);
+      buffer.putLong(MAGIC);
+      buffer.putLong(covered);
+
+      for(int i = 0; i < count; i++) {
+        buffer.putLong(timestamps[i]);
+        buffer.putLong(offsets[i]);
+      }
+
+      sidecar.write(buffer.array(), 0, buffer.position());
+    } finally {
+      sidecar.close();
+    }
+
+    if(!temp.renameTo(path)) {
+      temp.delete();
+      throw new IOException("Failed to rename " + temp + " to " + path);
+    }
+
+    savedCount = count;
+  }
+
+  // appends entries added since the last save and updates the covered length
+  public void append(RandomAccessFile sidecar) throws IOException {
+    if(savedCount < count) {
+      ByteBuffer buffer = ByteBuffer.allocate((count - savedCount) * ENTRY_SIZE);
+
+      for(int i = savedCount; i < count; i++) {
+        buffer.putLong(timestamps[i]);
+        buffer.putLong(offsets[i]);
+      }
+
+      sidecar.seek(HEADER_SIZE + (long) savedCount * ENTRY_SIZE);
+      sidecar.write(buffer.array(), 0, buffer.position());
+      savedCount = count;
+    }
+
+    sidecar.seek(8);
+    sidecar.writeLong(covered);
+  }
+
+  // Indexes complete lines from covered up to length.  Malformed lines are
+  // not indexed.
+  void scan(RandomAccessFile file, long length) throws IOException {
+    byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+    long lineStart = covered;
+    long position = covered;
+    boolean checkLine = lineStart >= nextOffset;
+    long timestamp = 0;
+    int digits = 0;
+    boolean neg = false, numberDone = false;
+
+    file.seek(position);
+
+    while(position < length) {
+      int read = file.read(buffer, 0, (int) Math.min(buffer.length, length - position));
+
+      if(read <= 0) {
+        break;
+      }
+
+      for(int i = 0; i < read; i++) {
+        byte b = buffer[i];
+
+        if(b == '\n') {
+          if(checkLine && digits > 0) {
+            add(neg ? -timestamp : timestamp, lineStart);
+          }
+
+          lineStart = position + i + 1;
+          checkLine = lineStart >= nextOffset;
+          timestamp = 0;
+          digits = 0;
+          neg = false;
+          numberDone = false;
+        } else if(checkLine && !numberDone) {
+          if(b >= '0' && b <= '9') {
+            timestamp = timestamp * 10 + (b - '0');
+            digits++;
+          } else if(b == '-' && digits == 0 && !neg) {
+            neg = true;
+          } else {
+            numberDone = true;
+          }
+        }
+      }
+
+      position += read;
+    }
+
+    // the last line may still be incomplete
+    covered = lineStart;
+  }
+
+  // Returns the offset to start scanning from for a target timestamp: that
+  // of the last entry with a timestamp before target, or 0.
+  public long findBefore(long target) {
+    int low = 0, high = count - 1, found = -1;
+
+    while(low <= high) {
+      int mid = (low + high) >>> 1;
+
+      if(timestamps[mid] < target) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    return found == -1 ? 0 : offsets[found];
+  }
+
+  // Scans complete lines from offset.  Returns the offset of the first line
+  // with a timestamp >= target, or -1; with seekAhead, the offset just past
+  // the last line with a timestamp <= target that precedes any later line.
+  static long scanForTimestamp(RandomAccessFile file, long offset, long length, long target, boolean seekAhead) throws IOException {
+    byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+    long lineStart = offset;
+    long position = offset;
+    long result = seekAhead ? offset : -1;
+    long timestamp = 0;
+    int digits = 0;
+    boolean neg = false, numberDone = false;
+
+    file.seek(position);
+
+    while(position < length) {
+      int read = file.read(buffer, 0, (int) Math.min(buffer.length, length - position));
+
+      if(read <= 0) {
+        break;
+      }
+
+      for(int i = 0; i < read; i++) {
+        byte b = buffer[i];
+
+        if(b == '\n') {
+          if(digits > 0) {
+            if(neg) {
+              timestamp = -timestamp;
+            }
+
+            if(seekAhead) {
+              if(timestamp > target) {
+                return result;
+              }
+              result = position + i + 1;
+            } else if(timestamp >= target) {
+              return lineStart;
+            }
+          }
+
+          lineStart = position + i + 1;
+          timestamp = 0;
+          digits = 0;
+          neg = false;
+          numberDone = false;
+        } else if(!numberDone) {
+          if(b >= '0' && b <= '9') {
+            timestamp = timestamp * 10 + (b - '0');
+            digits++;
+          } else if(b == '-' && digits == 0 && !neg) {
+            neg = true;
+          } else {
+            numberDone = true;
+          }
+        }
+      }
+
+      position += read;
+    }
+
+    return result;
+  }
+
+  static long readTimestamp(RandomAccessFile file, long offset) throws IOException {
+    byte[] bytes = new byte[24];
+    file.seek(offset);
+    int read = file.read(bytes);
+    long value = 0;
+    int i = 0;
+    boolean neg = false;
+
+    if(read > 0 && bytes[0] == '-') {
+      neg = true;
+      i++;
+    }
+
+    int start = i;
+
+    while(i < read && bytes[i] >= '0' && bytes[i] <= '9') {
+      value = value * 10 + (bytes[i] - '0');
+      i++;
+    }
+
+    if(i == start) {
+      throw new IOException("No timestamp at offset " + offset);
+    }
+
+    return neg ? -value : value;
+  }
+}
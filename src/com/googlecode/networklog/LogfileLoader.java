@@ -31,6 +31,13 @@ public class LogfileLoader {
   StringBuilder sb = new StringBuilder(128);
   char[] chars = new char[128];
   long length = 0;  // file length
+  BinaryLogReader binaryReader = null; // set when the logfile is in the binary format
+  CompressedLogReader compressedReader = null; // set when the logfile is a compressed segment
+  MappedLogfileReader mappedReader = null; // set when a text logfile is opened mapped
+  boolean mappedSeek = false; // mappedReader must resume at the file pointer
+  String filename = null;
+  LogfileIndex index = null; // timestamp index of a text logfile, loaded on first seek
+  SegmentedLogfileReader segmentedReader = null; // set when the logfile is a segment directory
 
   public void reset() {
     buffer_length = 0;
@@ -44,12 +51,60 @@ public class LogfileLoader {
   }
 
   public void openLogfile(String filename) throws FileNotFoundException, IllegalArgumentException, IOException {
+    openLogfile(filename, false);
+  }
+
+  // mapped: parse text logfiles from memory-mapped windows instead of read() chunks
+  public void openLogfile(String filename, boolean mapped) throws FileNotFoundException, IllegalArgumentException, IOException {
     reset();
+    this.filename = filename;
+    index = null;
+
+    if(LogfileStore.isSegmented(filename)) {
+      segmentedReader = new SegmentedLogfileReader(new LogfileStore(filename), mapped);
+      getLength();
+      return;
+    }
+
     logfile = new RandomAccessFile(filename, "r");
+
+    if(BinaryLogfile.isBinary(logfile.getChannel())) {
+      binaryReader = new BinaryLogReader(logfile.getChannel());
+    } else if(CompressedLogfile.isCompressed(logfile.getChannel())) {
+      compressedReader = new CompressedLogReader(logfile.getChannel());
+    }
+
     getLength();
+
+    if(mapped && binaryReader == null && compressedReader == null) {
+      mappedReader = new MappedLogfileReader(logfile.getChannel(), length);
+      mappedSeek = true;
+    }
+  }
+
+  public boolean isBinary() {
+    return binaryReader != null;
+  }
+
+  public boolean isCompressed() {
+    return compressedReader != null;
   }
 
   public void closeLogfile() throws IOException {
+    binaryReader = null;
+    index = null;
+    mappedReader = null;
+
+    if(compressedReader != null) {
+      compressedReader.close();
+      compressedReader = null;
+    }
+
+    if(segmentedReader != null) {
+      segmentedReader.close();
+      segmentedReader = null;
+    }
+
     if(logfile != null) {
       logfile.close();
       logfile = null;
@@ -57,33 +112,68 @@ public class LogfileLoader {
   }
 
   public long getLength() throws IOException {
+    if(segmentedReader != null) {
+      length = segmentedReader.getLength();
+      return length;
+    }
+
+    if(binaryReader != null) {
+      // excludes the trailing index
+      length = binaryReader.getDataEnd();
+      return length;
+    }
+
+    if(compressedReader != null) {
+      length = compressedReader.getDataEnd();
+      return length;
+    }
+
     length = logfile.length(); // cache in member variable
     return length;
   }
 
   public long getLatestTimestamp() throws IOException {
-    long start_pos = length - 512;
+    if(segmentedReader != null) {
+      return segmentedReader.getLatestTimestamp();
+    }
+
+    if(binaryReader != null) {
+      return binaryReader.getLatestTimestamp();
+    }
 
-    if (start_pos < 0) {
-      start_pos = 0;
+    if(compressedReader != null) {
+      return compressedReader.getLatestTimestamp();
     }
 
+    long start_pos = Math.max(0, length - 512);
+    byte[] tail = new byte[(int)(length - start_pos)];
+
     logfile.seek(start_pos);
+    logfile.readFully(tail);
 
-    String line;
-    if (start_pos > 0) {
-      line = logfile.readLine();
+    // last complete line
+    int end = tail.length;
+
+    while(end > 0 && tail[end - 1] != '\n') {
+      end--;
     }
 
-    long timestamp = -1;
+    if(end == 0) {
+      return -1;
+    }
 
-    while (true) {
-      line = logfile.readLine();
-      if(line == null) {
-        return timestamp;
-      }
-      timestamp = Long.parseLong(line.split("[^0-9-]+", 2)[0]);
+    int begin = end - 1;
+
+    while(begin > 0 && tail[begin - 1] != '\n') {
+      begin--;
+    }
+
+    if(begin == 0 && start_pos > 0) {
+      // may be anywhere within a line
+      return -1;
     }
+
+    return LogfileIndex.readTimestamp(logfile, start_pos + begin);
   }
 
   public long seekToTimestampPosition(long target) throws IOException {
@@ -91,6 +181,45 @@ public class LogfileLoader {
   }
 
   public long seekToTimestampPosition(long target, boolean seekAhead) throws IOException {
+    if(segmentedReader != null) {
+      return segmentedReader.seekToTimestamp(target, seekAhead);
+    }
+
+    if(binaryReader != null) {
+      return binaryReader.seekToTimestamp(target, seekAhead);
+    }
+
+    if(compressedReader != null) {
+      return compressedReader.seekToTimestamp(target, seekAhead);
+    }
+
+    // discard buffered data from before the seek
+    mappedSeek = true;
+    buffer_length = 0;
+    buffer_pos = 0;
+    partial_buffer_length = 0;
+    line_length = 0;
+
+    if(index == null) {
+      try {
+        index = LogfileIndex.open(filename, logfile);
+      } catch(IOException e) {
+        Log.w("NetworkLog", "Unable to index " + filename + "; falling back to binary search", e);
+      }
+    }
+
+    if(index != null) {
+      long result = LogfileIndex.scanForTimestamp(logfile, index.findBefore(target), length, target, seekAhead);
+
+      if(result == -1) {
+        MyLog.d("[LogfileLoader] No packets found within time range");
+        return -1;
+      }
+
+      logfile.seek(result);
+      return result;
+    }
+
     long result = 0;
     long min = 0;
     long max = getLength();
@@ -219,6 +348,27 @@ public class LogfileLoader {
   public LogEntry readEntry() throws IOException {
     int i;
 
+    if(segmentedReader != null) {
+      return segmentedReader.readEntry();
+    }
+
+    if(binaryReader != null) {
+      return binaryReader.readEntry(entry) ? entry : null;
+    }
+
+    if(compressedReader != null) {
+      return compressedReader.readEntry(entry) ? entry : null;
+    }
+
+    if(mappedReader != null) {
+      if(mappedSeek) {
+        mappedReader.setPosition(logfile.getFilePointer());
+        mappedSeek = false;
+      }
+
+      return mappedReader.readEntry(entry) ? entry : null;
+    }
+
     while(true) {
       if(buffer_pos >= buffer_length) {
         if(readChunk() == false) {
@@ -315,6 +465,22 @@ public class LogfileLoader {
   }
 
   public long getProcessedSoFar() {
+    if(segmentedReader != null) {
+      return segmentedReader.getProcessedSoFar();
+    }
+
+    if(binaryReader != null) {
+      return binaryReader.getProcessedSoFar();
+    }
+
+    if(compressedReader != null) {
+      return compressedReader.getProcessedSoFar();
+    }
+
+    if(mappedReader != null) {
+      return mappedReader.getProcessedSoFar();
+    }
+
     return processed_so_far;
   }
 }
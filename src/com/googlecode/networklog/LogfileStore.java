@@ -0,0 +1,610 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+// The logfile stored as a directory (<logfile>.d) of time-bounded segments.
+// Each segment is a complete text or binary logfile named after the
+// timestamp of its first entry; the writer starts a new one every
+// SEGMENT_DURATION ms or SEGMENT_MAX_SIZE bytes.  The manifest records the
+// last timestamp of every sealed segment so retention can drop whole
+// segments without opening them.  Sealed segments are rewritten as
+// compressed logfiles (see CompressedLogfile) in the background.
+//
+// Segments and the manifest are only modified while holding the class lock.
+public class LogfileStore {
+  static final String DIRECTORY_SUFFIX = ".d";
+  static final String SEGMENT_SUFFIX = ".log";
+  static final String MANIFEST = "manifest";
+  static final long SEGMENT_DURATION = 60 * 60 * 1000;
+  static final long SEGMENT_MAX_SIZE = 64 * 1024 * 1024;
+
+  // segment currently being appended to by the writer, if any
+  static File activeSegment = null;
+
+  static Thread compressor = null;
+  static boolean compressAgain = false;
+
+  public static class Segment {
+    public final File file;
+    public final long startTimestamp;
+    public long lastTimestamp; // -1 if unknown
+
+    Segment(File file, long startTimestamp, long lastTimestamp) {
+      this.file = file;
+      this.startTimestamp = startTimestamp;
+      this.lastTimestamp = lastTimestamp;
+    }
+  }
+
+  final String logfile;
+  final File directory;
+
+  public LogfileStore(String logfile) {
+    this.logfile = logfile;
+    directory = new File(logfile + DIRECTORY_SUFFIX);
+  }
+
+  public static boolean isSegmented(String logfile) {
+    return new File(logfile + DIRECTORY_SUFFIX).isDirectory();
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  // total size of the segments, or of the plain logfile
+  public long getSize() {
+    if(!directory.isDirectory()) {
+      return new File(logfile).length();
+    }
+
+    long size = 0;
+
+    for(Segment segment : getSegments()) {
+      size += segment.file.length();
+    }
+
+    return size;
+  }
+
+  // Segments sorted by start timestamp.  The directory listing is
+  // authoritative; the manifest only supplies last timestamps.
+  public ArrayList<Segment> getSegments() {
+    ArrayList<Segment> segments = new ArrayList<Segment>();
+
+    synchronized(LogfileStore.class) {
+      String[] names = directory.list();
+
+      if(names == null) {
+        return segments;
+      }
+
+      HashMap<String, Long> manifest = readManifest();
+
+      for(String name : names) {
+        long start = getSegmentTimestamp(name);
+
+        if(start == -1) {
+          continue;
+        }
+
+        Long last = manifest.get(name);
+        segments.add(new Segment(new File(directory, name), start, last == null ? -1 : last));
+      }
+    }
+
+    Collections.sort(segments, new Comparator<Segment>() {
+      public int compare(Segment a, Segment b) {
+        return a.startTimestamp < b.startTimestamp ? -1 : (a.startTimestamp == b.startTimestamp ? 0 : 1);
+      }
+    });
+
+    return segments;
+  }
+
+  // returns the start timestamp encoded in a segment file name, or -1
+  static long getSegmentTimestamp(String name) {
+    if(!name.endsWith(SEGMENT_SUFFIX) || name.length() == SEGMENT_SUFFIX.length()) {
+      return -1;
+    }
+
+    long value = 0;
+
+    for(int i = 0, n = name.length() - SEGMENT_SUFFIX.length(); i < n; i++) {
+      char c = name.charAt(i);
+
+      if(c < '0' || c > '9') {
+        return -1;
+      }
+
+      value = value * 10 + (c - '0');
+    }
+
+    return value;
+  }
+
+  // upper bound for the timestamps in segments[i]
+  static long getSegmentEnd(ArrayList<Segment> segments, int i) {
+    Segment segment = segments.get(i);
+
+    if(segment.lastTimestamp != -1) {
+      return segment.lastTimestamp;
+    }
+
+    if(i + 1 < segments.size()) {
+      return segments.get(i + 1).startTimestamp - 1;
+    }
+
+    return Long.MAX_VALUE;
+  }
+
+  // creates an empty segment for entries starting at timestamp and marks it active
+  public File createSegment(long timestamp) throws IOException {
+    synchronized(LogfileStore.class) {
+      if(!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Unable to create " + directory);
+      }
+
+      File file;
+
+      // segment names must be unique
+      while((file = new File(directory, formatName(timestamp))).exists()) {
+        timestamp++;
+      }
+
+      if(!file.createNewFile()) {
+        throw new IOException("Unable to create " + file);
+      }
+
+      activeSegment = file;
+      return file;
+    }
+  }
+
+  static String formatName(long timestamp) {
+    String digits = Long.toString(timestamp);
+    StringBuilder builder = new StringBuilder(13 + SEGMENT_SUFFIX.length());
+
+    for(int i = digits.length(); i < 13; i++) {
+      builder.append('0');
+    }
+
+    return builder.append(digits).append(SEGMENT_SUFFIX).toString();
+  }
+
+  // records the last timestamp of a segment the writer has finished with
+  public void sealSegment(File file, long lastTimestamp) {
+    synchronized(LogfileStore.class) {
+      if(file.equals(activeSegment)) {
+        activeSegment = null;
+      }
+
+      if(!file.exists()) {
+        return;
+      }
+
+      if(file.length() == 0) {
+        file.delete();
+        return;
+      }
+
+      HashMap<String, Long> manifest = readManifest();
+      manifest.put(file.getName(), lastTimestamp);
+      writeManifest(manifest);
+    }
+  }
+
+  // Moves a plain logfile into the segment directory as its first segment.
+  public void migrate() throws IOException {
+    File file = new File(logfile);
+
+    if(!file.exists()) {
+      return;
+    }
+
+    synchronized(LogfileStore.class) {
+      if(file.length() == 0) {
+        file.delete();
+        LogfileIndex.delete(logfile);
+        return;
+      }
+
+      LogfileLoader loader = new LogfileLoader();
+      long first, last;
+
+      try {
+        loader.openLogfile(logfile);
+        LogEntry entry = loader.readEntry();
+        first = entry == null ? 0 : entry.timestamp;
+        last = loader.getLatestTimestamp();
+      } finally {
+        loader.closeLogfile();
+      }
+
+      if(!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Unable to create " + directory);
+      }
+
+      File segment;
+
+      while((segment = new File(directory, formatName(first))).exists()) {
+        first++;
+      }
+
+      if(!file.renameTo(segment)) {
+        throw new IOException("Unable to move " + file + " to " + segment);
+      }
+
+      new File(LogfileIndex.getPath(logfile)).renameTo(new File(LogfileIndex.getPath(segment.getPath())));
+
+      HashMap<String, Long> manifest = readManifest();
+      manifest.put(segment.getName(), last);
+      writeManifest(manifest);
+
+      Log.d("NetworkLog", "Moved " + file + " to segment " + segment);
+    }
+  }
+
+  // Deletes entries older than cutoff: whole segments where possible, and
+  // rewrites the one sealed segment straddling cutoff.  The active segment
+  // is left alone; the writer should be rotated first.
+  public void clearOlderThan(long cutoff) throws IOException {
+    synchronized(LogfileStore.class) {
+      ArrayList<Segment> segments = getSegments();
+      HashMap<String, Long> manifest = readManifest();
+
+      for(int i = 0; i < segments.size(); i++) {
+        Segment segment = segments.get(i);
+
+        if(segment.startTimestamp >= cutoff || segment.file.equals(activeSegment)) {
+          continue;
+        }
+
+        long end = getSegmentEnd(segments, i);
+
+        if(end == Long.MAX_VALUE) {
+          // last segment left unsealed, e.g. after a crash
+          end = getLatestTimestamp(segment.file);
+        }
+
+        manifest.remove(segment.file.getName());
+
+        if(end < cutoff) {
+          deleteSegment(segment.file);
+          continue;
+        }
+
+        Segment trimmed = trimSegment(segment, cutoff);
+
+        if(trimmed != null) {
+          manifest.put(trimmed.file.getName(), end);
+        }
+      }
+
+      writeManifest(manifest);
+    }
+  }
+
+  // timestamp of the oldest entry left, or Long.MAX_VALUE if there is none
+  public long getOldestTimestamp() {
+    if(directory.isDirectory()) {
+      ArrayList<Segment> segments = getSegments();
+      return segments.isEmpty() ? Long.MAX_VALUE : segments.get(0).startTimestamp;
+    }
+
+    if(!new File(logfile).exists()) {
+      return Long.MAX_VALUE;
+    }
+
+    LogfileLoader loader = new LogfileLoader();
+
+    try {
+      loader.openLogfile(logfile);
+      LogEntry entry = loader.readEntry();
+      return entry == null ? Long.MAX_VALUE : entry.timestamp;
+    } catch (Exception e) {
+      Log.w("NetworkLog", "getOldestTimestamp", e);
+      return Long.MAX_VALUE;
+    } finally {
+      try {
+        loader.closeLogfile();
+      } catch (IOException e) {
+        Log.w("NetworkLog", "getOldestTimestamp", e);
+      }
+    }
+  }
+
+  static long getLatestTimestamp(File file) throws IOException {
+    LogfileLoader loader = new LogfileLoader();
+
+    try {
+      loader.openLogfile(file.getPath());
+      return loader.getLatestTimestamp();
+    } finally {
+      loader.closeLogfile();
+    }
+  }
+
+  static void deleteSegment(File file) {
+    if(!file.delete()) {
+      Log.w("NetworkLog", "Failed to delete " + file);
+    }
+
+    LogfileIndex.delete(file.getPath());
+  }
+
+  // rewrites segment without entries before cutoff; returns the new
+  // segment, or null if nothing was left
+  Segment trimSegment(Segment segment, long cutoff) throws IOException {
+    LogfileLoader loader = new LogfileLoader();
+    File temp = new File(directory, segment.file.getName() + ".trim");
+    long start;
+
+    try {
+      loader.openLogfile(segment.file.getPath());
+      long position = loader.seekToTimestampPosition(cutoff);
+      LogEntry first = position == -1 ? null : loader.readEntry();
+
+      if(first == null) {
+        loader.closeLogfile();
+        deleteSegment(segment.file);
+        return null;
+      }
+
+      // the loader reuses its entry
+      start = first.timestamp;
+
+      RandomAccessFile output = new RandomAccessFile(temp, "rw");
+
+      try {
+        output.setLength(0);
+
+        if(loader.isBinary()) {
+          BinaryLogWriter writer = new BinaryLogWriter(output.getChannel());
+          writer.open();
+          LogEntry entry = first;
+
+          do {
+            writer.add(entry);
+          } while((entry = loader.readEntry()) != null);
+
+          writer.close();
+        } else if(loader.isCompressed()) {
+          CompressedLogWriter writer = new CompressedLogWriter(output.getChannel());
+          writer.open();
+          LogEntry entry = first;
+
+          do {
+            writer.add(entry);
+          } while((entry = loader.readEntry()) != null);
+
+          writer.close();
+        } else {
+          // copy the text tail verbatim
+          RandomAccessFile input = loader.logfile;
+          byte[] buffer = new byte[64 * 1024];
+          int read;
+
+          input.seek(position);
+
+          while((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+          }
+        }
+      } finally {
+        output.close();
+      }
+    } finally {
+      loader.closeLogfile();
+    }
+
+    File file;
+
+    while((file = new File(directory, formatName(start))).exists() && !file.equals(segment.file)) {
+      start++;
+    }
+
+    deleteSegment(segment.file);
+
+    if(!temp.renameTo(file)) {
+      throw new IOException("Failed to rename " + temp + " to " + file);
+    }
+
+    return new Segment(file, start, segment.lastTimestamp);
+  }
+
+  // Compresses sealed segments on a low priority thread; a request made
+  // while one is running makes it look for sealed segments again.
+  public void compressInBackground() {
+    synchronized(LogfileStore.class) {
+      if(compressor != null) {
+        compressAgain = true;
+        return;
+      }
+
+      compressor = new Thread(new Runnable() {
+        public void run() {
+          while(true) {
+            synchronized(LogfileStore.class) {
+              compressAgain = false;
+            }
+
+            compressSealedSegments();
+
+            synchronized(LogfileStore.class) {
+              if(!compressAgain) {
+                compressor = null;
+                return;
+              }
+            }
+          }
+        }
+      }, "LogfileCompressor");
+
+      compressor.setPriority(Thread.MIN_PRIORITY);
+      compressor.start();
+    }
+  }
+
+  void compressSealedSegments() {
+    for(Segment segment : getSegments()) {
+      synchronized(LogfileStore.class) {
+        if(segment.lastTimestamp == -1 || segment.file.equals(activeSegment)) {
+          continue;
+        }
+      }
+
+      try {
+        compressSegment(segment);
+      } catch(IOException e) {
+        Log.w("NetworkLog", "Unable to compress " + segment.file, e);
+      }
+    }
+  }
+
+  // Rewrites a sealed segment compressed.  The segment is read without the
+  // lock and only replaced if it was not cleared or trimmed meanwhile.
+  boolean compressSegment(Segment segment) throws IOException {
+    File file = segment.file;
+    long length = file.length();
+    long modified = file.lastModified();
+    File temp = new File(directory, file.getName() + ".z");
+    LogfileLoader loader = new LogfileLoader();
+    long start = System.currentTimeMillis();
+
+    try {
+      loader.openLogfile(file.getPath());
+
+      if(loader.isCompressed()) {
+        return false;
+      }
+
+      RandomAccessFile output = new RandomAccessFile(temp, "rw");
+
+      try {
+        CompressedLogWriter writer = new CompressedLogWriter(output.getChannel());
+        writer.open();
+        LogEntry entry;
+
+        while((entry = loader.readEntry()) != null) {
+          writer.add(entry);
+        }
+
+        writer.close();
+      } finally {
+        output.close();
+      }
+    } catch(IOException e) {
+      temp.delete();
+      throw e;
+    } finally {
+      loader.closeLogfile();
+    }
+
+    synchronized(LogfileStore.class) {
+      if(!file.exists() || file.length() != length || file.lastModified() != modified) {
+        temp.delete();
+        return false;
+      }
+
+      if(!temp.renameTo(file)) {
+        temp.delete();
+        throw new IOException("Failed to rename " + temp + " to " + file);
+      }
+
+      LogfileIndex.delete(file.getPath());
+    }
+
+    Log.d("NetworkLog", "Compressed " + file + " from " + length + " to " + file.length() + " bytes in "
+        + (System.currentTimeMillis() - start) + " ms");
+    return true;
+  }
+
+  HashMap<String, Long> readManifest() {
+    HashMap<String, Long> manifest = new HashMap<String, Long>();
+    File file = new File(directory, MANIFEST);
+
+    if(!file.exists()) {
+      return manifest;
+    }
+
+    BufferedReader reader = null;
+
+    try {
+      reader = new BufferedReader(new FileReader(file));
+      String line;
+
+      while((line = reader.readLine()) != null) {
+        int space = line.indexOf(' ');
+
+        if(space == -1) {
+          continue;
+        }
+
+        manifest.put(line.substring(0, space), Long.parseLong(line.substring(space + 1).trim()));
+      }
+    } catch(Exception e) {
+      Log.w("NetworkLog", "Ignoring bad segment manifest " + file, e);
+    } finally {
+      if(reader != null) {
+        try {
+          reader.close();
+        } catch(IOException e) {
+          // ignored
+        }
+      }
+    }
+
+    return manifest;
+  }
+
+  void writeManifest(HashMap<String, Long> manifest) {
+    File file = new File(directory, MANIFEST);
+    File temp = new File(directory, MANIFEST + ".tmp");
+    FileWriter writer = null;
+
+    try {
+      writer = new FileWriter(temp);
+
+      for(String name : manifest.keySet()) {
+        if(new File(directory, name).exists()) {
+          writer.write(name + " " + manifest.get(name) + "\n");
+        }
+      }
+
+      writer.close();
+      writer = null;
+
+      if(!temp.renameTo(file)) {
+        Log.w("NetworkLog", "Failed to rename " + temp + " to " + file);
+      }
+    } catch(IOException e) {
+      Log.w("NetworkLog", "Unable to write segment manifest " + file, e);
+    } finally {
+      if(writer != null) {
+        try {
+          writer.close();
+        } catch(IOException e) {
+          // ignored
+        }
+      }
+    }
+  }
+}
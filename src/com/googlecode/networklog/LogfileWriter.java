@@ -0,0 +1,500 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// Appends log entries to the logfile from a dedicated thread.  Producers hand
+// over batches through a lock-free queue and never touch storage; the writer
+// formats entries straight into a reusable byte buffer and commits it to the
+// file channel once flushSize bytes are pending or flushInterval ms have
+// passed since the last commit.
+//
+// Entries go to the segments of a LogfileStore: a new segment is started at
+// each SEGMENT_DURATION boundary, once a segment reaches SEGMENT_MAX_SIZE,
+// and whenever the file is reopened.  A plain logfile left by older versions
+// is moved into the store first.  Segments are created in the binary format
+// (see BinaryLogfile) if requested.  Binary blocks are sealed every
+// BINARY_BLOCK_INTERVAL ms, since each block repeats its dictionary.  Text
+// segments get their timestamp index (see LogfileIndex) extended as lines
+// are committed.  Sealed segments are compressed in the background.
+public class LogfileWriter implements Runnable {
+  public interface ErrorListener {
+    void onOpenError(String path, Exception e);
+  }
+
+  // longest numeric field plus separators, excluding the string fields
+  private static final int MAX_FIXED_LINE_LENGTH = 20 + 11 * 5 + 10;
+  static final long BINARY_BLOCK_INTERVAL = 5000;
+
+  private final String path;
+  private final long flushInterval;
+  private final int flushSize;
+  private final boolean binary;
+  private final ErrorListener errorListener;
+
+  private final ConcurrentLinkedQueue<ArrayList<LogEntry>> queue = new ConcurrentLinkedQueue<ArrayList<LogEntry>>();
+  private volatile boolean running = false;
+  private volatile boolean closeRequested = false;
+  private Thread thread;
+  private final LogfileStore store;
+  private final Object closeLock = new Object();
+  private int closes = 0; // guarded by closeLock
+
+  // writer thread state
+  private File segment;
+  private long segmentEnd;
+  private long lastTimestamp;
+  private RandomAccessFile output;
+  private FileChannel channel;
+  private BinaryLogWriter binaryWriter;
+  private long blockStart;
+  private LogfileIndex index;
+  private RandomAccessFile indexFile;
+  private long fileOffset;
+  private byte[] bytes;
+  private ByteBuffer byteBuffer;
+  private int length = 0;
+  private long lastCommit;
+  private boolean openFailed = false;
+  private long written = 0;
+  private int commits = 0;
+
+  public LogfileWriter(String path, long flushInterval, int flushSize, boolean binary, ErrorListener errorListener) {
+    this.path = path;
+    this.flushInterval = flushInterval;
+    this.flushSize = flushSize;
+    this.binary = binary;
+    this.errorListener = errorListener;
+    store = new LogfileStore(path);
+    bytes = new byte[flushSize + 4096];
+    byteBuffer = ByteBuffer.wrap(bytes);
+  }
+
+  public synchronized void start() {
+    if(thread != null) {
+      return;
+    }
+
+    running = true;
+    thread = new Thread(this, "LogfileWriter");
+    thread.start();
+  }
+
+  // Stops the writer thread after everything queued so far has been
+  // written and the file has been closed.
+  public synchronized void stop() {
+    if(thread == null) {
+      return;
+    }
+
+    running = false;
+    LockSupport.unpark(thread);
+
+    try {
+      thread.join();
+    } catch(InterruptedException e) {
+      Log.w("NetworkLog", "Interrupted waiting for logfile writer", e);
+    }
+
+    thread = null;
+  }
+
+  // never blocks; the list must not be modified afterwards
+  public void write(ArrayList<LogEntry> entries) {
+    queue.offer(entries);
+  }
+
+  // commits pending data and closes the file; the next write reopens it
+  public void closeFile() {
+    closeRequested = true;
+    Thread t = thread;
+
+    if(t != null) {
+      LockSupport.unpark(t);
+    }
+  }
+
+  // Seals the current segment so that everything logged so far can be
+  // cleared without stopping the writer; waits up to timeout ms.
+  public void rotate(long timeout) {
+    Thread t = thread;
+
+    if(t == null) {
+      return;
+    }
+
+    synchronized(closeLock) {
+      int target = closes + 1;
+      long deadline = System.currentTimeMillis() + timeout;
+      closeRequested = true;
+      LockSupport.unpark(t);
+
+      while(closes < target) {
+        long remaining = deadline - System.currentTimeMillis();
+
+        if(remaining <= 0 || !t.isAlive()) {
+          Log.w("NetworkLog", "Timed out rotating logfile [" + path + "]");
+          return;
+        }
+
+        try {
+          closeLock.wait(remaining);
+        } catch(InterruptedException e) {
+          Log.w("NetworkLog", "Interrupted rotating logfile [" + path + "]", e);
+          return;
+        }
+      }
+    }
+  }
+
+  public void run() {
+    Log.d("NetworkLog", "Logfile writer starting [" + path + "]");
+    lastCommit = System.currentTimeMillis();
+
+    while(true) {
+      // read before draining so entries queued before stop() are not lost
+      boolean stopping = !running;
+      ArrayList<LogEntry> entries;
+
+      while((entries = queue.poll()) != null) {
+        writeEntries(entries);
+      }
+
+      if(stopping) {
+        break;
+      }
+
+      long now = System.currentTimeMillis();
+
+      if(closeRequested) {
+        closeRequested = false;
+        commit(now);
+        close();
+
+        synchronized(closeLock) {
+          closes++;
+          closeLock.notifyAll();
+        }
+      } else if(length >= flushSize || (length > 0 && now - lastCommit >= flushInterval)) {
+        commit(now);
+      } else if(binaryWriter != null && binaryWriter.size() > 0 && now - blockStart >= BINARY_BLOCK_INTERVAL) {
+        writeBlock();
+      }
+
+      LockSupport.parkNanos(this, flushInterval * 1000000L);
+    }
+
+    commit(System.currentTimeMillis());
+    close();
+
+    synchronized(closeLock) {
+      closes++;
+      closeLock.notifyAll();
+    }
+
+    Log.d("NetworkLog", "Logfile writer stopped: " + written + " bytes in " + commits + " commits");
+  }
+
+  private void writeEntries(ArrayList<LogEntry> entries) {
+    for(int i = 0, size = entries.size(); i < size; i++) {
+      LogEntry entry = entries.get(i);
+
+      if(channel != null && (entry.timestamp >= segmentEnd || getSegmentSize() >= LogfileStore.SEGMENT_MAX_SIZE)) {
+        commit(System.currentTimeMillis());
+        close();
+      }
+
+      if(channel == null && !open(entry.timestamp)) {
+        // storage unavailable; drop entries like the old writer did
+        return;
+      }
+
+      if(binaryWriter != null) {
+        encode(entry);
+      } else {
+        format(entry);
+      }
+
+      lastTimestamp = entry.timestamp;
+    }
+  }
+
+  private long getSegmentSize() {
+    if(binaryWriter != null) {
+      // only checked between blocks to avoid a size() call per entry
+      try {
+        return binaryWriter.size() == 0 ? channel.size() : 0;
+      } catch(IOException e) {
+        return 0;
+      }
+    }
+
+    return fileOffset + length;
+  }
+
+  private void encode(LogEntry entry) {
+    try {
+      if(binaryWriter.size() == 0) {
+        blockStart = System.currentTimeMillis();
+      }
+
+      // full blocks are written by add()
+      binaryWriter.add(entry);
+    } catch(IOException e) {
+      Log.e("NetworkLog", "Error writing logfile [" + segment + "]", e);
+      close();
+    }
+  }
+
+  private void writeBlock() {
+    try {
+      binaryWriter.writeBlock();
+      commits++;
+    } catch(IOException e) {
+      Log.e("NetworkLog", "Error writing logfile [" + path + "]", e);
+      close();
+    }
+  }
+
+  private void format(LogEntry entry) {
+    if(index != null && fileOffset + length >= index.nextOffset) {
+      index.add(entry.timestamp, fileOffset + length);
+    }
+
+    int needed = getMaxLineLength(entry);
+
+    if(length + needed > bytes.length) {
+      commit(System.currentTimeMillis());
+
+      if(needed > bytes.length) {
+        bytes = new byte[needed * 2];
+        byteBuffer = ByteBuffer.wrap(bytes);
+      }
+    }
+
+    length = formatLine(entry, bytes, length);
+  }
+
+  static int getMaxLineLength(LogEntry entry) {
+    return MAX_FIXED_LINE_LENGTH + entry.in.length() + entry.out.length()
+      + entry.src.length() + entry.dst.length() + entry.proto.length();
+  }
+
+  // writes entry as a text logfile line at offset; returns the offset after it
+  static int formatLine(LogEntry entry, byte[] bytes, int offset) {
+    offset = appendLong(bytes, offset, entry.timestamp);
+    bytes[offset++] = ',';
+    offset = appendString(bytes, offset, entry.in);
+    bytes[offset++] = ',';
+    offset = appendString(bytes, offset, entry.out);
+    bytes[offset++] = ',';
+    offset = appendLong(bytes, offset, entry.uid);
+    bytes[offset++] = ',';
+    offset = appendString(bytes, offset, entry.src);
+    bytes[offset++] = ',';
+    offset = appendLong(bytes, offset, entry.spt);
+    bytes[offset++] = ',';
+    offset = appendString(bytes, offset, entry.dst);
+    bytes[offset++] = ',';
+    offset = appendLong(bytes, offset, entry.dpt);
+    bytes[offset++] = ',';
+    offset = appendLong(bytes, offset, entry.len);
+    bytes[offset++] = ',';
+    offset = appendString(bytes, offset, entry.proto);
+    bytes[offset++] = '\n';
+    return offset;
+  }
+
+  // fields are ASCII (interface names, addresses, protocol names)
+  private static int appendString(byte[] bytes, int offset, String string) {
+    for(int i = 0, n = string.length(); i < n; i++) {
+      char c = string.charAt(i);
+      bytes[offset++] = c < 0x80 ? (byte) c : (byte) '?';
+    }
+
+    return offset;
+  }
+
+  private static int appendLong(byte[] bytes, int offset, long value) {
+    if(value < 0) {
+      if(value == Long.MIN_VALUE) {
+        return appendString(bytes, offset, "-9223372036854775808");
+      }
+      bytes[offset++] = '-';
+      value = -value;
+    }
+
+    int start = offset;
+
+    do {
+      bytes[offset++] = (byte) ('0' + (value % 10));
+      value /= 10;
+    } while(value != 0);
+
+    // digits were written least significant first
+    for(int i = start, j = offset - 1; i < j; i++, j--) {
+      byte b = bytes[i];
+      bytes[i] = bytes[j];
+      bytes[j] = b;
+    }
+
+    return offset;
+  }
+
+  private void commit(long now) {
+    if(length == 0) {
+      return;
+    }
+
+    if(channel == null) {
+      // file was closed by a write error
+      length = 0;
+      lastCommit = now;
+      return;
+    }
+
+    byteBuffer.clear();
+    byteBuffer.limit(length);
+
+    try {
+      while(byteBuffer.hasRemaining()) {
+        channel.write(byteBuffer);
+      }
+      written += length;
+      commits++;
+      fileOffset += length;
+    } catch(IOException e) {
+      Log.e("NetworkLog", "Error writing logfile [" + path + "]", e);
+      close();
+    }
+
+    if(index != null) {
+      index.covered = fileOffset;
+
+      try {
+        index.append(indexFile);
+      } catch(IOException e) {
+        Log.w("NetworkLog", "Error writing logfile index [" + path + "]", e);
+        closeIndex();
+      }
+    }
+
+    length = 0;
+    lastCommit = now;
+
+    if(MyLog.enabled && MyLog.level >= 6) {
+      MyLog.d(6, "[LogfileWriter] committed; total " + written + " bytes");
+    }
+  }
+
+  // starts a new segment for entries from timestamp on
+  private boolean open(long timestamp) {
+    if(!android.os.Environment.getExternalStorageState().equals(android.os.Environment.MEDIA_MOUNTED)) {
+      Log.w("NetworkLog", "External storage " + path + " not available");
+      return false;
+    }
+
+    try {
+      store.migrate();
+      segment = store.createSegment(timestamp);
+      segmentEnd = (timestamp / LogfileStore.SEGMENT_DURATION + 1) * LogfileStore.SEGMENT_DURATION;
+      lastTimestamp = timestamp;
+      output = new RandomAccessFile(segment, "rw");
+      channel = output.getChannel();
+
+      if(binary) {
+        BinaryLogWriter writer = new BinaryLogWriter(channel);
+        writer.open();
+        binaryWriter = writer;
+      } else {
+        openIndex();
+        fileOffset = 0;
+      }
+
+      openFailed = false;
+      Log.d("NetworkLog", "Opened " + segment + " for " + (binaryWriter != null ? "binary " : "") + "logging");
+      return true;
+    } catch(Exception e) {
+      Log.e("NetworkLog", "Exception opening logfile [" + path + "]", e);
+      close();
+
+      // report once until the file opens again
+      if(!openFailed && errorListener != null) {
+        errorListener.onOpenError(path, e);
+      }
+      openFailed = true;
+      return false;
+    }
+  }
+
+  // the index is optional; logging continues without it
+  private void openIndex() {
+    String segmentPath = segment.getPath();
+
+    try {
+      index = new LogfileIndex();
+      index.save(segmentPath);
+      indexFile = new RandomAccessFile(LogfileIndex.getPath(segmentPath), "rw");
+    } catch(IOException e) {
+      Log.w("NetworkLog", "Unable to open logfile index for " + segmentPath, e);
+      closeIndex();
+    }
+  }
+
+  private void closeIndex() {
+    if(indexFile != null) {
+      try {
+        indexFile.close();
+      } catch(IOException e) {
+        // ignored
+      }
+    }
+
+    index = null;
+    indexFile = null;
+  }
+
+  private void close() {
+    closeIndex();
+
+    if(output != null) {
+      try {
+        if(binaryWriter != null && channel != null) {
+          binaryWriter.close();
+        }
+      } catch(IOException e) {
+        Log.w("NetworkLog", "Error writing logfile index [" + segment + "]", e);
+      }
+
+      try {
+        output.close();
+      } catch(IOException e) {
+        Log.w("NetworkLog", "Error closing logfile [" + segment + "]", e);
+      }
+    }
+
+    if(segment != null) {
+      store.sealSegment(segment, lastTimestamp);
+      store.compressInBackground();
+    }
+
+    output = null;
+    channel = null;
+    binaryWriter = null;
+    segment = null;
+  }
+}
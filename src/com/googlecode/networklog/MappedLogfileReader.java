@@ -0,0 +1,100 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reads text logfile entries by mapping the file in sliding windows and
+// parsing the fields straight out of the mapped bytes (see LineParser);
+// lines have no length limit other than the window size.
+public class MappedLogfileReader {
+  static final int WINDOW_SIZE = 8 * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final long length;
+  private MappedByteBuffer window;
+  private long windowStart = 0;
+  private int windowLength = 0;
+  private long position = 0;
+  private long startPosition = 0;
+  private LineParser parser = new LineParser();
+  private boolean skipLine = false;
+
+  public MappedLogfileReader(FileChannel channel, long length) {
+    this.channel = channel;
+    this.length = length;
+  }
+
+  public void setPosition(long position) {
+    this.position = position;
+    startPosition = position;
+    skipLine = false;
+  }
+
+  public long getProcessedSoFar() {
+    return position - startPosition;
+  }
+
+  private void map(long start) throws IOException {
+    windowStart = start;
+    windowLength = (int) Math.min(WINDOW_SIZE, length - start);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+  }
+
+  // Parses the next complete line into entry; returns false at end of file.
+  // A trailing line without newline is still being written and is left for
+  // the next load.
+  public boolean readEntry(LogEntry entry) throws IOException {
+    while(position < length) {
+      if(window == null || position < windowStart || position >= windowStart + windowLength) {
+        map(position);
+      }
+
+      int start = (int) (position - windowStart);
+      int newline = start;
+
+      while(newline < windowLength && window.get(newline) != '\n') {
+        newline++;
+      }
+
+      if(newline == windowLength) {
+        if(windowStart + windowLength >= length) {
+          // incomplete last line
+          return false;
+        }
+
+        if(start == 0) {
+          Log.w("NetworkLog", "Skipping entry longer than " + WINDOW_SIZE + " bytes at " + position);
+          position += windowLength;
+          skipLine = true;
+          continue;
+        }
+
+        // line crosses the window; slide the window to its start
+        map(position);
+        continue;
+      }
+
+      position = windowStart + newline + 1;
+
+      if(newline == start || skipLine) {
+        skipLine = false;
+        continue;
+      }
+
+      if(parser.parse(window, start, newline, entry)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
@@ -6,225 +6,436 @@
 
 package com.googlecode.networklog;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.ArrayList;
+import java.io.FileInputStream;
+import java.io.IOException;
 
 import android.util.Log;
 
+// Reads the /proc/<pid>/net/{tcp,udp,tcp6,udp6} socket tables with a
+// byte-level scanner into primitive arrays, and reports only the sockets
+// added or removed since the previous snapshot.  Addresses are kept as
+// 128-bit values (IPv4 as IPv4-mapped IPv6), matching ConnectionTable.
 public class NetStat {
-  final String states[] = { "ESTBLSH",   "SYNSENT",   "SYNRECV",   "FWAIT1",   "FWAIT2",   "TMEWAIT",
-    "CLOSED",    "CLSWAIT",   "LASTACK",   "LISTEN",   "CLOSING",  "UNKNOWN"
-  };
+  public interface Listener {
+    void onConnectionAdded(Snapshot snapshot, int index);
+    void onConnectionRemoved(Snapshot snapshot, int index);
+  }
+
+  public static class Snapshot {
+    long[] srcHi, srcLo, dstHi, dstLo;
+    int[] spt, dpt, uid, proto;
+    long[] fingerprint;
+    int count;
+
+    // fingerprint -> index, open addressing (0 = empty)
+    long[] setKeys;
+    int[] setValues;
+    int setMask;
+
+    Snapshot() {
+      allocate(64);
+    }
+
+    private void allocate(int capacity) {
+      srcHi = new long[capacity];
+      srcLo = new long[capacity];
+      dstHi = new long[capacity];
+      dstLo = new long[capacity];
+      spt = new int[capacity];
+      dpt = new int[capacity];
+      uid = new int[capacity];
+      proto = new int[capacity];
+      fingerprint = new long[capacity];
+    }
+
+    private void ensureCapacity() {
+      if(count < srcHi.length) {
+        return;
+      }
+
+      int capacity = srcHi.length * 2;
+      srcHi = copyOf(srcHi, capacity);
+      srcLo = copyOf(srcLo, capacity);
+      dstHi = copyOf(dstHi, capacity);
+      dstLo = copyOf(dstLo, capacity);
+      spt = copyOf(spt, capacity);
+      dpt = copyOf(dpt, capacity);
+      uid = copyOf(uid, capacity);
+      proto = copyOf(proto, capacity);
+      fingerprint = copyOf(fingerprint, capacity);
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+      long[] copy = new long[length];
+      System.arraycopy(array, 0, copy, 0, array.length);
+      return copy;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+      int[] copy = new int[length];
+      System.arraycopy(array, 0, copy, 0, array.length);
+      return copy;
+    }
+
+    void buildSet() {
+      int capacity = 64;
+
+      while(capacity < count * 2) {
+        capacity *= 2;
+      }
+
+      if(setKeys == null || setKeys.length != capacity) {
+        setKeys = new long[capacity];
+        setValues = new int[capacity];
+      } else {
+        for(int i = 0; i < capacity; i++) {
+          setKeys[i] = 0;
+        }
+      }
+
+      setMask = capacity - 1;
+
+      for(int i = 0; i < count; i++) {
+        long key = fingerprint[i];
+        int slot = (int) (key ^ (key >>> 32)) & setMask;
+
+        while(setKeys[slot] != 0 && setKeys[slot] != key) {
+          slot = (slot + 1) & setMask;
+        }
+
+        setKeys[slot] = key;
+        setValues[slot] = i;
+      }
+    }
+
+    boolean contains(long key) {
+      if(setKeys == null) {
+        return false;
+      }
+
+      int slot = (int) (key ^ (key >>> 32)) & setMask;
+
+      while(setKeys[slot] != 0) {
+        if(setKeys[slot] == key) {
+          return true;
+        }
+        slot = (slot + 1) & setMask;
+      }
+
+      return false;
+    }
 
-  public class Connection {
-    String src;
-    String spt;
-    String dst;
-    String dpt;
-    String uid;
+    public int size() {
+      return count;
+    }
+
+    public String getSrc(int index) {
+      return formatAddress(srcHi[index], srcLo[index]);
+    }
+
+    public String getDst(int index) {
+      return formatAddress(dstHi[index], dstLo[index]);
+    }
   }
 
-  ArrayList<Connection> connections;
+  static final String[] tables = { "tcp", "udp", "tcp6", "udp6" };
+  static final int[] tableProtos = { ConnectionTable.PROTO_TCP, ConnectionTable.PROTO_UDP, ConnectionTable.PROTO_TCP, ConnectionTable.PROTO_UDP };
+
+  final String[] paths = new String[tables.length];
+  Snapshot current = new Snapshot();
+  Snapshot previous = new Snapshot();
+  byte[] data = new byte[16384];
+  long lastRefresh = 0;
+  int generation = 0;
 
   public NetStat() {
-    connections = new ArrayList<Connection>();
+    this("/proc/" + android.os.Process.myPid() + "/net");
   }
 
-  private final String getAddress(final String hexa) {
-    try {
-      final long v = Long.parseLong(hexa, 16);
-      final long adr = (v >>> 24) | (v << 24) |
-        ((v << 8) & 0x00FF0000) | ((v >> 8) & 0x0000FF00);
-      return ((adr >> 24) & 0xff) + "." + ((adr >> 16) & 0xff) + "." + ((adr >> 8) & 0xff) + "." + (adr & 0xff);
-    } catch(Exception e) {
-      Log.w("NetworkLog", e.toString(), e);
-      return "-1.-1.-1.-1";
+  // procNetDir may point at copies of the proc files
+  public NetStat(String procNetDir) {
+    for(int i = 0; i < tables.length; i++) {
+      paths[i] = procNetDir + "/" + tables[i];
     }
   }
 
-  private final String getAddress6(final String hexa) {
-    try {
-      final String ip4[] = hexa.split("0000000000000000FFFF0000");
+  // forgets the last snapshot so the next refresh reports every socket as added
+  public synchronized void reset() {
+    current.count = 0;
+    current.setKeys = null;
+  }
 
-      if(ip4.length == 2) {
-        final long v = Long.parseLong(ip4[1], 16);
-        final long adr = (v >>> 24) | (v << 24) |
-          ((v << 8) & 0x00FF0000) | ((v >> 8) & 0x0000FF00);
-        return ((adr >> 24) & 0xff) + "." + ((adr >> 16) & 0xff) + "." + ((adr >> 8) & 0xff) + "." + (adr & 0xff);
-      } else {
-        return "-2.-2.-2.-2";
+  public int getGeneration() {
+    return generation;
+  }
+
+  // Re-reads the socket tables unless they were read less than minInterval
+  // ms ago, or another thread refreshed them while this one waited (callers
+  // pass the generation they saw before blocking).  Returns true if the
+  // tables were re-read.
+  public synchronized boolean refresh(long minInterval, int seenGeneration, Listener listener) {
+    long now = System.currentTimeMillis();
+
+    if(seenGeneration != generation || now - lastRefresh < minInterval) {
+      return false;
+    }
+
+    Snapshot snapshot = previous;
+    previous = current;
+    current = snapshot;
+    current.count = 0;
+
+    for(int i = 0; i < tables.length; i++) {
+      readTable(paths[i], tableProtos[i], current);
+    }
+
+    current.buildSet();
+
+    int added = 0, removed = 0;
+
+    for(int i = 0; i < current.count; i++) {
+      if(!previous.contains(current.fingerprint[i])) {
+        added++;
+        if(listener != null) {
+          listener.onConnectionAdded(current, i);
+        }
       }
-    } catch(Exception e) {
-      Log.w("NetworkLog", e.toString(), e);
-      return "-1.-1.-1.-1";
     }
-  }
 
-  private final int getInt16(final String hexa) {
-    try {
-      return Integer.parseInt(hexa, 16);
-    } catch(Exception e) {
-      Log.w("NetworkLog", e.toString(), e);
-      return -1;
+    for(int i = 0; i < previous.count; i++) {
+      if(!current.contains(previous.fingerprint[i])) {
+        removed++;
+        if(listener != null) {
+          listener.onConnectionRemoved(previous, i);
+        }
+      }
+    }
+
+    lastRefresh = System.currentTimeMillis();
+    generation++;
+
+    if(MyLog.enabled && MyLog.level >= 5) {
+      MyLog.d(5, "[netstat] " + current.count + " sockets; " + added + " added, " + removed + " removed in " + (lastRefresh - now) + " ms");
     }
+
+    return true;
   }
 
-  public ArrayList<Connection> getConnections() {
-    connections.clear();
+  private void readTable(String path, int proto, Snapshot snapshot) {
+    FileInputStream in = null;
+    int length = 0;
+
     try {
-      BufferedReader in = new BufferedReader(new FileReader("/proc/" + android.os.Process.myPid() + "/net/tcp"));
-      String line;
+      in = new FileInputStream(path);
+      int read;
 
-      while((line = in.readLine()) != null) {
-        line = line.trim();
-        if(MyLog.enabled && MyLog.level >= 5) {
-          MyLog.d(5, "Netstat: " + line);
-        }
-        String[] fields = line.split("\\s+", 10);
-        int fieldn = 0;
+      while((read = in.read(data, length, data.length - length)) != -1) {
+        length += read;
 
-        if(MyLog.enabled && MyLog.level >= 9) {
-          for(String field : fields) {
-            MyLog.d(9, "Field " + (fieldn++) + ": [" + field + "]");
-          }
+        if(length == data.length) {
+          byte[] newData = new byte[data.length * 2];
+          System.arraycopy(data, 0, newData, 0, length);
+          data = newData;
         }
-
-        if(fields[0].equals("sl")) {
-          continue;
+      }
+    } catch(IOException e) {
+      Log.w("NetworkLog", "[netstat] Unable to read " + path + ": " + e);
+      return;
+    } finally {
+      if(in != null) {
+        try {
+          in.close();
+        } catch(IOException e) {
+          // ignored
         }
+      }
+    }
 
-        Connection connection = new Connection();
+    int pos = 0;
 
-        String src[] = fields[1].split(":", 2);
-        String dst[] = fields[2].split(":", 2);
+    while(pos < length) {
+      int end = pos;
 
-        connection.src = getAddress(src[0]);
-        connection.spt = String.valueOf(getInt16(src[1]));
-        connection.dst = getAddress(dst[0]);
-        connection.dpt = String.valueOf(getInt16(dst[1]));
-        connection.uid = fields[7];
+      while(end < length && data[end] != '\n') {
+        end++;
+      }
 
-        connections.add(connection);
+      try {
+        parseLine(pos, end, proto, snapshot);
+      } catch(RuntimeException e) {
+        Log.w("NetworkLog", "[netstat] Bad line in " + path + ": [" + new String(data, pos, end - pos) + "]");
       }
 
-      in.close();
+      pos = end + 1;
+    }
+  }
+
+  // scanner state
+  private int scanPos;
+  private int scanEnd;
+  private long scanHi, scanLo;
 
-      in = new BufferedReader(new FileReader("/proc/" + android.os.Process.myPid() + "/net/udp"));
+  private void parseLine(int start, int end, int proto, Snapshot snapshot) {
+    scanPos = start;
+    scanEnd = end;
 
-      while((line = in.readLine()) != null) {
-        line = line.trim();
-        if(MyLog.enabled && MyLog.level >= 5) {
-          MyLog.d(5, "Netstat: " + line);
-        }
-        String[] fields = line.split("\\s+", 10);
-        int fieldn = 0;
+    skipSpaces();
 
-        if(MyLog.enabled && MyLog.level >= 9) {
-          for(String field : fields) {
-            MyLog.d(9, "Field " + (fieldn++) + ": [" + field + "]");
-          }
-        }
+    // header line starts with "sl"
+    if(scanPos >= scanEnd || data[scanPos] < '0' || data[scanPos] > '9') {
+      return;
+    }
 
-        if(fields[0].equals("sl")) {
-          continue;
-        }
+    skipToken(); // sl
 
-        Connection connection = new Connection();
+    snapshot.ensureCapacity();
+    int i = snapshot.count;
 
-        String src[] = fields[1].split(":", 2);
-        String dst[] = fields[2].split(":", 2);
+    scanAddress();
+    snapshot.srcHi[i] = scanHi;
+    snapshot.srcLo[i] = scanLo;
+    snapshot.spt[i] = scanHex();
 
-        connection.src = getAddress(src[0]);
-        connection.spt = String.valueOf(getInt16(src[1]));
-        connection.dst = getAddress(dst[0]);
-        connection.dpt = String.valueOf(getInt16(dst[1]));
-        connection.uid = fields[7];
+    scanAddress();
+    snapshot.dstHi[i] = scanHi;
+    snapshot.dstLo[i] = scanLo;
+    snapshot.dpt[i] = scanHex();
 
-        connections.add(connection);
-      }
+    skipToken(); // st
+    skipToken(); // tx_queue:rx_queue
+    skipToken(); // tr:tm->when
+    skipToken(); // retrnsmt
 
-      in.close();
+    skipSpaces();
+    snapshot.uid[i] = scanDecimal();
+    snapshot.proto[i] = proto;
 
-      in = new BufferedReader(new FileReader("/proc/" + android.os.Process.myPid() + "/net/tcp6"));
+    long h = snapshot.srcHi[i] * 0x9E3779B97F4A7C15L;
+    h = (h ^ snapshot.srcLo[i]) * 0x9E3779B97F4A7C15L;
+    h = (h ^ snapshot.dstHi[i]) * 0x9E3779B97F4A7C15L;
+    h = (h ^ snapshot.dstLo[i]) * 0x9E3779B97F4A7C15L;
+    h = (h ^ ((long) snapshot.spt[i] << 16 | snapshot.dpt[i])) * 0x9E3779B97F4A7C15L;
+    h = (h ^ ((long) snapshot.uid[i] << 8 | proto)) * 0x9E3779B97F4A7C15L;
+    snapshot.fingerprint[i] = h == 0 ? 1 : h;
 
-      while((line = in.readLine()) != null) {
-        line = line.trim();
-        if(MyLog.enabled && MyLog.level >= 5) {
-          MyLog.d(5, "Netstat: " + line);
-        }
-        String[] fields = line.split("\\s+", 10);
-        int fieldn = 0;
+    snapshot.count++;
+  }
 
-        if(MyLog.enabled && MyLog.level >= 9) {
-          for(String field : fields) {
-            MyLog.d(9, "Field " + (fieldn++) + ": [" + field + "]");
-          }
-        }
+  private void skipSpaces() {
+    while(scanPos < scanEnd && data[scanPos] == ' ') {
+      scanPos++;
+    }
+  }
 
-        if(fields[0].equals("sl")) {
-          continue;
-        }
+  private void skipToken() {
+    skipSpaces();
+
+    while(scanPos < scanEnd && data[scanPos] != ' ') {
+      scanPos++;
+    }
+  }
 
-        Connection connection = new Connection();
+  // Parses "HHHHHHHH:" (IPv4) or 32 hex digits (IPv6) followed by ':'.
+  // The kernel prints each 32-bit word in host byte order (little-endian).
+  private void scanAddress() {
+    skipSpaces();
 
-        String src[] = fields[1].split(":", 2);
-        String dst[] = fields[2].split(":", 2);
+    int words = 0;
+    long hi = 0, lo = 0;
 
-        connection.src = getAddress6(src[0]);
-        connection.spt = String.valueOf(getInt16(src[1]));
-        connection.dst = getAddress6(dst[0]);
-        connection.dpt = String.valueOf(getInt16(dst[1]));
-        connection.uid = fields[7];
+    while(scanPos < scanEnd && data[scanPos] != ':') {
+      long word = 0;
 
-        connections.add(connection);
+      for(int n = 0; n < 8; n++) {
+        word = (word << 4) | hexValue(data[scanPos++]);
       }
 
-      in.close();
+      word = Integer.reverseBytes((int) word) & 0xffffffffL;
 
-      in = new BufferedReader(new FileReader("/proc/" + android.os.Process.myPid() + "/net/udp6"));
+      if(words < 2) {
+        hi = (hi << 32) | word;
+      } else {
+        lo = (lo << 32) | word;
+      }
 
-      while((line = in.readLine()) != null) {
-        line = line.trim();
-        if(MyLog.enabled && MyLog.level >= 5) {
-          MyLog.d(5, "Netstat: " + line);
-        }
-        String[] fields = line.split("\\s+", 10);
-        int fieldn = 0;
+      words++;
+    }
 
-        if(MyLog.enabled && MyLog.level >= 9) {
-          for(String field : fields) {
-            MyLog.d(9, "Field " + (fieldn++) + ": [" + field + "]");
-          }
-        }
+    if(words == 1) {
+      scanHi = 0;
+      scanLo = 0x0000ffff00000000L | hi;
+    } else if(words == 4) {
+      scanHi = hi;
+      scanLo = lo;
+    } else {
+      throw new IllegalArgumentException("bad address");
+    }
 
-        if(fields[0].equals("sl")) {
-          continue;
-        }
+    scanPos++; // ':'
+  }
 
-        Connection connection = new Connection();
+  private int scanHex() {
+    int value = 0;
 
-        String src[] = fields[1].split(":", 2);
-        String dst[] = fields[2].split(":", 2);
+    while(scanPos < scanEnd && data[scanPos] != ' ') {
+      value = (value << 4) | hexValue(data[scanPos++]);
+    }
 
-        connection.src = getAddress6(src[0]);
-        connection.spt = String.valueOf(getInt16(src[1]));
-        connection.dst = getAddress6(dst[0]);
-        connection.dpt = String.valueOf(getInt16(dst[1]));
-        connection.uid = fields[7];
+    return value;
+  }
 
-        connections.add(connection);
-      }
+  private int scanDecimal() {
+    int value = 0;
+    int digits = 0;
 
-      in.close();
-    } catch(Exception e) {
-      Log.w("NetworkLog", e.toString(), e);
+    while(scanPos < scanEnd && data[scanPos] >= '0' && data[scanPos] <= '9') {
+      value = value * 10 + (data[scanPos++] - '0');
+      digits++;
     }
 
-    return connections;
+    if(digits == 0) {
+      throw new IllegalArgumentException("expected number");
+    }
+
+    return value;
   }
-}
 
+  private static int hexValue(byte b) {
+    if(b >= '0' && b <= '9') {
+      return b - '0';
+    } else if(b >= 'A' && b <= 'F') {
+      return b - 'A' + 10;
+    } else if(b >= 'a' && b <= 'f') {
+      return b - 'a' + 10;
+    }
+    throw new IllegalArgumentException("bad hex digit " + (char) b);
+  }
+
+  // dotted quad for IPv4-mapped addresses, otherwise the kernel's %pI6 form
+  public static String formatAddress(long hi, long lo) {
+    if(hi == 0 && (lo >>> 32) == 0xffff) {
+      return ((lo >> 24) & 0xff) + "." + ((lo >> 16) & 0xff) + "." + ((lo >> 8) & 0xff) + "." + (lo & 0xff);
+    }
+
+    StringBuilder builder = new StringBuilder(39);
+
+    for(int i = 0; i < 8; i++) {
+      long word = i < 4 ? hi : lo;
+      int group = (int) (word >>> (48 - (i % 4) * 16)) & 0xffff;
+
+      if(i > 0) {
+        builder.append(':');
+      }
 
+      String hex = Integer.toHexString(group);
+
+      for(int pad = hex.length(); pad < 4; pad++) {
+        builder.append('0');
+      }
+
+      builder.append(hex);
+    }
+
+    return builder.toString();
+  }
+}
@@ -9,6 +9,7 @@ package com.googlecode.networklog;
 import android.os.Bundle;
 import android.content.Intent;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.content.ServiceConnection;
@@ -75,6 +76,7 @@ public class NetworkLog extends SherlockFragmentActivity {
   public static boolean filterPortInclude;
   public static boolean filterInterfaceInclude;
   public static boolean filterProtocolInclude;
+  public static CompiledFilter filterInclude;
 
   public static String filterTextExclude;
   public static ArrayList<String> filterTextExcludeList = new ArrayList<String>();
@@ -84,6 +86,7 @@ public class NetworkLog extends SherlockFragmentActivity {
   public static boolean filterPortExclude;
   public static boolean filterInterfaceExclude;
   public static boolean filterProtocolExclude;
+  public static CompiledFilter filterExclude;
 
   public static NetworkResolver resolver;
   public static boolean resolveHosts;
@@ -140,23 +143,45 @@ public class NetworkLog extends SherlockFragmentActivity {
     }
   };
 
-  private LogEntry entry;
+  // Entries from the service are added to the fragments' models on this
+  // thread rather than the UI thread; the fragments' updaters then refresh
+  // their views.  It lives as long as the process.
+  static HandlerThread ingestThread;
 
   class IncomingHandler extends Handler {
+    public IncomingHandler(Looper looper) {
+      super(looper);
+    }
+
     @Override
       public void handleMessage(Message msg) {
+        LogEntry entry;
+
         if(MyLog.enabled && MyLog.level >= 2) {
           MyLog.d(2, "[client] Received message: " + msg);
         }
 
         switch(msg.what) {
-          case NetworkLogService.MSG_BROADCAST_LOG_ENTRY:
-            entry = (LogEntry) msg.obj;
+          case NetworkLogService.MSG_BROADCAST_LOG_ENTRIES:
+            @SuppressWarnings("unchecked")
+            ArrayList<LogEntry> entries = (ArrayList<LogEntry>) msg.obj;
             if(MyLog.enabled && MyLog.level >= 2) {
-              MyLog.d(2, "Received entry: " + entry);
+              MyLog.d(2, "Received " + entries.size() + " entries");
+            }
+            // this thread outlives the activity; the fragments may be gone
+            LogFragment logs = logFragment;
+            AppFragment apps = appFragment;
+            if(logs == null || apps == null || !logs.isAdded() || !apps.isAdded()) {
+              if(MyLog.enabled && MyLog.level >= 2) {
+                MyLog.d(2, "Dropped " + entries.size() + " entries; fragments not attached");
+              }
+              break;
+            }
+            for(int i = 0, size = entries.size(); i < size; i++) {
+              entry = entries.get(i);
+              logs.onNewLogEntry(entry);
+              apps.onNewLogEntry(entry);
             }
-            logFragment.onNewLogEntry(entry);
-            appFragment.onNewLogEntry(entry);
             break;
 
           default:
@@ -172,7 +197,12 @@ public class NetworkLog extends SherlockFragmentActivity {
       doUnbindService();
     }
 
-    messenger = new Messenger(new IncomingHandler());
+    if(ingestThread == null) {
+      ingestThread = new HandlerThread("LogEntryIngest");
+      ingestThread.start();
+    }
+
+    messenger = new Messenger(new IncomingHandler(ingestThread.getLooper()));
     MyLog.d("Created messenger: " + messenger);
 
     MyLog.d("Binding connection to service: " + connection);
@@ -278,6 +308,7 @@ public class NetworkLog extends SherlockFragmentActivity {
     filterPortExclude = settings.getFilterPortExclude();
     filterInterfaceExclude = settings.getFilterInterfaceExclude();
     filterProtocolExclude = settings.getFilterProtocolExclude();
+    FilterUtils.compileFilters();
 
     startServiceAtStart = settings.getStartServiceAtStart();
     stopServiceAtExit = settings.getStopServiceAtExit();
@@ -408,6 +439,7 @@ public class NetworkLog extends SherlockFragmentActivity {
       } else {
         MyLog.d("Fresh run");
         resolver = new NetworkResolver();
+        resolver.loadCache(this);
 
         logFragment = (LogFragment) Fragment.instantiate(this, LogFragment.class.getName());
         appFragment = (AppFragment) Fragment.instantiate(this, AppFragment.class.getName());
@@ -491,6 +523,28 @@ public class NetworkLog extends SherlockFragmentActivity {
     {
       super.onPause();
       MyLog.d("NetworkLog onPause");
+
+      if(resolver != null) {
+        resolver.saveCache(this);
+      }
+    }
+
+  @Override
+    public void onLowMemory()
+    {
+      super.onLowMemory();
+      SeriesPyramid.Cache.releaseAll();
+    }
+
+  @Override
+    public void onTrimMemory(int level)
+    {
+      super.onTrimMemory(level);
+
+      if(level >= TRIM_MEMORY_RUNNING_LOW) {
+        // the graphs rebuild them when next shown
+        SeriesPyramid.Cache.releaseAll();
+      }
     }
 
   @Override
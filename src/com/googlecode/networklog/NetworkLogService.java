@@ -34,9 +34,6 @@ import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.List;
 import java.io.File;
-import java.io.PrintWriter;
-import java.io.FileWriter;
-import java.io.BufferedWriter;
 import java.lang.Thread;
 import java.lang.Runnable;
 
@@ -46,8 +43,8 @@ public class NetworkLogService extends Service {
   static final int MSG_REGISTER_CLIENT     = 1;
   static final int MSG_UNREGISTER_CLIENT   = 2;
   static final int MSG_UPDATE_NOTIFICATION = 3;
-  static final int MSG_BROADCAST_LOG_ENTRY = 4;
   static final int MSG_TOGGLE_FOREGROUND   = 5;
+  static final int MSG_BROADCAST_LOG_ENTRIES = 6;
   final Messenger messenger = new Messenger(new IncomingHandler(this));
   boolean has_root = false;
   boolean has_binaries = false;
@@ -113,8 +110,8 @@ public class NetworkLogService extends Service {
             }
             break;
 
-          case MSG_BROADCAST_LOG_ENTRY:
-            MyLog.d("[service] got MSG_BROADCOAST_LOG_ENTRY unexpectedly");
+          case MSG_BROADCAST_LOG_ENTRIES:
+            MyLog.d("[service] got MSG_BROADCAST_LOG_ENTRIES unexpectedly");
             break;
 
           default:
@@ -134,18 +131,26 @@ public class NetworkLogService extends Service {
       }
     }
 
-  private static HashMap<String, Integer> logEntriesMap = new HashMap<String, Integer>();
+  // max lines queued between the logger process and the parser
+  static final int LOGGER_QUEUE_CAPACITY = 4096;
+  // maps connections to uids; entries idle for 10 minutes are evicted first when full
+  private static ConnectionTable connectionTable = new ConnectionTable(8192, 10 * 60 * 1000);
   private InteractiveShell loggerShell;
   private NetworkLogger logger;
   private static String logfile = null;
-  private PrintWriter logWriter = null;
+  private volatile LogfileWriter logWriter = null;
+  private volatile RollupStore rollups = null;
+  // logfile group commit window
+  static final long LOGFILE_FLUSH_INTERVAL = 250;
+  static final int LOGFILE_FLUSH_SIZE = 64 * 1024;
   private static NotificationManager nManager;
   private static Notification notification;
   private static int notificationIcon;
   private static LogEntry entry;
   private static Boolean start_foreground = true;
   private NetStat netstat = new NetStat();
-  private FastParser parser = new FastParser();
+  private KernelLogParser parser = new KernelLogParser();
+  private LogEntry scratchEntry = new LogEntry();
 
   public void startForeground(Notification n) {
     startForeground(NOTIFICATION_ID, n);
@@ -341,7 +346,7 @@ public class NetworkLogService extends Service {
       throughputBps = NetworkLog.settings.getThroughputBps();
 
       updateLogfileString();
-      ThroughputTracker.startUpdater();
+      ThroughputTracker.startUpdater(this);
 
       nManager = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
       notification = createNotification();
@@ -431,408 +436,190 @@ public class NetworkLogService extends Service {
     return instance;
   }
 
-  public void initEntriesMap() {
-    ArrayList<NetStat.Connection> connections = netstat.getConnections();
-
-    for(NetStat.Connection connection : connections) {
-      String mapKey = connection.src + ":" + connection.spt + " -> " + connection.dst + ":" + connection.dpt;
+  // minimum ms between netstat refreshes triggered by unknown uids
+  static final long NETSTAT_REFRESH_INTERVAL = 1000;
+  private long lastEvictions = 0;
 
+  private NetStat.Listener netstatListener = new NetStat.Listener() {
+    public void onConnectionAdded(NetStat.Snapshot snapshot, int i) {
       if(MyLog.enabled && MyLog.level >= 5) {
-        MyLog.d(5, "[netstat src-dst] New entry " + connection.uid + " for [" + mapKey + "]");
+        MyLog.d(5, "[netstat] New entry " + snapshot.uid[i] + " for [" + snapshot.getSrc(i) + ":" + snapshot.spt[i] + " <-> " + snapshot.getDst(i) + ":" + snapshot.dpt[i] + "]");
       }
 
-      logEntriesMap.put(mapKey, Integer.valueOf(connection.uid));
+      connectionTable.put(snapshot.srcHi[i], snapshot.srcLo[i], snapshot.spt[i], snapshot.dstHi[i], snapshot.dstLo[i],
+          snapshot.dpt[i], snapshot.proto[i], snapshot.uid[i], System.currentTimeMillis());
+    }
 
-      mapKey = connection.dst + ":" + connection.dpt + " -> " + connection.src + ":" + connection.spt;
+    public void onConnectionRemoved(NetStat.Snapshot snapshot, int i) {
+      // left to age out of the connection table; late packets may still arrive
+    }
+  };
 
-      if(MyLog.enabled && MyLog.level >= 5) {
-        MyLog.d(5, "[netstat dst-src] New entry " + connection.uid + " for [" + mapKey + "]");
-      }
+  public void initEntriesMap() {
+    netstat.refresh(0, netstat.getGeneration(), netstatListener);
+  }
 
-      logEntriesMap.put(mapKey, Integer.valueOf(connection.uid));
+  // re-reads netstat at most once per NETSTAT_REFRESH_INTERVAL
+  public boolean refreshEntriesMap() {
+    if(connectionTable.getEvictions() != lastEvictions) {
+      // evicted sockets may still be open; have netstat report them again
+      lastEvictions = connectionTable.getEvictions();
+      netstat.reset();
     }
+
+    return netstat.refresh(NETSTAT_REFRESH_INTERVAL, netstat.getGeneration(), netstatListener);
   }
 
   public void parseResult(String result) {
     if(MyLog.enabled && MyLog.level >= 10) {
       MyLog.d(10, "--------------- parsing network entry --------------");
     }
-    int pos = 0, lastpos, thisEntry, nextEntry, newline, space;
-    String in, out, src, dst, proto, uidString;
-    int spt, dpt, len, uid;
-    parser.setLine(result.toCharArray(), result.length() - 1);
-
-    while((pos = result.indexOf("{NL}", pos)) > -1) {
-      if(MyLog.enabled && MyLog.level >= 10) {
-        MyLog.d(10, "---- got {NL} at " + pos + " ----");
-      }
-
-      pos += "{NL}".length(); // skip past "{NL}"
-
-      thisEntry = pos;
-      newline = result.indexOf("\n", pos);
-      nextEntry = result.indexOf("{NL}", pos);
-
-      if(newline == -1) {
-        newline = result.length();
-      }
-
-      if(nextEntry != -1 && nextEntry < newline) {
-        // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-        pos = newline;
-        continue;
-      }
-
-      try {
-        pos = result.indexOf("IN=", pos);
-
-        if(pos == -1 || pos > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
-
-        space = result.indexOf(" ", pos);
-
-        if(space == -1 || space > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
-
-        parser.setPos(pos + 3);
-        in = parser.getString();
-
-        pos = result.indexOf("OUT=", pos);
-
-        if(pos == -1 || pos > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
-
-        space = result.indexOf(" ", pos);
-
-        if(space == -1 || space > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
-
-        parser.setPos(pos + 4);
-        out = parser.getString();
-
-        pos = result.indexOf("SRC=", pos);
-
-        if(pos == -1 || pos > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
-
-        space = result.indexOf(" ", pos);
-
-        if(space == -1 || space > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
-
-        parser.setPos(pos + 4);
-        src = parser.getString();
-
-        pos = result.indexOf("DST=", pos);
-
-        if(pos == -1 || pos > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
-
-        space = result.indexOf(" ", pos);
-
-        if(space == -1 || space > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
-
-        parser.setPos(pos + 4);
-        dst = parser.getString();
-
-        pos = result.indexOf("LEN=", pos);
-
-        if(pos == -1 || pos > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
-
-        space = result.indexOf(" ", pos);
+    parser.setLine(result);
+    parseEntries();
+  }
 
-        if(space == -1 || space > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+  public void parseResult(char[] chars, int length) {
+    if(MyLog.enabled && MyLog.level >= 10) {
+      MyLog.d(10, "--------------- parsing network entry --------------");
+    }
+    parser.setLine(chars, length);
+    parseEntries();
+  }
 
-        parser.setPos(pos + 4);
-        len = parser.getInt();
+  private void parseEntries() {
+    while(parser.next(scratchEntry)) {
+      scratchEntry.timestamp = System.currentTimeMillis();
+      processEntry(scratchEntry);
+    }
+  }
 
-        pos = result.indexOf("PROTO=", pos);
+  public void processEntry(LogEntry parsed) {
+    String in = parsed.in, out = parsed.out, src = parsed.src, dst = parsed.dst, proto = parsed.proto;
+    String uidString = parsed.uidString;
+    int spt = parsed.spt, dpt = parsed.dpt, len = parsed.len, uid = parsed.uid;
 
-        if(pos == -1 || pos > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
-        }
+    int protoCode = ConnectionTable.getProtocolCode(proto);
+    int mapUid = connectionTable.get(src, spt, dst, dpt, protoCode, parsed.timestamp);
 
-        space = result.indexOf(" ", pos);
+    if(MyLog.enabled && MyLog.level >= 10) {
+      MyLog.d(10, "Checking entry for " + uid + " " + src + ":" + spt + " <-> " + dst + ":" + dpt + " found " + mapUid);
+    }
 
-        if(space == -1 || space > newline) {
-          // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-          pos = newline;
-          continue;
+    if(uid < 0) {
+      // Unknown uid, retrieve from connection table
+      if(mapUid < 0) {
+        // unknown or kernel-owned so far; refresh netstat (rate limited) and try again
+        if(MyLog.enabled && MyLog.level >= 9) {
+          MyLog.d(9, "Refreshing netstat ...");
         }
 
-        parser.setPos(pos + 6);
-        proto = parser.getString();
-
-        lastpos = pos;
-        pos = result.indexOf("SPT=", pos);
-
-        if(pos == -1 || pos > newline) {
-          // no SPT field, probably a broadcast packet
-          spt = 0;
-          pos = lastpos;
-        } else {
-          space = result.indexOf(" ", pos);
-
-          if(space == -1 || space > newline) {
-            // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-            pos = newline;
-            continue;
-          }
-
-          parser.setPos(pos + 4);
-          spt = parser.getInt();
+        if(refreshEntriesMap()) {
+          mapUid = connectionTable.get(src, spt, dst, dpt, protoCode, parsed.timestamp);
         }
+      }
 
-        lastpos = pos;
-        pos = result.indexOf("DPT=", pos);
-
-        if(pos == -1 || pos > newline) {
-          // no DPT field, probably a broadcast packet
-          dpt = 0;
-          pos = lastpos;
-        } else {
-          space = result.indexOf(" ", pos);
-
-          if(space == -1 || space > newline) {
-            // Log.w("NetworkLog", "Skipping corrupted entry [" + result.substring(thisEntry, newline) + "]");
-            pos = newline;
-            continue;
-          }
-
-          parser.setPos(pos + 4);
-          dpt = parser.getInt();
+      if(mapUid == ConnectionTable.NOT_FOUND) {
+        // remember the kernel entry so netstat isn't refreshed for every packet of this flow
+        if(MyLog.enabled && MyLog.level >= 9) {
+          MyLog.d(9, "New kernel entry " + uid + " for [" + src + ":" + spt + " <-> " + dst + ":" + dpt + "]");
         }
-
-        lastpos = pos;
-        pos = result.indexOf("UID=", pos);
-
-        if(pos == -1 || pos > newline) {
-          uid = -1;
-          uidString = "-1";
-          pos = lastpos;
-        } else {
-          parser.setPos(pos + 4);
-          uid = parser.getInt();
-          parser.setPos(pos + 4);
-          uidString = parser.getString();
+        connectionTable.put(src, spt, dst, dpt, protoCode, uid, parsed.timestamp);
+      } else if(mapUid >= 0) {
+        if(MyLog.enabled && MyLog.level >= 9) {
+          MyLog.d(9, "Reassigning kernel packet " + uid + " to " + mapUid);
         }
-      } catch(Exception e) {
-        Log.e("NetworkLog", "Bad data for: [" + result.substring(thisEntry, newline) + "]", e);
-        pos = newline;
-        continue;
+        uid = mapUid;
+        uidString = StringPool.get(mapUid);
       }
-
+    } else if(mapUid != uid) {
       if(MyLog.enabled && MyLog.level >= 9) {
-        MyLog.d(9, "Setting map key: src=[" + src + "] spt=" + spt + " dst=[" + dst + "] dpt=" + dpt);
+        MyLog.d(9, "Updating uid " + uid + " in connection table for [" + src + ":" + spt + " <-> " + dst + ":" + dpt + "]");
       }
+      connectionTable.put(src, spt, dst, dpt, protoCode, uid, parsed.timestamp);
+    }
 
-      String srcDstMapKey = src + ":" + spt + "->" + dst + ":" + dpt;
-      String dstSrcMapKey = dst + ":" + dpt + "->" + src + ":" + spt;
-
-      if(MyLog.enabled && MyLog.level >= 10) {
-        MyLog.d(10, "Checking entry for " + uid + " " + srcDstMapKey + " and " + dstSrcMapKey);
-      }
-
-      Integer srcDstMapUid = logEntriesMap.get(srcDstMapKey);
-      Integer dstSrcMapUid = logEntriesMap.get(dstSrcMapKey);
-
-      if(uid < 0) {
-        // Unknown uid, retrieve from entries map
-        if(MyLog.enabled && MyLog.level >= 9) {
-          MyLog.d(9, "Unknown uid");
-        }
-
-        if(srcDstMapUid == null || dstSrcMapUid == null) {
-          // refresh netstat and try again
-          if(MyLog.enabled && MyLog.level >= 9) {
-            MyLog.d(9, "Refreshing netstat ...");
-          }
-          initEntriesMap();
-          srcDstMapUid = logEntriesMap.get(srcDstMapKey);
-          dstSrcMapUid = logEntriesMap.get(dstSrcMapKey);
-        }
+    entry = new LogEntry();
+    entry.uid = uid;
+    entry.uidString = uidString;
+    entry.in = in;
+    entry.out = out;
+    entry.src = src;
+    entry.spt = spt;
+    entry.dst = dst;
+    entry.dpt = dpt;
+    entry.proto = proto;
+    entry.len = len;
+    entry.timestamp = parsed.timestamp;
 
-        if(srcDstMapUid == null) {
-          if(MyLog.enabled && MyLog.level >= 9) {
-            MyLog.d(9, "[src-dst] No entry uid for " + uid + " [" + srcDstMapKey + "]");
-          }
+    if(MyLog.enabled && MyLog.level >= 10) {
+      MyLog.d(10, "+++ entry: (" + entry.uid + ") in=" + entry.in + " out=" + entry.out + " " + entry.src + ":" + entry.spt + " -> " + entry.dst + ":" + entry.dpt + " proto=" + entry.proto + " len=" + entry.len);
+    }
 
-          if(uid == -1) {
-            if(dstSrcMapUid != null) {
-              if(MyLog.enabled && MyLog.level >= 9) {
-                MyLog.d(9, "[dst-src] Reassigning kernel packet -1 to " + dstSrcMapUid);
-              }
-              uid = dstSrcMapUid;
-              uidString = StringPool.get(dstSrcMapUid);
-            } else {
-              if(MyLog.enabled && MyLog.level >= 9) {
-                MyLog.d(9, "[src-dst] New kernel entry -1 for [" + srcDstMapKey + "]");
-              }
-              srcDstMapUid = uid;
-              logEntriesMap.put(srcDstMapKey, srcDstMapUid);
-            }
-          } else {
-            if(MyLog.enabled && MyLog.level >= 9) {
-              MyLog.d(9, "[src-dst] New entry " + uid + " for [" + srcDstMapKey + "]");
-            }
-            srcDstMapUid = uid;
-            logEntriesMap.put(srcDstMapKey, srcDstMapUid);
-          }
-        } else {
-          if(MyLog.enabled && MyLog.level >= 9) {
-            MyLog.d(9, "[src-dst] Found entry uid " + srcDstMapUid + " for " + uid + " [" + srcDstMapKey + "]");
-          }
-          uid = srcDstMapUid;
-          uidString = StringPool.get(srcDstMapUid);
-        }
+    queueEntry(entry);
+  }
 
-        if(dstSrcMapUid == null) {
-          if(MyLog.enabled && MyLog.level >= 9) {
-            MyLog.d(9, "[dst-src] No entry uid for " + uid + " [" + dstSrcMapKey + "]");
-          }
+  // entries are handed downstream in batches of up to BATCH_SIZE entries or
+  // BATCH_INTERVAL ms, whichever comes first
+  static final int BATCH_SIZE = 256;
+  static final long BATCH_INTERVAL = 50;
+  private ArrayList<LogEntry> batch = new ArrayList<LogEntry>(BATCH_SIZE);
+  private long batchStartTime;
 
-          if(uid == -1) {
-            if(srcDstMapUid != null) {
-              if(MyLog.enabled && MyLog.level >= 9) {
-                MyLog.d(9, "[src-dst] Reassigning kernel packet -1 to " + srcDstMapUid);
-              }
-              uid = srcDstMapUid;
-              uidString = StringPool.get(srcDstMapUid);
-            } else {
-              if(MyLog.enabled && MyLog.level >= 9) {
-                MyLog.d(9, "[dst-src] New kernel entry -1 for [" + dstSrcMapKey + "]");
-              }
-              dstSrcMapUid = uid;
-              logEntriesMap.put(dstSrcMapKey, dstSrcMapUid);
-            }
-          } else {
-            if(MyLog.enabled && MyLog.level >= 9) {
-              MyLog.d(9, "[dst-src] New entry " + uid + " for [" + dstSrcMapKey + "]");
-            }
-            dstSrcMapUid = uid;
-            logEntriesMap.put(dstSrcMapKey, dstSrcMapUid);
-          }
-        } else {
-          if(MyLog.enabled && MyLog.level >= 9) {
-            MyLog.d(9, "[dst-src] Found entry uid " + dstSrcMapUid + " for " + uid + " [" + dstSrcMapKey + "]");
-          }
-          uid = dstSrcMapUid;
-          uidString = StringPool.get(dstSrcMapUid);
-        }
-      } else {
-        if(MyLog.enabled && MyLog.level >= 9) {
-          MyLog.d(9, "Known uid");
-        }
+  void queueEntry(LogEntry entry) {
+    if(!entry.isValid()) {
+      return;
+    }
 
-        if(srcDstMapUid == null || dstSrcMapUid == null || srcDstMapUid != uid || dstSrcMapUid != uid) {
-          if(MyLog.enabled && MyLog.level >= 9) {
-            MyLog.d(9, "Updating uid " + uid + " to netstat map for " + srcDstMapKey + " and " + dstSrcMapKey);
-          }
-          logEntriesMap.put(srcDstMapKey, uid);
-          logEntriesMap.put(dstSrcMapKey, uid);
-        }
-      }
+    if(batch.isEmpty()) {
+      batchStartTime = System.currentTimeMillis();
+    }
 
-      entry = new LogEntry();
-      entry.uid = uid;
-      entry.uidString = uidString;
-      entry.in = in;
-      entry.out = out;
-      entry.src = src;
-      entry.spt = spt;
-      entry.dst = dst;
-      entry.dpt = dpt;
-      entry.proto = proto;
-      entry.len = len;
-      entry.timestamp = System.currentTimeMillis();
-
-      if(MyLog.enabled && MyLog.level >= 10) {
-        MyLog.d(10, "+++ entry: (" + entry.uid + ") in=" + entry.in + " out=" + entry.out + " " + entry.src + ":" + entry.spt + " -> " + entry.dst + ":" + entry.dpt + " proto=" + entry.proto + " len=" + entry.len);
-      }
+    batch.add(entry);
 
-      notifyNewEntry(entry);
+    if(batch.size() >= BATCH_SIZE || System.currentTimeMillis() - batchStartTime >= BATCH_INTERVAL) {
+      flushBatch();
     }
   }
 
-  private static ApplicationsTracker.AppEntry appEntry;
-
-  public void notifyNewEntry(LogEntry entry) {
-    appEntry = ApplicationsTracker.uidMap.get(entry.uidString);
-
-    // check if logfile needs to be opened and that external storage is available
-    if(logWriter == null) {
-      if(android.os.Environment.getExternalStorageState().equals(android.os.Environment.MEDIA_MOUNTED)) {
-        try {
-          logWriter = new PrintWriter(new BufferedWriter(new FileWriter(logfile, true)), true);
-          Log.d("NetworkLog", "Opened " + logfile + " for logging");
-        } catch(final Exception e) {
-          Log.e("NetworkLog", "Exception opening logfile [" + logfile +"]", e);
-          handler.post(new Runnable() {
-            public void run() {
-              SysUtils.showError(context, getString(R.string.error_default_title), getString(R.string.error_openlogfile) + e.getMessage());
-            }
-          });
-          return;
-        }
-      } else {
-        Log.w("NetworkLog", "External storage " + logfile + " not available");
-      }
+  // ms until the pending batch is due, or -1 if there is none
+  long getBatchTimeRemaining() {
+    if(batch.isEmpty()) {
+      return -1;
     }
 
-    if(!entry.isValid()) {
+    return Math.max(0, batchStartTime + BATCH_INTERVAL - System.currentTimeMillis());
+  }
+
+  void flushBatch() {
+    if(batch.isEmpty()) {
       return;
     }
 
-    // log entry to logfile
-    if(logWriter != null) {
-      logWriter.println(entry.timestamp + "," + entry.in + "," + entry.out + "," + entry.uid + "," + entry.src + "," + entry.spt + "," + entry.dst + "," + entry.dpt + "," + entry.len + "," + entry.proto);
+    // clients consume the list asynchronously, so start a new one
+    ArrayList<LogEntry> entries = batch;
+    batch = new ArrayList<LogEntry>(BATCH_SIZE);
+    notifyNewEntries(entries);
+  }
+
+  public void notifyNewEntries(ArrayList<LogEntry> entries) {
+    int size = entries.size();
+
+    // log entries to logfile; stopLogging() may clear logWriter concurrently
+    LogfileWriter writer = logWriter;
+    if(writer != null) {
+      writer.write(entries);
     }
 
     if(MyLog.enabled && MyLog.level >= 5) {
-      MyLog.d(5, "[service] notifyNewEntry: clients: " + clients.size());
+      MyLog.d(5, "[service] notifyNewEntries: " + size + " entries; clients: " + clients.size());
     }
 
     for(int i = clients.size() - 1; i >= 0; i--) {
       try {
         if(MyLog.enabled && MyLog.level >= 5) {
-          MyLog.d(5, "[service] Sending entry to " + clients.get(i));
+          MyLog.d(5, "[service] Sending entries to " + clients.get(i));
         }
-        clients.get(i).send(Message.obtain(null, MSG_BROADCAST_LOG_ENTRY, entry));
+        clients.get(i).send(Message.obtain(null, MSG_BROADCAST_LOG_ENTRIES, entries));
       } catch(RemoteException e) {
         // client dead
         MyLog.d("[service] Dead client " + clients.get(i));
@@ -840,7 +627,12 @@ public class NetworkLogService extends Service {
       }
     }
 
-    ThroughputTracker.updateEntry(entry);
+    RollupStore store = rollups;
+    if(store != null) {
+      store.add(entries);
+    }
+
+    ThroughputTracker.updateEntries(entries);
   }
 
   public void stopLogger() {
@@ -849,9 +641,39 @@ public class NetworkLogService extends Service {
     }
   }
 
+  public void openLogfile() {
+    if(logWriter == null) {
+      logWriter = new LogfileWriter(logfile, LOGFILE_FLUSH_INTERVAL, LOGFILE_FLUSH_SIZE,
+          NetworkLog.settings.getLogfileBinary(), new LogfileWriter.ErrorListener() {
+        public void onOpenError(String path, final Exception e) {
+          if(handler == null) {
+            return;
+          }
+
+          handler.post(new Runnable() {
+            public void run() {
+              SysUtils.showError(context, getString(R.string.error_default_title), getString(R.string.error_openlogfile) + e.getMessage());
+            }
+          });
+        }
+      });
+      logWriter.start();
+    }
+  }
+
+  // seals the current logfile segment so it can be cleared while logging continues
+  public void rotateLogfile() {
+    LogfileWriter writer = logWriter;
+
+    if(writer != null) {
+      writer.rotate(5000);
+    }
+  }
+
+  // writes out everything queued so far before closing
   public void closeLogfile() {
     if(logWriter != null) {
-      logWriter.close();
+      logWriter.stop();
       logWriter = null;
     }
   }
@@ -892,6 +714,7 @@ public class NetworkLogService extends Service {
 
     if(loggerShell == null) {
       loggerShell = new InteractiveShell("su", "LoggerShell");
+      loggerShell.setOutputBuffer(LOGGER_QUEUE_CAPACITY, LineRingBuffer.DROP_OLDEST);
       loggerShell.start();
 
       if(loggerShell.hasError()) {
@@ -958,6 +781,11 @@ public class NetworkLogService extends Service {
       return false;
     }
 
+    openLogfile();
+
+    rollups = RollupStore.open(logfile);
+    rollups.rebuildIfMissing(logfile);
+
     logger = new NetworkLogger();
     new Thread(logger, "NetworkLogger").start();
 
@@ -973,6 +801,12 @@ public class NetworkLogService extends Service {
     stopWatchingExternalStorage();
     stopLogger();
     closeLogfile();
+
+    if(rollups != null) {
+      rollups.save();
+      rollups = null;
+    }
+
     killLoggerCommand();
   }
 
@@ -985,34 +819,48 @@ public class NetworkLogService extends Service {
 
     public void run() {
       Log.d("NetworkLog", "Network logger " + this + " starting");
-      String result;
+      CharArray line = new CharArray(512);
+      int length;
+      long timeout;
       running = true;
 
       while(true) {
         while(running && loggerShell.checkForExit() == false) {
-          if(loggerShell.stdoutAvailable()) {
-            result = loggerShell.readLine();
-          } else {
-            try {
-              Thread.sleep(500);
-            }
-            catch(Exception e) {
-              Log.d("NetworkLog", "NetworkLogger exception while sleeping", e);
-            }
-
-            continue;
-          }
+          // blocks until a line arrives or the pending batch is due
+          timeout = getBatchTimeRemaining();
+          length = loggerShell.readLine(line, timeout == -1 ? 500 : timeout);
 
           if(running == false) {
             break;
           }
 
-          if(result == null) {
-            Log.d("NetworkLog", "Network logger " + this + " read null; exiting");
+          if(length == InteractiveShell.READ_TIMEOUT) {
+            if(getBatchTimeRemaining() == 0) {
+              flushBatch();
+            }
+            continue;
+          }
+
+          if(length == InteractiveShell.READ_EOF) {
+            Log.d("NetworkLog", "Network logger " + this + " read EOF; exiting");
             break;
           }
 
-          parseResult(result);
+          parseResult(line.getValue(), length);
+        }
+
+        if(running) {
+          flushBatch();
+        } else {
+          // logfile is already closed by stopLogging()
+          batch.clear();
+        }
+
+        InteractiveShell shell = loggerShell;
+        LineRingBuffer buffer = shell == null ? null : shell.getOutputBuffer();
+        if(buffer != null) {
+          Log.d("NetworkLog", "Network logger " + this + " queue stats: lines=" + buffer.getTotal()
+              + " max depth=" + buffer.getMaxDepth() + "/" + buffer.getCapacity() + " dropped=" + buffer.getDropped());
         }
 
         if(running != false) {
@@ -1045,7 +893,7 @@ public class NetworkLogService extends Service {
       if(file == null) {
         file = NetworkLog.settings.getLogFile();
       }
-      logfileString = StringUtils.formatToBytes(new File(file).length()) + "B";
+      logfileString = StringUtils.formatToBytes(new LogfileStore(file).getSize()) + "B";
     } catch(Exception e) {
       logfileString = context.getResources().getString(R.string.logfile_bad) + e.getMessage();
     }
@@ -1066,8 +914,7 @@ public class NetworkLogService extends Service {
       // internal storage not mounted
       if(logWriter != null) {
         MyLog.d("Stopping logfile logging");
-        logWriter.close();
-        logWriter = null;
+        logWriter.closeFile();
       }
     }
   }
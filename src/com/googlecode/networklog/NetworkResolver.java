@@ -6,20 +6,91 @@
 
 package com.googlecode.networklog;
 
+import android.content.Context;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
 import java.net.InetAddress;
 import java.lang.Runnable;
 
+// Services, protocols and reverse lookups of addresses.  Addresses are
+// resolved by a small pool of worker threads from a bounded queue; rows on
+// screen (requests with an updater) go ahead of the others.  Results,
+// including failed lookups, are kept in an LRU cache until they expire and
+// can be saved to and loaded from disk.
 public class NetworkResolver {
+  // reverse lookup run by the workers; replaceable for testing
+  public interface HostLookup {
+    // the host name, or the address itself if it has none
+    public String lookup(String address) throws Exception;
+  }
+
+  public static final HostLookup INET_ADDRESS_LOOKUP = new HostLookup() {
+    public String lookup(String address) throws Exception {
+      return InetAddress.getByName(address).getHostName();
+    }
+  };
+
+  static final int MAX_WORKERS = 4;
+  static final long WORKER_IDLE_TIMEOUT = 60 * 1000;
+  static final int MAX_QUEUED = 256;
+  static final int MAX_CACHED = 4096;
+  static final long RESOLVED_TTL = 24 * 60 * 60 * 1000L;
+  static final long UNRESOLVED_TTL = 10 * 60 * 1000L;
+  static final int CACHE_VERSION = 1;
+
+  private static class CachedHost {
+    // the address itself if it has no name
+    final String name;
+    final long expires;
+
+    CachedHost(String name, long expires) {
+      this.name = name;
+      this.expires = expires;
+    }
+  }
+
   final HashMap<String, String> serviceMap = new HashMap<String, String>();
   final HashMap<String, String> protocolMap = new HashMap<String, String>();
-  final HashMap<String, String> resolvedHostMap = new HashMap<String, String>();
-  final HashMap<String, Object> resolvingHostMap = new HashMap<String, Object>();
-  final HashMap<String, ArrayList<NetworkResolverUpdater>> hostUpdatersMap = new HashMap<String, ArrayList<NetworkResolverUpdater>>();
+
+  // guards everything below
+  private final Object lock = new Object();
+  // in access order, for LRU eviction
+  private final LinkedHashMap<String, CachedHost> resolvedHostMap = new LinkedHashMap<String, CachedHost>(256, 0.75f, true) {
+    @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedHost> eldest) {
+        return size() > MAX_CACHED;
+      }
+  };
+  // queued or being resolved
+  private final HashSet<String> resolvingHosts = new HashSet<String>();
+  // newest first
+  private final LinkedList<String> visibleQueue = new LinkedList<String>();
+  // oldest first
+  private final LinkedList<String> backgroundQueue = new LinkedList<String>();
+  private final HashMap<String, ArrayList<NetworkResolverUpdater>> hostUpdatersMap = new HashMap<String, ArrayList<NetworkResolverUpdater>>();
+  private HostLookup hostLookup = INET_ADDRESS_LOOKUP;
+  // lowered for testing
+  int maxWorkers = MAX_WORKERS;
+  private int workers = 0;
+  private int workersStarted = 0;
+  private boolean cacheIsDirty = false;
+  // copy of the cache waiting for the saver thread, which runs one at a time
+  private ArrayList<String> savedAddresses;
+  private ArrayList<CachedHost> savedHosts;
+  private boolean cacheSaverRunning = false;
 
   public NetworkResolver() {
     serviceMap.put("1", "TCPMUX");
@@ -313,22 +384,36 @@ public class NetworkResolver {
     protocolMap.put("140", "SHIM6");
   }
 
+  public void setHostLookup(HostLookup lookup) {
+    synchronized(lock) {
+      hostLookup = lookup;
+    }
+  }
+
+  // the cached name, even if expired, without queueing a lookup
   public String getResolvedAddress(final String address) {
-    return resolvedHostMap.get(address);
+    synchronized(lock) {
+      CachedHost host = resolvedHostMap.get(address);
+      return host == null ? null : host.name;
+    }
   }
 
   public String resolveAddress(final String address) {
     return resolveAddress(address, null);
   }
 
+  // Returns the cached name, or null if there is none yet.  Otherwise the
+  // address is queued, and updater, if any, is posted once it is resolved.
+  // An expired name is still returned while it is refreshed.
   public String resolveAddress(final String address, final NetworkResolverUpdater updater) {
-    String resolved;
-    synchronized(resolvedHostMap) {
-      resolved = resolvedHostMap.get(address);
-    }
+    synchronized(lock) {
+      CachedHost host = resolvedHostMap.get(address);
 
-    if(resolved == null && updater != null) {
-      synchronized(hostUpdatersMap) {
+      if(host != null && host.expires > now()) {
+        return host.name;
+      }
+
+      if(host == null && updater != null) {
         ArrayList<NetworkResolverUpdater> updaters = hostUpdatersMap.get(address);
         if(updaters == null) {
           updaters = new ArrayList<NetworkResolverUpdater>();
@@ -336,66 +421,258 @@ public class NetworkResolver {
         }
         updaters.add(updater);
       }
-    }
 
-    Object resolving;
-    synchronized(resolvingHostMap) {
-      resolving = resolvingHostMap.get(address);
+      queue(address, updater != null);
+      return host == null ? null : host.name;
     }
+  }
 
-    if(resolving != null) {
-      return null;
+  // caller holds lock
+  private void queue(String address, boolean visible) {
+    if(resolvingHosts.contains(address)) {
+      if(visible && backgroundQueue.remove(address)) {
+        visibleQueue.addFirst(address);
+      }
+      return;
     }
 
-    if(resolved == null) {
-      synchronized(resolvingHostMap) {
-        resolvingHostMap.put(address, address);
+    resolvingHosts.add(address);
+
+    if(visible) {
+      visibleQueue.addFirst(address);
+
+      if(visibleQueue.size() > MAX_QUEUED) {
+        // scrolled out of view long ago; asked for again when shown
+        drop(visibleQueue.removeLast());
       }
+    } else {
+      backgroundQueue.addLast(address);
 
-      new Thread(new Runnable() {
-        public void run() {
-          try {
-            if(MyLog.enabled && MyLog.level >= 1) {
-              MyLog.d(1, "Resolving " + address);
-            }
+      if(backgroundQueue.size() > MAX_QUEUED) {
+        drop(backgroundQueue.removeFirst());
+      }
+    }
 
-            InetAddress inetAddress = InetAddress.getByName(address);
-            String resolved = inetAddress.getHostName();
-            
-            synchronized(resolvedHostMap) {
-              resolvedHostMap.put(address, resolved);
-            }
+    lock.notify();
+
+    if(workers < maxWorkers && workers < visibleQueue.size() + backgroundQueue.size()) {
+      workers++;
+      new Thread(new Worker(), "NetResolv-" + ++workersStarted).start();
+    }
+  }
+
+  // caller holds lock
+  private void drop(String address) {
+    resolvingHosts.remove(address);
+    hostUpdatersMap.remove(address);
+  }
 
-            synchronized(resolvingHostMap) {
-              resolvingHostMap.remove(address);
+  private class Worker implements Runnable {
+    public void run() {
+      while(true) {
+        String address;
+        HostLookup lookup;
+
+        synchronized(lock) {
+          if(visibleQueue.isEmpty() && backgroundQueue.isEmpty()) {
+            try {
+              lock.wait(WORKER_IDLE_TIMEOUT);
+            } catch(InterruptedException e) {
+              // exit below if still idle
             }
 
-            if(MyLog.enabled && MyLog.level >= 1) {
-              MyLog.d(1, "Resolved " + address + " to " + resolved);
+            if(visibleQueue.isEmpty() && backgroundQueue.isEmpty()) {
+              workers--;
+              return;
             }
+          }
+
+          address = visibleQueue.isEmpty() ? backgroundQueue.removeFirst() : visibleQueue.removeFirst();
+          lookup = hostLookup;
+        }
+
+        resolve(address, lookup);
+      }
+    }
+  }
+
+  private void resolve(String address, HostLookup lookup) {
+    if(MyLog.enabled && MyLog.level >= 1) {
+      MyLog.d(1, "Resolving " + address);
+    }
+
+    String resolved = null;
+
+    try {
+      resolved = lookup.lookup(address);
+    } catch(Exception e) {
+      Log.d("NetworkLog", e.toString(), e);
+    }
+
+    long ttl = RESOLVED_TTL;
+
+    if(resolved == null || resolved.equals(address)) {
+      resolved = address;
+      ttl = UNRESOLVED_TTL;
+    }
+
+    if(MyLog.enabled && MyLog.level >= 1) {
+      MyLog.d(1, "Resolved " + address + " to " + resolved);
+    }
+
+    ArrayList<NetworkResolverUpdater> updaters;
 
-            synchronized(hostUpdatersMap) {
-              ArrayList<NetworkResolverUpdater> updaters = hostUpdatersMap.get(address);
-              if(updaters != null) {
-                Iterator<NetworkResolverUpdater> iterator = updaters.iterator();
-                while(iterator.hasNext()) {
-                  NetworkResolverUpdater update = iterator.next();
-                  update.setResolved(resolved);
-                  NetworkLog.handler.postDelayed(update, 500);
-                }
-                updaters.clear();
-                hostUpdatersMap.remove(address);
-              }
+    synchronized(lock) {
+      resolvedHostMap.put(address, new CachedHost(resolved, now() + ttl));
+      resolvingHosts.remove(address);
+      updaters = hostUpdatersMap.remove(address);
+      cacheIsDirty = true;
+    }
+
+    if(updaters != null) {
+      for(NetworkResolverUpdater update : updaters) {
+        update.setResolved(resolved);
+        NetworkLog.handler.postDelayed(update, 500);
+      }
+    }
+  }
+
+  // replaceable for testing
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  private static File getCacheFile(Context context) {
+    return new File(context.getDir("data", Context.MODE_PRIVATE), "hostnames.cache");
+  }
+
+  public void loadCache(Context context) {
+    File file = getCacheFile(context);
+
+    if(!file.exists()) {
+      return;
+    }
+
+    DataInputStream in = null;
+
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+      if(in.readInt() != CACHE_VERSION) {
+        return;
+      }
+
+      int count = in.readInt();
+      long now = now();
+
+      synchronized(lock) {
+        for(int i = 0; i < count; i++) {
+          String address = in.readUTF();
+          String name = in.readUTF();
+          long expires = in.readLong();
+
+          if(expires > now && !resolvedHostMap.containsKey(address)) {
+            resolvedHostMap.put(StringPool.get(address), new CachedHost(name, expires));
+          }
+        }
+      }
+    } catch(Exception e) {
+      Log.w("NetworkLog", "Exception loading host name cache", e);
+    } finally {
+      if(in != null) {
+        try {
+          in.close();
+        } catch(Exception e) {
+          // ignored
+        }
+      }
+    }
+  }
+
+  // writes the cache in the background if it changed
+  public void saveCache(Context context) {
+    final File file = getCacheFile(context);
+
+    synchronized(lock) {
+      if(!cacheIsDirty) {
+        return;
+      }
+
+      cacheIsDirty = false;
+      savedAddresses = new ArrayList<String>(resolvedHostMap.keySet());
+      savedHosts = new ArrayList<CachedHost>(resolvedHostMap.values());
+
+      if(cacheSaverRunning) {
+        // the running saver writes the new copy when it is done
+        return;
+      }
+
+      cacheSaverRunning = true;
+    }
+
+    new Thread(new Runnable() {
+      public void run() {
+        while(true) {
+          ArrayList<String> addresses;
+          ArrayList<CachedHost> hosts;
+
+          synchronized(lock) {
+            if(savedAddresses == null) {
+              cacheSaverRunning = false;
+              return;
             }
-          } catch(Exception e) {
-            Log.d("NetworkLog", e.toString(), e);
+
+            addresses = savedAddresses;
+            hosts = savedHosts;
+            savedAddresses = null;
+            savedHosts = null;
           }
+
+          writeCache(file, addresses, hosts);
         }
-      }, "NetResolv:" + address).start();
+      }
+    }, "NetResolvSave").start();
+  }
 
-      return null;
-    } else {
-      return resolved;
+  // writes a temporary file and renames it over the cache, so a reader
+  // never sees a partly written cache
+  private static void writeCache(File file, ArrayList<String> addresses, ArrayList<CachedHost> hosts) {
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    boolean written = false;
+
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeInt(CACHE_VERSION);
+      out.writeInt(addresses.size());
+
+      for(int i = 0; i < addresses.size(); i++) {
+        out.writeUTF(addresses.get(i));
+        out.writeUTF(hosts.get(i).name);
+        out.writeLong(hosts.get(i).expires);
+      }
+
+      out.close();
+      out = null;
+      written = true;
+    } catch(Exception e) {
+      Log.w("NetworkLog", "Exception saving host name cache", e);
+    } finally {
+      if(out != null) {
+        try {
+          out.close();
+        } catch(Exception e) {
+          // ignored
+        }
+      }
+    }
+
+    if(!written || !tmp.renameTo(file)) {
+      if(written) {
+        Log.w("NetworkLog", "Failed to rename " + tmp + " to " + file);
+      }
+
+      tmp.delete();
     }
   }
 
@@ -14,7 +14,6 @@ import android.graphics.drawable.shapes.RectShape;
 import android.graphics.drawable.ShapeDrawable;
 import android.util.Log;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -31,185 +30,150 @@ public class OverallAppTimelineGraph extends GraphActivity
       buildSeries(interval, viewsize);
     }
 
-  public void buildSeries(double timeFrameSize, double viewSize) {
-    if(instanceData != null) {
-      graphView.graphSeries = instanceData.graphSeries;
-    } else {
-      HashMap<Integer, ArrayList<PacketGraphItem>> appMap = new HashMap<Integer, ArrayList<PacketGraphItem>>();
-      HashMap<Integer, String> uidNameMap = new HashMap<Integer, String>();
-      ArrayList<PacketGraphItem> packetList;
+  // series of the shown log entries by uid, kept between graphs
+  private static class AppPyramids extends SeriesPyramid.Cache<Integer> {
+    final HashMap<Integer, String> names = new HashMap<Integer, String>();
 
-      graphView.graphSeries.clear();
+    protected Integer key(LogFragment.ListItem item) {
+      Integer uid = item.app.uid;
 
-      if(NetworkLog.logFragment == null || NetworkLog.logFragment.listData == null || NetworkLog.logFragment.listData.size() == 0) {
-        SysUtils.showError(this, getString(R.string.graph_error_nodata_title), getString(R.string.graph_error_nodata_text));
-        finish();
-        return;
+      if(!names.containsKey(uid)) {
+        names.put(uid, "(" + uid + ") " + item.app.name);
       }
 
-      synchronized(NetworkLog.logFragment.listData) {
-        for(LogFragment.ListItem item : NetworkLog.logFragment.listData) {
-          packetList = appMap.get(item.app.uid);
+      return uid;
+    }
 
-          if(packetList == null) {
-            packetList = new ArrayList<PacketGraphItem>();
-            appMap.put(item.app.uid, packetList);
-            uidNameMap.put(item.app.uid, "(" + item.app.uid + ") " + item.app.name);
-          }
+    protected void reset() {
+      super.reset();
+      names.clear();
+    }
+  }
 
-          packetList.add(new PacketGraphItem(item.timestamp, item.len));
-        }
-      }
+  private static final AppPyramids pyramids = new AppPyramids();
 
-      if(appMap.size() == 0) {
-        SysUtils.showError(this, getString(R.string.graph_error_nodata_title), getString(R.string.graph_error_nodata_text));
-        finish();
-        return;
-      }
+  public void buildSeries(final double timeFrameSize, final double viewSize) {
+    newBuild();
 
-      int color = 0;
-      float density = getResources().getDisplayMetrics().density;
-      Shape rect = new RectShape();
-      int intrinsicLength = (int)(18 * (density + 0.5));
-      int uid;
-      for(Map.Entry<Integer, ArrayList<PacketGraphItem>> entry : appMap.entrySet()) {
-        uid = entry.getKey();
-        packetList = entry.getValue();
-
-        if(MyLog.enabled) {
-          MyLog.d("number of packets for " + uid + ": " + packetList.size());
-        }
-        ArrayList<PacketGraphItem> graphData = new ArrayList<PacketGraphItem>();
+    if(instanceData != null) {
+      graphView.graphSeries = instanceData.graphSeries;
+      showViewport(viewSize);
+      return;
+    }
 
-        double nextTimeFrame = 0;
-        double frameLen = 1; // len for this time frame
+    graphView.graphSeries.clear();
 
-        for(PacketGraphItem data : packetList) {
-          if(nextTimeFrame == 0) {
-            // first  plot
-            graphData.add(new PacketGraphItem(data.timestamp - 1, 1));
-            graphData.add(new PacketGraphItem(data.timestamp, data.len));
+    final int level = RollupStore.levelFor((long) timeFrameSize);
 
-            // set up first time frame
-            nextTimeFrame = data.timestamp + timeFrameSize;
-            frameLen = data.len;
+    if(level >= 0 && NetworkLog.filterTextInclude.length() == 0 && NetworkLog.filterTextExclude.length() == 0) {
+      // unfiltered totals can be read from the rollups, as far back as the
+      // logfile goes
+      final String logfile = NetworkLog.settings.getLogFile();
+      final HashMap<Integer, GraphViewData[]> appMap = new HashMap<Integer, GraphViewData[]>();
 
-            // get next data
-            continue;
-          }
+      runQuery(new Runnable() {
+        public void run() {
+          RollupStore rollups = RollupStore.open(logfile);
+          // the rollups may still hold traffic cleared from the logfile
+          long oldest = new LogfileStore(logfile).getOldestTimestamp();
 
-          if(data.timestamp <= nextTimeFrame) {
-            // data within current time frame, add to frame len
-            frameLen += data.len;
-            // get next data
-            continue;
-          } else {
-            // data outside current time frame
-            // signifies end of frame
-            // plot frame len
-            graphData.add(new PacketGraphItem(nextTimeFrame, frameLen));
-
-            // set up next time frame
-            nextTimeFrame += timeFrameSize;
-            frameLen = 1;
-
-            // test for gap
-            if(data.timestamp > nextTimeFrame) {
-              // data is past this time frame, plot zero here
-              graphData.add(new PacketGraphItem(nextTimeFrame, frameLen));
-
-              if((data.timestamp - timeFrameSize) > nextTimeFrame) {
-                graphData.add(new PacketGraphItem(data.timestamp - timeFrameSize, 1));
-              }
-
-              nextTimeFrame = data.timestamp;
-              frameLen = data.len;
-
-              graphData.add(new PacketGraphItem(nextTimeFrame, frameLen));
-
-              nextTimeFrame += timeFrameSize;
-              frameLen = 1;
-              continue;
-            } else {
-              // data is within this frame, add len
-              frameLen = data.len;
-            }
+          for(RollupStore.Series series : rollups.query(level, -1, oldest, Long.MAX_VALUE, false)) {
+            appMap.put(series.uid, SeriesPyramid.frames(series.timestamps, series.bytes, series.count, timeFrameSize));
           }
         }
+      }, new Runnable() {
+        public void run() {
+          if(appMap.isEmpty()) {
+            buildSeriesFromLog(timeFrameSize, viewSize);
+            return;
+          }
 
-        graphData.add(new PacketGraphItem(nextTimeFrame, frameLen));
-        graphData.add(new PacketGraphItem(nextTimeFrame + timeFrameSize, 1));
-
-        GraphViewData[] seriesData = new GraphViewData[graphData.size()];
+          HashMap<Integer, String> uidNameMap = new HashMap<Integer, String>();
 
-        int i = 0;
+          for(Integer uid : appMap.keySet()) {
+            ApplicationsTracker.AppEntry app = ApplicationsTracker.uidMap == null ? null : ApplicationsTracker.uidMap.get(String.valueOf(uid));
+            uidNameMap.put(uid, "(" + uid + ") " + (app == null ? "" : app.name));
+          }
 
-        for(PacketGraphItem graphItem : graphData) {
-          seriesData[i] = new GraphViewData(graphItem.timestamp, graphItem.len);
-          i++;
+          addSeries(appMap, uidNameMap, viewSize);
         }
+      });
+      return;
+    }
 
-        int hashCode = String.valueOf(uid).hashCode();
-        String name = uidNameMap.get(uid);
-
-        graphView.addSeries(new GraphViewSeries(hashCode, name, Color.parseColor(getResources().getString(Colors.distinctColor[color])), seriesData));
-
-        boolean enabled = true;
-        boolean exists = false;
-        for(LegendItem legend : legendData) {
-          if(legend.mHashCode == hashCode) {
-            enabled = legend.mEnabled;
-            exists = true;
-            break;
-          }
-        }
+    buildSeriesFromLog(timeFrameSize, viewSize);
+  }
 
-        if(exists == false) {
-          ShapeDrawable shape = new ShapeDrawable(rect);
-          shape.getPaint().setColor(Color.parseColor(getResources().getString(Colors.distinctColor[color])));
-          shape.setIntrinsicWidth(intrinsicLength);
-          shape.setIntrinsicHeight(intrinsicLength);
+  private void buildSeriesFromLog(double timeFrameSize, double viewSize) {
+    if(NetworkLog.logFragment == null || NetworkLog.logFragment.getShownCount() == 0) {
+      SysUtils.showError(this, getString(R.string.graph_error_nodata_title), getString(R.string.graph_error_nodata_text));
+      finish();
+      return;
+    }
 
-          LegendItem legend = new LegendItem();
+    addSeries(pyramids.frames(NetworkLog.logFragment, timeFrameSize), pyramids.names, viewSize);
+  }
 
-          legend.mIcon = shape;
-          legend.mHashCode = hashCode;
-          legend.mName = name;
-          legend.mEnabled = true;
+  private void addSeries(HashMap<Integer, GraphViewData[]> appMap, HashMap<Integer, String> uidNameMap, double viewSize) {
+    if(appMap.size() == 0) {
+      SysUtils.showError(this, getString(R.string.graph_error_nodata_title), getString(R.string.graph_error_nodata_text));
+      finish();
+      return;
+    }
 
-          legendData.add(legend);
-        }
+    int color = 0;
+    float density = getResources().getDisplayMetrics().density;
+    Shape rect = new RectShape();
+    int intrinsicLength = (int)(18 * (density + 0.5));
+    int uid;
+    for(Map.Entry<Integer, GraphViewData[]> entry : appMap.entrySet()) {
+      uid = entry.getKey();
+      GraphViewData[] seriesData = entry.getValue();
+
+      if(MyLog.enabled) {
+        MyLog.d("number of points for " + uid + ": " + seriesData.length);
+      }
 
-        graphView.setSeriesEnabled(hashCode, enabled);
+      int hashCode = String.valueOf(uid).hashCode();
+      String name = uidNameMap.get(uid);
 
-        color++;
+      graphView.addSeries(new GraphViewSeries(hashCode, name, Color.parseColor(getResources().getString(Colors.distinctColor[color])), seriesData));
 
-        if(color >= Colors.distinctColor.length) {
-          color = 0;
+      boolean enabled = true;
+      boolean exists = false;
+      for(LegendItem legend : legendData) {
+        if(legend.mHashCode == hashCode) {
+          enabled = legend.mEnabled;
+          exists = true;
+          break;
         }
       }
-    }
 
-    double minX = graphView.getMinX(true);
-    double maxX = graphView.getMaxX(true);
+      if(exists == false) {
+        ShapeDrawable shape = new ShapeDrawable(rect);
+        shape.getPaint().setColor(Color.parseColor(getResources().getString(Colors.distinctColor[color])));
+        shape.setIntrinsicWidth(intrinsicLength);
+        shape.setIntrinsicHeight(intrinsicLength);
 
-    double viewStart = maxX - viewSize;
+        LegendItem legend = new LegendItem();
 
-    if(instanceData != null) {
-      viewStart = instanceData.viewportStart;
-      viewSize = instanceData.viewsize;
-    }
+        legend.mIcon = shape;
+        legend.mHashCode = hashCode;
+        legend.mName = name;
+        legend.mEnabled = true;
 
-    if(viewStart < minX) {
-      viewStart = minX;
-    }
+        legendData.add(legend);
+      }
+
+      graphView.setSeriesEnabled(hashCode, enabled);
 
-    if(viewStart + viewSize > maxX) {
-      viewSize = maxX - viewStart;
+      color++;
+
+      if(color >= Colors.distinctColor.length) {
+        color = 0;
+      }
     }
 
-    graphView.setViewPort(viewStart, viewSize);
-    graphView.invalidateLabels();
-    graphView.invalidate();
+    showViewport(viewSize);
   }
 }
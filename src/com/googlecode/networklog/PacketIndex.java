@@ -0,0 +1,285 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.util.ArrayList;
+
+// Inverted index over a PacketStore.  For every app, address, port,
+// protocol and interface it keeps the sequence numbers of the entries
+// containing it.  An address or port counts once per entry, whether it is
+// the source, the destination or both.  Postings of evicted entries are
+// dropped when a list is next searched or has to grow.
+//
+// Substring matches (app names, resolved hostnames) are answered by
+// testing each distinct value once with the CompiledFilter and taking the
+// union of the postings of those that match.  There are far fewer
+// distinct values than entries, so no n-gram index is needed.
+//
+// Not synchronized; PacketStore uses it under the store's lock.
+public class PacketIndex {
+  // ascending sequence numbers: the first one, then varint deltas
+  static class Postings {
+    private byte[] data = new byte[8];
+    private int head = 0;
+    private int length = 0;
+    private int first;
+    private int last;
+    private int count = 0;
+
+    // start is the oldest live sequence number
+    void add(int seq, int start) {
+      if(count == 0) {
+        first = last = seq;
+        head = length = 0;
+        count = 1;
+        return;
+      }
+
+      if(seq == last) {
+        return;
+      }
+
+      if(length + 5 > data.length) {
+        trim(start);
+
+        if(count == 0) {
+          add(seq, start);
+          return;
+        }
+
+        if(head >= data.length / 2 && length - head + 5 <= data.length) {
+          // reuse the space of trimmed postings
+          System.arraycopy(data, head, data, 0, length - head);
+          length -= head;
+          head = 0;
+        } else {
+          byte[] newData = new byte[data.length * 2];
+          System.arraycopy(data, head, newData, 0, length - head);
+          length -= head;
+          head = 0;
+          data = newData;
+        }
+      }
+
+      int delta = seq - last;
+
+      while((delta & ~0x7f) != 0) {
+        data[length++] = (byte) ((delta & 0x7f) | 0x80);
+        delta >>>= 7;
+      }
+
+      data[length++] = (byte) delta;
+      last = seq;
+      count++;
+    }
+
+    private int readDelta() {
+      int delta = 0;
+      int shift = 0;
+      byte b;
+
+      do {
+        b = data[head++];
+        delta |= (b & 0x7f) << shift;
+        shift += 7;
+      } while(b < 0);
+
+      return delta;
+    }
+
+    // drops the postings before start
+    void trim(int start) {
+      while(count > 0 && first - start < 0) {
+        if(count == 1) {
+          count = 0;
+          head = length = 0;
+          return;
+        }
+
+        first += readDelta();
+        count--;
+      }
+    }
+
+    // sets the bits of the postings in [from, to), relative to from;
+    // start is the oldest live sequence number
+    void mark(long[] bits, int start, int from, int to) {
+      trim(start);
+
+      if(count == 0) {
+        return;
+      }
+
+      int seq = first;
+      int pos = head;
+      int remaining = count;
+
+      while(true) {
+        if(seq - to >= 0) {
+          return;
+        }
+
+        int bit = seq - from;
+
+        if(bit >= 0) {
+          bits[bit >>> 6] |= 1L << bit;
+        }
+
+        if(--remaining == 0) {
+          return;
+        }
+
+        int delta = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+          b = data[pos++];
+          delta |= (b & 0x7f) << shift;
+          shift += 7;
+        } while(b < 0);
+
+        seq += delta;
+      }
+    }
+  }
+
+  private final PacketStore.CodeTable<ApplicationsTracker.AppEntry> appCodes;
+  private final PacketStore.CodeTable<String> stringCodes;
+
+  // by app or string code
+  private final ArrayList<Postings> apps = new ArrayList<Postings>();
+  private final ArrayList<Postings> addresses = new ArrayList<Postings>();
+  private final ArrayList<Postings> ifaces = new ArrayList<Postings>();
+  private final ArrayList<Postings> protocols = new ArrayList<Postings>();
+  // by port number
+  private final Postings[] ports = new Postings[65536];
+
+  private static final int ADDRESS = 0;
+  private static final int IFACE = 1;
+  private static final int PROTOCOL = 2;
+
+  PacketIndex(PacketStore.CodeTable<ApplicationsTracker.AppEntry> appCodes, PacketStore.CodeTable<String> stringCodes) {
+    this.appCodes = appCodes;
+    this.stringCodes = stringCodes;
+  }
+
+  private static void add(ArrayList<Postings> list, int code, int seq, int start) {
+    if(code < 0) {
+      return;
+    }
+
+    while(list.size() <= code) {
+      list.add(null);
+    }
+
+    Postings postings = list.get(code);
+
+    if(postings == null) {
+      postings = new Postings();
+      list.set(code, postings);
+    }
+
+    postings.add(seq, start);
+  }
+
+  private void addPort(int port, int seq, int start) {
+    Postings postings = ports[port];
+
+    if(postings == null) {
+      postings = ports[port] = new Postings();
+    }
+
+    postings.add(seq, start);
+  }
+
+  // Entries must be added in sequence order; start is the oldest live
+  // sequence number.  iface is the in interface if set, else the out
+  // interface.
+  void add(int seq, int start, int app, int iface, int proto, int src, int dst, int spt, int dpt) {
+    add(apps, app, seq, start);
+    add(ifaces, iface, seq, start);
+    add(protocols, proto, seq, start);
+    add(addresses, src, seq, start);
+    add(addresses, dst, seq, start);
+    addPort(spt, seq, start);
+    addPort(dpt, seq, start);
+  }
+
+  void clear() {
+    apps.clear();
+    addresses.clear();
+    ifaces.clear();
+    protocols.clear();
+
+    for(int i = 0; i < ports.length; i++) {
+      ports[i] = null;
+    }
+  }
+
+  // sets the bits, relative to from, of the entries in [from, to) that
+  // match filter; start is the oldest live sequence number
+  void mark(long[] bits, int start, int from, int to, CompiledFilter filter) {
+    if(filter.hasAppTests()) {
+      for(int code = 0; code < apps.size(); code++) {
+        Postings postings = apps.get(code);
+
+        if(postings != null && filter.matchesApp(appCodes.get(code))) {
+          postings.mark(bits, start, from, to);
+        }
+      }
+    }
+
+    if(filter.address) {
+      markStrings(addresses, bits, start, from, to, filter, ADDRESS);
+    }
+
+    if(filter.iface) {
+      markStrings(ifaces, bits, start, from, to, filter, IFACE);
+    }
+
+    if(filter.protocol) {
+      markStrings(protocols, bits, start, from, to, filter, PROTOCOL);
+    }
+
+    if(filter.port) {
+      for(int port = 0; port < ports.length; port++) {
+        if(ports[port] != null && filter.matchesPort(port)) {
+          ports[port].mark(bits, start, from, to);
+        }
+      }
+    }
+  }
+
+  private void markStrings(ArrayList<Postings> list, long[] bits, int start, int from, int to, CompiledFilter filter, int field) {
+    for(int code = 0; code < list.size(); code++) {
+      Postings postings = list.get(code);
+
+      if(postings == null) {
+        continue;
+      }
+
+      String value = stringCodes.get(code);
+      boolean matched;
+
+      switch(field) {
+        case ADDRESS:
+          matched = filter.matchesAddress(value);
+          break;
+        case IFACE:
+          matched = filter.matchesInterface(value);
+          break;
+        default:
+          matched = filter.matchesProtocol(value);
+      }
+
+      if(matched) {
+        postings.mark(bits, start, from, to);
+      }
+    }
+  }
+}
@@ -0,0 +1,411 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Columnar ring store of log entries addressed by sequence number: the
+// capacity is a power of two, adding to a full store evicts the oldest
+// entry, and sequence numbers are compared by subtraction.
+//
+// Each field lives in its own primitive array, allocated a chunk at a time
+// as entries arrive.  Apps and strings (interfaces, protocols, addresses)
+// are stored as codes into tables that are emptied when the store is
+// cleared, and compacted each time a store's worth of entries has been
+// evicted.  Ports are u16, as in BinaryLogfile.  Entries are read back into
+// a LogFragment.ListItem, which callers scanning the store reuse.
+// With setIndexed(true) a PacketIndex is kept to answer filter() without
+// scanning.  Not synchronized.
+public class PacketStore {
+  static final int CHUNK_SHIFT = 12;
+  static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private static class Chunk {
+    final long[] timestamp = new long[CHUNK_SIZE];
+    final int[] app = new int[CHUNK_SIZE];
+    final int[] in = new int[CHUNK_SIZE];
+    final int[] out = new int[CHUNK_SIZE];
+    final int[] proto = new int[CHUNK_SIZE];
+    final int[] src = new int[CHUNK_SIZE];
+    final int[] dst = new int[CHUNK_SIZE];
+    final int[] len = new int[CHUNK_SIZE];
+    final char[] spt = new char[CHUNK_SIZE];
+    final char[] dpt = new char[CHUNK_SIZE];
+  }
+
+  // values by code; null is code -1
+  static class CodeTable<T> {
+    private final HashMap<T, Integer> codes = new HashMap<T, Integer>();
+    private final ArrayList<T> values = new ArrayList<T>();
+
+    int code(T value) {
+      if(value == null) {
+        return -1;
+      }
+
+      Integer code = codes.get(value);
+
+      if(code == null) {
+        code = values.size();
+        values.add(value);
+        codes.put(value, code);
+      }
+
+      return code;
+    }
+
+    T get(int code) {
+      return code < 0 ? null : values.get(code);
+    }
+
+    int size() {
+      return values.size();
+    }
+
+    // Keeps the values whose codes are marked used, renumbered in order.
+    // Returns the new code of each old code, -1 for dropped ones, or null
+    // if nothing was dropped.
+    int[] retain(boolean[] used) {
+      int[] map = new int[values.size()];
+      ArrayList<T> kept = new ArrayList<T>();
+
+      for(int code = 0; code < map.length; code++) {
+        map[code] = used[code] ? kept.size() : -1;
+
+        if(used[code]) {
+          kept.add(values.get(code));
+        }
+      }
+
+      if(kept.size() == map.length) {
+        return null;
+      }
+
+      codes.clear();
+      values.clear();
+
+      for(T value : kept) {
+        codes.put(value, values.size());
+        values.add(value);
+      }
+
+      return map;
+    }
+
+    void clear() {
+      codes.clear();
+      values.clear();
+    }
+  }
+
+  private Chunk[] chunks;
+  private int mask;
+  private int start = 0;
+  private int end = 0;
+  // start when the codes were last compacted
+  private int compactedAt = 0;
+
+  private final CodeTable<ApplicationsTracker.AppEntry> apps = new CodeTable<ApplicationsTracker.AppEntry>();
+  private final CodeTable<String> strings = new CodeTable<String>();
+  private PacketIndex index;
+
+  public PacketStore(int minCapacity) {
+    int capacity = Math.max(PowerOfTwo.ceil(minCapacity), CHUNK_SIZE);
+    chunks = new Chunk[capacity >>> CHUNK_SHIFT];
+    mask = capacity - 1;
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+  public int size() {
+    return end - start;
+  }
+
+  // sequence number of the oldest entry
+  public int getStart() {
+    return start;
+  }
+
+  // sequence number the next entry will get
+  public int getEnd() {
+    return end;
+  }
+
+  public boolean contains(int seq) {
+    return seq - start >= 0 && end - seq > 0;
+  }
+
+  private Chunk chunk(int seq) {
+    int index = (seq & mask) >>> CHUNK_SHIFT;
+    Chunk chunk = chunks[index];
+
+    if(chunk == null) {
+      chunk = chunks[index] = new Chunk();
+    }
+
+    return chunk;
+  }
+
+  public void add(ApplicationsTracker.AppEntry app, LogEntry entry) {
+    if(end - start == capacity()) {
+      start++;
+    }
+
+    if(start - compactedAt >= capacity()) {
+      compactCodes();
+    }
+
+    Chunk chunk = chunk(end);
+    int i = end & CHUNK_MASK;
+
+    chunk.timestamp[i] = entry.timestamp;
+    chunk.app[i] = apps.code(app);
+    chunk.in[i] = strings.code(entry.in);
+    chunk.out[i] = strings.code(entry.out);
+    chunk.proto[i] = strings.code(entry.proto);
+    chunk.src[i] = strings.code(entry.src);
+    chunk.dst[i] = strings.code(entry.dst);
+    chunk.len[i] = entry.len;
+    chunk.spt[i] = (char) entry.spt;
+    chunk.dpt[i] = (char) entry.dpt;
+
+    if(index != null) {
+      addToIndex(chunk, i, end);
+    }
+
+    end++;
+  }
+
+  private void addToIndex(Chunk chunk, int i, int seq) {
+    // the interface shown and filtered on: in if set, else out
+    String in = strings.get(chunk.in[i]);
+    int iface = in != null && in.length() > 0 ? chunk.in[i] : chunk.out[i];
+
+    index.add(seq, start, chunk.app[i], iface, chunk.proto[i], chunk.src[i], chunk.dst[i], chunk.spt[i], chunk.dpt[i]);
+  }
+
+  // Drops the codes only evicted entries used, so the tables and the index
+  // postings stay bounded by the live entries, and renumbers the rest.
+  private void compactCodes() {
+    compactedAt = start;
+
+    boolean[] usedApps = new boolean[apps.size()];
+    boolean[] usedStrings = new boolean[strings.size()];
+
+    for(int seq = start; seq != end; seq++) {
+      Chunk chunk = chunks[(seq & mask) >>> CHUNK_SHIFT];
+      int i = seq & CHUNK_MASK;
+
+      mark(usedApps, chunk.app[i]);
+      mark(usedStrings, chunk.in[i]);
+      mark(usedStrings, chunk.out[i]);
+      mark(usedStrings, chunk.proto[i]);
+      mark(usedStrings, chunk.src[i]);
+      mark(usedStrings, chunk.dst[i]);
+    }
+
+    int[] appMap = apps.retain(usedApps);
+    int[] stringMap = strings.retain(usedStrings);
+
+    if(appMap == null && stringMap == null) {
+      return;
+    }
+
+    for(int seq = start; seq != end; seq++) {
+      Chunk chunk = chunks[(seq & mask) >>> CHUNK_SHIFT];
+      int i = seq & CHUNK_MASK;
+
+      chunk.app[i] = remap(appMap, chunk.app[i]);
+      chunk.in[i] = remap(stringMap, chunk.in[i]);
+      chunk.out[i] = remap(stringMap, chunk.out[i]);
+      chunk.proto[i] = remap(stringMap, chunk.proto[i]);
+      chunk.src[i] = remap(stringMap, chunk.src[i]);
+      chunk.dst[i] = remap(stringMap, chunk.dst[i]);
+    }
+
+    if(index != null) {
+      rebuildIndex();
+    }
+
+    if(MyLog.enabled && MyLog.level >= 3) {
+      MyLog.d("PacketStore: compacted codes to " + apps.size() + " apps, " + strings.size() + " strings");
+    }
+  }
+
+  private static void mark(boolean[] used, int code) {
+    if(code >= 0) {
+      used[code] = true;
+    }
+  }
+
+  private static int remap(int[] map, int code) {
+    return map == null || code < 0 ? code : map[code];
+  }
+
+  public boolean isIndexed() {
+    return index != null;
+  }
+
+  public void setIndexed(boolean indexed) {
+    if(!indexed) {
+      index = null;
+    } else if(index == null) {
+      index = new PacketIndex(apps, strings);
+      rebuildIndex();
+    }
+  }
+
+  private void rebuildIndex() {
+    index.clear();
+
+    for(int seq = start; seq != end; seq++) {
+      addToIndex(chunks[(seq & mask) >>> CHUNK_SHIFT], seq & CHUNK_MASK, seq);
+    }
+  }
+
+  // Sequence numbers of the entries in [from, to) that match include (all
+  // if it is null) and do not match exclude (none if it is null).  The
+  // store must be indexed and from must not be before getStart().
+  public int[] filter(CompiledFilter include, CompiledFilter exclude, int from, int to) {
+    int n = Math.max(0, to - from);
+    long[] bits = new long[(n + 63) >>> 6];
+
+    if(include == null) {
+      for(int i = 0; i < n >>> 6; i++) {
+        bits[i] = -1L;
+      }
+
+      if((n & 63) != 0) {
+        bits[n >>> 6] = (1L << n) - 1;
+      }
+    } else {
+      index.mark(bits, start, from, to, include);
+    }
+
+    if(exclude != null) {
+      long[] excluded = new long[bits.length];
+      index.mark(excluded, start, from, to, exclude);
+
+      for(int i = 0; i < bits.length; i++) {
+        bits[i] &= ~excluded[i];
+      }
+    }
+
+    int count = 0;
+
+    for(long word : bits) {
+      count += Long.bitCount(word);
+    }
+
+    int[] result = new int[count];
+    int pos = 0;
+
+    for(int i = 0; i < bits.length; i++) {
+      long word = bits[i];
+
+      while(word != 0) {
+        result[pos++] = from + (i << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+      }
+    }
+
+    return result;
+  }
+
+  public long getTimestamp(int seq) {
+    return chunks[(seq & mask) >>> CHUNK_SHIFT].timestamp[seq & CHUNK_MASK];
+  }
+
+  public ApplicationsTracker.AppEntry getApp(int seq) {
+    return apps.get(chunks[(seq & mask) >>> CHUNK_SHIFT].app[seq & CHUNK_MASK]);
+  }
+
+  public void read(int seq, LogFragment.ListItem item) {
+    Chunk chunk = chunks[(seq & mask) >>> CHUNK_SHIFT];
+    int i = seq & CHUNK_MASK;
+
+    item.timestamp = chunk.timestamp[i];
+    item.app = apps.get(chunk.app[i]);
+    item.in = strings.get(chunk.in[i]);
+    item.out = strings.get(chunk.out[i]);
+    item.proto = strings.get(chunk.proto[i]);
+    item.srcAddr = strings.get(chunk.src[i]);
+    item.dstAddr = strings.get(chunk.dst[i]);
+    item.len = chunk.len[i];
+    item.srcPort = chunk.spt[i];
+    item.dstPort = chunk.dpt[i];
+  }
+
+  // copies the entry at from over the entry at to
+  public void move(int from, int to) {
+    copy(chunks[(from & mask) >>> CHUNK_SHIFT], from & CHUNK_MASK, chunk(to), to & CHUNK_MASK);
+  }
+
+  private static void copy(Chunk from, int i, Chunk to, int j) {
+    to.timestamp[j] = from.timestamp[i];
+    to.app[j] = from.app[i];
+    to.in[j] = from.in[i];
+    to.out[j] = from.out[i];
+    to.proto[j] = from.proto[i];
+    to.src[j] = from.src[i];
+    to.dst[j] = from.dst[i];
+    to.len[j] = from.len[i];
+    to.spt[j] = from.spt[i];
+    to.dpt[j] = from.dpt[i];
+  }
+
+  public void removeFirst() {
+    start++;
+  }
+
+  // drops the entries from seq on; after move() this also renumbers the
+  // index
+  public void truncate(int seq) {
+    end = seq;
+
+    if(index != null) {
+      rebuildIndex();
+    }
+  }
+
+  // sequence numbers continue where they were
+  public void clear() {
+    start = end;
+    compactedAt = end;
+    chunks = new Chunk[chunks.length];
+    apps.clear();
+    strings.clear();
+
+    if(index != null) {
+      index.clear();
+    }
+  }
+
+  // keeps the newest entries that fit, with their sequence numbers
+  public void setCapacity(int minCapacity) {
+    int capacity = Math.max(PowerOfTwo.ceil(minCapacity), CHUNK_SIZE);
+
+    if(capacity == capacity()) {
+      return;
+    }
+
+    Chunk[] oldChunks = chunks;
+    int oldMask = mask;
+
+    chunks = new Chunk[capacity >>> CHUNK_SHIFT];
+    mask = capacity - 1;
+    start = end - Math.min(end - start, capacity);
+
+    for(int seq = start; seq != end; seq++) {
+      copy(oldChunks[(seq & oldMask) >>> CHUNK_SHIFT], seq & CHUNK_MASK, chunk(seq), seq & CHUNK_MASK);
+    }
+  }
+}
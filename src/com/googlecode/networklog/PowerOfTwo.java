@@ -0,0 +1,23 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+// Sizes for the ring buffers, which index with a mask
+public final class PowerOfTwo {
+  private PowerOfTwo() {}
+
+  // smallest power of two >= n, at most 2^30
+  static int ceil(int n) {
+    int capacity = 1;
+
+    while(capacity < n && capacity < (1 << 30)) {
+      capacity <<= 1;
+    }
+
+    return capacity;
+  }
+}
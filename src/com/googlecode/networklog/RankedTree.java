@@ -0,0 +1,216 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+// Order-statistics treap: values in descending order of a long key, ties
+// in the order their nodes were created.  Insert, remove and get by rank
+// are O(log n).  A node belongs to one tree; re-key a value by removing
+// its node, then inserting it with the new key.  Not synchronized.
+public class RankedTree<T> {
+  public static class Node<T> {
+    final T value;
+    final long order;
+    final int priority;
+    long key;
+    int size;
+    boolean inTree = false;
+    Node<T> left, right;
+
+    Node(T value, long order, int priority) {
+      this.value = value;
+      this.order = order;
+      this.priority = priority;
+    }
+
+    public boolean isInTree() {
+      return inTree;
+    }
+  }
+
+  private Node<T> root = null;
+  private long nextOrder = 0;
+  private int seed = 0x2545f491;
+
+  public Node<T> newNode(T value) {
+    // xorshift
+    seed ^= seed << 13;
+    seed ^= seed >>> 17;
+    seed ^= seed << 5;
+    return new Node<T>(value, nextOrder++, seed);
+  }
+
+  public int size() {
+    return size(root);
+  }
+
+  private static <T> int size(Node<T> node) {
+    return node == null ? 0 : node.size;
+  }
+
+  // whether a comes before b
+  private static <T> boolean before(Node<T> a, Node<T> b) {
+    return a.key > b.key || (a.key == b.key && a.order < b.order);
+  }
+
+  public void insert(Node<T> node, long key) {
+    node.key = key;
+    node.left = node.right = null;
+    node.size = 1;
+    node.inTree = true;
+    root = insert(root, node);
+  }
+
+  private Node<T> insert(Node<T> t, Node<T> node) {
+    if(t == null) {
+      return node;
+    }
+
+    if(node.priority > t.priority) {
+      split(t, node);
+      node.size = 1 + size(node.left) + size(node.right);
+      return node;
+    }
+
+    if(before(node, t)) {
+      t.left = insert(t.left, node);
+    } else {
+      t.right = insert(t.right, node);
+    }
+
+    t.size++;
+    return t;
+  }
+
+  // splits t into the nodes before and after node, as node's children
+  private void split(Node<T> t, Node<T> node) {
+    Node<T> leftTail = null, rightHead = null;
+
+    while(t != null) {
+      if(before(t, node)) {
+        if(leftTail == null) {
+          node.left = t;
+        } else {
+          leftTail.right = t;
+        }
+
+        leftTail = t;
+        t = t.right;
+      } else {
+        if(rightHead == null) {
+          node.right = t;
+        } else {
+          rightHead.left = t;
+        }
+
+        rightHead = t;
+        t = t.left;
+      }
+    }
+
+    if(leftTail != null) {
+      leftTail.right = null;
+    }
+
+    if(rightHead != null) {
+      rightHead.left = null;
+    }
+
+    fixSizes(node.left, true);
+    fixSizes(node.right, false);
+  }
+
+  // recomputes sizes down the spine that split() rebuilt
+  private static <T> void fixSizes(Node<T> t, boolean rightSpine) {
+    if(t == null) {
+      return;
+    }
+
+    fixSizes(rightSpine ? t.right : t.left, rightSpine);
+    t.size = 1 + size(t.left) + size(t.right);
+  }
+
+  public void remove(Node<T> node) {
+    if(!node.inTree) {
+      return;
+    }
+
+    root = remove(root, node);
+    node.inTree = false;
+    node.left = node.right = null;
+  }
+
+  private Node<T> remove(Node<T> t, Node<T> node) {
+    if(t == node) {
+      return merge(t.left, t.right);
+    }
+
+    if(before(node, t)) {
+      t.left = remove(t.left, node);
+    } else {
+      t.right = remove(t.right, node);
+    }
+
+    t.size--;
+    return t;
+  }
+
+  private Node<T> merge(Node<T> a, Node<T> b) {
+    if(a == null) {
+      return b;
+    }
+
+    if(b == null) {
+      return a;
+    }
+
+    if(a.priority > b.priority) {
+      a.right = merge(a.right, b);
+      a.size = 1 + size(a.left) + size(a.right);
+      return a;
+    } else {
+      b.left = merge(a, b.left);
+      b.size = 1 + size(b.left) + size(b.right);
+      return b;
+    }
+  }
+
+  // the value at rank, 0 being the first
+  public T get(int rank) {
+    Node<T> t = root;
+
+    while(t != null) {
+      int leftSize = size(t.left);
+
+      if(rank < leftSize) {
+        t = t.left;
+      } else if(rank == leftSize) {
+        return t.value;
+      } else {
+        rank -= leftSize + 1;
+        t = t.right;
+      }
+    }
+
+    throw new IndexOutOfBoundsException("rank " + rank);
+  }
+
+  public void clear() {
+    clear(root);
+    root = null;
+  }
+
+  private static <T> void clear(Node<T> t) {
+    if(t == null) {
+      return;
+    }
+
+    clear(t.left);
+    clear(t.right);
+    t.left = t.right = null;
+    t.inTree = false;
+  }
+}
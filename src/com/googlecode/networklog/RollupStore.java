@@ -0,0 +1,988 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Bytes and packets per uid, direction and interface at 1 minute, 1 hour
+// and 1 day resolution, kept in a directory next to the logfile
+// (<logfile>.rollup) so long ranges can be graphed without reading the log.
+// Buckets are aligned to UTC.
+//
+// Each level keeps its current and previous bucket in memory and appends a
+// bucket to its file once a newer one starts; the open buckets of all
+// levels are saved to a snapshot file whenever a minute ends and when
+// logging stops.  A packet older than the open buckets appends a second
+// record for its bucket, so readers add up records with the same key.
+// Files are rewritten without the records older than RETENTION once they
+// hold an eighth more than that.
+//
+// The files are only written by a writer thread, which add() hands the
+// closed buckets and a copy of the open ones as a Flush.  Queries read the
+// files without holding the store's lock, up to the length the writer had
+// finished when they started, and add the buckets still in memory.
+//
+// Level file layout (big-endian): i64 magic, then records of i32 bucket
+// (timestamp / resolution), i32 uid, u8 direction, UTF interface, i64
+// bytes, i32 packets.  The snapshot has the same layout with a u8 level
+// before each record.
+public class RollupStore {
+  static final String DIRECTORY_SUFFIX = ".rollup";
+  static final String SNAPSHOT = "open";
+  // present while a rebuild is incomplete
+  static final String REBUILDING = "rebuilding";
+  static final long MAGIC = 0x4E4C524F4C4C310AL; // "NLROLL1\n"
+
+  public static final int MINUTE = 0;
+  public static final int HOUR = 1;
+  public static final int DAY = 2;
+  static final int LEVELS = 3;
+
+  static final long[] RESOLUTION = { 60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L };
+  static final long[] RETENTION = { 7 * RESOLUTION[DAY], 90 * RESOLUTION[DAY], 2 * 365 * RESOLUTION[DAY] };
+  static final String[] FILE_NAMES = { "minute", "hour", "day" };
+
+  public static final int IN = 0;
+  public static final int OUT = 1;
+
+  // rebuilt buckets are appended once this many are pending
+  static final int REBUILD_FLUSH_SIZE = 8192;
+  // the rebuild waits while the writer is this many flushes behind
+  static final int MAX_UNWRITTEN = 4;
+  // save() waits this long for the writer
+  static final long SAVE_TIMEOUT = 5000;
+
+  static class Key {
+    int bucket;
+    int uid;
+    int direction;
+    String iface;
+
+    Key set(int bucket, int uid, int direction, String iface) {
+      this.bucket = bucket;
+      this.uid = uid;
+      this.direction = direction;
+      this.iface = iface;
+      return this;
+    }
+
+    Key copy() {
+      return new Key().set(bucket, uid, direction, iface);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = bucket * 31 + uid;
+      hash = hash * 31 + direction;
+      return hash * 31 + (iface == null ? 0 : iface.hashCode());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if(!(other instanceof Key)) {
+        return false;
+      }
+
+      Key key = (Key) other;
+      return bucket == key.bucket && uid == key.uid && direction == key.direction
+        && (iface == null ? key.iface == null : iface.equals(key.iface));
+    }
+  }
+
+  static class Totals {
+    long bytes;
+    int packets;
+  }
+
+  // buckets not yet in the level files
+  static class Pending {
+    final HashMap<Key, Totals>[] buckets;
+    final Key probe = new Key();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Pending() {
+      buckets = new HashMap[LEVELS];
+
+      for(int level = 0; level < LEVELS; level++) {
+        buckets[level] = new HashMap<Key, Totals>();
+      }
+    }
+
+    void add(int level, int bucket, int uid, int direction, String iface, long bytes, int packets) {
+      HashMap<Key, Totals> map = buckets[level];
+      Totals totals = map.get(probe.set(bucket, uid, direction, iface));
+
+      if(totals == null) {
+        totals = new Totals();
+        map.put(probe.copy(), totals);
+      }
+
+      totals.bytes += bytes;
+      totals.packets += packets;
+    }
+
+    void add(LogEntry entry) {
+      boolean in = entry.in != null && entry.in.length() > 0;
+      int direction = in ? IN : OUT;
+      String iface = in ? entry.in : entry.out == null ? "" : entry.out;
+
+      for(int level = 0; level < LEVELS; level++) {
+        add(level, (int) (entry.timestamp / RESOLUTION[level]), entry.uid, direction, iface, entry.len, 1);
+      }
+    }
+
+    int size() {
+      return buckets[MINUTE].size() + buckets[HOUR].size() + buckets[DAY].size();
+    }
+
+    // moves the buckets of level before bucket to other
+    void moveBefore(int level, int before, Pending other) {
+      Iterator<Map.Entry<Key, Totals>> entries = buckets[level].entrySet().iterator();
+
+      while(entries.hasNext()) {
+        Map.Entry<Key, Totals> entry = entries.next();
+
+        if(entry.getKey().bucket < before) {
+          other.buckets[level].put(entry.getKey(), entry.getValue());
+          entries.remove();
+        }
+      }
+    }
+
+    Pending copy() {
+      Pending copy = new Pending();
+
+      for(int level = 0; level < LEVELS; level++) {
+        for(Map.Entry<Key, Totals> entry : buckets[level].entrySet()) {
+          Totals totals = new Totals();
+          totals.bytes = entry.getValue().bytes;
+          totals.packets = entry.getValue().packets;
+          copy.buckets[level].put(entry.getKey(), totals);
+        }
+      }
+
+      return copy;
+    }
+  }
+
+  // Work for the writer thread, done in this order.  Not modified once
+  // queued, so queries read closed without locking.
+  static class Flush {
+    // delete the level files and the snapshot
+    boolean reset;
+    // drop the buckets that start before this, or 0
+    long clearBefore;
+    // buckets to append
+    Pending closed;
+    // newest buckets by level to compact the files against, or null
+    int[] newest;
+    // open buckets to save as the snapshot, or null
+    Pending open;
+    // last flush of a rebuild, and whether it read the whole log
+    boolean endsRebuild;
+    boolean rebuildComplete;
+  }
+
+  // limits a stream to the first length bytes
+  private static class BoundedInputStream extends FilterInputStream {
+    private long remaining;
+
+    BoundedInputStream(InputStream input, long length) {
+      super(input);
+      remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if(remaining <= 0) {
+        return -1;
+      }
+
+      int b = super.read();
+
+      if(b >= 0) {
+        remaining--;
+      }
+
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      if(remaining <= 0) {
+        return -1;
+      }
+
+      int n = super.read(buffer, offset, (int) Math.min(count, remaining));
+
+      if(n > 0) {
+        remaining -= n;
+      }
+
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(super.available(), remaining);
+    }
+  }
+
+  // a series of bucket totals in time order
+  public static class Series {
+    public final int uid;
+    // -1 and null when directions and interfaces are summed
+    public final int direction;
+    public final String iface;
+    public int count = 0;
+    public long[] timestamps = new long[64];
+    public long[] bytes = new long[64];
+
+    Series(int uid, int direction, String iface) {
+      this.uid = uid;
+      this.direction = direction;
+      this.iface = iface;
+    }
+
+    void add(long timestamp, long value) {
+      int pos = count;
+
+      // records are nearly in order; search back for the place
+      while(pos > 0 && timestamps[pos - 1] > timestamp) {
+        pos--;
+      }
+
+      if(pos > 0 && timestamps[pos - 1] == timestamp) {
+        bytes[pos - 1] += value;
+        return;
+      }
+
+      if(count == timestamps.length) {
+        long[] newTimestamps = new long[count * 2];
+        long[] newBytes = new long[count * 2];
+        System.arraycopy(timestamps, 0, newTimestamps, 0, count);
+        System.arraycopy(bytes, 0, newBytes, 0, count);
+        timestamps = newTimestamps;
+        bytes = newBytes;
+      }
+
+      System.arraycopy(timestamps, pos, timestamps, pos + 1, count - pos);
+      System.arraycopy(bytes, pos, bytes, pos + 1, count - pos);
+      timestamps[pos] = timestamp;
+      bytes[pos] = value;
+      count++;
+    }
+  }
+
+  static RollupStore instance = null;
+
+  final File directory;
+  private final Pending pending = new Pending();
+  private final int[] newestBucket = new int[LEVELS];
+  private boolean snapshotLoaded = false;
+  private boolean rebuilding = false;
+  // flushes not yet written, oldest first; the first may be being written
+  private final ArrayList<Flush> unwritten = new ArrayList<Flush>();
+  private Thread writer = null;
+  private int flushesQueued = 0;
+  private int flushesWritten = 0;
+  // length of each level file as of the last flush written, -1 until the
+  // writer first writes it
+  private final long[] writtenLength = new long[LEVELS];
+
+  // writer thread state
+  // oldest bucket in each level file, Integer.MAX_VALUE if unknown or empty
+  private final int[] oldestBucket = new int[LEVELS];
+  private boolean writeFailed = false;
+
+  RollupStore(String logfile) {
+    directory = new File(logfile + DIRECTORY_SUFFIX);
+
+    for(int level = 0; level < LEVELS; level++) {
+      newestBucket[level] = Integer.MIN_VALUE;
+      oldestBucket[level] = Integer.MAX_VALUE;
+      writtenLength[level] = -1;
+    }
+  }
+
+  // the store of logfile, shared by the service and the graphs
+  public static synchronized RollupStore open(String logfile) {
+    File directory = new File(logfile + DIRECTORY_SUFFIX);
+
+    if(instance == null || !instance.directory.equals(directory)) {
+      if(instance != null) {
+        instance.save();
+      }
+
+      instance = new RollupStore(logfile);
+    }
+
+    return instance;
+  }
+
+  public static int levelFor(long interval) {
+    for(int level = LEVELS - 1; level >= 0; level--) {
+      if(interval >= RESOLUTION[level]) {
+        return level;
+      }
+    }
+
+    return -1;
+  }
+
+  File getFile(int level) {
+    return new File(directory, FILE_NAMES[level]);
+  }
+
+  private void loadSnapshot() {
+    if(snapshotLoaded) {
+      return;
+    }
+
+    snapshotLoaded = true;
+    File file = new File(directory, SNAPSHOT);
+
+    if(!file.exists()) {
+      return;
+    }
+
+    DataInputStream input = null;
+
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+      if(input.readLong() != MAGIC) {
+        Log.w("NetworkLog", "Ignoring rollup snapshot " + file + " with bad magic");
+        return;
+      }
+
+      while(true) {
+        int level;
+
+        try {
+          level = input.readUnsignedByte();
+        } catch(EOFException e) {
+          break;
+        }
+
+        if(level >= LEVELS) {
+          throw new IOException("Bad level " + level);
+        }
+
+        int bucket = input.readInt();
+        pending.add(level, bucket, input.readInt(), input.readUnsignedByte(), input.readUTF(), input.readLong(), input.readInt());
+
+        if(bucket > newestBucket[level]) {
+          newestBucket[level] = bucket;
+        }
+      }
+    } catch(IOException e) {
+      Log.w("NetworkLog", "Failed to load rollup snapshot " + file, e);
+    } finally {
+      if(input != null) {
+        try { input.close(); } catch(IOException e) { /* ignored */ }
+      }
+    }
+  }
+
+  private static void writeRecord(DataOutputStream output, Key key, Totals totals) throws IOException {
+    output.writeInt(key.bucket);
+    output.writeInt(key.uid);
+    output.writeByte(key.direction);
+    output.writeUTF(key.iface);
+    output.writeLong(totals.bytes);
+    output.writeInt(totals.packets);
+  }
+
+  // appends buckets to the file of level; writer thread
+  private void append(int level, HashMap<Key, Totals> buckets) throws IOException {
+    if(buckets.isEmpty()) {
+      return;
+    }
+
+    File file = getFile(level);
+    boolean exists = file.length() > 0;
+    directory.mkdirs();
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 16 * 1024));
+
+    try {
+      if(!exists) {
+        output.writeLong(MAGIC);
+      }
+
+      for(Map.Entry<Key, Totals> entry : buckets.entrySet()) {
+        Key key = entry.getKey();
+        writeRecord(output, key, entry.getValue());
+
+        if(key.bucket < oldestBucket[level]) {
+          oldestBucket[level] = key.bucket;
+        }
+      }
+    } finally {
+      output.close();
+    }
+  }
+
+  // writer thread
+  private void saveSnapshot(Pending pending) throws IOException {
+    File file = new File(directory, SNAPSHOT);
+
+    if(pending.size() == 0) {
+      file.delete();
+      return;
+    }
+
+    directory.mkdirs();
+    File temp = new File(directory, SNAPSHOT + ".tmp");
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 16 * 1024));
+
+    try {
+      output.writeLong(MAGIC);
+
+      for(int level = 0; level < LEVELS; level++) {
+        for(Map.Entry<Key, Totals> entry : pending.buckets[level].entrySet()) {
+          output.writeByte(level);
+          writeRecord(output, entry.getKey(), entry.getValue());
+        }
+      }
+    } finally {
+      output.close();
+    }
+
+    if(!temp.renameTo(file)) {
+      throw new IOException("Failed to rename " + temp + " to " + file);
+    }
+  }
+
+  public synchronized void add(List<LogEntry> entries) {
+    loadSnapshot();
+
+    int size = entries.size();
+    boolean minuteEnded = false;
+
+    for(int i = 0; i < size; i++) {
+      LogEntry entry = entries.get(i);
+      pending.add(entry);
+
+      for(int level = 0; level < LEVELS; level++) {
+        int bucket = (int) (entry.timestamp / RESOLUTION[level]);
+
+        if(bucket > newestBucket[level]) {
+          newestBucket[level] = bucket;
+
+          if(level == MINUTE) {
+            minuteEnded = true;
+          }
+        }
+      }
+    }
+
+    if(!minuteEnded) {
+      return;
+    }
+
+    Flush flush = new Flush();
+    flush.closed = new Pending();
+
+    for(int level = 0; level < LEVELS; level++) {
+      pending.moveBefore(level, newestBucket[level] - 1, flush.closed);
+    }
+
+    flush.newest = newestBucket.clone();
+    flush.open = pending.copy();
+    queue(flush);
+  }
+
+  // Writes the open buckets and waits for the writer to finish; called
+  // when logging stops.
+  public synchronized void save() {
+    if(!snapshotLoaded) {
+      return;
+    }
+
+    Flush flush = new Flush();
+    flush.open = pending.copy();
+    queue(flush);
+
+    int target = flushesQueued;
+    long deadline = System.currentTimeMillis() + SAVE_TIMEOUT;
+
+    while(flushesWritten - target < 0) {
+      long remaining = deadline - System.currentTimeMillis();
+
+      if(remaining <= 0) {
+        Log.w("NetworkLog", "Timed out saving rollups in " + directory);
+        return;
+      }
+
+      try {
+        wait(remaining);
+      } catch(InterruptedException e) {
+        Log.w("NetworkLog", "Interrupted saving rollups in " + directory, e);
+        return;
+      }
+    }
+  }
+
+  // Drops the buckets that start before cutoff, along with the log entries
+  // ClearLog deletes, so cleared traffic is not graphed.  The files are
+  // rewritten on the writer thread.
+  public synchronized void clearOlderThan(long cutoff) {
+    loadSnapshot();
+
+    for(int level = 0; level < LEVELS; level++) {
+      int first = firstBucketFrom(level, cutoff);
+      Iterator<Key> keys = pending.buckets[level].keySet().iterator();
+
+      while(keys.hasNext()) {
+        if(keys.next().bucket < first) {
+          keys.remove();
+        }
+      }
+    }
+
+    Flush flush = new Flush();
+    flush.clearBefore = cutoff;
+    flush.open = pending.copy();
+    queue(flush);
+  }
+
+  // first bucket of level starting at or after timestamp
+  static int firstBucketFrom(int level, long timestamp) {
+    return (int) Math.min((timestamp + RESOLUTION[level] - 1) / RESOLUTION[level], Integer.MAX_VALUE);
+  }
+
+  // caller holds the lock
+  private void queue(Flush flush) {
+    unwritten.add(flush);
+    flushesQueued++;
+
+    if(writer == null) {
+      writer = new Thread(new Runnable() {
+        public void run() {
+          writeFlushes();
+        }
+      }, "RollupWriter");
+      writer.start();
+    }
+  }
+
+  // writes the queued flushes in order, and exits once there are none
+  private void writeFlushes() {
+    while(true) {
+      Flush flush;
+
+      synchronized(this) {
+        if(unwritten.isEmpty()) {
+          writer = null;
+          return;
+        }
+
+        flush = unwritten.get(0);
+
+        for(int level = 0; level < LEVELS; level++) {
+          if(writtenLength[level] < 0) {
+            writtenLength[level] = getFile(level).length();
+          }
+        }
+      }
+
+      write(flush);
+
+      synchronized(this) {
+        unwritten.remove(0);
+
+        for(int level = 0; level < LEVELS; level++) {
+          writtenLength[level] = getFile(level).length();
+        }
+
+        if(flush.endsRebuild) {
+          rebuilding = false;
+        }
+
+        flushesWritten++;
+        notifyAll();
+      }
+    }
+  }
+
+  // writer thread
+  private void write(Flush flush) {
+    try {
+      if(flush.reset) {
+        synchronized(this) {
+          for(int level = 0; level < LEVELS; level++) {
+            getFile(level).delete();
+            writtenLength[level] = 0;
+            oldestBucket[level] = Integer.MAX_VALUE;
+          }
+        }
+
+        new File(directory, SNAPSHOT).delete();
+        writeFailed = false;
+      }
+
+      if(flush.clearBefore > 0) {
+        for(int level = 0; level < LEVELS; level++) {
+          if(getFile(level).exists()) {
+            rewrite(level, firstBucketFrom(level, flush.clearBefore));
+          }
+        }
+      }
+
+      for(int level = 0; level < LEVELS; level++) {
+        if(flush.newest != null) {
+          compactIfExpired(level, flush.newest[level]);
+        }
+
+        if(flush.closed != null) {
+          append(level, flush.closed.buckets[level]);
+        }
+      }
+
+      if(flush.open != null) {
+        saveSnapshot(flush.open);
+      }
+    } catch(IOException e) {
+      Log.w("NetworkLog", "Failed to write rollups to " + directory, e);
+      writeFailed = true;
+    }
+
+    if(flush.endsRebuild && flush.rebuildComplete && !writeFailed) {
+      new File(directory, REBUILDING).delete();
+    }
+  }
+
+  // writer thread
+  private void compactIfExpired(int level, int newest) throws IOException {
+    int buckets = (int) (RETENTION[level] / RESOLUTION[level]);
+
+    if(oldestBucket[level] == Integer.MAX_VALUE) {
+      oldestBucket[level] = readOldestBucket(level);
+    }
+
+    if(oldestBucket[level] == Integer.MAX_VALUE
+        || newest - oldestBucket[level] <= buckets + buckets / 8) {
+      return;
+    }
+
+    rewrite(level, newest - buckets);
+  }
+
+  // rewrites the file of level without the buckets before keepFrom; writer
+  // thread
+  private void rewrite(int level, int keepFrom) throws IOException {
+    long start = System.currentTimeMillis();
+    File file = getFile(level);
+    File temp = new File(directory, FILE_NAMES[level] + ".tmp");
+    DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024));
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 16 * 1024));
+    Key key = new Key();
+    Totals totals = new Totals();
+    int oldest = Integer.MAX_VALUE;
+    int kept = 0;
+
+    try {
+      output.writeLong(MAGIC);
+
+      if(input.readLong() == MAGIC) {
+        while(readRecord(input, key, totals)) {
+          if(key.bucket >= keepFrom) {
+            writeRecord(output, key, totals);
+            kept++;
+
+            if(key.bucket < oldest) {
+              oldest = key.bucket;
+            }
+          }
+        }
+      }
+    } finally {
+      input.close();
+      output.close();
+    }
+
+    // queries take the file and its length together
+    synchronized(this) {
+      if(!temp.renameTo(file)) {
+        temp.delete();
+        throw new IOException("Failed to rename " + temp + " to " + file);
+      }
+
+      writtenLength[level] = file.length();
+    }
+
+    oldestBucket[level] = oldest;
+
+    if(MyLog.enabled) {
+      MyLog.d("Rewrote rollup " + file + ": kept " + kept + " records in " + (System.currentTimeMillis() - start) + " ms");
+    }
+  }
+
+  private int readOldestBucket(int level) throws IOException {
+    File file = getFile(level);
+
+    if(file.length() <= 8) {
+      return Integer.MAX_VALUE;
+    }
+
+    DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256));
+
+    try {
+      // records are appended oldest bucket first, except late and rebuilt ones
+      input.readLong();
+      return input.readInt();
+    } finally {
+      input.close();
+    }
+  }
+
+  private static boolean readRecord(DataInputStream input, Key key, Totals totals) throws IOException {
+    try {
+      key.bucket = input.readInt();
+    } catch(EOFException e) {
+      return false;
+    }
+
+    try {
+      key.uid = input.readInt();
+      key.direction = input.readUnsignedByte();
+      key.iface = input.readUTF();
+      totals.bytes = input.readLong();
+      totals.packets = input.readInt();
+    } catch(EOFException e) {
+      // record cut short by a crash while appending
+      return false;
+    }
+
+    return true;
+  }
+
+  // Series of the bytes in [from, to) at level, for uid or all uids if it
+  // is -1; split keeps directions and interfaces apart.  Reads the level
+  // file, so call it off the UI thread.
+  public ArrayList<Series> query(int level, int uid, long from, long to, boolean split) {
+    HashMap<Key, Series> seriesMap = new HashMap<Key, Series>();
+    int fromBucket = (int) Math.min(from / RESOLUTION[level], Integer.MAX_VALUE);
+    int toBucket = (int) Math.min(to / RESOLUTION[level] + (to % RESOLUTION[level] == 0 ? 0 : 1), Integer.MAX_VALUE);
+    ArrayList<HashMap<Key, Totals>> closed = new ArrayList<HashMap<Key, Totals>>();
+    File file = getFile(level);
+    FileInputStream fileInput = null;
+    long length = 0;
+
+    synchronized(this) {
+      loadSnapshot();
+
+      // the file holds the flushes written so far, up to length
+      length = writtenLength[level] >= 0 ? writtenLength[level] : file.length();
+
+      for(Flush flush : unwritten) {
+        if(flush.reset) {
+          length = 0;
+          closed.clear();
+        }
+
+        if(flush.clearBefore > 0) {
+          fromBucket = Math.max(fromBucket, firstBucketFrom(level, flush.clearBefore));
+        }
+
+        if(flush.closed != null) {
+          closed.add(flush.closed.buckets[level]);
+        }
+      }
+
+      if(length > 0) {
+        try {
+          fileInput = new FileInputStream(file);
+        } catch(FileNotFoundException e) {
+          // nothing written yet
+        }
+      }
+
+      for(Map.Entry<Key, Totals> entry : pending.buckets[level].entrySet()) {
+        addToSeries(seriesMap, entry.getKey(), entry.getValue().bytes, level, uid, fromBucket, toBucket, split);
+      }
+    }
+
+    for(HashMap<Key, Totals> buckets : closed) {
+      for(Map.Entry<Key, Totals> entry : buckets.entrySet()) {
+        addToSeries(seriesMap, entry.getKey(), entry.getValue().bytes, level, uid, fromBucket, toBucket, split);
+      }
+    }
+
+    if(fileInput != null) {
+      DataInputStream input = new DataInputStream(new BufferedInputStream(new BoundedInputStream(fileInput, length), 64 * 1024));
+      Key key = new Key();
+      Totals totals = new Totals();
+
+      try {
+        if(input.readLong() == MAGIC) {
+          while(readRecord(input, key, totals)) {
+            addToSeries(seriesMap, key, totals.bytes, level, uid, fromBucket, toBucket, split);
+          }
+        }
+      } catch(IOException e) {
+        Log.w("NetworkLog", "Failed to read rollup " + file, e);
+      } finally {
+        try { input.close(); } catch(IOException e) { /* ignored */ }
+      }
+    }
+
+    return new ArrayList<Series>(seriesMap.values());
+  }
+
+  private static void addToSeries(HashMap<Key, Series> seriesMap, Key key, long bytes, int level,
+      int uid, int fromBucket, int toBucket, boolean split)
+  {
+    if(key.bucket < fromBucket || key.bucket >= toBucket || (uid != -1 && key.uid != uid)) {
+      return;
+    }
+
+    Key seriesKey = new Key().set(0, key.uid, split ? key.direction : -1, split ? key.iface : null);
+    Series series = seriesMap.get(seriesKey);
+
+    if(series == null) {
+      series = new Series(seriesKey.uid, seriesKey.direction, seriesKey.iface);
+      seriesMap.put(seriesKey, series);
+    }
+
+    series.add(key.bucket * RESOLUTION[level], bytes);
+  }
+
+  public boolean exists() {
+    return directory.exists() && !new File(directory, REBUILDING).exists();
+  }
+
+  // Rebuilds the rollups from the entries of logfile older than now, unless
+  // they already exist.  A rebuild cut short is started over.  Call before
+  // adding entries; those logged from now on are added as usual.
+  public synchronized void rebuildIfMissing(final String logfile) {
+    if(rebuilding || exists() || !(new File(logfile).exists() || LogfileStore.isSegmented(logfile))) {
+      return;
+    }
+
+    final long until = System.currentTimeMillis();
+    File marker = new File(directory, REBUILDING);
+
+    try {
+      directory.mkdirs();
+      new FileOutputStream(marker).close();
+    } catch(IOException e) {
+      Log.w("NetworkLog", "Failed to create " + marker, e);
+      return;
+    }
+
+    // everything before until comes from the log
+    for(int level = 0; level < LEVELS; level++) {
+      pending.buckets[level].clear();
+      newestBucket[level] = Integer.MIN_VALUE;
+    }
+
+    snapshotLoaded = true;
+    rebuilding = true;
+
+    Flush flush = new Flush();
+    flush.reset = true;
+    queue(flush);
+
+    new Thread(new Runnable() {
+      public void run() {
+        rebuild(logfile, until);
+      }
+    }, "RollupRebuild").start();
+  }
+
+  void rebuild(String logfile, long until) {
+    long start = System.currentTimeMillis();
+    LogfileLoader loader = new LogfileLoader();
+    Pending rebuilt = new Pending();
+    long count = 0;
+    boolean complete = false;
+
+    try {
+      loader.openLogfile(logfile, true);
+      LogEntry entry;
+
+      while((entry = loader.readEntry()) != null) {
+        if(entry.timestamp >= until) {
+          continue;
+        }
+
+        rebuilt.add(entry);
+        count++;
+
+        if(rebuilt.size() >= REBUILD_FLUSH_SIZE) {
+          queueRebuilt(rebuilt, until, false, false);
+          rebuilt = new Pending();
+        }
+      }
+
+      complete = true;
+    } catch(Exception e) {
+      Log.w("NetworkLog", "Failed to rebuild rollups from " + logfile, e);
+    } finally {
+      try { loader.closeLogfile(); } catch(IOException e) { /* ignored */ }
+      queueRebuilt(rebuilt, until, true, complete);
+    }
+
+    Log.d("NetworkLog", "Rebuilt rollups from " + logfile + ": " + count + " entries in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private synchronized void queueRebuilt(Pending rebuilt, long until, boolean last, boolean complete) {
+    for(int level = 0; level < LEVELS; level++) {
+      int expired = (int) ((until - RETENTION[level]) / RESOLUTION[level]);
+      Iterator<Key> keys = rebuilt.buckets[level].keySet().iterator();
+
+      while(keys.hasNext()) {
+        if(keys.next().bucket < expired) {
+          keys.remove();
+        }
+      }
+    }
+
+    // keep the rebuilt buckets waiting in memory bounded
+    while(unwritten.size() >= MAX_UNWRITTEN) {
+      try {
+        wait();
+      } catch(InterruptedException e) {
+        break;
+      }
+    }
+
+    Flush flush = new Flush();
+    flush.closed = rebuilt;
+    flush.endsRebuild = last;
+    flush.rebuildComplete = complete;
+    queue(flush);
+  }
+}
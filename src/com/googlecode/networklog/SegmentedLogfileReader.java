@@ -0,0 +1,152 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+// Reads the segments of a LogfileStore as one stream.  Positions are
+// offsets into the concatenation of the segments, so callers can keep
+// treating them like offsets into a single logfile.
+public class SegmentedLogfileReader {
+  private final ArrayList<LogfileStore.Segment> segments;
+  private final long[] bases; // global position of each segment's first byte
+  private final boolean mapped;
+  private long length = 0;
+
+  private LogfileLoader loader = null;
+  private int current = -1;
+  private long startPosition = 0;  // global position of the last seek
+  private long segmentStart = 0;   // global position the current loader started from
+
+  public SegmentedLogfileReader(LogfileStore store, boolean mapped) {
+    this.mapped = mapped;
+    segments = store.getSegments();
+    bases = new long[segments.size() + 1];
+
+    for(int i = 0; i < segments.size(); i++) {
+      bases[i] = length;
+      length += segments.get(i).file.length();
+    }
+
+    bases[segments.size()] = length;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public void close() throws IOException {
+    if(loader != null) {
+      loader.closeLogfile();
+      loader = null;
+    }
+
+    current = -1;
+  }
+
+  private void open(int i) throws IOException {
+    close();
+    loader = new LogfileLoader();
+    loader.openLogfile(segments.get(i).file.getPath(), mapped);
+    current = i;
+    segmentStart = bases[i];
+  }
+
+  public long getLatestTimestamp() throws IOException {
+    for(int i = segments.size() - 1; i >= 0; i--) {
+      LogfileLoader tail = new LogfileLoader();
+
+      try {
+        tail.openLogfile(segments.get(i).file.getPath());
+        long timestamp = tail.getLatestTimestamp();
+
+        if(timestamp != -1) {
+          return timestamp;
+        }
+      } finally {
+        tail.closeLogfile();
+      }
+    }
+
+    return -1;
+  }
+
+  public long seekToTimestamp(long target, boolean seekAhead) throws IOException {
+    if(segments.isEmpty()) {
+      return -1;
+    }
+
+    if(seekAhead) {
+      // last segment starting at or before target
+      int i = segments.size() - 1;
+
+      while(i > 0 && segments.get(i).startTimestamp > target) {
+        i--;
+      }
+
+      open(i);
+      long position = loader.seekToTimestampPosition(target, true);
+
+      if(position == -1) {
+        position = 0;
+      }
+
+      segmentStart = bases[i] + position;
+      startPosition = segmentStart;
+      return startPosition;
+    }
+
+    for(int i = 0; i < segments.size(); i++) {
+      if(LogfileStore.getSegmentEnd(segments, i) < target) {
+        continue;
+      }
+
+      open(i);
+      long position = loader.seekToTimestampPosition(target);
+
+      if(position != -1) {
+        segmentStart = bases[i] + position;
+        startPosition = segmentStart;
+        return startPosition;
+      }
+    }
+
+    close();
+    MyLog.d("[SegmentedLogfileReader] No packets found within time range");
+    return -1;
+  }
+
+  public LogEntry readEntry() throws IOException {
+    if(loader == null) {
+      if(current + 1 >= segments.size()) {
+        return null;
+      }
+
+      open(current + 1);
+    }
+
+    while(true) {
+      LogEntry entry = loader.readEntry();
+
+      if(entry != null) {
+        return entry;
+      }
+
+      if(current + 1 >= segments.size()) {
+        return null;
+      }
+
+      open(current + 1);
+    }
+  }
+
+  public long getProcessedSoFar() {
+    long position = loader == null ? startPosition : segmentStart + loader.getProcessedSoFar();
+    return position - startPosition;
+  }
+}
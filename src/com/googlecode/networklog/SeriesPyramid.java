@@ -0,0 +1,433 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.jjoe64.graphview.GraphView.GraphViewData;
+
+// Bytes of one graph series summed into buckets of 100 ms, 1 s, 10 s,
+// 1 min, 10 min and 1 h.  Each level keeps its non-empty buckets in time
+// order as parallel arrays.  A graph interval is served from the coarsest
+// level whose buckets divide it, so frames never split a bucket, and
+// changing the interval does not touch the packets again.  Intervals no
+// level divides are plotted from the entries themselves.
+public class SeriesPyramid {
+  static final long[] RESOLUTION = { 100, 1000, 10 * 1000, 60 * 1000, 10 * 60 * 1000, 60 * 60 * 1000 };
+  static final int LEVELS = RESOLUTION.length;
+
+  // bucket start times and byte totals by level
+  private final long[][] starts = new long[LEVELS][];
+  private final long[][] bytes = new long[LEVELS][];
+  private final int[] counts = new int[LEVELS];
+
+  public SeriesPyramid() {
+    for(int level = 0; level < LEVELS; level++) {
+      starts[level] = new long[16];
+      bytes[level] = new long[16];
+    }
+  }
+
+  public boolean isEmpty() {
+    return counts[0] == 0;
+  }
+
+  public void add(long timestamp, long len) {
+    for(int level = 0; level < LEVELS; level++) {
+      add(level, timestamp - timestamp % RESOLUTION[level], len);
+    }
+  }
+
+  private void add(int level, long start, long len) {
+    long[] levelStarts = starts[level];
+    int count = counts[level];
+
+    if(count > 0 && levelStarts[count - 1] == start) {
+      bytes[level][count - 1] += len;
+      return;
+    }
+
+    int pos = count;
+
+    if(count > 0 && levelStarts[count - 1] > start) {
+      // out of order
+      pos = search(levelStarts, count, start);
+
+      if(pos >= 0) {
+        bytes[level][pos] += len;
+        return;
+      }
+
+      pos = -pos - 1;
+    }
+
+    if(count == levelStarts.length) {
+      long[] newStarts = new long[count * 2];
+      long[] newBytes = new long[count * 2];
+      System.arraycopy(levelStarts, 0, newStarts, 0, count);
+      System.arraycopy(bytes[level], 0, newBytes, 0, count);
+      starts[level] = levelStarts = newStarts;
+      bytes[level] = newBytes;
+    }
+
+    System.arraycopy(levelStarts, pos, levelStarts, pos + 1, count - pos);
+    System.arraycopy(bytes[level], pos, bytes[level], pos + 1, count - pos);
+    levelStarts[pos] = start;
+    bytes[level][pos] = len;
+    counts[level] = count + 1;
+  }
+
+  // index of start, or -(insertion point) - 1
+  private static int search(long[] values, int count, long value) {
+    int low = 0;
+    int high = count - 1;
+
+    while(low <= high) {
+      int mid = (low + high) >>> 1;
+
+      if(values[mid] < value) {
+        low = mid + 1;
+      } else if(values[mid] > value) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+
+    return -(low + 1);
+  }
+
+  // drops the buckets that end at or before timestamp
+  public void trimBefore(long timestamp) {
+    for(int level = 0; level < LEVELS; level++) {
+      int count = counts[level];
+      int first = search(starts[level], count, timestamp - RESOLUTION[level] + 1);
+
+      if(first < 0) {
+        first = -first - 1;
+      }
+
+      if(first > 0) {
+        System.arraycopy(starts[level], first, starts[level], 0, count - first);
+        System.arraycopy(bytes[level], first, bytes[level], 0, count - first);
+        counts[level] = count - first;
+      }
+    }
+  }
+
+  // coarsest level whose buckets divide frameSize, or -1
+  static int levelFor(double frameSize) {
+    long size = (long) frameSize;
+
+    if(size != frameSize) {
+      return -1;
+    }
+
+    for(int level = LEVELS - 1; level >= 0; level--) {
+      if(size >= RESOLUTION[level] && size % RESOLUTION[level] == 0) {
+        return level;
+      }
+    }
+
+    return -1;
+  }
+
+  // levelFor(frameSize) must not be -1
+  public GraphViewData[] frames(double frameSize) {
+    int level = levelFor(frameSize);
+    return frames(starts[level], bytes[level], counts[level], frameSize);
+  }
+
+  // Plots the frames of frameSize ms of time-ordered (timestamp, bytes)
+  // samples: the total of each frame at its end, with 1 for an empty frame
+  // before and after each run of traffic.
+  public static GraphViewData[] frames(long[] timestamps, long[] values, int count, double frameSize) {
+    Plot plot = new Plot(count + 4);
+    double nextTimeFrame = 0;
+    double frameLen = 1; // len for this time frame
+
+    for(int i = 0; i < count; i++) {
+      double timestamp = timestamps[i];
+      double len = values[i];
+
+      if(nextTimeFrame == 0) {
+        // first plot
+        plot.add(timestamp - 1, 1);
+        plot.add(timestamp, len);
+        nextTimeFrame = timestamp + frameSize;
+        frameLen = len;
+        continue;
+      }
+
+      if(timestamp < nextTimeFrame) {
+        // within the current frame
+        frameLen += len;
+        continue;
+      }
+
+      // end of frame
+      plot.add(nextTimeFrame, frameLen);
+      nextTimeFrame += frameSize;
+      frameLen = 1;
+
+      if(timestamp >= nextTimeFrame) {
+        // gap; plot zero here and just before the data
+        plot.add(nextTimeFrame, frameLen);
+
+        if(timestamp - frameSize > nextTimeFrame) {
+          plot.add(timestamp - frameSize, 1);
+        }
+
+        nextTimeFrame = timestamp;
+        frameLen = len;
+        plot.add(nextTimeFrame, frameLen);
+        nextTimeFrame += frameSize;
+        frameLen = 1;
+      } else {
+        frameLen = len;
+      }
+    }
+
+    // post plot and post zero plot
+    plot.add(nextTimeFrame, frameLen);
+    plot.add(nextTimeFrame + frameSize, 1);
+
+    GraphViewData[] data = new GraphViewData[plot.count];
+
+    for(int i = 0; i < plot.count; i++) {
+      data[i] = new GraphViewData(plot.x[i], plot.y[i]);
+    }
+
+    return data;
+  }
+
+  // (timestamp, bytes) of shown entries in the order shown, with those of
+  // the same ms summed
+  private static class Samples {
+    long[] timestamps = new long[16];
+    long[] bytes = new long[16];
+    int count = 0;
+
+    void add(long timestamp, long len) {
+      if(count > 0 && timestamps[count - 1] == timestamp) {
+        bytes[count - 1] += len;
+        return;
+      }
+
+      if(count == timestamps.length) {
+        long[] newTimestamps = new long[count * 2];
+        long[] newBytes = new long[count * 2];
+        System.arraycopy(timestamps, 0, newTimestamps, 0, count);
+        System.arraycopy(bytes, 0, newBytes, 0, count);
+        timestamps = newTimestamps;
+        bytes = newBytes;
+      }
+
+      timestamps[count] = timestamp;
+      bytes[count] = len;
+      count++;
+    }
+  }
+
+  private static class Plot {
+    double[] x;
+    double[] y;
+    int count = 0;
+
+    Plot(int capacity) {
+      x = new double[capacity];
+      y = new double[capacity];
+    }
+
+    void add(double xValue, double yValue) {
+      if(count == x.length) {
+        double[] newX = new double[count * 2];
+        double[] newY = new double[count * 2];
+        System.arraycopy(x, 0, newX, 0, count);
+        System.arraycopy(y, 0, newY, 0, count);
+        x = newX;
+        y = newY;
+      }
+
+      x[count] = xValue;
+      y[count] = yValue;
+      count++;
+    }
+  }
+
+  // Pyramids of the entries shown by LogFragment by series key.  update()
+  // adds the entries shown since the last call and drops the buckets of
+  // evicted ones; it starts over when the shown entries were refiltered or
+  // renumbered.  All caches are released when the log is cleared and when
+  // memory runs low.  UI thread.
+  public static abstract class Cache<K> {
+    private static final ArrayList<Cache<?>> caches = new ArrayList<Cache<?>>();
+
+    public final HashMap<K, SeriesPyramid> pyramids = new HashMap<K, SeriesPyramid>();
+    private int generation = -1;
+    // sequence number after the last entry added
+    private int end;
+    private final LogFragment.ListItem item = new LogFragment.ListItem();
+
+    protected Cache() {
+      caches.add(this);
+    }
+
+    // the series of item, or null to leave it out
+    protected abstract K key(LogFragment.ListItem item);
+
+    protected void reset() {
+      pyramids.clear();
+    }
+
+    // drops the pyramids until the next update()
+    public void release() {
+      reset();
+      generation = -1;
+    }
+
+    public static void releaseAll() {
+      for(Cache<?> cache : caches) {
+        cache.release();
+      }
+    }
+
+    // Frames of frameSize ms of each series of the shown entries; from the
+    // pyramids if a level divides frameSize, else from the entries.
+    public HashMap<K, GraphViewData[]> frames(LogFragment logFragment, double frameSize) {
+      HashMap<K, GraphViewData[]> frames = new HashMap<K, GraphViewData[]>();
+
+      if(levelFor(frameSize) >= 0) {
+        update(logFragment);
+
+        for(Map.Entry<K, SeriesPyramid> entry : pyramids.entrySet()) {
+          frames.put(entry.getKey(), entry.getValue().frames(frameSize));
+        }
+
+        return frames;
+      }
+
+      HashMap<K, Samples> samplesMap = new HashMap<K, Samples>();
+      int count = logFragment.getShownCount();
+
+      for(int position = 0; position < count; position++) {
+        if(!logFragment.readShownItem(position, item)) {
+          continue;
+        }
+
+        K key = key(item);
+
+        if(key == null) {
+          continue;
+        }
+
+        Samples samples = samplesMap.get(key);
+
+        if(samples == null) {
+          samples = new Samples();
+          samplesMap.put(key, samples);
+        }
+
+        samples.add(item.timestamp, item.len);
+      }
+
+      for(Map.Entry<K, Samples> entry : samplesMap.entrySet()) {
+        Samples samples = entry.getValue();
+        frames.put(entry.getKey(), SeriesPyramid.frames(samples.timestamps, samples.bytes, samples.count, frameSize));
+      }
+
+      return frames;
+    }
+
+    public void update(LogFragment logFragment) {
+      int count = logFragment.getShownCount();
+      int position = 0;
+
+      if(generation != logFragment.getShownGeneration()) {
+        generation = logFragment.getShownGeneration();
+        reset();
+      } else {
+        // shown sequence numbers ascend; skip those already added
+        int low = 0;
+        int high = count;
+
+        while(low < high) {
+          int mid = (low + high) >>> 1;
+
+          if(logFragment.getShownSeq(mid) - end < 0) {
+            low = mid + 1;
+          } else {
+            high = mid;
+          }
+        }
+
+        position = low;
+      }
+
+      long start = System.currentTimeMillis();
+      int added = count - position;
+
+      for(; position < count; position++) {
+        if(!logFragment.readShownItem(position, item)) {
+          continue;
+        }
+
+        K key = key(item);
+
+        if(key == null) {
+          continue;
+        }
+
+        SeriesPyramid pyramid = pyramids.get(key);
+
+        if(pyramid == null) {
+          pyramid = new SeriesPyramid();
+          pyramids.put(key, pyramid);
+        }
+
+        pyramid.add(item.timestamp, item.len);
+      }
+
+      if(count == 0) {
+        reset();
+        return;
+      }
+
+      end = logFragment.getShownSeq(count - 1) + 1;
+
+      // drop evicted entries, up to the oldest one still held
+      int oldest = 0;
+
+      while(oldest < count && !logFragment.readShownItem(oldest, item)) {
+        oldest++;
+      }
+
+      if(oldest == count) {
+        reset();
+        return;
+      }
+
+      Iterator<SeriesPyramid> iterator = pyramids.values().iterator();
+
+      while(iterator.hasNext()) {
+        SeriesPyramid pyramid = iterator.next();
+        pyramid.trimBefore(item.timestamp);
+
+        if(pyramid.isEmpty()) {
+          iterator.remove();
+        }
+      }
+
+      if(MyLog.enabled) {
+        MyLog.d("SeriesPyramid.Cache: added " + added + " entries in " + (System.currentTimeMillis() - start) + " ms; " + pyramids.size() + " series");
+      }
+    }
+  }
+}
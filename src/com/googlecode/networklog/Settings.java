@@ -180,6 +180,10 @@ public class Settings implements OnSharedPreferenceChangeListener {
     return Long.parseLong(prefs.getString("max_log_entries", "75000"));
   }
 
+  public boolean getIndexLogEntries() {
+    return prefs.getBoolean("index_log_entries", false);
+  }
+
   public Sort getPreSortBy() {
     return Sort.forValue(prefs.getString("presort_by", "NAME"));
   }
@@ -232,6 +236,10 @@ public class Settings implements OnSharedPreferenceChangeListener {
     return Integer.parseInt(prefs.getString("log_method", "0"));
   }
 
+  public boolean getLogfileBinary() {
+    return prefs.getBoolean("logfile_binary", false);
+  }
+
   public void setResolveHosts(boolean value) {
     SharedPreferences.Editor editor = prefs.edit();
     editor.putBoolean("resolve_hosts", value);
@@ -352,6 +360,12 @@ public class Settings implements OnSharedPreferenceChangeListener {
     editor.commit();
   }
 
+  public void setIndexLogEntries(boolean value) {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putBoolean("index_log_entries", value);
+    editor.commit();
+  }
+
   public void setPreSortBy(Sort value) {
     SharedPreferences.Editor editor = prefs.edit();
     editor.putString("presort_by", value.toString());
@@ -543,6 +557,12 @@ public class Settings implements OnSharedPreferenceChangeListener {
         }
       }
 
+      if(key.equals("logfile_binary")) {
+        boolean value = prefs.getBoolean(key, false);
+        MyLog.d("New " + key + " value [" + value + "]");
+        LogfileConverter.convertInBackground(context, getLogFile(), value);
+      }
+
       if(key.equals("logfile")) {
         String value = prefs.getString(key, null);
         MyLog.d("New " + key + " value [" + value + "]");
@@ -602,6 +622,13 @@ public class Settings implements OnSharedPreferenceChangeListener {
         return;
       }
 
+      if(key.equals("index_log_entries")) {
+        boolean value = prefs.getBoolean(key, false);
+        MyLog.d("New " + key + " value [" + value + "]");
+        NetworkLog.logFragment.setIndexed(value);
+        return;
+      }
+
       if(key.equals("logcat_debug")) {
         boolean value = prefs.getBoolean(key, false);
         MyLog.d("New " + key + " value [" + value + "]");
@@ -614,7 +641,6 @@ public class Settings implements OnSharedPreferenceChangeListener {
         MyLog.d("New " + key + " value [" + value + "]");
         NetworkLog.appFragment.preSortBy = Sort.forValue(value);
         NetworkLog.appFragment.setPreSortMethod();
-        NetworkLog.appFragment.preSortData();
         NetworkLog.appFragment.sortData();
         NetworkLog.appFragment.refreshAdapter();
         return;
@@ -625,9 +651,7 @@ public class Settings implements OnSharedPreferenceChangeListener {
         MyLog.d("New " + key + " value [" + value + "]");
         NetworkLog.appFragment.sortBy = Sort.forValue(value);
         NetworkLog.appFragment.setSortMethod();
-        NetworkLog.appFragment.preSortData();
         NetworkLog.appFragment.sortData();
-        NetworkLog.appFragment.sortChildren();
         NetworkLog.appFragment.refreshAdapter();
         return;
       }
@@ -13,12 +13,9 @@ import java.lang.Process;
 import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.lang.Thread;
 import java.util.Arrays;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 
 public class ShellCommand {
   Runtime rt;
@@ -29,6 +26,8 @@ public class ShellCommand {
   StreamReader stdout;
   private String error;
   public int exitval;
+  int bufferCapacity = 64;
+  int bufferPolicy = LineRingBuffer.GROW;
 
   public ShellCommand(String[] command, String tag) {
     this(command);
@@ -40,6 +39,12 @@ public class ShellCommand {
     rt = Runtime.getRuntime();
   }
 
+  // must be called before start()
+  public void setOutputBuffer(int capacity, int policy) {
+    bufferCapacity = capacity;
+    bufferPolicy = policy;
+  }
+
   public String[] start(boolean waitForExit) {
     MyLog.d("ShellCommand: starting [" + tag + "] " + Arrays.toString(command));
 
@@ -63,7 +68,7 @@ public class ShellCommand {
 
     if(waitForExit) {
       waitForExit();
-      String[] output = stdout.buffer.toArray(new String[stdout.buffer.size()]);
+      String[] output = stdout.buffer.toArray();
       return output;
     }
 
@@ -136,6 +141,8 @@ public class ShellCommand {
 
     try {
       if(stdout != null) {
+        // unblock the reader if its buffer is full and nobody is consuming
+        stdout.buffer.close();
         stdout.join();
         stdout.close();
       }
@@ -190,7 +197,7 @@ public class ShellCommand {
   class StreamReader extends Thread {
     InputStream is;
     String tag;
-    LinkedBlockingQueue<String> buffer = new LinkedBlockingQueue<String>();
+    LineRingBuffer buffer = new LineRingBuffer(bufferCapacity, bufferPolicy);
 
     StreamReader(InputStream is) {
       this(is, null);
@@ -202,22 +209,54 @@ public class ShellCommand {
     }
 
     public void run() {
-      String outTag = null;
+      char[] input = new char[8192];
+      char[] line = new char[512];
+      int prefixLength = 0;
+      int length;
+      int read;
+      boolean lastWasCarriageReturn = false;
 
       if(tag != null && tag.length() > 0) {
-        outTag = tag + "> ";
+        String outTag = tag + "> ";
+        prefixLength = outTag.length();
+        outTag.getChars(0, prefixLength, line, 0);
       }
 
+      length = prefixLength;
+
       try {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-        String line;
-        while((line = reader.readLine()) != null) {
-          if(tag == null || tag.length() == 0) {
-            buffer.put(line);
-          } else {
-            buffer.put(outTag + line);
+        InputStreamReader reader = new InputStreamReader(is);
+
+        while((read = reader.read(input, 0, input.length)) != -1) {
+          for(int i = 0; i < read; i++) {
+            char c = input[i];
+
+            if(c == '\n' || c == '\r') {
+              // treat \r\n as a single terminator like BufferedReader.readLine()
+              if(c == '\n' && lastWasCarriageReturn) {
+                lastWasCarriageReturn = false;
+                continue;
+              }
+
+              buffer.put(line, 0, length);
+              length = prefixLength;
+              lastWasCarriageReturn = c == '\r';
+            } else {
+              if(length == line.length) {
+                char[] newLine = new char[line.length * 2];
+                System.arraycopy(line, 0, newLine, 0, length);
+                line = newLine;
+              }
+
+              line[length++] = c;
+              lastWasCarriageReturn = false;
+            }
           }
         }
+
+        if(length > prefixLength) {
+          buffer.put(line, 0, length);
+        }
       } catch (InterruptedException e) {
         e.printStackTrace();
       } catch (IOException e) {
@@ -239,14 +278,14 @@ public class ShellCommand {
         }
 
         while(checkForExit() == false) {
-          result = buffer.poll(200, TimeUnit.MILLISECONDS);
+          result = buffer.poll(200);
           if(result != null) {
             return result;
           }
         }
 
         if(buffer.size() != 0) {
-          result = buffer.take();
+          result = buffer.poll(0);
           return result;
         }
       } catch (InterruptedException e) {
@@ -255,6 +294,17 @@ public class ShellCommand {
       return null;
     }
 
+    // copies the next line into dest without creating a String; returns the
+    // line length or -1 if no line arrived within timeout ms
+    public int readLine(CharArray dest, long timeout) {
+      try {
+        return buffer.take(dest, timeout);
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+        return -1;
+      }
+    }
+
     public void close() {
       try {
         is.close();
@@ -0,0 +1,232 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+// Bounded cache of strings, looked up by content without allocating.  Keys
+// hash like String.hashCode(), so a String key's cached hash is reused.
+// Each key maps to a value, itself for interning.
+//
+// The table is split into independently locked shards.  Within a shard a
+// key can only live in one set of WAYS slots; when the set is full one
+// slot is reused, chosen by CLOCK: slots used since the hand last passed
+// them are skipped once.  So recently used strings stay and nothing is
+// ever cleared wholesale.
+public class StringInterner {
+  static final int SHARD_BITS = 4;
+  static final int SHARDS = 1 << SHARD_BITS;
+  static final int WAYS = 4;
+
+  private static class Shard {
+    final String[] keys;
+    final Object[] values;
+    final int[] hashes;
+    final boolean[] referenced;
+    // CLOCK hand of each set
+    final byte[] hands;
+    final int setMask;
+    long hits = 0;
+    long misses = 0;
+
+    Shard(int sets) {
+      keys = new String[sets * WAYS];
+      values = new Object[sets * WAYS];
+      hashes = new int[sets * WAYS];
+      referenced = new boolean[sets * WAYS];
+      hands = new byte[sets];
+      setMask = sets - 1;
+    }
+
+    // slot to store a new key of the set starting at base
+    int victim(int set, int base) {
+      for(int i = 0; i < WAYS; i++) {
+        if(keys[base + i] == null) {
+          return base + i;
+        }
+      }
+
+      while(true) {
+        int slot = base + hands[set];
+        hands[set] = (byte) ((hands[set] + 1) & (WAYS - 1));
+
+        if(!referenced[slot]) {
+          return slot;
+        }
+
+        referenced[slot] = false;
+      }
+    }
+  }
+
+  private final Shard[] shards = new Shard[SHARDS];
+
+  // capacity is spread over the shards, at least one set each
+  public StringInterner(int capacity) {
+    int sets = PowerOfTwo.ceil(capacity / (SHARDS * WAYS));
+
+    for(int i = 0; i < SHARDS; i++) {
+      shards[i] = new Shard(sets);
+    }
+  }
+
+  public static int hash(char[] chars, int offset, int length) {
+    int h = 0;
+
+    for(int i = offset, end = offset + length; i < end; i++) {
+      h = 31 * h + chars[i];
+    }
+
+    return h;
+  }
+
+  private static int spread(int h) {
+    h ^= h >>> 16;
+    return h * 0x45d9f3b;
+  }
+
+  private static boolean matches(String key, char[] chars, int offset, int length) {
+    if(key.length() != length) {
+      return false;
+    }
+
+    for(int i = 0; i < length; i++) {
+      if(key.charAt(i) != chars[offset + i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public String intern(char[] chars, int offset, int length) {
+    int h = hash(chars, offset, length);
+    int s = spread(h);
+    Shard shard = shards[s >>> (32 - SHARD_BITS)];
+
+    synchronized(shard) {
+      int set = s & shard.setMask;
+      int base = set * WAYS;
+
+      for(int i = base; i < base + WAYS; i++) {
+        String key = shard.keys[i];
+
+        if(key != null && shard.hashes[i] == h && matches(key, chars, offset, length)) {
+          shard.referenced[i] = true;
+          shard.hits++;
+          return (String) shard.values[i];
+        }
+      }
+
+      shard.misses++;
+      String string = new String(chars, offset, length);
+      int slot = shard.victim(set, base);
+      shard.keys[slot] = string;
+      shard.values[slot] = string;
+      shard.hashes[slot] = h;
+      shard.referenced[slot] = false;
+      return string;
+    }
+  }
+
+  // the value stored for key, or null
+  public Object get(String key) {
+    int h = key.hashCode();
+    int s = spread(h);
+    Shard shard = shards[s >>> (32 - SHARD_BITS)];
+
+    synchronized(shard) {
+      int base = (s & shard.setMask) * WAYS;
+
+      for(int i = base; i < base + WAYS; i++) {
+        String k = shard.keys[i];
+
+        if(k != null && shard.hashes[i] == h && (k == key || k.equals(key))) {
+          shard.referenced[i] = true;
+          shard.hits++;
+          return shard.values[i];
+        }
+      }
+
+      shard.misses++;
+      return null;
+    }
+  }
+
+  // returns the value now stored for key: value, or the one another thread
+  // stored first
+  public Object put(String key, Object value) {
+    int h = key.hashCode();
+    int s = spread(h);
+    Shard shard = shards[s >>> (32 - SHARD_BITS)];
+
+    synchronized(shard) {
+      int set = s & shard.setMask;
+      int base = set * WAYS;
+
+      for(int i = base; i < base + WAYS; i++) {
+        String k = shard.keys[i];
+
+        if(k != null && shard.hashes[i] == h && (k == key || k.equals(key))) {
+          return shard.values[i];
+        }
+      }
+
+      int slot = shard.victim(set, base);
+      shard.keys[slot] = key;
+      shard.values[slot] = value;
+      shard.hashes[slot] = h;
+      shard.referenced[slot] = false;
+      return value;
+    }
+  }
+
+  public String intern(String string) {
+    String result = (String) get(string);
+
+    if(result == null) {
+      // decouple from the char array of a substring
+      String copy = new String(string);
+      result = (String) put(copy, copy);
+    }
+
+    return result;
+  }
+
+  public long getHits() {
+    long hits = 0;
+
+    for(Shard shard : shards) {
+      synchronized(shard) {
+        hits += shard.hits;
+      }
+    }
+
+    return hits;
+  }
+
+  public long getMisses() {
+    long misses = 0;
+
+    for(Shard shard : shards) {
+      synchronized(shard) {
+        misses += shard.misses;
+      }
+    }
+
+    return misses;
+  }
+
+  // fraction of lookups found, 0 if there were none
+  public double getHitRate() {
+    long hits = getHits();
+    long total = hits + getMisses();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  public int capacity() {
+    return SHARDS * shards[0].keys.length;
+  }
+}
@@ -6,39 +6,31 @@
 
 package com.googlecode.networklog;
 
-import java.util.concurrent.ConcurrentHashMap;
+import android.util.Log;
 
+// Shared strings for addresses, ports, interfaces, app names and the like.
+// The pools are bounded StringInterners that drop their least recently
+// used strings as new ones arrive, and can be used from any thread.
 public class StringPool {
-  final static int maxPoolSize = 1024;
-  final public static ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<String, String>(maxPoolSize);
-  final public static ConcurrentHashMap<String, String> lowercasePool = new ConcurrentHashMap<String, String>(maxPoolSize);
-  final public static ConcurrentHashMap<Integer, String> integerPool = new ConcurrentHashMap<Integer, String>(maxPoolSize);
-  final public static CharArrayStringAATree charPool = new CharArrayStringAATree();
-  static int poolSize = 0;
-  static int lowercasePoolSize = 0;
-  static int integerPoolSize = 0;
-  static CharArray charBuffer = new CharArray();
-
-  public static void clearCharPool() {
-    charPool.clear();
-  }
+  final static int maxPoolSize = 16384;
+  final static int maxLowercasePoolSize = 4096;
+  final public static StringInterner pool = new StringInterner(maxPoolSize);
+  // original string to its lower case
+  final public static StringInterner lowercasePool = new StringInterner(maxLowercasePoolSize);
+
+  private static final ThreadLocal<CharArray> integerChars = new ThreadLocal<CharArray>() {
+    @Override
+      protected CharArray initialValue() {
+        return new CharArray(16);
+      }
+  };
 
   public static String get(CharArray chars) {
     return get(chars.getValue(), chars.getOffset(), chars.getLength());
   }
 
   public static String get(char[] chars, int offset, int length) {
-    synchronized(charBuffer) {
-      charBuffer.setValue(chars, offset, length);
-
-      if (charPool.size + 1 >= maxPoolSize) {
-        // clear pool to free memory and allow pool to rebuild
-        MyLog.d("[StringPool] Clearing charPool");
-        charPool.clear();
-      }
-
-      return charPool.insert(charBuffer);
-    }
+    return pool.intern(chars, offset, length);
   }
 
   public static String get(String string) {
@@ -46,29 +38,7 @@ public class StringPool {
       return "";
     }
 
-    String result = pool.get(string);
-
-    if(result == null) {
-      String newString = new String(string); // decouple string from substring(), etc
-      
-      pool.put(newString, newString);
-      poolSize++;
-
-      if(MyLog.enabled && MyLog.level >= 8) {
-        MyLog.d(8, "[StringPool] new addition [" + newString + "]; pool size: " + poolSize);
-      }
-
-      if (poolSize >= maxPoolSize) {
-        // clear pool to free memory and allow pool to rebuild
-        MyLog.d("[StringPool] Clearing pool");
-        pool.clear();
-        poolSize = 0;
-      }
-
-      return newString;
-    } else {
-      return result;
-    }
+    return pool.intern(string);
   }
 
   public static String getLowerCase(String string) {
@@ -76,29 +46,17 @@ public class StringPool {
       return "";
     }
 
-    String result = lowercasePool.get(string);
+    String result = (String) lowercasePool.get(string);
 
     if(result == null) {
-      String newString = new String(string.toLowerCase());
-
-      lowercasePool.put(string, newString);
-      lowercasePoolSize++;
+      result = (String) lowercasePool.put(string, get(string.toLowerCase()));
 
       if(MyLog.enabled && MyLog.level >= 8) {
-        MyLog.d(8, "[StringPool] new lowercase addition [" + newString + "]; pool size: " + lowercasePoolSize);
-      }
-
-      if (lowercasePoolSize >= maxPoolSize) {
-        // clear pool to free memory and allow pool to rebuild
-        MyLog.d("[StringPool] Clearing lowercase pool");
-        lowercasePool.clear();
-        lowercasePoolSize = 0;
+        MyLog.d(8, "[StringPool] new lowercase addition [" + result + "]");
       }
-
-      return newString;
-    } else {
-      return result;
     }
+
+    return result;
   }
 
   public static String get(Integer integer) {
@@ -106,28 +64,14 @@ public class StringPool {
       return "";
     }
 
-    String result = integerPool.get(integer);
-
-    if(result == null) {
-      String newString = String.valueOf(integer);
-
-      integerPool.put(integer, newString);
-      integerPoolSize++;
-
-      if(MyLog.enabled && MyLog.level >= 8) {
-        MyLog.d(8, "[StringPool] new integer addition [" + newString + "]; pool size: " + integerPoolSize);
-      }
-
-      if (integerPoolSize >= maxPoolSize) {
-        // clear pool to free memory and allow pool to rebuild
-        MyLog.d("[StringPool] Clearing integer pool");
-        integerPool.clear();
-        integerPoolSize = 0;
-      }
+    CharArray chars = integerChars.get();
+    chars.reset();
+    chars.append(integer.intValue());
+    return get(chars);
+  }
 
-      return newString;
-    } else {
-      return result;
-    }
+  public static void logStats() {
+    Log.d("NetworkLog", "[StringPool] hit rate: " + (int) (pool.getHitRate() * 100) + "% of " + (pool.getHits() + pool.getMisses())
+        + "; lowercase: " + (int) (lowercasePool.getHitRate() * 100) + "% of " + (lowercasePool.getHits() + lowercasePool.getMisses()));
   }
 }
@@ -0,0 +1,157 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Upload and download byte counters per uid.  Writers add to them without
+// taking a lock and the reader takes and zeroes them with take().  The first
+// time a uid is seen it is given the next free slot, which it keeps;
+// slots are numbered from 0, so the reader walks 0 to size() - 1.  When
+// the table is full the bytes of new uids are not counted.
+public class ThroughputCounters {
+  public static final int NO_UID = Integer.MIN_VALUE;
+  private static final int EMPTY = NO_UID;
+
+  private final int capacity;
+  private final int mask;
+  // open addressing from uid to slot + 1; 0 while the slot is being
+  // claimed, -1 if there was none left
+  private final AtomicIntegerArray keys;
+  private final AtomicIntegerArray slots;
+  private final AtomicInteger size = new AtomicInteger();
+
+  // by slot
+  private final AtomicIntegerArray uids;
+  private final String[] uidStrings;
+  // upload at 2 * slot, download at 2 * slot + 1
+  private final AtomicLongArray bytes;
+  // remote end of the last packet; only shown, so a torn pair is harmless
+  private final AtomicReferenceArray<String> addresses;
+  private final AtomicIntegerArray ports;
+
+  public ThroughputCounters(int capacity) {
+    this.capacity = capacity;
+    int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+    mask = tableSize - 1;
+    keys = new AtomicIntegerArray(tableSize);
+    slots = new AtomicIntegerArray(tableSize);
+
+    for(int i = 0; i < tableSize; i++) {
+      keys.set(i, EMPTY);
+    }
+
+    uids = new AtomicIntegerArray(capacity);
+
+    for(int i = 0; i < capacity; i++) {
+      uids.set(i, EMPTY);
+    }
+
+    uidStrings = new String[capacity];
+    bytes = new AtomicLongArray(capacity * 2);
+    addresses = new AtomicReferenceArray<String>(capacity);
+    ports = new AtomicIntegerArray(capacity);
+  }
+
+  // slot of uid, claiming one if needed; -1 if the table is full
+  private int slot(int uid, String uidString) {
+    int i = (uid * 0x9E3779B9) >>> 16 & mask;
+
+    while(true) {
+      int key = keys.get(i);
+
+      if(key == EMPTY) {
+        if(size.get() >= capacity) {
+          return -1;
+        }
+
+        if(!keys.compareAndSet(i, EMPTY, uid)) {
+          // lost the cell; look at it again
+          continue;
+        }
+
+        int slot = size.getAndIncrement();
+
+        if(slot >= capacity) {
+          slots.set(i, -1);
+          return -1;
+        }
+
+        uidStrings[slot] = uidString;
+        // publishes uidStrings[slot] to the reader
+        uids.set(slot, uid);
+        slots.set(i, slot + 1);
+        return slot;
+      }
+
+      if(key == uid) {
+        int slot;
+
+        while((slot = slots.get(i)) == 0) {
+          // another writer is claiming it
+          Thread.yield();
+        }
+
+        return slot > 0 ? slot - 1 : -1;
+      }
+
+      i = (i + 1) & mask;
+    }
+  }
+
+  public void add(LogEntry entry) {
+    int slot = slot(entry.uid, entry.uidString);
+
+    if(slot < 0) {
+      return;
+    }
+
+    if(entry.in != null && entry.in.length() > 0) {
+      bytes.addAndGet(slot * 2 + 1, entry.len);
+      addresses.set(slot, entry.src);
+      ports.set(slot, entry.spt);
+    } else {
+      bytes.addAndGet(slot * 2, entry.len);
+      addresses.set(slot, entry.dst);
+      ports.set(slot, entry.dpt);
+    }
+  }
+
+  // number of slots claimed; a slot whose uid is still being set reads
+  // as NO_UID
+  public int size() {
+    return Math.min(size.get(), capacity);
+  }
+
+  public int getUid(int slot) {
+    return uids.get(slot);
+  }
+
+  public String getUidString(int slot) {
+    return uidStrings[slot];
+  }
+
+  public String getAddress(int slot) {
+    return addresses.get(slot);
+  }
+
+  public int getPort(int slot) {
+    return ports.get(slot);
+  }
+
+  // the bytes counted since the last take
+  public long takeUpload(int slot) {
+    return bytes.get(slot * 2) == 0 ? 0 : bytes.getAndSet(slot * 2, 0);
+  }
+
+  public long takeDownload(int slot) {
+    return bytes.get(slot * 2 + 1) == 0 ? 0 : bytes.getAndSet(slot * 2 + 1, 0);
+  }
+}
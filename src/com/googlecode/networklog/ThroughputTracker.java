@@ -6,168 +6,256 @@
 
 package com.googlecode.networklog;
 
+import android.content.Context;
 import android.util.Log;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-
+import java.util.List;
 
+// Per-app throughput.  The ingest path adds each packet's length to its
+// uid's counters without locking; once a second the updater takes the
+// counters into a ring of per-second samples for each app with traffic in
+// the last HISTORY_SECONDS, from which it derives the current rate, an
+// EWMA and the peak, and shows all three in the toast for the apps seen
+// within toastDuration.
+// Counters and samples are in bytes; throughputBps only scales what is
+// shown.
 public class ThroughputTracker {
   public static String throughputString = "";
 
-  static class ThroughputData {
+  static final int HISTORY_SECONDS = 300;
+  static final int MAX_UIDS = 1024;
+  // weight of the newest sample in the EWMA, about a 10 second average
+  static final double EWMA_ALPHA = 0.1;
+
+  static final ThroughputCounters counters = new ThroughputCounters(MAX_UIDS);
+
+  // rate history of one app, only touched by the updater thread
+  static class AppThroughput {
     ApplicationsTracker.AppEntry app;
-    String address;
+    final long[] uploadSamples = new long[HISTORY_SECONDS];
+    final long[] downloadSamples = new long[HISTORY_SECONDS];
+    // index of the next sample
+    int head;
+    // seconds since the last traffic
+    int idleSeconds;
     long upload;
     long download;
-    long clearTime;
-    boolean displayed;
-  }
-
-  public static HashMap<String, ThroughputData> throughputMap = new HashMap<String, ThroughputData>();
-  public static HashMap<String, ThroughputData> resetMap = new HashMap<String, ThroughputData>();
-  
-  private static ApplicationsTracker.AppEntry appEntry;
+    double uploadAverage;
+    double downloadAverage;
+    long uploadPeak;
+    long downloadPeak;
+    // throughput of the last second with traffic, for the toast
+    long lastUpload;
+    long lastDownload;
+    long lastActiveTime;
+    boolean shown;
+
+    void addSample(long upload, long download) {
+      long oldUpload = uploadSamples[head];
+      long oldDownload = downloadSamples[head];
+      uploadSamples[head] = upload;
+      downloadSamples[head] = download;
+      head = head + 1 == HISTORY_SECONDS ? 0 : head + 1;
+
+      this.upload = upload;
+      this.download = download;
+      uploadAverage += (upload - uploadAverage) * EWMA_ALPHA;
+      downloadAverage += (download - downloadAverage) * EWMA_ALPHA;
+
+      if(upload >= uploadPeak) {
+        uploadPeak = upload;
+      } else if(oldUpload == uploadPeak) {
+        uploadPeak = max(uploadSamples);
+      }
 
-  public static void updateEntry(LogEntry entry) {
-    appEntry = ApplicationsTracker.uidMap.get(entry.uidString);
+      if(download >= downloadPeak) {
+        downloadPeak = download;
+      } else if(oldDownload == downloadPeak) {
+        downloadPeak = max(downloadSamples);
+      }
 
-    if(appEntry == null) {
-      Log.w("NetworkLog", "[ThroughputTracker] No app entry for uid " + entry.uidString);
-      return;
+      if(upload > 0 || download > 0) {
+        idleSeconds = 0;
+      } else {
+        idleSeconds++;
+      }
     }
 
-    synchronized(throughputMap) {
-      ThroughputData throughput = throughputMap.get(appEntry.packageName);
+    private static long max(long[] samples) {
+      long max = 0;
 
-      if(throughput == null) {
-        throughput = new ThroughputData();
-        throughput.app = appEntry;
-        throughputMap.put(appEntry.packageName, throughput);
+      for(long sample : samples) {
+        if(sample > max) {
+          max = sample;
+        }
       }
 
-      if(throughput.displayed == true) {
-        throughput.download = 0;
-        throughput.upload = 0;
-      }
+      return max;
+    }
+  }
 
-      if(entry.in != null && entry.in.length() > 0) {
-        if(NetworkLogService.throughputBps) {
-          throughput.download += entry.len * Byte.SIZE;
-        } else {
-          throughput.download += entry.len;
-        }
-        throughput.address = entry.src + ":" + entry.spt;
-      } else {
-        if(NetworkLogService.throughputBps) {
-          throughput.upload += entry.len * Byte.SIZE;
-        } else {
-          throughput.upload += entry.len;
-        }
-        throughput.address = entry.dst + ":" + entry.dpt;
-      }
+  public static void updateEntries(List<LogEntry> entries) {
+    int size = entries.size();
 
-      throughput.clearTime = System.currentTimeMillis() + NetworkLogService.toastDuration;
-      throughput.displayed = false;
+    for(int i = 0; i < size; i++) {
+      counters.add(entries.get(i));
     }
   }
 
+  static long scale(long bytes) {
+    return NetworkLogService.throughputBps ? bytes * Byte.SIZE : bytes;
+  }
+
+  static void appendThroughput(StringBuilder builder, long upload, long download) {
+    String unit = NetworkLogService.throughputBps ? "bps" : "B";
+
+    if(NetworkLogService.invertUploadDownload) {
+      long swap = upload;
+      upload = download;
+      download = swap;
+    }
+
+    builder.append(StringUtils.formatToBytes(scale(upload))).append(unit).append('/')
+      .append(StringUtils.formatToBytes(scale(download))).append(unit);
+  }
+
   static class ThroughputUpdater implements Runnable {
-    boolean running = false;
-    long totalUpload;
-    long totalDownload;
-    StringBuilder toastString = new StringBuilder(512);
+    volatile boolean running = false;
+    // bytes in the last second
+    volatile long totalUpload;
+    volatile long totalDownload;
+    // by counter slot
+    final AppThroughput[] apps = new AppThroughput[MAX_UIDS];
+    final StringBuilder toastString = new StringBuilder(512);
+    final StringBuilder line = new StringBuilder(64);
+    final String averageLabel;
+    final String peakLabel;
+
+    ThroughputUpdater(Context context) {
+      averageLabel = context.getString(R.string.toast_throughput_average);
+      peakLabel = context.getString(R.string.toast_throughput_peak);
+    }
 
     public void stop() {
       running = false;
     }
 
     public void run() {
-      String throughput;
       boolean isDirty = false;
       running = true;
-      String newline;
 
       while(running) {
-        synchronized(throughputMap) {
-          if(isDirty) {
-            isDirty = false;
-            if(!resetMap.isEmpty()) {
-              for(ThroughputData entry : resetMap.values()) {
-                if(NetworkLog.appFragment != null) {
-                  NetworkLog.appFragment.updateAppThroughput(entry.app.uid, 0, 0);
-                }
+        long currentTime = System.currentTimeMillis();
+        long upload = 0;
+        long download = 0;
+        boolean active = false;
+        boolean showToast = false;
+        toastString.setLength(0);
+
+        int size = counters.size();
+
+        for(int slot = 0; slot < size; slot++) {
+          long up = counters.takeUpload(slot);
+          long down = counters.takeDownload(slot);
+          AppThroughput throughput = apps[slot];
+
+          if(throughput == null) {
+            if(up == 0 && down == 0) {
+              continue;
+            }
+
+            ApplicationsTracker.AppEntry app = ApplicationsTracker.uidMap.get(counters.getUidString(slot));
+
+            if(app == null) {
+              if(MyLog.enabled && MyLog.level >= 1) {
+                MyLog.d(1, "[ThroughputTracker] No app entry for uid " + counters.getUidString(slot));
               }
-              resetMap.clear();
+              continue;
             }
-            updateThroughput(0, 0);
-            totalUpload = 0;
-            totalDownload = 0;
+
+            throughput = apps[slot] = new AppThroughput();
+            throughput.app = app;
           }
 
-          if(!throughputMap.isEmpty()) {
-            isDirty = true;
-            toastString.setLength(0);
-            newline = "";
-            long currentTime = System.currentTimeMillis();
-            boolean showToast = false;
-
-            Iterator entries = throughputMap.entrySet().iterator();
-            while(entries.hasNext()) {
-              Map.Entry entry = (Map.Entry) entries.next();
-              ThroughputData value = (ThroughputData) entry.getValue();
-
-              if(value.displayed == false) {
-                totalUpload += value.upload;
-                totalDownload += value.download;
-
-                if(NetworkLog.appFragment != null) {
-                  NetworkLog.appFragment.updateAppThroughput(value.app.uid, value.upload, value.download);
-                  resetMap.put(value.app.packageName, value);
-                }
-              }
+          throughput.addSample(up, down);
 
-              if(NetworkLogService.toastBlockedApps.get(value.app.packageName) == null) {
-                showToast = true;
+          if(up > 0 || down > 0) {
+            upload += up;
+            download += down;
+            throughput.lastUpload = up;
+            throughput.lastDownload = down;
+            throughput.lastActiveTime = currentTime;
+            throughput.shown = true;
 
-                if(NetworkLogService.invertUploadDownload) {
-                  throughput = StringUtils.formatToBytes(value.download) + (NetworkLogService.throughputBps ? "bps/" : "B/")  + StringUtils.formatToBytes(value.upload) + (NetworkLogService.throughputBps ? "bps" : "B");
-                } else {
-                  throughput = StringUtils.formatToBytes(value.upload) + (NetworkLogService.throughputBps ? "bps/" : "B/") + StringUtils.formatToBytes(value.download) + (NetworkLogService.throughputBps ? "bps" : "B");
-                }
+            if(NetworkLog.appFragment != null) {
+              NetworkLog.appFragment.updateAppThroughput(throughput.app.uid, scale(up), scale(down));
+            }
 
-                if(MyLog.enabled && MyLog.level >= 2 && value.displayed == false) {
-                  MyLog.d(2, value.app.name + " throughput: " + throughput);
-                }
+            if(MyLog.enabled && MyLog.level >= 2) {
+              line.setLength(0);
+              appendThroughput(line, up, down);
+              line.append(" avg ");
+              appendThroughput(line, (long) throughput.uploadAverage, (long) throughput.downloadAverage);
+              line.append(" peak ");
+              appendThroughput(line, throughput.uploadPeak, throughput.downloadPeak);
+              MyLog.d(2, throughput.app.name + " throughput: " + line);
+            }
+          } else if(throughput.shown) {
+            throughput.shown = false;
 
-                if(NetworkLogService.toastShowAddress) {
-                  toastString.append(newline + "<b>" +  value.app.name + "</b>: <u>" + value.address + "</u> <i>" + throughput + "</i>");
-                } else {
-                  toastString.append(newline + "<b>" +  value.app.name + "</b>: " + throughput);
-                }
+            if(NetworkLog.appFragment != null) {
+              NetworkLog.appFragment.updateAppThroughput(throughput.app.uid, 0, 0);
+            }
+          }
+
+          if(currentTime - throughput.lastActiveTime <= NetworkLogService.toastDuration) {
+            active = true;
 
-                newline = "<br>";
+            if(NetworkLogService.toastBlockedApps.get(throughput.app.packageName) == null) {
+              if(showToast) {
+                toastString.append("<br>");
               }
 
-              value.displayed = true;
+              showToast = true;
+              toastString.append("<b>").append(throughput.app.name).append("</b>: ");
 
-              if(currentTime >= value.clearTime) {
-                entries.remove();
+              if(NetworkLogService.toastShowAddress) {
+                toastString.append("<u>").append(counters.getAddress(slot)).append(':').append(counters.getPort(slot)).append("</u> <i>");
+                appendThroughput(toastString, throughput.lastUpload, throughput.lastDownload);
+                toastString.append("</i>");
+              } else {
+                appendThroughput(toastString, throughput.lastUpload, throughput.lastDownload);
               }
-            }
 
-            if(showToast) {
-              NetworkLogService.showToast(toastString);
+              toastString.append(" <small>").append(averageLabel).append(' ');
+              appendThroughput(toastString, (long) throughput.uploadAverage, (long) throughput.downloadAverage);
+              toastString.append(", ").append(peakLabel).append(' ');
+              appendThroughput(toastString, throughput.uploadPeak, throughput.downloadPeak);
+              toastString.append("</small>");
             }
+          }
 
-            updateThroughput(totalUpload, totalDownload);
-
-            totalUpload = 0;
-            totalDownload = 0;
+          if(throughput.idleSeconds >= HISTORY_SECONDS) {
+            // nothing left in the window
+            apps[slot] = null;
           }
         }
 
+        totalUpload = upload;
+        totalDownload = download;
+
+        if(showToast) {
+          NetworkLogService.showToast(toastString);
+        }
+
+        if(active) {
+          isDirty = true;
+          updateThroughput(scale(upload), scale(download));
+        } else if(isDirty) {
+          isDirty = false;
+          updateThroughput(0, 0);
+        }
+
         try { Thread.sleep(1000); } catch (Exception e) { Log.d("NetworkLog", "ThroughputUpdater", e); }
       }
     }
@@ -175,13 +263,13 @@ public class ThroughputTracker {
 
   static ThroughputUpdater updater;
 
-  public static void startUpdater() {
+  public static void startUpdater(Context context) {
     if(updater != null) {
       stopUpdater();
     }
 
     updateThroughput(0, 0);
-    updater = new ThroughputUpdater();
+    updater = new ThroughputUpdater(context);
     new Thread(updater, "ThroughputUpdater").start();
   }
 
@@ -226,30 +314,10 @@ public class ThroughputTracker {
   }
 
   public static void updateThroughputBps() {
-    if(updater != null) {
-      synchronized(throughputMap) {
-        for(ThroughputData item : throughputMap.values()) {
-          if(item.displayed == false) {
-            if(NetworkLogService.throughputBps) {
-              item.upload *= Byte.SIZE;
-              item.download *= Byte.SIZE;
-            } else {
-              item.upload /= Byte.SIZE;
-              item.download /= Byte.SIZE;
-            }
-          }
-        }
+    ThroughputUpdater current = updater;
 
-        if(NetworkLogService.throughputBps) {
-          updater.totalUpload *= Byte.SIZE;
-          updater.totalDownload *= Byte.SIZE;
-        } else {
-          updater.totalUpload /= Byte.SIZE;
-          updater.totalDownload /= Byte.SIZE;
-        }
-
-        updateThroughput(updater.totalUpload, updater.totalDownload);
-      }
+    if(current != null) {
+      updateThroughput(scale(current.totalUpload), scale(current.totalDownload));
     }
 
     if(NetworkLog.appFragment != null) {
@@ -0,0 +1,124 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+// Replays 1M packets through AppFragment.rebuildLogEntries.  Run with
+// 'adb shell am instrument -w -e size large
+// com.googlecode.networklog.tests/android.test.InstrumentationTestRunner'
+// and read the timings from logcat.
+@LargeTest
+public class AppFragmentBenchmark extends ActivityInstrumentationTestCase2<NetworkLog> {
+  static final int PACKETS = 1000000;
+  static final int APPS = 50;
+  static final int RUNS = 3;
+
+  public AppFragmentBenchmark() {
+    super(NetworkLog.class);
+  }
+
+  public void testRebuildLogEntries() throws Exception {
+    getActivity();
+
+    long deadline = System.currentTimeMillis() + 60000;
+
+    while(NetworkLog.state != NetworkLog.State.RUNNING || NetworkLog.appFragment == null
+        || NetworkLog.logFragment == null || NetworkLog.logFragment.listItems == null
+        || NetworkLog.appFragment.groupDataBuffer == null || NetworkLog.appFragment.groupDataBuffer.isEmpty()) {
+      assertTrue("NetworkLog did not finish loading apps", System.currentTimeMillis() < deadline);
+      Thread.sleep(100);
+    }
+
+    LogFragment logFragment = NetworkLog.logFragment;
+    AppFragment appFragment = NetworkLog.appFragment;
+    ArrayList<ApplicationsTracker.AppEntry> apps = new ArrayList<ApplicationsTracker.AppEntry>();
+
+    synchronized(ApplicationsTracker.installedAppsLock) {
+      for(ApplicationsTracker.AppEntry app : ApplicationsTracker.installedApps) {
+        if(apps.size() == APPS) {
+          break;
+        }
+
+        if(ApplicationsTracker.uidMap.get(app.uidString) == app) {
+          apps.add(app);
+        }
+      }
+    }
+
+    long[] expected = new long[apps.size()];
+    logFragment.stopUpdater();
+
+    try {
+      PacketStore items = logFragment.listItems;
+
+      synchronized(items) {
+        items.clear();
+        items.setCapacity(PACKETS);
+        generate(items, apps, expected);
+        logFragment.published = items.getEnd();
+      }
+
+      for(int run = 0; run < RUNS; run++) {
+        long start = System.nanoTime();
+        appFragment.rebuildLogEntries();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        Log.d("NetworkLog", "AppFragmentBenchmark: rebuilt " + PACKETS + " packets in " + elapsed + " ms");
+      }
+
+      synchronized(appFragment.groupDataBuffer) {
+        for(int i = 0; i < apps.size(); i++) {
+          int index = appFragment.getItemByAppUid(apps.get(i).uid);
+          assertTrue(index >= 0);
+          assertEquals(expected[i], appFragment.groupDataBuffer.get(index).totalPackets);
+        }
+      }
+    } finally {
+      logFragment.clear();
+      appFragment.rebuildLogEntries();
+      logFragment.startUpdater();
+    }
+  }
+
+  // about 150k distinct hosts, as on a busy device
+  static void generate(PacketStore items, ArrayList<ApplicationsTracker.AppEntry> apps, long[] expected) {
+    Random random = new Random(PACKETS);
+    String[] addresses = new String[3000];
+    String[] protos = { "TCP", "UDP" };
+    String[] ifaces = { "wlan0", "rmnet0", "tun0" };
+    long timestamp = System.currentTimeMillis() - PACKETS;
+
+    for(int i = 0; i < addresses.length; i++) {
+      addresses[i] = StringPool.get("10.1." + (i / 256) + "." + (i % 256));
+    }
+
+    LogEntry entry = new LogEntry();
+
+    for(int i = 0; i < PACKETS; i++) {
+      int app = random.nextInt(apps.size());
+      String iface = ifaces[random.nextInt(ifaces.length)];
+      boolean in = random.nextBoolean();
+      entry.timestamp = timestamp + i;
+      entry.uid = apps.get(app).uid;
+      entry.in = in ? iface : "";
+      entry.out = in ? "" : iface;
+      entry.proto = protos[random.nextInt(protos.length)];
+      entry.src = in ? addresses[random.nextInt(addresses.length)] : "192.168.1.2";
+      entry.dst = in ? "192.168.1.2" : addresses[random.nextInt(addresses.length)];
+      entry.spt = in ? random.nextInt(8) * 100 : 40000 + random.nextInt(20000);
+      entry.dpt = in ? 40000 + random.nextInt(20000) : random.nextInt(8) * 100;
+      entry.len = 40 + random.nextInt(1460);
+      items.add(apps.get(app), entry);
+      expected[app]++;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Random;
+
+// Binary logfiles must read back the same entries as the text format.
+public class BinaryLogfileTest extends TestCase {
+  static final int ENTRIES = 20000;
+
+  File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    file = new File(System.getProperty("java.io.tmpdir"), "binary-test.bin");
+    file.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+  }
+
+  public void testRoundTrip() throws Exception {
+    ArrayList<LogEntry> entries = CompressedLogfileTest.generate(ENTRIES);
+    write(entries, 0, entries.size(), true);
+
+    LogfileLoader loader = new LogfileLoader();
+    loader.openLogfile(file.getPath());
+    assertTrue(loader.isBinary());
+    assertEquals(entries.get(entries.size() - 1).timestamp, loader.getLatestTimestamp());
+    loader.closeLogfile();
+
+    CompressedLogfileTest.assertEntries(entries, 0, CompressedLogfileTest.read(file, -1));
+  }
+
+  public void testAppend() throws Exception {
+    ArrayList<LogEntry> entries = CompressedLogfileTest.generate(ENTRIES);
+    write(entries, 0, ENTRIES / 3, true);
+    write(entries, ENTRIES / 3, entries.size(), true);
+
+    CompressedLogfileTest.assertEntries(entries, 0, CompressedLogfileTest.read(file, -1));
+  }
+
+  // the index is only written on close, so readers rebuild it from the
+  // block headers of a file that is still being appended to
+  public void testMissingIndex() throws Exception {
+    ArrayList<LogEntry> entries = CompressedLogfileTest.generate(ENTRIES);
+    write(entries, 0, entries.size(), false);
+
+    CompressedLogfileTest.assertEntries(entries, 0, CompressedLogfileTest.read(file, -1));
+  }
+
+  // a block torn by a crash is dropped, and appending continues after the
+  // last complete one
+  public void testTornBlock() throws Exception {
+    ArrayList<LogEntry> entries = CompressedLogfileTest.generate(ENTRIES);
+    write(entries, 0, BinaryLogfile.MAX_BLOCK_RECORDS, true);
+    long complete = file.length();
+    write(entries, BinaryLogfile.MAX_BLOCK_RECORDS, BinaryLogfile.MAX_BLOCK_RECORDS * 2, false);
+
+    RandomAccessFile output = new RandomAccessFile(file, "rw");
+    output.setLength(complete + (output.length() - complete) / 2);
+    output.close();
+
+    ArrayList<LogEntry> read = CompressedLogfileTest.read(file, -1);
+    assertEquals(BinaryLogfile.MAX_BLOCK_RECORDS, read.size());
+
+    ArrayList<LogEntry> expected = new ArrayList<LogEntry>(entries.subList(0, BinaryLogfile.MAX_BLOCK_RECORDS));
+    expected.addAll(entries.subList(BinaryLogfile.MAX_BLOCK_RECORDS * 2, entries.size()));
+    write(entries, BinaryLogfile.MAX_BLOCK_RECORDS * 2, entries.size(), true);
+    CompressedLogfileTest.assertEntries(expected, 0, CompressedLogfileTest.read(file, -1));
+  }
+
+  public void testSeek() throws Exception {
+    ArrayList<LogEntry> entries = CompressedLogfileTest.generate(ENTRIES);
+    write(entries, 0, entries.size(), true);
+
+    for(int i : new int[] { 0, 1, BinaryLogfile.MAX_BLOCK_RECORDS - 1, BinaryLogfile.MAX_BLOCK_RECORDS, entries.size() - 1 }) {
+      int first = i;
+
+      while(first > 0 && entries.get(first - 1).timestamp == entries.get(i).timestamp) {
+        first--;
+      }
+
+      CompressedLogfileTest.assertEntries(entries, first, CompressedLogfileTest.read(file, entries.get(i).timestamp));
+    }
+
+    assertEquals(0, CompressedLogfileTest.read(file, entries.get(entries.size() - 1).timestamp + 1).size());
+  }
+
+  // Fixed-width records with per-block dictionaries against CSV lines.  With
+  // a few hosts and random ports and lengths the dictionaries stay small;
+  // when nearly every address is new they take most of each block.
+  public void testSmallerThanText() throws Exception {
+    ArrayList<LogEntry> entries = CompressedLogfileTest.generate(ENTRIES);
+    Random random = new Random(ENTRIES);
+
+    for(LogEntry entry : entries) {
+      entry.src = "10.0.0." + random.nextInt(4);
+      entry.dst = "8.8." + random.nextInt(4) + ".8";
+    }
+
+    assertSizeRatio(entries, 2.4);
+    assertSizeRatio(CompressedLogfileTest.generate(ENTRIES), 1.6);
+  }
+
+  void assertSizeRatio(ArrayList<LogEntry> entries, double ratio) throws Exception {
+    file.delete();
+    write(entries, 0, entries.size(), true);
+
+    File text = new File(System.getProperty("java.io.tmpdir"), "binary-test.csv");
+    FileOutputStream output = new FileOutputStream(text);
+    byte[] bytes = new byte[256];
+
+    for(LogEntry entry : entries) {
+      output.write(bytes, 0, LogfileWriter.formatLine(entry, bytes, 0));
+    }
+
+    output.close();
+
+    long textLength = text.length();
+    text.delete();
+    Log.d("NetworkLog", "BinaryLogfileTest: text " + textLength + " bytes, binary " + file.length() + " bytes");
+    assertTrue("text " + textLength + " bytes, binary " + file.length() + " bytes", file.length() * ratio < textLength);
+  }
+
+  void write(ArrayList<LogEntry> entries, int from, int to, boolean close) throws Exception {
+    RandomAccessFile output = new RandomAccessFile(file, "rw");
+    BinaryLogWriter writer = new BinaryLogWriter(output.getChannel());
+    writer.open();
+
+    for(int i = from; i < to; i++) {
+      writer.add(entries.get(i));
+    }
+
+    if(close) {
+      writer.close();
+    } else {
+      writer.writeBlock();
+    }
+
+    output.close();
+  }
+}
@@ -0,0 +1,112 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Random;
+
+// Tests 500k entries against a six-keyword filter with every field checked,
+// and with only the app or only the host fields.
+// Run with 'adb shell am instrument -w -e size large
+// com.googlecode.networklog.tests/android.test.InstrumentationTestRunner'
+// and read the timings from logcat.
+@LargeTest
+public class CompiledFilterBenchmark extends TestCase {
+  static final int ENTRIES = 500000;
+  static final int RUNS = 5;
+  static final String KEYWORDS = "https, google, tcp, 53, fire, wlan";
+
+  NetworkResolver savedResolver;
+  boolean savedResolveHosts, savedResolvePorts;
+  LogFragment.ListItem[] items;
+
+  @Override
+  protected void setUp() throws Exception {
+    savedResolver = NetworkLog.resolver;
+    savedResolveHosts = NetworkLog.resolveHosts;
+    savedResolvePorts = NetworkLog.resolvePorts;
+
+    HashMap<String, String> hosts = new HashMap<String, String>();
+    NetworkLog.resolver = CompiledFilterTest.stubResolver(hosts);
+    NetworkLog.resolveHosts = true;
+    NetworkLog.resolvePorts = true;
+
+    String[] names = { "Chrome", "Firefox", "Maps", "Mail", "Music" };
+    String[] interfaces = { "wlan0", "rmnet0" };
+    String[] protocols = { "6", "17", "1" };
+    Random random = new Random(ENTRIES);
+
+    // a few thousand distinct entries, a tenth of their hosts named
+    items = new LogFragment.ListItem[4096];
+
+    for(int i = 0; i < items.length; i++) {
+      LogFragment.ListItem item = new LogFragment.ListItem(CompiledFilterTest.app(names[i % names.length], 10000 + i % 50));
+      boolean in = random.nextBoolean();
+      item.in = in ? interfaces[random.nextInt(2)] : null;
+      item.out = in ? null : interfaces[random.nextInt(2)];
+      item.proto = protocols[random.nextInt(protocols.length)];
+      item.srcAddr = "192.168.1." + random.nextInt(256);
+      item.srcPort = random.nextInt(65536);
+      item.dstAddr = "173.194." + random.nextInt(16) + "." + random.nextInt(256);
+      item.dstPort = random.nextInt(4) == 0 ? 53 : random.nextBoolean() ? 443 : 80;
+      items[i] = item;
+
+      if(random.nextInt(10) == 0) {
+        hosts.put(item.dstAddr, "host" + i + ".example.com");
+      }
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    NetworkLog.resolver = savedResolver;
+    NetworkLog.resolveHosts = savedResolveHosts;
+    NetworkLog.resolvePorts = savedResolvePorts;
+  }
+
+  public void testAllFields() throws Exception {
+    run("all fields", CompiledFilterTest.filter(KEYWORDS, true, true, true, true, true, true));
+  }
+
+  public void testAppFields() throws Exception {
+    run("app fields", CompiledFilterTest.filter(KEYWORDS, true, true, false, false, false, false));
+  }
+
+  public void testHostFields() throws Exception {
+    run("host fields", CompiledFilterTest.filter(KEYWORDS, false, false, true, true, true, true));
+  }
+
+  void run(String name, CompiledFilter filter) {
+    int expected = -1;
+
+    for(int run = 0; run < RUNS; run++) {
+      long start = System.nanoTime();
+      int matched = 0;
+
+      for(int i = 0; i < ENTRIES; i++) {
+        if(filter.matches(items[i & (items.length - 1)])) {
+          matched++;
+        }
+      }
+
+      long elapsed = (System.nanoTime() - start) / 1000000;
+      Log.d("NetworkLog", "CompiledFilterBenchmark: " + name + " matched " + matched + " of "
+          + ENTRIES + " entries in " + elapsed + " ms");
+
+      if(expected != -1) {
+        assertEquals(expected, matched);
+      }
+
+      expected = matched;
+    }
+  }
+}
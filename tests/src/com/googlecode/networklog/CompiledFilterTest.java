@@ -0,0 +1,173 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Include and exclude filters compiled from keywords and the FilterDialog
+// checkboxes, with host names from a stub resolver.
+public class CompiledFilterTest extends TestCase {
+  NetworkResolver savedResolver;
+  boolean savedResolveHosts, savedResolvePorts;
+  HashMap<String, String> hosts;
+  LogFragment.ListItem item;
+
+  @Override
+  protected void setUp() throws Exception {
+    savedResolver = NetworkLog.resolver;
+    savedResolveHosts = NetworkLog.resolveHosts;
+    savedResolvePorts = NetworkLog.resolvePorts;
+
+    hosts = new HashMap<String, String>();
+    NetworkLog.resolver = stubResolver(hosts);
+    NetworkLog.resolveHosts = true;
+    NetworkLog.resolvePorts = true;
+
+    item = new LogFragment.ListItem(app("Chrome", 10001));
+    item.in = null;
+    item.out = "wlan0";
+    item.proto = "17";
+    item.srcAddr = "10.0.0.1";
+    item.srcPort = 1000;
+    item.dstAddr = "1.2.3.4";
+    item.dstPort = 80;
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    NetworkLog.resolver = savedResolver;
+    NetworkLog.resolveHosts = savedResolveHosts;
+    NetworkLog.resolvePorts = savedResolvePorts;
+  }
+
+  public void testName() throws Exception {
+    CompiledFilter filter = filter("fire", true, true, true, true, true, true);
+    assertFalse(filter.matches(item));
+    assertTrue(filter.matches(new LogFragment.ListItem(app("Firefox", 10002))));
+    assertTrue(filter.matchesApp(app("Firefox", 10002)));
+
+    // only the name box
+    assertFalse(filter("fire", true, false, true, true, true, true).matchesApp(app("Firefox", 10002)));
+  }
+
+  // uids match whole, not as a substring
+  public void testUid() throws Exception {
+    assertTrue(filter("10001", true, false, false, false, false, false).matches(item));
+    assertFalse(filter("1000", true, false, false, false, false, false).matches(item));
+    assertFalse(filter("10001", false, true, false, false, false, false).matches(item));
+  }
+
+  public void testPort() throws Exception {
+    CompiledFilter filter = filter("53, https", false, false, false, true, false, false);
+    assertFalse(filter.matches(item));
+
+    item.dstPort = 53;
+    assertTrue(filter.matches(item));
+
+    item.dstPort = 443;
+    assertTrue(filter.matches(item));
+
+    item.dstPort = 80;
+    item.srcPort = 53;
+    assertTrue(filter.matches(item));
+
+    // "080" is not port 80
+    assertFalse(filter("080", false, false, false, true, false, false).matchesPort(80));
+  }
+
+  // remembered port results are dropped when resolvePorts changes
+  public void testResolvePortsChange() throws Exception {
+    CompiledFilter filter = filter("https", false, false, false, true, false, false);
+    assertTrue(filter.matchesPort(443));
+
+    NetworkLog.resolvePorts = false;
+    assertFalse(filter.matchesPort(443));
+
+    NetworkLog.resolvePorts = true;
+    assertTrue(filter.matchesPort(443));
+  }
+
+  public void testAddress() throws Exception {
+    CompiledFilter filter = filter("1.2.3", false, false, true, false, false, false);
+    assertTrue(filter.matches(item));
+    assertTrue(filter.matchesAddress("11.2.3.9"));
+    assertFalse(filter.matchesAddress("10.0.0.1"));
+    assertFalse(filter.matchesAddress(null));
+  }
+
+  // an address without a name is tested again once the resolver has one
+  public void testResolvedAddress() throws Exception {
+    CompiledFilter filter = filter("google", false, false, true, false, false, false);
+    assertFalse(filter.matches(item));
+
+    hosts.put("1.2.3.4", "Google.com");
+    assertTrue(filter.matches(item));
+
+    NetworkLog.resolveHosts = false;
+    assertFalse(filter.matches(item));
+
+    NetworkLog.resolveHosts = true;
+    assertTrue(filter.matches(item));
+  }
+
+  // the shown interface is in if set, else out
+  public void testInterface() throws Exception {
+    CompiledFilter filter = filter("wlan", false, false, false, false, true, false);
+    assertTrue(filter.matches(item));
+
+    item.in = "";
+    assertTrue(filter.matches(item));
+
+    item.in = "rmnet0";
+    assertFalse(filter.matches(item));
+  }
+
+  // by number or by name
+  public void testProtocol() throws Exception {
+    assertTrue(filter("udp", false, false, false, false, false, true).matches(item));
+    assertTrue(filter("17", false, false, false, false, false, true).matches(item));
+    assertFalse(filter("tcp", false, false, false, false, false, true).matches(item));
+    assertFalse(filter("udp", true, true, true, true, true, false).matches(item));
+  }
+
+  public void testNoFieldsChecked() throws Exception {
+    CompiledFilter filter = filter("chrome, 10001, 10.0.0.1, 80, wlan0, udp", false, false, false, false, false, false);
+    assertFalse(filter.matches(item));
+    assertFalse(filter.hasAppTests());
+    assertFalse(filter.hasHostTests());
+  }
+
+  static CompiledFilter filter(String keywords, boolean uid, boolean name, boolean address,
+      boolean port, boolean iface, boolean protocol)
+  {
+    ArrayList<String> list = new ArrayList<String>();
+    FilterUtils.buildList(keywords, list);
+    return new CompiledFilter(list, uid, name, address, port, iface, protocol);
+  }
+
+  static ApplicationsTracker.AppEntry app(String name, int uid) {
+    ApplicationsTracker.AppEntry app = new ApplicationsTracker.AppEntry();
+    app.name = name;
+    app.nameLowerCase = name.toLowerCase();
+    app.uid = uid;
+    app.uidString = String.valueOf(uid);
+    return app;
+  }
+
+  // answers host names from the map instead of looking them up
+  static NetworkResolver stubResolver(final HashMap<String, String> hosts) {
+    return new NetworkResolver() {
+      @Override
+      public String resolveAddress(String address) {
+        return hosts.get(address);
+      }
+    };
+  }
+}
@@ -0,0 +1,241 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Random;
+
+// Compressing a segment must not change the entries read back from it.
+public class CompressedLogfileTest extends TestCase {
+  static final int ENTRIES = 20000;
+
+  File directory;
+  LogfileStore store;
+
+  @Override
+  protected void setUp() throws Exception {
+    File logfile = new File(System.getProperty("java.io.tmpdir"), "compressed-test.csv");
+    store = new LogfileStore(logfile.getPath());
+    directory = store.getDirectory();
+    delete(directory);
+    assertTrue(directory.mkdirs());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(directory);
+  }
+
+  public void testTextSegment() throws Exception {
+    ArrayList<LogEntry> entries = generate(ENTRIES);
+    File file = segmentFile(entries);
+    FileOutputStream output = new FileOutputStream(file);
+    byte[] bytes = new byte[256];
+
+    for(LogEntry entry : entries) {
+      output.write(bytes, 0, LogfileWriter.formatLine(entry, bytes, 0));
+    }
+
+    output.close();
+    checkRoundTrip(file, entries);
+  }
+
+  public void testBinarySegment() throws Exception {
+    ArrayList<LogEntry> entries = generate(ENTRIES);
+    File file = segmentFile(entries);
+    RandomAccessFile output = new RandomAccessFile(file, "rw");
+    BinaryLogWriter writer = new BinaryLogWriter(output.getChannel());
+    writer.open();
+
+    for(LogEntry entry : entries) {
+      writer.add(entry);
+    }
+
+    writer.close();
+    output.close();
+    checkRoundTrip(file, entries);
+  }
+
+  public void testEmptySegment() throws Exception {
+    ArrayList<LogEntry> entries = new ArrayList<LogEntry>();
+    File file = new File(directory, LogfileStore.formatName(1000));
+    assertTrue(file.createNewFile());
+    checkRoundTrip(file, entries);
+  }
+
+  // random ports, lengths and addresses, so mostly the timestamps and the
+  // repeated fields compress
+  public void testSmallerThanText() throws Exception {
+    ArrayList<LogEntry> entries = generate(ENTRIES);
+    File file = segmentFile(entries);
+    FileOutputStream output = new FileOutputStream(file);
+    byte[] bytes = new byte[256];
+
+    for(LogEntry entry : entries) {
+      output.write(bytes, 0, LogfileWriter.formatLine(entry, bytes, 0));
+    }
+
+    output.close();
+
+    long textLength = file.length();
+    long last = entries.get(entries.size() - 1).timestamp;
+    assertTrue(store.compressSegment(new LogfileStore.Segment(file, entries.get(0).timestamp, last)));
+    Log.d("NetworkLog", "CompressedLogfileTest: text " + textLength + " bytes, compressed " + file.length() + " bytes");
+    assertTrue("text " + textLength + " bytes, compressed " + file.length() + " bytes", file.length() * 3 < textLength);
+  }
+
+  void checkRoundTrip(File file, ArrayList<LogEntry> entries) throws Exception {
+    assertEquals(entries.size(), read(file, -1).size());
+
+    long start = entries.isEmpty() ? 1000 : entries.get(0).timestamp;
+    long last = entries.isEmpty() ? -1 : entries.get(entries.size() - 1).timestamp;
+    assertTrue(store.compressSegment(new LogfileStore.Segment(file, start, last)));
+    assertFalse(new File(directory, file.getName() + ".z").exists());
+
+    LogfileLoader loader = new LogfileLoader();
+    loader.openLogfile(file.getPath());
+    assertTrue(loader.isCompressed());
+    assertEquals(last, loader.getLatestTimestamp());
+    loader.closeLogfile();
+
+    assertEntries(entries, 0, read(file, -1));
+
+    if(!entries.isEmpty()) {
+      // seeks land on the first entry at or after the target
+      for(int i : new int[] { 0, 1, entries.size() / 3, entries.size() - 1 }) {
+        int first = i;
+
+        while(first > 0 && entries.get(first - 1).timestamp == entries.get(i).timestamp) {
+          first--;
+        }
+
+        assertEntries(entries, first, read(file, entries.get(i).timestamp));
+      }
+    }
+
+    // already compressed
+    assertFalse(store.compressSegment(new LogfileStore.Segment(file, start, last)));
+  }
+
+  static ArrayList<LogEntry> read(File file, long seek) throws Exception {
+    ArrayList<LogEntry> entries = new ArrayList<LogEntry>();
+    LogfileLoader loader = new LogfileLoader();
+    loader.openLogfile(file.getPath());
+
+    try {
+      if(seek != -1 && loader.seekToTimestampPosition(seek) == -1) {
+        return entries;
+      }
+
+      LogEntry entry;
+
+      while((entry = loader.readEntry()) != null) {
+        entries.add(copy(entry));
+      }
+    } finally {
+      loader.closeLogfile();
+    }
+
+    return entries;
+  }
+
+  static void assertEntries(ArrayList<LogEntry> expected, int from, ArrayList<LogEntry> actual) {
+    assertEquals(expected.size() - from, actual.size());
+
+    for(int i = 0; i < actual.size(); i++) {
+      LogEntry a = expected.get(from + i);
+      LogEntry b = actual.get(i);
+      String at = "entry " + (from + i);
+      assertEquals(at, a.timestamp, b.timestamp);
+      assertEquals(at, a.in, b.in);
+      assertEquals(at, a.out, b.out);
+      assertEquals(at, a.uid, b.uid);
+      assertEquals(at, a.src, b.src);
+      assertEquals(at, a.spt, b.spt);
+      assertEquals(at, a.dst, b.dst);
+      assertEquals(at, a.dpt, b.dpt);
+      assertEquals(at, a.len, b.len);
+      assertEquals(at, a.proto, b.proto);
+    }
+  }
+
+  // the loader reuses its entry
+  static LogEntry copy(LogEntry entry) {
+    LogEntry copy = new LogEntry();
+    copy.timestamp = entry.timestamp;
+    copy.in = entry.in;
+    copy.out = entry.out;
+    copy.uid = entry.uid;
+    copy.uidString = entry.uidString;
+    copy.src = entry.src;
+    copy.spt = entry.spt;
+    copy.dst = entry.dst;
+    copy.dpt = entry.dpt;
+    copy.len = entry.len;
+    copy.proto = entry.proto;
+    return copy;
+  }
+
+  // enough entries for several compressed blocks, with repeated timestamps
+  // and both address families
+  static ArrayList<LogEntry> generate(int count) {
+    ArrayList<LogEntry> entries = new ArrayList<LogEntry>(count);
+    Random random = new Random(count);
+    String[] protos = { "TCP", "UDP", "ICMP" };
+    long timestamp = 1350000000000L;
+
+    for(int i = 0; i < count; i++) {
+      LogEntry entry = new LogEntry();
+      timestamp += random.nextInt(4);
+      entry.timestamp = timestamp;
+      boolean in = random.nextBoolean();
+      entry.in = in ? "wlan0" : "";
+      entry.out = in ? "" : "rmnet0";
+      entry.uid = random.nextInt(10) == 0 ? -1 : 10000 + random.nextInt(50);
+      entry.uidString = String.valueOf(entry.uid);
+
+      if(random.nextInt(5) == 0) {
+        entry.src = "2001:db8::" + Integer.toHexString(random.nextInt(65536));
+        entry.dst = "2001:db8:1::" + Integer.toHexString(random.nextInt(65536));
+      } else {
+        entry.src = "10.0." + random.nextInt(256) + "." + random.nextInt(256);
+        entry.dst = "192.168.1." + random.nextInt(256);
+      }
+
+      entry.spt = random.nextInt(65536);
+      entry.dpt = random.nextInt(65536);
+      entry.len = 40 + random.nextInt(1460);
+      entry.proto = protos[random.nextInt(protos.length)];
+      entries.add(entry);
+    }
+
+    return entries;
+  }
+
+  File segmentFile(ArrayList<LogEntry> entries) {
+    return new File(directory, LogfileStore.formatName(entries.get(0).timestamp));
+  }
+
+  static void delete(File file) {
+    File[] files = file.listFiles();
+
+    if(files != null) {
+      for(File child : files) {
+        delete(child);
+      }
+    }
+
+    file.delete();
+  }
+}
@@ -0,0 +1,130 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import junit.framework.TestCase;
+
+// Logger lines as they come from /proc/kmsg, dmesg and logcat.
+public class KernelLogParserTest extends TestCase {
+  KernelLogParser parser;
+  LogEntry entry;
+
+  @Override
+  protected void setUp() throws Exception {
+    parser = new KernelLogParser();
+    entry = new LogEntry();
+  }
+
+  public void testTcpEntry() {
+    parser.setLine("<4>[ 1234.567890] {NL}IN= OUT=wlan0 SRC=10.0.0.2 DST=8.8.8.8 LEN=60 TOS=0x00 PREC=0x00 TTL=64 ID=1 DF "
+        + "PROTO=TCP SPT=40000 DPT=443 WINDOW=14600 RES=0x00 SYN URGP=0 UID=10059 GID=10059 ");
+
+    assertTrue(parser.next(entry));
+    assertEntry("", "wlan0", "10.0.0.2", "8.8.8.8", 60, "TCP", 40000, 443, 10059);
+    assertEquals("10059", entry.uidString);
+    assertFalse(parser.next(entry));
+  }
+
+  public void testFieldsInAnyOrder() {
+    parser.setLine("{NL}UID=1000 PROTO=UDP LEN=76 DST=10.0.0.1 SRC=10.0.0.2 OUT= IN=rmnet0 SPT=53 DPT=1024");
+
+    assertTrue(parser.next(entry));
+    assertEntry("rmnet0", "", "10.0.0.2", "10.0.0.1", 76, "UDP", 53, 1024, 1000);
+  }
+
+  public void testEntryWithoutPortsOrUid() {
+    parser.setLine("{NL}IN=wlan0 OUT= MAC=00:11:22 SRC=1.1.1.1 DST=2.2.2.2 LEN=84 PROTO=ICMP TYPE=0 CODE=0 ID=1 SEQ=1");
+
+    assertTrue(parser.next(entry));
+    assertEntry("wlan0", "", "1.1.1.1", "2.2.2.2", 84, "ICMP", 0, 0, -1);
+    assertEquals("-1", entry.uidString);
+  }
+
+  public void testNegativeUid() {
+    parser.setLine("{NL}IN= OUT=wlan0 SRC=10.0.0.2 DST=10.0.0.255 LEN=40 PROTO=UDP SPT=137 DPT=137 UID=-3");
+
+    assertTrue(parser.next(entry));
+    assertEquals(-3, entry.uid);
+    assertEquals("-3", entry.uidString);
+  }
+
+  // ICMP errors quote the offending packet's header after the outer one; its
+  // ports are the only ones on the line
+  public void testEncapsulatedHeader() {
+    parser.setLine("{NL}IN=wlan0 OUT= SRC=1.1.1.1 DST=10.0.0.2 LEN=88 PROTO=ICMP TYPE=3 CODE=3 "
+        + "[SRC=10.0.0.2 DST=1.1.1.1 LEN=60 PROTO=UDP SPT=5000 DPT=53 LEN=40 ] UID=0");
+
+    assertTrue(parser.next(entry));
+    assertEntry("wlan0", "", "1.1.1.1", "10.0.0.2", 88, "ICMP", 5000, 53, 0);
+  }
+
+  public void testPortsBeforeProtoAreIgnored() {
+    parser.setLine("{NL}IN=wlan0 OUT= SRC=1.1.1.1 DST=2.2.2.2 SPT=1 DPT=2 LEN=84 PROTO=TCP SPT=80 DPT=5000");
+
+    assertTrue(parser.next(entry));
+    assertEquals(80, entry.spt);
+    assertEquals(5000, entry.dpt);
+  }
+
+  public void testSeveralEntries() {
+    parser.setLine("{NL}IN=wlan0 OUT= SRC=1.1.1.1 DST=2.2.2.2 LEN=1 PROTO=TCP SPT=1 DPT=2 UID=1\n"
+        + "unrelated kernel message\n"
+        + "<4>{NL}IN= OUT=wlan0 SRC=2.2.2.2 DST=1.1.1.1 LEN=2 PROTO=UDP SPT=3 DPT=4 UID=2\n");
+
+    assertTrue(parser.next(entry));
+    assertEntry("wlan0", "", "1.1.1.1", "2.2.2.2", 1, "TCP", 1, 2, 1);
+    assertTrue(parser.next(entry));
+    assertEntry("", "wlan0", "2.2.2.2", "1.1.1.1", 2, "UDP", 3, 4, 2);
+    assertFalse(parser.next(entry));
+  }
+
+  public void testCorruptedEntriesAreSkipped() {
+    parser.setLine("{NL}IN=wlan0 OUT= SRC=1.1.1.1 DST={NL}IN=wlan0 OUT= SRC=3.3.3.3 DST=4.4.4.4 LEN=5 PROTO=UDP\n"
+        + "{NL}IN=wlan0 OUT= SRC=1.1.1.1 DST=2.2.2.2 LEN=abc PROTO=TCP\n"
+        + "{NL}IN=wlan0 garbage\n"
+        + "{NL}IN=wlan0 OUT= SRC=5.5.5.5 DST=6.6.6.6 LEN=7 PROTO=UDP SPT=8 DPT=9 UID=10");
+
+    assertTrue(parser.next(entry));
+    assertEntry("wlan0", "", "5.5.5.5", "6.6.6.6", 7, "UDP", 8, 9, 10);
+    assertFalse(parser.next(entry));
+  }
+
+  public void testCharArrayLine() {
+    char[] chars = "{NL}IN= OUT=tun0 SRC=10.8.0.2 DST=10.8.0.1 LEN=52 PROTO=TCP SPT=1 DPT=2 UID=3 trailing".toCharArray();
+    parser.setLine(chars, chars.length - " trailing".length());
+
+    assertTrue(parser.next(entry));
+    assertEntry("", "tun0", "10.8.0.2", "10.8.0.1", 52, "TCP", 1, 2, 3);
+  }
+
+  public void testStringsArePooled() {
+    parser.setLine("{NL}IN=wlan0 OUT= SRC=1.1.1.1 DST=2.2.2.2 LEN=1 PROTO=TCP SPT=1 DPT=2 UID=10001");
+    assertTrue(parser.next(entry));
+    LogEntry first = entry;
+
+    entry = new LogEntry();
+    parser.setLine("{NL}IN=wlan0 OUT= SRC=1.1.1.1 DST=2.2.2.2 LEN=1 PROTO=TCP SPT=1 DPT=2 UID=10001");
+    assertTrue(parser.next(entry));
+
+    assertSame(first.in, entry.in);
+    assertSame(first.src, entry.src);
+    assertSame(first.proto, entry.proto);
+    assertSame(first.uidString, entry.uidString);
+  }
+
+  void assertEntry(String in, String out, String src, String dst, int len, String proto, int spt, int dpt, int uid) {
+    assertEquals(in, entry.in);
+    assertEquals(out, entry.out);
+    assertEquals(src, entry.src);
+    assertEquals(dst, entry.dst);
+    assertEquals(len, entry.len);
+    assertEquals(proto, entry.proto);
+    assertEquals(spt, entry.spt);
+    assertEquals(dpt, entry.dpt);
+    assertEquals(uid, entry.uid);
+  }
+}
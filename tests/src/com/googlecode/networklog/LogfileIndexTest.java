@@ -0,0 +1,275 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+// Timestamp seeks on text logfiles through the sidecar index.
+public class LogfileIndexTest extends TestCase {
+  static final int ENTRIES = 50000;
+
+  File file;
+  String path;
+  ArrayList<LogEntry> entries;
+  // offset of each entry's line
+  long[] offsets;
+
+  @Override
+  protected void setUp() throws Exception {
+    file = new File(System.getProperty("java.io.tmpdir"), "index-test.csv");
+    path = file.getPath();
+    file.delete();
+    LogfileIndex.delete(path);
+    entries = CompressedLogfileTest.generate(ENTRIES);
+    offsets = write(entries, false);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+    LogfileIndex.delete(path);
+  }
+
+  public void testRebuildsMissingSidecar() throws Exception {
+    LogfileIndex index = open();
+    assertTrue(new File(LogfileIndex.getPath(path)).exists());
+    assertEquals(file.length(), index.covered);
+    assertTrue(index.count > 1);
+    assertIndexed(index);
+
+    LogfileIndex loaded = load();
+    assertNotNull(loaded);
+    assertEquals(index.count, loaded.count);
+    assertEquals(index.covered, loaded.covered);
+  }
+
+  public void testStaleSidecarIsRebuilt() throws Exception {
+    open();
+
+    // the logfile is replaced by a shorter one
+    entries = new ArrayList<LogEntry>(entries.subList(0, ENTRIES / 2));
+    offsets = write(entries, false);
+    assertNull(load());
+
+    LogfileIndex index = open();
+    assertEquals(file.length(), index.covered);
+    assertIndexed(index);
+
+    // the logfile is replaced by one of the same length
+    for(LogEntry entry : entries) {
+      entry.timestamp += 1000;
+    }
+
+    write(entries, false);
+    assertNull(load());
+  }
+
+  public void testAppendedLinesAreScanned() throws Exception {
+    open();
+
+    ArrayList<LogEntry> more = CompressedLogfileTest.generate(ENTRIES);
+    long shift = entries.get(ENTRIES - 1).timestamp - more.get(0).timestamp + 1;
+
+    for(LogEntry entry : more) {
+      entry.timestamp += shift;
+    }
+
+    long[] moreOffsets = write(more, true);
+    entries.addAll(more);
+    long[] allOffsets = new long[entries.size()];
+    System.arraycopy(offsets, 0, allOffsets, 0, ENTRIES);
+    System.arraycopy(moreOffsets, 0, allOffsets, ENTRIES, more.size());
+    offsets = allOffsets;
+
+    // the sidecar still matches the prefix it covers
+    LogfileIndex loaded = load();
+    assertNotNull(loaded);
+    assertTrue(loaded.covered < file.length());
+
+    LogfileIndex index = open();
+    assertEquals(file.length(), index.covered);
+    assertIndexed(index);
+    assertSeeks();
+  }
+
+  // the writer appends new entries to the open sidecar
+  public void testAppendToSidecar() throws Exception {
+    LogfileIndex index = open();
+    int count = index.count;
+
+    ArrayList<LogEntry> more = CompressedLogfileTest.generate(ENTRIES);
+
+    for(LogEntry entry : more) {
+      entry.timestamp += entries.get(ENTRIES - 1).timestamp;
+    }
+
+    write(more, true);
+    RandomAccessFile logfile = new RandomAccessFile(file, "r");
+    index.scan(logfile, logfile.length());
+    logfile.close();
+    assertTrue(index.count > count);
+
+    RandomAccessFile sidecar = new RandomAccessFile(LogfileIndex.getPath(path), "rw");
+    index.append(sidecar);
+    sidecar.close();
+
+    LogfileIndex loaded = load();
+    assertNotNull(loaded);
+    assertEquals(index.count, loaded.count);
+    assertEquals(file.length(), loaded.covered);
+  }
+
+  public void testSeeks() throws Exception {
+    assertSeeks();
+
+    // again with the saved sidecar
+    assertTrue(new File(LogfileIndex.getPath(path)).exists());
+    assertSeeks();
+  }
+
+  // a partly written last line is not indexed or returned by seeks
+  public void testIncompleteLastLine() throws Exception {
+    long complete = file.length();
+    FileOutputStream output = new FileOutputStream(file, true);
+    output.write((entries.get(ENTRIES - 1).timestamp + 100 + ",wlan0,,10").getBytes());
+    output.close();
+
+    LogfileIndex index = open();
+    assertEquals(complete, index.covered);
+    assertIndexed(index);
+
+    LogfileLoader loader = new LogfileLoader();
+    loader.openLogfile(path);
+    assertEquals(-1, loader.seekToTimestampPosition(entries.get(ENTRIES - 1).timestamp + 1));
+    loader.closeLogfile();
+  }
+
+  public void testLatestTimestamp() throws Exception {
+    LogfileLoader loader = new LogfileLoader();
+    loader.openLogfile(path);
+    assertEquals(entries.get(ENTRIES - 1).timestamp, loader.getLatestTimestamp());
+    loader.closeLogfile();
+  }
+
+  // seeks must land where a linear scan of the entries does
+  void assertSeeks() throws Exception {
+    LogfileLoader loader = new LogfileLoader();
+    loader.openLogfile(path);
+
+    try {
+      long first = entries.get(0).timestamp;
+      long last = entries.get(entries.size() - 1).timestamp;
+
+      for(long target = first - 5; target <= last + 5; target += (last - first) / 97 + 1) {
+        assertEquals("seek to " + target, expectedSeek(target), loader.seekToTimestampPosition(target));
+        assertEquals("seek ahead to " + target, expectedSeekAhead(target), loader.seekToTimestampPosition(target, true));
+      }
+
+      for(long target : new long[] { first, last, entries.get(entries.size() / 2).timestamp }) {
+        assertEquals("seek to " + target, expectedSeek(target), loader.seekToTimestampPosition(target));
+        assertEquals("seek ahead to " + target, expectedSeekAhead(target), loader.seekToTimestampPosition(target, true));
+      }
+
+      // reads continue from the seek
+      long target = entries.get(entries.size() / 3).timestamp;
+      long position = loader.seekToTimestampPosition(target);
+      LogEntry entry = loader.readEntry();
+      assertEquals(target, entry.timestamp);
+      assertEquals(expectedSeek(target), position);
+    } finally {
+      loader.closeLogfile();
+    }
+  }
+
+  long expectedSeek(long target) {
+    for(int i = 0; i < entries.size(); i++) {
+      if(entries.get(i).timestamp >= target) {
+        return offsets[i];
+      }
+    }
+
+    return -1;
+  }
+
+  long expectedSeekAhead(long target) {
+    long result = 0;
+
+    for(int i = 0; i < entries.size(); i++) {
+      if(entries.get(i).timestamp > target) {
+        break;
+      }
+
+      result = offsets[i] + lineLength(i);
+    }
+
+    return result;
+  }
+
+  long lineLength(int i) {
+    return (i + 1 < offsets.length ? offsets[i + 1] : file.length()) - offsets[i];
+  }
+
+  void assertIndexed(LogfileIndex index) throws Exception {
+    RandomAccessFile logfile = new RandomAccessFile(file, "r");
+
+    try {
+      for(int i = 0; i < index.count; i++) {
+        assertEquals(index.timestamps[i], LogfileIndex.readTimestamp(logfile, index.offsets[i]));
+
+        if(i > 0) {
+          assertTrue(index.offsets[i] - index.offsets[i - 1] >= LogfileIndex.INTERVAL);
+          assertTrue(index.timestamps[i] >= index.timestamps[i - 1]);
+        }
+      }
+    } finally {
+      logfile.close();
+    }
+  }
+
+  LogfileIndex open() throws Exception {
+    RandomAccessFile logfile = new RandomAccessFile(file, "r");
+
+    try {
+      return LogfileIndex.open(path, logfile);
+    } finally {
+      logfile.close();
+    }
+  }
+
+  LogfileIndex load() throws Exception {
+    RandomAccessFile logfile = new RandomAccessFile(file, "r");
+
+    try {
+      return LogfileIndex.load(path, logfile, logfile.length());
+    } finally {
+      logfile.close();
+    }
+  }
+
+  // returns the offset of each entry's line
+  long[] write(ArrayList<LogEntry> entries, boolean append) throws Exception {
+    long offset = append ? file.length() : 0;
+    long[] offsets = new long[entries.size()];
+    FileOutputStream output = new FileOutputStream(file, append);
+    byte[] bytes = new byte[256];
+
+    for(int i = 0; i < entries.size(); i++) {
+      int length = LogfileWriter.formatLine(entries.get(i), bytes, 0);
+      output.write(bytes, 0, length);
+      offsets[i] = offset;
+      offset += length;
+    }
+
+    output.close();
+    return offsets;
+  }
+}
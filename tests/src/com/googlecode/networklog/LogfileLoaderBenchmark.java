@@ -0,0 +1,156 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+// Reads and seeks a synthetic text logfile.
+// Run with 'adb shell am instrument -w -e size large
+// com.googlecode.networklog.tests/android.test.InstrumentationTestRunner'
+// and read the timings from logcat.
+@LargeTest
+public class LogfileLoaderBenchmark extends TestCase {
+  static final long SIZE = 64L * 1024 * 1024;
+  static final int RUNS = 3;
+  static final int SEEKS = 100;
+  static final long START = 1350000000000L;
+
+  File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    file = new File(System.getProperty("java.io.tmpdir"), "loader-benchmark.csv");
+    new File(file.getPath() + ".idx").delete();
+    generate(file, SIZE);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+    new File(file.getPath() + ".idx").delete();
+  }
+
+  public void testRead() throws Exception {
+    long[] chunked = null;
+
+    for(int run = 0; run < RUNS; run++) {
+      for(boolean mapped : new boolean[] { false, true }) {
+        long start = System.nanoTime();
+        long[] result = read(file, mapped);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        Log.d("NetworkLog", "LogfileLoaderBenchmark: " + (mapped ? "mapped" : "chunked") + " read "
+            + result[0] + " entries (" + file.length() + " bytes) in " + elapsed + " ms");
+
+        if(chunked == null) {
+          chunked = result;
+        } else {
+          assertEquals(chunked[0], result[0]);
+          assertEquals(chunked[1], result[1]);
+        }
+      }
+    }
+  }
+
+  // the first seek builds the sidecar index, later ones use it
+  public void testSeek() throws Exception {
+    LogfileLoader loader = new LogfileLoader();
+    loader.openLogfile(file.getPath());
+
+    try {
+      long latest = loader.getLatestTimestamp();
+
+      long start = System.nanoTime();
+      assertTrue(loader.seekToTimestampPosition(latest) > 0);
+      long elapsed = (System.nanoTime() - start) / 1000000;
+      Log.d("NetworkLog", "LogfileLoaderBenchmark: indexed " + file.length() + " bytes in " + elapsed + " ms");
+
+      Random random = new Random(SEEKS);
+      start = System.nanoTime();
+
+      for(int i = 0; i < SEEKS; i++) {
+        long target = START + (long) (random.nextDouble() * (latest - START));
+        long position = loader.seekToTimestampPosition(target, i % 2 == 1);
+        assertTrue(position >= 0);
+      }
+
+      elapsed = (System.nanoTime() - start) / 1000;
+      Log.d("NetworkLog", "LogfileLoaderBenchmark: " + SEEKS + " seeks in " + elapsed / 1000 + " ms, "
+          + elapsed / SEEKS + " us per seek");
+    } finally {
+      loader.closeLogfile();
+    }
+  }
+
+  // entry count and a checksum of the fields
+  static long[] read(File file, boolean mapped) throws Exception {
+    LogfileLoader loader = new LogfileLoader();
+    loader.openLogfile(file.getPath(), mapped);
+    long count = 0;
+    long sum = 0;
+
+    try {
+      LogEntry entry;
+
+      while((entry = loader.readEntry()) != null) {
+        count++;
+        sum += entry.timestamp + entry.len + entry.spt + entry.dpt + entry.uid + entry.src.length() + entry.dst.length();
+      }
+    } finally {
+      loader.closeLogfile();
+    }
+
+    return new long[] { count, sum };
+  }
+
+  // a few hundred local and some 65k remote addresses, like a day of traffic
+  static void generate(File file, long size) throws Exception {
+    if(file.length() >= size) {
+      return;
+    }
+
+    FileOutputStream output = new FileOutputStream(file);
+    Random random = new Random(size);
+    byte[] bytes = new byte[1024 * 1024];
+    LogEntry entry = new LogEntry();
+    long timestamp = START;
+    long written = 0;
+    int length = 0;
+
+    while(written < size) {
+      boolean in = random.nextBoolean();
+      entry.timestamp = timestamp += random.nextInt(20);
+      entry.in = in ? "wlan0" : "";
+      entry.out = in ? "" : "rmnet0";
+      entry.uid = 10000 + random.nextInt(50);
+      entry.src = "192.168.1." + random.nextInt(255);
+      entry.spt = random.nextInt(65536);
+      entry.dst = "173.194." + random.nextInt(255) + "." + random.nextInt(255);
+      entry.dpt = random.nextBoolean() ? 443 : 80;
+      entry.len = random.nextInt(1500);
+      entry.proto = random.nextBoolean() ? "TCP" : "UDP";
+
+      int end = LogfileWriter.formatLine(entry, bytes, length);
+      written += end - length;
+      length = end;
+
+      if(length > bytes.length - 256) {
+        output.write(bytes, 0, length);
+        length = 0;
+      }
+    }
+
+    output.write(bytes, 0, length);
+    output.close();
+  }
+}
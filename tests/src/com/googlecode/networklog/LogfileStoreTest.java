@@ -0,0 +1,234 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+
+// Logfiles written by LogfileWriter into segments, read back as one stream
+// and cleared segment by segment.
+public class LogfileStoreTest extends TestCase {
+  static final long BASE = 10 * LogfileStore.SEGMENT_DURATION;
+  // a little over four hours
+  static final int ENTRIES = 30000;
+  static final long STEP = 500;
+  static final int LEGACY_ENTRIES = 100;
+  static final int LATER_ENTRIES = 100;
+
+  String path;
+  LogfileStore store;
+  ArrayList<LogEntry> entries;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = new File(System.getProperty("java.io.tmpdir"), "store-test.csv").getPath();
+    store = new LogfileStore(path);
+    waitForCompressor();
+    CompressedLogfileTest.delete(store.getDirectory());
+    new File(path).delete();
+    entries = new ArrayList<LogEntry>();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    waitForCompressor();
+    CompressedLogfileTest.delete(store.getDirectory());
+    new File(path).delete();
+  }
+
+  public void testTextSegments() throws Exception {
+    checkSegments(false);
+  }
+
+  public void testBinarySegments() throws Exception {
+    checkSegments(true);
+  }
+
+  public void testClearText() throws Exception {
+    checkClear(false);
+  }
+
+  public void testClearBinary() throws Exception {
+    checkClear(true);
+  }
+
+  // clearing while the writer still has a segment open leaves that one alone
+  public void testClearKeepsActiveSegment() throws Exception {
+    LogfileWriter writer = new LogfileWriter(path, 50, 65536, false, null);
+    writer.start();
+
+    try {
+      ArrayList<LogEntry> batch = generate(BASE, 100, STEP);
+      writer.write(batch);
+      writer.rotate(5000);
+
+      ArrayList<LogEntry> later = generate(BASE + 100 * STEP, 100, STEP);
+      writer.write(later);
+      waitForSegments(2);
+
+      store.clearOlderThan(Long.MAX_VALUE);
+      assertEquals(1, store.getSegments().size());
+      assertEquals(later.get(0).timestamp, store.getOldestTimestamp());
+    } finally {
+      writer.stop();
+    }
+
+    waitForCompressor();
+    assertEquals(100, CompressedLogfileTest.read(new File(path), -1).size());
+  }
+
+  void checkSegments(boolean binary) throws Exception {
+    write(binary);
+
+    // the plain logfile was moved in as the first segment
+    assertFalse(new File(path).exists());
+    assertTrue(LogfileStore.isSegmented(path));
+
+    // one per hour of the first batch, plus the legacy and rotated ones
+    ArrayList<LogfileStore.Segment> segments = store.getSegments();
+    assertEquals(7, segments.size());
+    assertEquals(1000, segments.get(0).startTimestamp);
+
+    for(int hour = 0; hour < 5; hour++) {
+      long start = BASE + hour * LogfileStore.SEGMENT_DURATION;
+      long last = Math.min(start + LogfileStore.SEGMENT_DURATION - STEP, BASE + (ENTRIES - 1) * STEP);
+      assertEquals(start, segments.get(hour + 1).startTimestamp);
+      assertEquals(last, segments.get(hour + 1).lastTimestamp);
+    }
+
+    assertEquals(entries.get(entries.size() - LATER_ENTRIES).timestamp, segments.get(6).startTimestamp);
+
+    CompressedLogfileTest.assertEntries(entries, 0, CompressedLogfileTest.read(new File(path), -1));
+
+    LogfileLoader loader = new LogfileLoader();
+    loader.openLogfile(path);
+    assertEquals(entries.get(entries.size() - 1).timestamp, loader.getLatestTimestamp());
+    loader.closeLogfile();
+
+    // seeks into the first, a middle and the last segment, to segment
+    // boundaries and between segments
+    long[] targets = { 0, 1050, BASE - 1, BASE + 2 * LogfileStore.SEGMENT_DURATION,
+      BASE + 2 * LogfileStore.SEGMENT_DURATION + 1, BASE + ENTRIES * STEP, entries.get(entries.size() - 1).timestamp };
+
+    for(long target : targets) {
+      CompressedLogfileTest.assertEntries(entries, firstAtOrAfter(target), CompressedLogfileTest.read(new File(path), target));
+    }
+
+    assertEquals(0, CompressedLogfileTest.read(new File(path), entries.get(entries.size() - 1).timestamp + 1).size());
+    assertEquals(1000, store.getOldestTimestamp());
+  }
+
+  void checkClear(boolean binary) throws Exception {
+    write(binary);
+
+    // whole segments before the cutoff go, the one straddling it is trimmed
+    long cutoff = BASE + LogfileStore.SEGMENT_DURATION + LogfileStore.SEGMENT_DURATION / 2;
+    store.clearOlderThan(cutoff);
+
+    ArrayList<LogfileStore.Segment> segments = store.getSegments();
+    assertEquals(5, segments.size());
+    assertEquals(cutoff, segments.get(0).startTimestamp);
+    assertEquals(BASE + 2 * LogfileStore.SEGMENT_DURATION - STEP, segments.get(0).lastTimestamp);
+    assertEquals(cutoff, store.getOldestTimestamp());
+
+    int first = firstAtOrAfter(cutoff);
+    CompressedLogfileTest.assertEntries(entries, first, CompressedLogfileTest.read(new File(path), -1));
+    CompressedLogfileTest.assertEntries(entries, firstAtOrAfter(BASE + 3 * LogfileStore.SEGMENT_DURATION),
+        CompressedLogfileTest.read(new File(path), BASE + 3 * LogfileStore.SEGMENT_DURATION));
+
+    // a cutoff on a segment boundary only deletes
+    store.clearOlderThan(BASE + 3 * LogfileStore.SEGMENT_DURATION);
+    assertEquals(3, store.getSegments().size());
+
+    store.clearOlderThan(Long.MAX_VALUE);
+    assertEquals(0, store.getSegments().size());
+    assertEquals(0, CompressedLogfileTest.read(new File(path), -1).size());
+    assertEquals(Long.MAX_VALUE, store.getOldestTimestamp());
+  }
+
+  // a plain logfile from an older version, then four hours of traffic, a
+  // rotation and a few more entries
+  void write(boolean binary) throws Exception {
+    ArrayList<LogEntry> legacy = generate(1000, LEGACY_ENTRIES, 1);
+    FileOutputStream output = new FileOutputStream(path);
+    byte[] bytes = new byte[256];
+
+    for(LogEntry entry : legacy) {
+      output.write(bytes, 0, LogfileWriter.formatLine(entry, bytes, 0));
+    }
+
+    output.close();
+    entries.addAll(legacy);
+
+    LogfileWriter writer = new LogfileWriter(path, 50, 65536, binary, null);
+    writer.start();
+
+    try {
+      ArrayList<LogEntry> batch = generate(BASE, ENTRIES, STEP);
+      writer.write(batch);
+      entries.addAll(batch);
+      writer.rotate(5000);
+
+      batch = generate(BASE + ENTRIES * STEP, LATER_ENTRIES, 10);
+      writer.write(batch);
+      entries.addAll(batch);
+    } finally {
+      writer.stop();
+    }
+
+    // compressed segments must read back the same
+    waitForCompressor();
+  }
+
+  int firstAtOrAfter(long target) {
+    for(int i = 0; i < entries.size(); i++) {
+      if(entries.get(i).timestamp >= target) {
+        return i;
+      }
+    }
+
+    return entries.size();
+  }
+
+  void waitForSegments(int segments) throws Exception {
+    long deadline = System.currentTimeMillis() + 5000;
+
+    while(store.getSegments().size() < segments || store.getSegments().get(segments - 1).file.length() == 0) {
+      assertTrue("timed out waiting for " + segments + " segments", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  static void waitForCompressor() throws Exception {
+    while(true) {
+      Thread compressor;
+
+      synchronized(LogfileStore.class) {
+        compressor = LogfileStore.compressor;
+      }
+
+      if(compressor == null) {
+        return;
+      }
+
+      compressor.join();
+    }
+  }
+
+  static ArrayList<LogEntry> generate(long start, int count, long step) {
+    ArrayList<LogEntry> entries = CompressedLogfileTest.generate(count);
+
+    for(int i = 0; i < count; i++) {
+      entries.get(i).timestamp = start + i * step;
+    }
+
+    return entries;
+  }
+}
@@ -0,0 +1,141 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+
+// Text logfiles read from mapped windows must give the same entries as the
+// chunked reader.
+public class MappedLogfileReaderTest extends TestCase {
+  static final int ENTRIES = 20000;
+
+  File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    file = new File(System.getProperty("java.io.tmpdir"), "mapped-test.csv");
+    file.delete();
+    new File(file.getPath() + ".idx").delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+    new File(file.getPath() + ".idx").delete();
+  }
+
+  public void testSameEntriesAsChunked() throws Exception {
+    ArrayList<LogEntry> entries = CompressedLogfileTest.generate(ENTRIES);
+    write(entries, "");
+
+    CompressedLogfileTest.assertEntries(entries, 0, read(file, false, -1));
+    CompressedLogfileTest.assertEntries(entries, 0, read(file, true, -1));
+  }
+
+  // the chunked reader skips lines longer than its 128 byte line buffer
+  public void testLongLine() throws Exception {
+    ArrayList<LogEntry> entries = CompressedLogfileTest.generate(3);
+    StringBuilder name = new StringBuilder();
+
+    while(name.length() < 300) {
+      name.append("tun");
+    }
+
+    entries.get(1).in = name.toString();
+    write(entries, "");
+
+    CompressedLogfileTest.assertEntries(entries, 0, read(file, true, -1));
+  }
+
+  public void testLinesAcrossWindows() throws Exception {
+    ArrayList<LogEntry> entries = new ArrayList<LogEntry>();
+
+    while(entries.size() * 60L < MappedLogfileReader.WINDOW_SIZE * 2L) {
+      entries.addAll(CompressedLogfileTest.generate(ENTRIES));
+    }
+
+    write(entries, "");
+    assertTrue(file.length() > MappedLogfileReader.WINDOW_SIZE * 2L);
+
+    ArrayList<LogEntry> read = read(file, true, -1);
+    assertEquals(entries.size(), read.size());
+
+    for(int i = 0; i < entries.size(); i++) {
+      assertEquals("entry " + i, entries.get(i).timestamp, read.get(i).timestamp);
+      assertEquals("entry " + i, entries.get(i).src, read.get(i).src);
+      assertEquals("entry " + i, entries.get(i).proto, read.get(i).proto);
+    }
+  }
+
+  // the service is still writing the last line
+  public void testUnterminatedLastLine() throws Exception {
+    ArrayList<LogEntry> entries = CompressedLogfileTest.generate(100);
+    write(entries, "1350000009999,wlan0,,10001,10.0.0.1,1,10.0.0.2,2,3,TC");
+
+    CompressedLogfileTest.assertEntries(entries, 0, read(file, true, -1));
+  }
+
+  public void testEmptyLinesAreSkipped() throws Exception {
+    ArrayList<LogEntry> entries = CompressedLogfileTest.generate(100);
+    write(entries, "\n\n");
+
+    CompressedLogfileTest.assertEntries(entries, 0, read(file, true, -1));
+  }
+
+  public void testSeek() throws Exception {
+    ArrayList<LogEntry> entries = CompressedLogfileTest.generate(ENTRIES);
+    write(entries, "");
+
+    for(int i : new int[] { 0, 1, entries.size() / 3, entries.size() - 1 }) {
+      int first = i;
+
+      while(first > 0 && entries.get(first - 1).timestamp == entries.get(i).timestamp) {
+        first--;
+      }
+
+      CompressedLogfileTest.assertEntries(entries, first, read(file, true, entries.get(i).timestamp));
+    }
+  }
+
+  void write(ArrayList<LogEntry> entries, String trailer) throws Exception {
+    FileOutputStream output = new FileOutputStream(file);
+    byte[] bytes = new byte[1024];
+
+    for(LogEntry entry : entries) {
+      output.write(bytes, 0, LogfileWriter.formatLine(entry, bytes, 0));
+    }
+
+    output.write(trailer.getBytes());
+    output.close();
+  }
+
+  static ArrayList<LogEntry> read(File file, boolean mapped, long seek) throws Exception {
+    ArrayList<LogEntry> entries = new ArrayList<LogEntry>();
+    LogfileLoader loader = new LogfileLoader();
+    loader.openLogfile(file.getPath(), mapped);
+
+    try {
+      if(seek != -1 && loader.seekToTimestampPosition(seek) == -1) {
+        return entries;
+      }
+
+      LogEntry entry;
+
+      while((entry = loader.readEntry()) != null) {
+        entries.add(CompressedLogfileTest.copy(entry));
+      }
+    } finally {
+      loader.closeLogfile();
+    }
+
+    return entries;
+  }
+}
@@ -0,0 +1,173 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+
+// Socket tables read from fixture copies of /proc/<pid>/net.
+public class NetStatTest extends TestCase {
+  static final String TCP_HEADER = "  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n";
+  static final String TCP6_HEADER = "  sl  local_address                         remote_address                        st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n";
+
+  // 127.0.0.1:5037 listening, 10.0.0.2:40000 -> 8.8.8.8:443
+  static final String LISTEN = "   0: 0100007F:13AD 00000000:0000 0A 00000000:00000000 00:00000000 00000000 10059        0 1234 1 0000000000000000 100 0 0 10 0\n";
+  static final String HTTPS = "   1: 0200000A:9C40 08080808:01BB 01 00000000:00000000 00:00000000 00000000 10060        0 1235 1 0000000000000000 100 0 0 10 0\n";
+  // 10.0.0.2:53 -> 10.0.0.1:1024
+  static final String DNS = "   2: 0200000A:0035 0100000A:0400 07 00000000:00000000 00:00000000 00000000  1000        0 1236 2 0000000000000000 0\n";
+  // ::ffff:10.0.0.2:40001 -> ::ffff:8.8.8.8:443
+  static final String MAPPED = "   0: 0000000000000000FFFF00000200000A:9C41 0000000000000000FFFF000008080808:01BB 01 00000000:00000000 00:00000000 00000000 10061        0 1237 1\n";
+  // 2001:db8::2:80 -> fe80::1:4660
+  static final String IPV6 = "   1: B80D0120000000000000000002000000:0050 000080FE000000000000000001000000:1234 01 00000000:00000000 00:00000000 00000000 10062        0 1238 1\n";
+
+  File directory;
+  NetStat netstat;
+  Recorder recorder;
+
+  static class Recorder implements NetStat.Listener {
+    final ArrayList<String> added = new ArrayList<String>();
+    final ArrayList<String> removed = new ArrayList<String>();
+
+    public void onConnectionAdded(NetStat.Snapshot snapshot, int index) {
+      added.add(describe(snapshot, index));
+    }
+
+    public void onConnectionRemoved(NetStat.Snapshot snapshot, int index) {
+      removed.add(describe(snapshot, index));
+    }
+
+    static String describe(NetStat.Snapshot snapshot, int index) {
+      return snapshot.proto[index] + " " + snapshot.getSrc(index) + ":" + snapshot.spt[index]
+        + " " + snapshot.getDst(index) + ":" + snapshot.dpt[index] + " " + snapshot.uid[index];
+    }
+
+    void clear() {
+      added.clear();
+      removed.clear();
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = new File(System.getProperty("java.io.tmpdir"), "netstat-test");
+    directory.mkdirs();
+    netstat = new NetStat(directory.getPath());
+    recorder = new Recorder();
+    write("tcp", TCP_HEADER + LISTEN + HTTPS);
+    write("udp", TCP_HEADER + DNS);
+    write("tcp6", TCP6_HEADER + MAPPED + IPV6);
+    write("udp6", TCP6_HEADER);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for(String table : NetStat.tables) {
+      new File(directory, table).delete();
+    }
+
+    directory.delete();
+  }
+
+  public void testReadsAllTables() throws Exception {
+    assertTrue(netstat.refresh(0, netstat.getGeneration(), recorder));
+
+    assertEquals(5, recorder.added.size());
+    assertTrue(recorder.added.contains("6 127.0.0.1:5037 0.0.0.0:0 10059"));
+    assertTrue(recorder.added.contains("6 10.0.0.2:40000 8.8.8.8:443 10060"));
+    assertTrue(recorder.added.contains("17 10.0.0.2:53 10.0.0.1:1024 1000"));
+    assertTrue(recorder.added.contains("6 10.0.0.2:40001 8.8.8.8:443 10061"));
+    assertTrue(recorder.added.contains("6 2001:0db8:0000:0000:0000:0000:0000:0002:80 fe80:0000:0000:0000:0000:0000:0000:0001:4660 10062"));
+    assertTrue(recorder.removed.isEmpty());
+  }
+
+  public void testReportsOnlyChanges() throws Exception {
+    netstat.refresh(0, netstat.getGeneration(), recorder);
+    recorder.clear();
+
+    assertTrue(netstat.refresh(0, netstat.getGeneration(), recorder));
+    assertTrue(recorder.added.isEmpty());
+    assertTrue(recorder.removed.isEmpty());
+
+    // the listening socket closes and a second https connection opens
+    write("tcp", TCP_HEADER + HTTPS.replace("   1:", "   0:")
+        + "   1: 0200000A:9C42 08080808:01BB 01 00000000:00000000 00:00000000 00000000 10060        0 1239 1\n");
+
+    assertTrue(netstat.refresh(0, netstat.getGeneration(), recorder));
+    assertEquals(1, recorder.added.size());
+    assertEquals("6 10.0.0.2:40002 8.8.8.8:443 10060", recorder.added.get(0));
+    assertEquals(1, recorder.removed.size());
+    assertEquals("6 127.0.0.1:5037 0.0.0.0:0 10059", recorder.removed.get(0));
+  }
+
+  public void testReset() throws Exception {
+    netstat.refresh(0, netstat.getGeneration(), recorder);
+    recorder.clear();
+
+    netstat.reset();
+    assertTrue(netstat.refresh(0, netstat.getGeneration(), recorder));
+    assertEquals(5, recorder.added.size());
+    assertTrue(recorder.removed.isEmpty());
+  }
+
+  public void testRefreshesAreRateLimited() throws Exception {
+    assertTrue(netstat.refresh(60000, netstat.getGeneration(), recorder));
+    assertFalse(netstat.refresh(60000, netstat.getGeneration(), recorder));
+    assertTrue(netstat.refresh(0, netstat.getGeneration(), recorder));
+  }
+
+  // a caller that waited while another thread refreshed does not refresh again
+  public void testRefreshesAreCoalesced() throws Exception {
+    int generation = netstat.getGeneration();
+    assertTrue(netstat.refresh(0, generation, recorder));
+    assertFalse(netstat.refresh(0, generation, recorder));
+    assertEquals(generation + 1, netstat.getGeneration());
+  }
+
+  public void testBadLinesAreSkipped() throws Exception {
+    write("udp", TCP_HEADER + "   0: 0200000A:00ZZ 0100000A:0400 07\n" + "   1: 0200000A\n" + DNS);
+
+    netstat.refresh(0, netstat.getGeneration(), recorder);
+    assertEquals(5, recorder.added.size());
+    assertTrue(recorder.added.contains("17 10.0.0.2:53 10.0.0.1:1024 1000"));
+  }
+
+  public void testMissingTablesAreSkipped() throws Exception {
+    new File(directory, "udp6").delete();
+
+    assertTrue(netstat.refresh(0, netstat.getGeneration(), recorder));
+    assertEquals(5, recorder.added.size());
+  }
+
+  // sockets from both the IPv4 and IPv6 tables match the flows the kernel logs
+  public void testSocketsMatchConnectionTable() throws Exception {
+    final ConnectionTable connections = new ConnectionTable(100, 60000);
+
+    netstat.refresh(0, netstat.getGeneration(), new NetStat.Listener() {
+      public void onConnectionAdded(NetStat.Snapshot s, int i) {
+        connections.put(s.srcHi[i], s.srcLo[i], s.spt[i], s.dstHi[i], s.dstLo[i], s.dpt[i], s.proto[i], s.uid[i], 0);
+      }
+
+      public void onConnectionRemoved(NetStat.Snapshot s, int i) {
+      }
+    });
+
+    assertEquals(10060, connections.get("8.8.8.8", 443, "10.0.0.2", 40000, ConnectionTable.PROTO_TCP, 1));
+    assertEquals(10061, connections.get("10.0.0.2", 40001, "8.8.8.8", 443, ConnectionTable.PROTO_TCP, 1));
+    assertEquals(1000, connections.get("10.0.0.1", 1024, "10.0.0.2", 53, ConnectionTable.PROTO_UDP, 1));
+    assertEquals(10062, connections.get("fe80::1", 0x1234, "2001:db8::2", 80, ConnectionTable.PROTO_TCP, 1));
+    assertEquals(ConnectionTable.NOT_FOUND, connections.get("10.0.0.1", 1024, "10.0.0.2", 53, ConnectionTable.PROTO_TCP, 1));
+  }
+
+  void write(String table, String contents) throws Exception {
+    FileWriter writer = new FileWriter(new File(directory, table));
+    writer.write(contents);
+    writer.close();
+  }
+}
@@ -0,0 +1,258 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Host name lookups through a stub HostLookup and a stub clock.
+public class NetworkResolverTest extends TestCase {
+  static final long TIMEOUT = 5000;
+
+  volatile long clock = 1000000;
+  NetworkResolver resolver;
+  StubLookup lookup;
+
+  class StubLookup implements NetworkResolver.HostLookup {
+    final List<String> lookedUp = Collections.synchronizedList(new ArrayList<String>());
+    // held by lookups of "block" until released
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch blocked = new CountDownLatch(1);
+    volatile String suffix = "";
+
+    public String lookup(String address) throws Exception {
+      if(address.equals("block")) {
+        blocked.countDown();
+        release.await();
+      }
+
+      lookedUp.add(address);
+
+      if(address.startsWith("unknown")) {
+        return address;
+      }
+
+      if(address.startsWith("failing")) {
+        throw new java.net.UnknownHostException(address);
+      }
+
+      return "host-" + address + suffix;
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    if(NetworkLog.handler == null) {
+      NetworkLog.handler = new Handler(Looper.getMainLooper());
+    }
+
+    resolver = new NetworkResolver() {
+      @Override
+      long now() {
+        return clock;
+      }
+    };
+
+    lookup = new StubLookup();
+    resolver.setHostLookup(lookup);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    lookup.release.countDown();
+  }
+
+  public void testResolvesInBackground() throws Exception {
+    assertNull(resolver.resolveAddress("10.0.0.1"));
+    waitForName("10.0.0.1", "host-10.0.0.1");
+    assertEquals(1, lookup.lookedUp.size());
+    assertEquals("host-10.0.0.1", resolver.resolveAddress("10.0.0.1"));
+    assertEquals("host-10.0.0.1", resolver.getResolvedAddress("10.0.0.1"));
+  }
+
+  public void testInFlightRequestsAreLookedUpOnce() throws Exception {
+    resolver.maxWorkers = 1;
+    resolver.resolveAddress("block");
+    assertTrue(lookup.blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+    final AtomicInteger updated = new AtomicInteger();
+    Thread[] threads = new Thread[4];
+
+    for(int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for(int j = 0; j < 10; j++) {
+            resolver.resolveAddress("10.0.0.2");
+            resolver.resolveAddress("10.0.0.2", new NetworkResolverUpdater() {
+              public void run() {
+                updated.incrementAndGet();
+              }
+            });
+          }
+        }
+      });
+      threads[i].start();
+    }
+
+    for(Thread thread : threads) {
+      thread.join();
+    }
+
+    lookup.release.countDown();
+    waitForName("10.0.0.2", "host-10.0.0.2");
+    waitFor(updated, 40);
+    Thread.sleep(100);
+
+    assertEquals(2, lookup.lookedUp.size());
+    assertEquals(40, updated.get());
+  }
+
+  public void testVisibleRequestsGoFirst() throws Exception {
+    resolver.maxWorkers = 1;
+    resolver.resolveAddress("block");
+    assertTrue(lookup.blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+    resolver.resolveAddress("background1");
+    resolver.resolveAddress("background2");
+    resolver.resolveAddress("background3");
+    resolver.resolveAddress("visible1", updater());
+    resolver.resolveAddress("visible2", updater());
+    // shown now, so it moves ahead of the other background requests
+    resolver.resolveAddress("background3", updater());
+
+    lookup.release.countDown();
+    waitForName("background2", "host-background2");
+
+    String[] expected = { "block", "background3", "visible2", "visible1", "background1", "background2" };
+    assertEquals(expected.length, lookup.lookedUp.size());
+
+    for(int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], lookup.lookedUp.get(i));
+    }
+  }
+
+  public void testUnresolvedAddressesAreCached() throws Exception {
+    resolver.resolveAddress("unknown1");
+    resolver.resolveAddress("failing1");
+    waitForName("unknown1", "unknown1");
+    waitForName("failing1", "failing1");
+
+    assertEquals("unknown1", resolver.resolveAddress("unknown1"));
+    assertEquals("failing1", resolver.resolveAddress("failing1"));
+    Thread.sleep(100);
+    assertEquals(2, lookup.lookedUp.size());
+
+    // looked up again once UNRESOLVED_TTL has passed
+    clock += NetworkResolver.UNRESOLVED_TTL + 1;
+    assertEquals("unknown1", resolver.resolveAddress("unknown1"));
+    waitForLookups(3);
+    assertEquals("unknown1", lookup.lookedUp.get(2));
+  }
+
+  public void testResolvedNamesExpire() throws Exception {
+    resolver.resolveAddress("10.0.0.3");
+    waitForName("10.0.0.3", "host-10.0.0.3");
+
+    clock += NetworkResolver.RESOLVED_TTL - 1;
+    assertEquals("host-10.0.0.3", resolver.resolveAddress("10.0.0.3"));
+    Thread.sleep(100);
+    assertEquals(1, lookup.lookedUp.size());
+
+    // the expired name is returned while it is refreshed
+    clock += 2;
+    lookup.suffix = ".new";
+    assertEquals("host-10.0.0.3", resolver.resolveAddress("10.0.0.3"));
+    waitForName("10.0.0.3", "host-10.0.0.3.new");
+    assertEquals(2, lookup.lookedUp.size());
+  }
+
+  public void testLeastRecentlyUsedNamesAreEvicted() throws Exception {
+    int count = 0;
+
+    // the oldest ones one at a time, so they are cached in order
+    while(count < 3) {
+      resolver.resolveAddress(address(count));
+      waitForName(address(count), "host-" + address(count));
+      count++;
+    }
+
+    // the rest in batches the queue can hold
+    while(count < NetworkResolver.MAX_CACHED) {
+      int batch = Math.min(NetworkResolver.MAX_QUEUED, NetworkResolver.MAX_CACHED - count);
+
+      for(int i = 0; i < batch; i++) {
+        resolver.resolveAddress(address(count + i));
+      }
+
+      for(int i = 0; i < batch; i++) {
+        waitForName(address(count + i), "host-" + address(count + i));
+      }
+
+      count += batch;
+    }
+
+    // touch the oldest, so the second oldest goes first
+    assertEquals("host-" + address(0), resolver.resolveAddress(address(0)));
+    resolver.resolveAddress("10.1.0.0");
+    waitForLookups(count + 1);
+    Thread.sleep(100);
+
+    assertNull(resolver.getResolvedAddress(address(1)));
+    assertEquals("host-" + address(0), resolver.getResolvedAddress(address(0)));
+    assertEquals("host-" + address(2), resolver.getResolvedAddress(address(2)));
+    assertEquals("host-10.1.0.0", resolver.getResolvedAddress("10.1.0.0"));
+  }
+
+  static String address(int i) {
+    return "10.0." + (i >> 8) + "." + (i & 255);
+  }
+
+  static NetworkResolverUpdater updater() {
+    return new NetworkResolverUpdater() {
+      public void run() {
+      }
+    };
+  }
+
+  // waits until the cached name of address is name; this makes it the most
+  // recently used
+  void waitForName(String address, String name) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+
+    while(!name.equals(resolver.getResolvedAddress(address))) {
+      assertTrue("timed out waiting for " + address, System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  void waitForLookups(int count) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+
+    while(lookup.lookedUp.size() < count) {
+      assertTrue("timed out waiting for " + count + " lookups", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  static void waitFor(AtomicInteger value, int expected) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+
+    while(value.get() < expected) {
+      assertTrue("timed out waiting for " + expected + " updates", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+// PacketStore.filter() through the index must return what testing every
+// entry with the CompiledFilters does, through eviction, compaction,
+// resizing and turning the index off and on.
+public class PacketIndexTest extends TestCase {
+  NetworkResolver savedResolver;
+  ApplicationsTracker.AppEntry[] apps;
+  Random random;
+
+  @Override
+  protected void setUp() throws Exception {
+    savedResolver = NetworkLog.resolver;
+    HashMap<String, String> hosts = new HashMap<String, String>();
+    hosts.put("8.8.8.8", "google-public-dns-a.google.com");
+    NetworkLog.resolver = CompiledFilterTest.stubResolver(hosts);
+
+    apps = new ApplicationsTracker.AppEntry[20];
+
+    for(int i = 0; i < apps.length; i++) {
+      apps[i] = CompiledFilterTest.app("App" + i + (i % 3 == 0 ? "fire" : ""), 10000 + i);
+    }
+
+    random = new Random(1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    NetworkLog.resolver = savedResolver;
+  }
+
+  public void testMatchesScan() throws Exception {
+    PacketStore store = new PacketStore(5000);
+    store.setIndexed(true);
+
+    for(int round = 0; round < 40; round++) {
+      add(store, round, 1500);
+
+      if(round % 7 == 3) {
+        PacketStoreTest.compact(store, apps[5]);
+      }
+
+      if(round == 20) {
+        store.setCapacity(3000);
+      }
+
+      if(round == 30) {
+        store.setIndexed(false);
+        continue;
+      }
+
+      if(round == 31) {
+        store.setIndexed(true);
+      }
+
+      assertFilters(store, round);
+    }
+  }
+
+  public void testClear() throws Exception {
+    PacketStore store = new PacketStore(5000);
+    store.setIndexed(true);
+    add(store, 0, 3000);
+    store.clear();
+
+    assertEquals(0, store.filter(filter("fire")[0], null, store.getStart(), store.getEnd()).length);
+
+    // codes start over after a clear
+    add(store, 1, 100);
+    assertFilters(store, 1);
+  }
+
+  public void testNoFilter() throws Exception {
+    PacketStore store = new PacketStore(5000);
+    store.setIndexed(true);
+    add(store, 0, 100);
+
+    int[] all = store.filter(null, null, store.getStart(), store.getEnd());
+    assertEquals(100, all.length);
+
+    for(int i = 0; i < all.length; i++) {
+      assertEquals(store.getStart() + i, all[i]);
+    }
+
+    assertEquals(0, store.filter(null, null, store.getEnd(), store.getEnd()).length);
+  }
+
+  void add(PacketStore store, int round, int count) {
+    String[] interfaces = { null, "", "wlan0", "rmnet0" };
+    String[] protocols = { "6", "17", "1" };
+
+    for(int i = 0; i < count; i++) {
+      LogEntry entry = new LogEntry();
+      entry.timestamp = i;
+      entry.in = interfaces[random.nextInt(4)];
+      entry.out = interfaces[random.nextInt(4)];
+      entry.proto = protocols[random.nextInt(3)];
+      entry.src = "10.0.0." + random.nextInt(30);
+      entry.dst = random.nextInt(5) == 0 ? "8.8.8.8" : "1." + round + ".3." + random.nextInt(50);
+      entry.spt = random.nextInt(100);
+      entry.dpt = random.nextInt(3) == 0 ? 53 : random.nextInt(65536);
+      store.add(apps[random.nextInt(apps.length)], entry);
+    }
+  }
+
+  // include only, exclude only, and both with some boxes unchecked
+  CompiledFilter[] filter(String include) {
+    return new CompiledFilter[] {
+      CompiledFilterTest.filter(include, true, true, true, true, true, true),
+      CompiledFilterTest.filter("tcp, 10003", true, true, true, true, true, true),
+      CompiledFilterTest.filter(include, false, true, true, false, true, false),
+      CompiledFilterTest.filter("tcp, 10003", true, false, false, false, false, true)
+    };
+  }
+
+  void assertFilters(PacketStore store, int round) {
+    CompiledFilter[] filters = filter("fire, 53, google, wlan");
+    CompiledFilter[][] pairs = {
+      { filters[0], null },
+      { null, filters[1] },
+      { filters[2], filters[3] }
+    };
+
+    for(CompiledFilter[] pair : pairs) {
+      int from = store.getStart() + random.nextInt(10);
+      int to = store.getEnd() - random.nextInt(10);
+      int[] expected = scan(store, pair[0], pair[1], from, to);
+      int[] actual = store.filter(pair[0], pair[1], from, to);
+      assertTrue("round " + round, Arrays.equals(expected, actual));
+    }
+  }
+
+  static int[] scan(PacketStore store, CompiledFilter include, CompiledFilter exclude, int from, int to) {
+    LogFragment.ListItem item = new LogFragment.ListItem();
+    int[] result = new int[Math.max(0, to - from)];
+    int count = 0;
+
+    for(int seq = from; seq != to; seq++) {
+      store.read(seq, item);
+
+      if((include == null || include.matches(item)) && (exclude == null || !exclude.matches(item))) {
+        result[count++] = seq;
+      }
+    }
+
+    return Arrays.copyOf(result, count);
+  }
+}
@@ -0,0 +1,205 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Random;
+
+// Memory per retained log entry and the time to refilter them, for the
+// PacketStore behind LogFragment and for the LinkedLists of ListItems it
+// replaced.  The old lists are rebuilt here the way LogFragment kept them
+// with no filter set: every entry in listDataUnfiltered and listData.
+// Run with 'adb shell am instrument -w -e size large
+// com.googlecode.networklog.tests/android.test.InstrumentationTestRunner'
+// and read the results from logcat.
+@LargeTest
+public class PacketStoreBenchmark extends TestCase {
+  static final int ENTRIES = 500000;
+  static final int RUNS = 3;
+  static final long SEED = 500000;
+
+  ApplicationsTracker.AppEntry[] apps;
+  String[] localAddresses;
+  String[] remoteAddresses;
+  String[] interfaces = { "wlan0", "rmnet0" };
+  String[] protocols = { "TCP", "UDP", "ICMP" };
+  CompiledFilter include;
+
+  @Override
+  protected void setUp() throws Exception {
+    apps = new ApplicationsTracker.AppEntry[50];
+
+    for(int i = 0; i < apps.length; i++) {
+      ApplicationsTracker.AppEntry app = new ApplicationsTracker.AppEntry();
+      app.uid = 10000 + i;
+      app.uidString = String.valueOf(app.uid);
+      app.name = "App " + i;
+      app.nameLowerCase = app.name.toLowerCase();
+      app.packageName = "com.example.app" + i;
+      apps[i] = app;
+    }
+
+    localAddresses = new String[256];
+
+    for(int i = 0; i < localAddresses.length; i++) {
+      localAddresses[i] = "192.168.1." + i;
+    }
+
+    remoteAddresses = new String[4096];
+
+    for(int i = 0; i < remoteAddresses.length; i++) {
+      remoteAddresses[i] = "173.194." + (i >> 8) + "." + (i & 255);
+    }
+
+    // one app of fifty
+    ArrayList<String> keywords = new ArrayList<String>();
+    FilterUtils.buildList("app 7", keywords);
+    include = new CompiledFilter(keywords, false, true, false, false, false, false);
+  }
+
+  public void testOldLists() throws Exception {
+    long before = used();
+    LinkedList<LogFragment.ListItem> unfiltered = new LinkedList<LogFragment.ListItem>();
+    LinkedList<LogFragment.ListItem> shown = new LinkedList<LogFragment.ListItem>();
+    Random random = new Random(SEED);
+    LogEntry entry = new LogEntry();
+
+    for(int i = 0; i < ENTRIES; i++) {
+      ApplicationsTracker.AppEntry app = next(random, entry, i);
+      LogFragment.ListItem item = new LogFragment.ListItem(app);
+      item.in = entry.in;
+      item.out = entry.out;
+      item.proto = entry.proto;
+      item.srcAddr = entry.src;
+      item.srcPort = entry.spt;
+      item.dstAddr = entry.dst;
+      item.dstPort = entry.dpt;
+      item.len = entry.len;
+      item.timestamp = entry.timestamp;
+      unfiltered.add(item);
+      shown.add(item);
+    }
+
+    logMemory("lists", before);
+
+    // the old CustomFilter: copy listDataUnfiltered, test each item and
+    // replace listData with the matches
+    for(int run = 0; run < RUNS; run++) {
+      long start = System.nanoTime();
+      ArrayList<LogFragment.ListItem> originalItems = new ArrayList<LogFragment.ListItem>(unfiltered.size());
+      originalItems.addAll(unfiltered);
+      ArrayList<LogFragment.ListItem> filteredItems = new ArrayList<LogFragment.ListItem>(originalItems.size());
+
+      for(LogFragment.ListItem item : originalItems) {
+        if(include.matches(item)) {
+          filteredItems.add(item);
+        }
+      }
+
+      shown.clear();
+      shown.addAll(filteredItems);
+      logRefilter("lists", shown.size(), start);
+    }
+
+    assertEquals(ENTRIES, unfiltered.size());
+  }
+
+  public void testPacketStore() throws Exception {
+    checkPacketStore(false);
+  }
+
+  public void testIndexedPacketStore() throws Exception {
+    checkPacketStore(true);
+  }
+
+  void checkPacketStore(boolean indexed) throws Exception {
+    String name = indexed ? "indexed store" : "store";
+    long before = used();
+    PacketStore store = new PacketStore(ENTRIES);
+    store.setIndexed(indexed);
+    Random random = new Random(SEED);
+    LogEntry entry = new LogEntry();
+
+    for(int i = 0; i < ENTRIES; i++) {
+      store.add(next(random, entry, i), entry);
+    }
+
+    logMemory(name, before);
+
+    // LogFragment reads each entry into one scan item when unindexed
+    for(int run = 0; run < RUNS; run++) {
+      long start = System.nanoTime();
+      int count;
+
+      if(indexed) {
+        count = store.filter(include, null, store.getStart(), store.getEnd()).length;
+      } else {
+        IntRingBuffer items = new IntRingBuffer(store.capacity());
+        LogFragment.ListItem item = new LogFragment.ListItem();
+
+        for(int seq = store.getStart(); seq != store.getEnd(); seq++) {
+          store.read(seq, item);
+
+          if(include.matches(item)) {
+            items.add(seq);
+          }
+        }
+
+        count = items.size();
+      }
+
+      logRefilter(name, count, start);
+    }
+
+    assertEquals(ENTRIES, store.size());
+  }
+
+  // like a busy day: a few apps, a few hundred local and some thousand
+  // remote addresses
+  ApplicationsTracker.AppEntry next(Random random, LogEntry entry, int i) {
+    boolean in = random.nextBoolean();
+    entry.timestamp = 1350000000000L + i * 10L;
+    entry.in = in ? interfaces[random.nextInt(2)] : null;
+    entry.out = in ? null : interfaces[random.nextInt(2)];
+    entry.proto = protocols[random.nextInt(protocols.length)];
+    entry.src = localAddresses[random.nextInt(localAddresses.length)];
+    entry.spt = random.nextInt(65536);
+    entry.dst = remoteAddresses[random.nextInt(remoteAddresses.length)];
+    entry.dpt = random.nextBoolean() ? 443 : 80;
+    entry.len = random.nextInt(1500);
+    return apps[random.nextInt(apps.length)];
+  }
+
+  void logMemory(String name, long before) {
+    long bytes = used() - before;
+    Log.d("NetworkLog", "PacketStoreBenchmark: " + name + " hold " + ENTRIES + " entries in "
+        + bytes / 1024 + " KB, " + bytes / ENTRIES + " bytes per entry");
+  }
+
+  void logRefilter(String name, int count, long start) {
+    long elapsed = (System.nanoTime() - start) / 1000000;
+    Log.d("NetworkLog", "PacketStoreBenchmark: " + name + " refiltered " + ENTRIES + " entries to "
+        + count + " in " + elapsed + " ms");
+  }
+
+  static long used() {
+    Runtime runtime = Runtime.getRuntime();
+
+    for(int i = 0; i < 3; i++) {
+      System.gc();
+      System.runFinalization();
+    }
+
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
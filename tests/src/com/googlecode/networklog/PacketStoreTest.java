@@ -0,0 +1,218 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Field;
+
+// Entries read back from PacketStore's columns must be the ones added,
+// through eviction, compaction, resizing and clearing.
+public class PacketStoreTest extends TestCase {
+  ApplicationsTracker.AppEntry[] apps;
+  LogFragment.ListItem item;
+
+  @Override
+  protected void setUp() throws Exception {
+    apps = new ApplicationsTracker.AppEntry[3];
+
+    for(int i = 0; i < apps.length; i++) {
+      apps[i] = new ApplicationsTracker.AppEntry();
+      apps[i].packageName = "com.example.app" + i;
+    }
+
+    item = new LogFragment.ListItem();
+  }
+
+  public void testCapacity() throws Exception {
+    assertEquals(16384, new PacketStore(10000).capacity());
+    assertEquals(16384, new PacketStore(16384).capacity());
+    assertEquals(PacketStore.CHUNK_SIZE, new PacketStore(1).capacity());
+  }
+
+  public void testReadFields() throws Exception {
+    PacketStore store = new PacketStore(100);
+    LogEntry entry = entry(7);
+    entry.spt = 65535;
+    entry.in = null;
+    entry.out = "rmnet0";
+    store.add(apps[2], entry);
+
+    store.read(store.getStart(), item);
+    assertSame(apps[2], item.app);
+    assertNull(item.in);
+    assertEquals("rmnet0", item.out);
+    assertEquals("TCP", item.proto);
+    assertEquals("10.0.0.0", item.srcAddr);
+    assertEquals(65535, item.srcPort);
+    assertEquals("1.1.1.2", item.dstAddr);
+    assertEquals(80, item.dstPort);
+    assertEquals(7, item.len);
+    assertEquals(7, item.timestamp);
+    assertEquals(7, store.getTimestamp(store.getStart()));
+    assertSame(apps[2], store.getApp(store.getStart()));
+  }
+
+  public void testEviction() throws Exception {
+    PacketStore store = fill(10000, 40000);
+
+    assertEquals(16384, store.size());
+    assertEquals(40000 - 16384, store.getStart());
+    assertEquals(40000, store.getEnd());
+    assertFalse(store.contains(store.getStart() - 1));
+    assertTrue(store.contains(store.getStart()));
+    assertFalse(store.contains(store.getEnd()));
+    assertEntries(store);
+
+    store.removeFirst();
+    assertEquals(40000 - 16384 + 1, store.getStart());
+  }
+
+  // removing an app the way LogFragment.removeApp does
+  public void testCompaction() throws Exception {
+    PacketStore store = fill(10000, 40000);
+    int write = compact(store, apps[1]);
+
+    assertEquals(write, store.getEnd());
+
+    for(int seq = store.getStart(); seq != store.getEnd(); seq++) {
+      store.read(seq, item);
+      assertNotSame(apps[1], item.app);
+      assertEquals(item.timestamp, item.len);
+      assertEquals(item.timestamp % 3 == 0 ? apps[0] : apps[2], item.app);
+    }
+  }
+
+  public void testSetCapacity() throws Exception {
+    PacketStore store = fill(10000, 40000);
+    int end = compact(store, apps[1]);
+
+    // shrinking keeps the newest entries with their sequence numbers
+    store.setCapacity(5000);
+    assertEquals(8192, store.capacity());
+    assertEquals(8192, store.size());
+    assertEquals(end, store.getEnd());
+    store.read(store.getEnd() - 1, item);
+    assertEquals(39999, item.timestamp);
+
+    store.setCapacity(100000);
+    assertEquals(131072, store.capacity());
+    assertEquals(8192, store.size());
+
+    for(int seq = store.getStart(); seq != store.getEnd(); seq++) {
+      store.read(seq, item);
+      assertEquals(item.timestamp, item.len);
+      assertNotSame(apps[1], item.app);
+    }
+  }
+
+  public void testClear() throws Exception {
+    PacketStore store = fill(10000, 40000);
+    store.clear();
+
+    assertEquals(0, store.size());
+    assertEquals(40000, store.getStart());
+    assertEquals(40000, store.getEnd());
+
+    store.add(apps[0], entry(12345));
+    store.read(40000, item);
+    assertEquals(12345, item.len);
+    assertEquals("1.1.1.0", item.dstAddr);
+  }
+
+  // a new address in every entry must not grow the string table without
+  // bound
+  public void testCodesCompactedAsRingWraps() throws Exception {
+    PacketStore store = new PacketStore(PacketStore.CHUNK_SIZE);
+    LogEntry entry = entry(0);
+
+    for(int i = 0; i < PacketStore.CHUNK_SIZE * 10; i++) {
+      entry.timestamp = entry.len = i;
+      entry.dst = "1." + (i >> 16) + "." + ((i >> 8) & 255) + "." + (i & 255);
+      store.add(apps[i % 3], entry);
+
+      assertTrue(strings(store).size() <= PacketStore.CHUNK_SIZE * 2 + 10);
+    }
+
+    for(int seq = store.getStart(); seq != store.getEnd(); seq++) {
+      store.read(seq, item);
+      assertEquals(seq, item.len);
+      assertEquals("1." + (seq >> 16) + "." + ((seq >> 8) & 255) + "." + (seq & 255), item.dstAddr);
+      assertSame(apps[seq % 3], item.app);
+    }
+  }
+
+  PacketStore fill(int capacity, int count) {
+    PacketStore store = new PacketStore(capacity);
+
+    for(int i = 0; i < count; i++) {
+      store.add(apps[i % 3], entry(i));
+    }
+
+    return store;
+  }
+
+  LogEntry entry(int i) {
+    LogEntry entry = new LogEntry();
+    entry.timestamp = i;
+    entry.src = "10.0.0." + (i % 7);
+    entry.dst = "1.1.1." + (i % 5);
+    entry.spt = 65535 - i % 100;
+    entry.dpt = 80;
+    entry.len = i;
+    entry.in = (i & 1) == 0 ? "wlan0" : null;
+    entry.out = (i & 1) == 1 ? "wlan0" : null;
+    entry.proto = "TCP";
+    return entry;
+  }
+
+  void assertEntries(PacketStore store) {
+    for(int seq = store.getStart(); seq != store.getEnd(); seq++) {
+      store.read(seq, item);
+      assertEquals(seq, item.timestamp);
+      assertEquals(seq, item.len);
+      assertEquals(65535 - seq % 100, item.srcPort);
+      assertSame(apps[seq % 3], item.app);
+      assertEquals("10.0.0." + (seq % 7), item.srcAddr);
+      assertEquals("1.1.1." + (seq % 5), item.dstAddr);
+
+      if((seq & 1) == 0) {
+        assertEquals("wlan0", item.in);
+        assertNull(item.out);
+      } else {
+        assertNull(item.in);
+        assertEquals("wlan0", item.out);
+      }
+    }
+  }
+
+  // returns the new end
+  static int compact(PacketStore store, ApplicationsTracker.AppEntry app) {
+    int write = store.getStart();
+
+    for(int seq = store.getStart(); seq != store.getEnd(); seq++) {
+      if(store.getApp(seq) == app) {
+        continue;
+      }
+
+      if(write != seq) {
+        store.move(seq, write);
+      }
+
+      write++;
+    }
+
+    store.truncate(write);
+    return write;
+  }
+
+  static PacketStore.CodeTable<?> strings(PacketStore store) throws Exception {
+    Field field = PacketStore.class.getDeclaredField("strings");
+    field.setAccessible(true);
+    return (PacketStore.CodeTable<?>) field.get(store);
+  }
+}
@@ -0,0 +1,93 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+// Re-ranking one child of a 5000-child group after a packet, against
+// re-sorting the whole group as getChild used to.
+// Run with 'adb shell am instrument -w -e size large
+// com.googlecode.networklog.tests/android.test.InstrumentationTestRunner'
+// and read the timings from logcat.
+@LargeTest
+public class RankedTreeBenchmark extends TestCase {
+  static final int CHILDREN = 5000;
+  static final int UPDATES = 1000000;
+  static final int SORTS = 1000;
+
+  long[] keys;
+  Random random;
+
+  @Override
+  protected void setUp() throws Exception {
+    keys = new long[CHILDREN];
+    random = new Random(CHILDREN);
+  }
+
+  public void testRerank() throws Exception {
+    RankedTree<Integer> tree = new RankedTree<Integer>();
+    ArrayList<RankedTree.Node<Integer>> nodes = new ArrayList<RankedTree.Node<Integer>>();
+
+    for(int i = 0; i < CHILDREN; i++) {
+      nodes.add(tree.newNode(i));
+      tree.insert(nodes.get(i), 0);
+    }
+
+    long start = System.nanoTime();
+
+    for(int i = 0; i < UPDATES; i++) {
+      int child = random.nextInt(CHILDREN);
+      keys[child] += random.nextInt(1500);
+      tree.remove(nodes.get(child));
+      tree.insert(nodes.get(child), keys[child]);
+    }
+
+    long elapsed = (System.nanoTime() - start) / 1000;
+    Log.d("NetworkLog", "RankedTreeBenchmark: " + UPDATES + " re-ranks of " + CHILDREN + " children in "
+        + elapsed / 1000 + " ms, " + elapsed * 1000 / UPDATES + " ns each");
+    assertEquals(CHILDREN, tree.size());
+  }
+
+  public void testSort() throws Exception {
+    ArrayList<Integer> children = new ArrayList<Integer>();
+
+    for(int i = 0; i < CHILDREN; i++) {
+      children.add(i);
+    }
+
+    Comparator<Integer> comparator = new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        if(keys[a] != keys[b]) {
+          return keys[a] > keys[b] ? -1 : 1;
+        }
+
+        return a - b;
+      }
+    };
+
+    long start = System.nanoTime();
+
+    for(int i = 0; i < SORTS; i++) {
+      int child = random.nextInt(CHILDREN);
+      keys[child] += random.nextInt(1500);
+      Collections.sort(children, comparator);
+    }
+
+    long elapsed = (System.nanoTime() - start) / 1000;
+    Log.d("NetworkLog", "RankedTreeBenchmark: " + SORTS + " sorts of " + CHILDREN + " children in "
+        + elapsed / 1000 + " ms, " + elapsed / SORTS + " us each");
+    assertEquals(CHILDREN, children.size());
+  }
+}
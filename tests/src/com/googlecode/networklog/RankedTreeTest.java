@@ -0,0 +1,122 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+// Ranks kept by RankedTree must match a full sort by key, descending, with
+// ties in the order the nodes were created.
+public class RankedTreeTest extends TestCase {
+  static final int NODES = 3000;
+
+  RankedTree<Integer> tree;
+  ArrayList<RankedTree.Node<Integer>> nodes;
+  long[] keys;
+
+  @Override
+  protected void setUp() throws Exception {
+    tree = new RankedTree<Integer>();
+    nodes = new ArrayList<RankedTree.Node<Integer>>();
+    keys = new long[NODES];
+
+    for(int i = 0; i < NODES; i++) {
+      nodes.add(tree.newNode(i));
+    }
+  }
+
+  public void testTiesInCreationOrder() throws Exception {
+    for(int i = NODES - 1; i >= 0; i--) {
+      tree.insert(nodes.get(i), 0);
+    }
+
+    assertEquals(NODES, tree.size());
+
+    for(int rank = 0; rank < NODES; rank++) {
+      assertEquals(rank, (int) tree.get(rank));
+    }
+  }
+
+  public void testMatchesSort() throws Exception {
+    Random random = new Random(3);
+
+    for(int step = 0; step < 200000; step++) {
+      int i = random.nextInt(NODES);
+      RankedTree.Node<Integer> node = nodes.get(i);
+
+      // mostly re-keyed by a packet, sometimes filtered out
+      tree.remove(node);
+
+      if(random.nextInt(10) != 0) {
+        keys[i] += random.nextInt(3);
+        tree.insert(node, keys[i]);
+      }
+
+      if(step == 100000) {
+        tree.clear();
+        assertEquals(0, tree.size());
+        assertFalse(node.isInTree());
+      }
+
+      if(step % 20000 == 0) {
+        assertRanks();
+      }
+    }
+
+    assertRanks();
+  }
+
+  public void testRemoveTwice() throws Exception {
+    tree.insert(nodes.get(0), 5);
+    tree.insert(nodes.get(1), 7);
+    tree.remove(nodes.get(0));
+    tree.remove(nodes.get(0));
+
+    assertEquals(1, tree.size());
+    assertEquals(1, (int) tree.get(0));
+  }
+
+  public void testRankOutOfRange() throws Exception {
+    tree.insert(nodes.get(0), 5);
+
+    try {
+      tree.get(1);
+      fail("expected IndexOutOfBoundsException");
+    } catch(IndexOutOfBoundsException e) {
+    }
+  }
+
+  void assertRanks() {
+    ArrayList<Integer> expected = new ArrayList<Integer>();
+
+    for(int i = 0; i < NODES; i++) {
+      if(nodes.get(i).isInTree()) {
+        expected.add(i);
+      }
+    }
+
+    Collections.sort(expected, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        if(keys[a] != keys[b]) {
+          return keys[a] > keys[b] ? -1 : 1;
+        }
+
+        return a - b;
+      }
+    });
+
+    assertEquals(expected.size(), tree.size());
+
+    for(int rank = 0; rank < expected.size(); rank++) {
+      assertEquals("rank " + rank, (int) expected.get(rank), (int) tree.get(rank));
+    }
+  }
+}
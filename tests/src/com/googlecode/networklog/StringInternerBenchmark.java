@@ -0,0 +1,80 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+// 2M address lookups from 1 and 4 threads into an interner the size of
+// StringPool's, with a few of the addresses much more common than the rest.
+// Run with 'adb shell am instrument -w -e size large
+// com.googlecode.networklog.tests/android.test.InstrumentationTestRunner'
+// and read the timings and hit rates from logcat.
+@LargeTest
+public class StringInternerBenchmark extends TestCase {
+  static final int LOOKUPS = 2000000;
+  static final int RUNS = 3;
+
+  public void testFewAddresses() throws Exception {
+    run(5000);
+  }
+
+  public void testManyAddresses() throws Exception {
+    run(50000);
+  }
+
+  void run(int distinct) throws Exception {
+    final char[][] addresses = new char[distinct][];
+
+    for(int i = 0; i < distinct; i++) {
+      addresses[i] = ("10." + (i >> 16) + "." + ((i >> 8) & 255) + "." + (i & 255)).toCharArray();
+    }
+
+    Random random = new Random(distinct);
+    final int[] lookups = new int[LOOKUPS];
+
+    for(int i = 0; i < LOOKUPS; i++) {
+      lookups[i] = (int) Math.min(distinct - 1, Math.abs(random.nextGaussian()) * distinct / 3);
+    }
+
+    for(int threadCount : new int[] { 1, 4 }) {
+      for(int run = 0; run < RUNS; run++) {
+        final StringInterner interner = new StringInterner(StringPool.maxPoolSize);
+        final int step = threadCount;
+        Thread[] threads = new Thread[threadCount];
+        long start = System.nanoTime();
+
+        for(int t = 0; t < threadCount; t++) {
+          final int first = t;
+
+          threads[t] = new Thread(new Runnable() {
+            public void run() {
+              for(int i = first; i < LOOKUPS; i += step) {
+                char[] chars = addresses[lookups[i]];
+                interner.intern(chars, 0, chars.length);
+              }
+            }
+          });
+          threads[t].start();
+        }
+
+        for(Thread thread : threads) {
+          thread.join();
+        }
+
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        Log.d("NetworkLog", "StringInternerBenchmark: " + LOOKUPS + " lookups of " + distinct + " addresses from "
+            + threadCount + " threads in " + elapsed + " ms, hit rate " + (int) (interner.getHitRate() * 1000) / 10.0 + "%");
+        assertEquals(LOOKUPS, interner.getHits() + interner.getMisses());
+      }
+    }
+  }
+}
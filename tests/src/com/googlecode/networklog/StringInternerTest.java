@@ -0,0 +1,128 @@
+/* (C) 2012 Pragmatic Software
+   This Source Code Form is subject to the terms of the Mozilla Public
+   License, v. 2.0. If a copy of the MPL was not distributed with this
+   file, You can obtain one at http://mozilla.org/MPL/2.0/
+ */
+
+package com.googlecode.networklog;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+// Interning by content, CLOCK eviction within a set, and StringPool on top.
+public class StringInternerTest extends TestCase {
+  StringInterner interner;
+
+  @Override
+  protected void setUp() throws Exception {
+    interner = new StringInterner(1024);
+  }
+
+  public void testCapacity() throws Exception {
+    assertEquals(1024, interner.capacity());
+    assertEquals(16384, new StringInterner(16384).capacity());
+    // at least one set per shard
+    assertEquals(StringInterner.SHARDS * StringInterner.WAYS, new StringInterner(1).capacity());
+  }
+
+  public void testInternChars() throws Exception {
+    char[] chars = "xx10.0.0.1yy".toCharArray();
+    String first = interner.intern(chars, 2, 8);
+    assertEquals("10.0.0.1", first);
+    assertSame(first, interner.intern("10.0.0.1".toCharArray(), 0, 8));
+    assertSame(first, interner.intern(new String("10.0.0.1")));
+
+    assertEquals("", interner.intern(chars, 0, 0));
+    assertNotSame(first, interner.intern(chars, 2, 7));
+  }
+
+  // a substring interns like any other string with its content
+  public void testInternString() throws Exception {
+    String line = "10.0.0.1,443";
+    String address = line.substring(0, 8);
+    String interned = interner.intern(address);
+    assertEquals("10.0.0.1", interned);
+    assertSame(interned, interner.intern("10.0.0.1"));
+  }
+
+  public void testGetAndPut() throws Exception {
+    assertNull(interner.get("Firefox"));
+    assertEquals("firefox", interner.put("Firefox", "firefox"));
+    assertEquals("firefox", interner.get("Firefox"));
+
+    // the first value stays
+    assertEquals("firefox", interner.put(new String("Firefox"), "other"));
+    assertEquals("firefox", interner.get(new String("Firefox")));
+  }
+
+  public void testHitRate() throws Exception {
+    assertEquals(0.0, interner.getHitRate(), 0);
+
+    interner.intern("a");
+    interner.intern("b");
+    interner.intern("a");
+    interner.intern("a");
+
+    // intern(String) looks up once per call and misses once per new string
+    assertEquals(2, interner.getHits());
+    assertEquals(2, interner.getMisses());
+    assertEquals(0.5, interner.getHitRate(), 0.001);
+  }
+
+  // the pool is never cleared, and a string used between every new one
+  // stays while the rest are evicted
+  public void testEviction() throws Exception {
+    String hot = interner.intern("hot");
+    String first = interner.intern("10.0.0.0");
+
+    for(int i = 1; i < interner.capacity() * 20; i++) {
+      interner.intern("10." + (i >> 16) + "." + ((i >> 8) & 255) + "." + (i & 255));
+      assertSame(hot, interner.intern("hot"));
+    }
+
+    assertNotSame(first, interner.intern("10.0.0.0"));
+  }
+
+  public void testThreads() throws Exception {
+    final StringInterner interner = new StringInterner(256);
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    Thread[] threads = new Thread[4];
+
+    for(int t = 0; t < threads.length; t++) {
+      final int seed = t;
+
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          for(int i = 0; i < 100000; i++) {
+            String expected = "10.0." + ((i * 7 + seed) % 1000);
+            char[] chars = expected.toCharArray();
+
+            if(!interner.intern(chars, 0, chars.length).equals(expected)) {
+              failure.set(expected);
+            }
+          }
+        }
+      });
+      threads[t].start();
+    }
+
+    for(Thread thread : threads) {
+      thread.join();
+    }
+
+    assertNull(failure.get());
+    assertEquals(400000, interner.getHits() + interner.getMisses());
+  }
+
+  public void testStringPool() throws Exception {
+    assertEquals("", StringPool.get((String) null));
+    assertEquals("", StringPool.get((Integer) null));
+    assertEquals("12345", StringPool.get(12345));
+    assertEquals("-1", StringPool.get(-1));
+    assertSame(StringPool.get(12345), StringPool.get("12345"));
+    assertEquals("google.com", StringPool.getLowerCase("Google.COM"));
+    assertSame(StringPool.getLowerCase("Google.COM"), StringPool.get("google.com"));
+    assertEquals("", StringPool.getLowerCase(null));
+  }
+}